@@ -92,6 +92,7 @@ class UdaPluginSH extends UdaPlugin {
 	
 	public void removeJob( JobID jobId){
 		userRsrc.remove(jobId.toString());
+		UdaShuffleProviderPluginShared.removeJob(jobId.toString(), LOG);
 	}
 	
 	
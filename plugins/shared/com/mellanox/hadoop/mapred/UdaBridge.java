@@ -43,10 +43,12 @@ public class UdaBridge {
 	
 	static private UdaCallable callable;
 	static private Log LOG;
+	static private Thread releaseHook; // releases the RDMA client that a reduce task parked for the next task of the JVM
 
 	// Native methods and their wrappers start here
 	
 	private static native int startNative(boolean isNetMerger, String args[], int log_level, boolean log_to_uda_file);
+	private static native void releaseParkedClientNative();
 	static void start(boolean isNetMerger, String[] args, Log _LOG, int log_level, Boolean log_to_uda_file, UdaCallable _callable) {
 		LOG = _LOG;
 		callable = _callable;
@@ -54,6 +56,15 @@ public class UdaBridge {
 		LOG.info(" +++>>> invoking UdaBridge.startNative: isNetMerger=" + isNetMerger);
 		int ret = startNative(isNetMerger, args, log_level, log_to_uda_file);
 		LOG.info(" <<<+++ after UdaBridge.startNative ret=" + ret);
+
+		if (isNetMerger && releaseHook == null) {
+			releaseHook = new Thread() {
+				public void run() {
+					releaseParkedClientNative();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(releaseHook);
+		}
 	}
 	
 	
@@ -80,6 +91,19 @@ public class UdaBridge {
     	if (LOG.isDebugEnabled()) LOG.debug(" <<<+++ after UdaBridge.setLogLeveNative");
     }
 
+    // bytes in use of the native pools (fetch staging, KV ring, decompression, LPQ) and their total,
+    // then the peaks in the same order, then the budget - see UdaShuffleMemory
+    private static native long[] getMemoryAccountingNative();
+    public static long[] getMemoryAccounting() {
+    	return getMemoryAccountingNative();
+    }
+
+    // running totals of the native shuffle: bytes, segments, LPQ spills and times of the phases - see UdaShuffleStats
+    private static native long[] getShuffleStatsNative();
+    public static long[] getShuffleStats() {
+    	return getShuffleStatsNative();
+    }
+
     //callbacks from C++ start here	
 
 	static public void fetchOverMessage() throws Throwable {
@@ -137,6 +161,11 @@ public class UdaBridge {
 		return data;
 	}
 
+	// called by C++ merge for keys without native comparator - hot path, no logging
+	static public void compareBatch(Object directBufAsObj, int n, int len) {
+		UdaKeyComparator.compareBatch(directBufAsObj, n, len);
+	}
+
 	static public void failureInUda()  {
 		if (LOG.isDebugEnabled()) LOG.debug("+++>>> started  failureInUda");
 		callable.failureInUda();
@@ -0,0 +1,80 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+package com.mellanox.hadoop.mapred;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Compares keys for the C++ merge using the job's RawComparator, for keys that have no native comparator
+ * (see CompareFunc.cc).
+ *
+ * C++ compares one key against a batch of keys per call, passed in a direct buffer (native byte order):
+ *   int results[n] | int keyLen | key bytes | n * (int len | key bytes)
+ * results[i] is set to compare(key, keys[i]).
+ */
+class UdaKeyComparator {
+
+	static private JobConf jobConf;
+
+	// comparators (e.g. WritableComparator) keep state while comparing, and parallel LPQs merge concurrently
+	static private final ThreadLocal<RawComparator<?>> comparator = new ThreadLocal<RawComparator<?>>() {
+		protected RawComparator<?> initialValue() {
+			return jobConf.getOutputKeyComparator();
+		}
+	};
+
+	static private final ThreadLocal<byte[]> keysBuf = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[64 * 1024];
+		}
+	};
+
+	static void init(JobConf conf) {
+		jobConf = conf;
+	}
+
+	// callback from C++ (through UdaBridge)
+	static void compareBatch(Object directBufAsObj, int n, int len) {
+		ByteBuffer directBuf = ((ByteBuffer) directBufAsObj).duplicate();
+		directBuf.order(ByteOrder.nativeOrder());
+
+		byte[] bytes = keysBuf.get();
+		if (bytes.length < len) {
+			bytes = new byte[Math.max(len, bytes.length * 2)];
+			keysBuf.set(bytes);
+		}
+		directBuf.position(0);
+		directBuf.get(bytes, 0, len); // memcpy from direct buf, RawComparator works on byte[]
+
+		RawComparator<?> cmp = comparator.get();
+		int keyLen = directBuf.getInt(n * 4);
+		int keyOffset = n * 4 + 4;
+		int pos = keyOffset + keyLen;
+		for (int i = 0; i < n; i++) {
+			int otherLen = directBuf.getInt(pos);
+			pos += 4;
+			directBuf.putInt(i * 4, cmp.compare(bytes, keyOffset, keyLen, bytes, pos, otherLen));
+			pos += otherLen;
+		}
+	}
+}
@@ -169,7 +169,8 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
 	private final int         kv_buf_num = 2;
 	private KVBuf[]           kv_bufs = null;
 	
-	private final static float 	  DEFAULT_SHUFFLE_INPUT_PERCENT = 0.7f;
+	private UdaShuffleMemory  shuffleMemory = null;
+	private UdaShuffleStats   shuffleStats = new UdaShuffleStats();
 
 	private void init_kv_bufs() {
 		kv_bufs = new KVBuf[kv_buf_num];
@@ -205,43 +206,19 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
 		super(jobConf);
 		this.udaShuffleConsumer = udaShuffleConsumer;
 		this.reduceTask = reduceTask;
+		UdaKeyComparator.init(jobConf); // for keys the C++ merge can't compare natively
 		
-		String totalRdmaSizeStr = jobConf.get("mapred.rdma.shuffle.total.size", "0"); // default 0 means ignoring this parameter and use instead -Xmx and mapred.job.shuffle.input.buffer.percent
-		long totalRdmaSize = StringUtils.TraditionalBinaryPrefix.string2long(totalRdmaSizeStr);
+		// mapred.rdma.shuffle.total.size, else the container's memory limit less the heap, else a share of the heap
+		this.shuffleMemory = new UdaShuffleMemory(jobConf);
 		long maxRdmaBufferSize= jobConf.getLong("mapred.rdma.buf.size", 1024);
 		long minRdmaBufferSize=jobConf.getLong("mapred.rdma.buf.size.min", 16);
-		long shuffleMemorySize = totalRdmaSize;
+		long shuffleMemorySize = shuffleMemory.budget();
 		StringBuilder meminfoSb = new StringBuilder();
 		meminfoSb.append("UDA: numMaps=").append(numMaps);
 		meminfoSb.append(", maxRdmaBufferSize=").append(maxRdmaBufferSize);
 		meminfoSb.append("KB, minRdmaBufferSize=").append(minRdmaBufferSize).append("KB");
-		meminfoSb.append("KB, rdmaShuffleTotalSize=").append(totalRdmaSize);
-		
-		if (totalRdmaSize < 0) {
-			LOG.warn("Illegal paramter value: mapred.rdma.shuffle.total.size=" +  totalRdmaSize);
-		}
-
-		if (totalRdmaSize <= 0) {	
-			long maxHeapSize = Runtime.getRuntime().maxMemory();
-			double shuffleInputBufferPercent = jobConf.getFloat("mapred.job.shuffle.input.buffer.percent", DEFAULT_SHUFFLE_INPUT_PERCENT);
-			if ((shuffleInputBufferPercent < 0) || (shuffleInputBufferPercent > 1)) {
-				LOG.warn("UDA: mapred.job.shuffle.input.buffer.percent is out of range - set to default: " + DEFAULT_SHUFFLE_INPUT_PERCENT);
-				shuffleInputBufferPercent = DEFAULT_SHUFFLE_INPUT_PERCENT;
-			}
-			shuffleMemorySize = (long)(maxHeapSize * shuffleInputBufferPercent);
-			
-			LOG.info("Using JAVA Xmx with mapred.job.shuffle.input.buffer.percent to limit UDA shuffle memory");
-				
-			meminfoSb.append(", maxHeapSize=").append(maxHeapSize).append("B");
-			meminfoSb.append(", shuffleInputBufferPercent=").append(shuffleInputBufferPercent);			
-			meminfoSb.append("==> shuffleMemorySize=").append(shuffleMemorySize).append("B");
-			
-			LOG.info("RDMA shuffle memory is limited to " + shuffleMemorySize/1024/1024 + "MB");
-		} 
-		else {
-			LOG.info("Using mapred.rdma.shuffle.total.size to limit UDA shuffle memory");
-			LOG.info("RDMA shuffle memory is limited to " + totalRdmaSize/1024/1024 + "MB");
-		}
+		meminfoSb.append(", shuffleMemorySize=").append(shuffleMemorySize).append("B");
+		meminfoSb.append(", containerLimit=").append(shuffleMemory.getContainerLimit()).append("B");
 		
 		LOG.debug(meminfoSb.toString());
 		LOG.info("UDA: user prefer rdma.buf.size=" + maxRdmaBufferSize + "KB");
@@ -257,6 +234,7 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
 		init_kv_bufs(); 
 		
 		launchCppSide(true, this); // true: this is RT => we should execute NetMerger
+		shuffleMemory.register(reduceTask.getTaskID().toString());
 
 		this.j2c_queue = new J2CQueue<K, V>();
 		this.mTaskReporter = reporter;
@@ -288,6 +266,13 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
                 bufferSize = jobConf.get("io.compression.codec.lzo.buffersize", bufferSize);
             }else if(alg.contains("SnappyCodec")){
                 bufferSize = jobConf.get("io.compression.codec.snappy.buffersize", bufferSize);
+            }else if(alg.contains("Lz4Codec")){
+                bufferSize = jobConf.get("io.compression.codec.lz4.buffersize", bufferSize);
+            }else if(alg.contains("ZStandardCodec")){
+                // 0 lets zstd choose its buffer size; the stream is decompressed in chunks of bufferSize
+                if (jobConf.getInt("io.compression.codec.zstd.buffersize", 0) > 0) {
+                    bufferSize = jobConf.get("io.compression.codec.zstd.buffersize");
+                }
             }
         }		
 		mParams.add(bufferSize);
@@ -334,6 +319,9 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
 	}
 
 	public void close() {
+		shuffleMemory.updateCounters(mTaskReporter);
+		shuffleMemory.unregister();
+		shuffleStats.updateCounters(mTaskReporter);
 		LOG.info("sending EXIT_COMMAND by calling reduceExitMsg...");    	  
 		UdaBridge.reduceExitMsg();
     	if (LOG.isDebugEnabled()) LOG.debug(">> C++ finished.  Closing java...");
@@ -353,6 +341,7 @@ class UdaPluginRT<K,V> extends UdaPlugin implements UdaCallable {
 		mMapsCount += mReportCount;
 		if (mMapsCount >= this.mMapsNeed) mMapsCount = this.mMapsNeed;
 		mTaskReporter.progress();
+		shuffleStats.updateCounters(mTaskReporter);
 		if (LOG.isInfoEnabled()) LOG.info("in fetchOverMessage: mMapsCount=" + mMapsCount + " mMapsNeed=" + mMapsNeed); 
 
 		if (mMapsCount >= this.mMapsNeed) {
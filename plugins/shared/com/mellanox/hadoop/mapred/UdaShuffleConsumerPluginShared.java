@@ -216,6 +216,7 @@ class UdaShuffleConsumerPluginShared<K, V> implements UdaConsumerPluginCallable{
       System.exit(1);
     }
 
+		UdaShuffleStats.countFallback(reporter, t);
 		if (t != null) {
 			LOG.error("Critical failure has occured in UdaPlugin - We'll try to use vanilla as fallbackPlugin. \n\tException is:" + StringUtils.stringifyException(t));
 		}
@@ -0,0 +1,285 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+** 
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**  
+** http://www.apache.org/licenses/LICENSE-2.0
+** 
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+** either express or implied. See the License for the specific language 
+** governing permissions and  limitations under the License.
+**
+**
+*/
+package com.mellanox.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * The off-heap budget of the native shuffle and its accounting.
+ *
+ * The budget is mapred.rdma.shuffle.total.size when set, else the container's memory limit less the Java heap
+ * and mapred.rdma.shuffle.offheap.reserve (other native memory of the JVM). Only without a known container limit
+ * it falls back to mapred.job.shuffle.input.buffer.percent of the Java heap. A budget over the container's
+ * headroom is reduced to the headroom, so the container is not killed for exceeding its physical memory.
+ * The native shuffle may be granted less than that by the node memory arbiter - its lease is what is reported.
+ */
+class UdaShuffleMemory implements UdaShuffleMemoryMXBean {
+
+	private static final Log LOG = LogFactory.getLog(UdaShuffleMemory.class.getName());
+
+	static final String COUNTER_GROUP = "UDA";
+
+	private final static float DEFAULT_SHUFFLE_INPUT_PERCENT = 0.7f;
+	private final static String DEFAULT_OFFHEAP_RESERVE = "256m";
+
+	// pools in the order of UdaBridge.getMemoryAccounting(): in use, then peaks, then the budget
+	private final static int FETCH = 0;
+	private final static int KV = 1;
+	private final static int DECOMPRESS = 2;
+	private final static int LPQ = 3;
+	private final static int RANGE = 4;
+	private final static int TOTAL = 5;
+	private final static int NUM_VALUES = TOTAL + 1;
+	private final static int BUDGET = 2 * NUM_VALUES;
+	private final static String[] POOL_COUNTERS = {"FETCH_STAGING", "KV_RING", "DECOMPRESS", "LPQ", "RANGE_OUTPUT", "TOTAL"};
+
+	private final long budget;
+	private final long containerLimit;
+	private ObjectName name = null;
+
+	UdaShuffleMemory(JobConf jobConf) {
+		containerLimit = getContainerLimit(jobConf);
+		budget = calculateBudget(jobConf, containerLimit);
+	}
+
+	long budget() {
+		return budget;
+	}
+
+	/**
+	 * the memory limit of the container of the task: mapreduce.reduce.memory.mb (mapred.job.reduce.memory.mb on MR1)
+	 * or the limit of its memory cgroup, whichever is lower. -1 if neither is known
+	 */
+	static long getContainerLimit(JobConf jobConf) {
+		long limit = -1;
+		long mb = jobConf.getLong("mapreduce.reduce.memory.mb", jobConf.getLong("mapred.job.reduce.memory.mb", -1));
+		if (mb > 0) {
+			limit = mb << 20;
+		}
+
+		long cgroupLimit = getCgroupLimit();
+		if (cgroupLimit > 0 && (limit <= 0 || cgroupLimit < limit)) {
+			limit = cgroupLimit;
+		}
+		return limit;
+	}
+
+	/**
+	 * the memory limit of the cgroup of this process, -1 if unlimited or unknown. The cgroup is the one in
+	 * /proc/self/cgroup - the memory controller of cgroup v1, else the "0::" entry of cgroup v2 - under the
+	 * mount in /sys/fs/cgroup. The lowest limit of it and its ancestors applies.
+	 */
+	static long getCgroupLimit() {
+		String v1Path = null;
+		String v2Path = null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/self/cgroup"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(":", 3); // hierarchy-ID:controller-list:cgroup-path
+				if (fields.length < 3) {
+					continue;
+				}
+				if (fields[0].equals("0") && fields[1].isEmpty()) {
+					v2Path = fields[2];
+				}
+				for (String controller : fields[1].split(",")) {
+					if (controller.equals("memory")) {
+						v1Path = fields[2];
+					}
+				}
+			}
+		} catch (IOException e) {
+			// not Linux - only the configured container size is known
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) { }
+			}
+		}
+
+		long limit = -1;
+		if (v1Path != null) {
+			limit = lowestCgroupLimit("/sys/fs/cgroup/memory", v1Path, "memory.limit_in_bytes");
+		}
+		if (limit <= 0 && v2Path != null) {
+			limit = lowestCgroupLimit("/sys/fs/cgroup", v2Path, "memory.max");
+		}
+		return limit;
+	}
+
+	// the lowest limit in the file of the cgroup at path and of its ancestors, -1 if none is limited
+	private static long lowestCgroupLimit(String mount, String path, String file) {
+		long lowest = -1;
+		while (true) {
+			long limit = readCgroupLimit(mount + (path.equals("/") ? "" : path) + "/" + file);
+			if (limit > 0 && (lowest <= 0 || limit < lowest)) {
+				lowest = limit;
+			}
+			if (path.equals("/") || path.isEmpty()) {
+				return lowest;
+			}
+			int slash = path.lastIndexOf('/');
+			path = (slash <= 0) ? "/" : path.substring(0, slash);
+		}
+	}
+
+	// the limit in a cgroup file, -1 when unlimited ("max" or the page counter maximum) or not readable
+	private static long readCgroupLimit(String path) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(path));
+			String line = reader.readLine();
+			if (line == null || line.trim().equals("max")) {
+				return -1;
+			}
+			long limit = Long.parseLong(line.trim());
+			return (limit <= 0 || limit >= (1L << 60)) ? -1 : limit;
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	static long calculateBudget(JobConf jobConf, long containerLimit) {
+		long totalRdmaSize = StringUtils.TraditionalBinaryPrefix.string2long(jobConf.get("mapred.rdma.shuffle.total.size", "0"));
+		if (totalRdmaSize < 0) {
+			LOG.warn("Illegal paramter value: mapred.rdma.shuffle.total.size=" +  totalRdmaSize);
+		}
+
+		long maxHeapSize = Runtime.getRuntime().maxMemory();
+		long headroom = -1;
+		if (containerLimit > 0) {
+			long reserve = StringUtils.TraditionalBinaryPrefix.string2long(jobConf.get("mapred.rdma.shuffle.offheap.reserve", DEFAULT_OFFHEAP_RESERVE));
+			headroom = containerLimit - maxHeapSize - reserve;
+			LOG.info("UDA: container memory limit=" + containerLimit + "B, maxHeapSize=" + maxHeapSize + "B, reserve=" + reserve + "B ==> off-heap headroom=" + headroom + "B");
+			if (headroom <= 0) {
+				throw new UdaRuntimeException("no off-heap memory left for the UDA shuffle in a container of " + containerLimit + "B with a heap of " + maxHeapSize + "B");
+			}
+		}
+
+		long budget;
+		if (totalRdmaSize > 0) {
+			LOG.info("Using mapred.rdma.shuffle.total.size to limit UDA shuffle memory");
+			budget = totalRdmaSize;
+			if (headroom > 0 && budget > headroom) {
+				LOG.warn("UDA: mapred.rdma.shuffle.total.size=" + budget + "B exceeds the container's off-heap headroom - reduced to " + headroom + "B");
+				budget = headroom;
+			}
+		}
+		else if (headroom > 0) {
+			LOG.info("Using the container's memory limit to limit UDA shuffle memory");
+			budget = headroom;
+		}
+		else {
+			double shuffleInputBufferPercent = jobConf.getFloat("mapred.job.shuffle.input.buffer.percent", DEFAULT_SHUFFLE_INPUT_PERCENT);
+			if ((shuffleInputBufferPercent < 0) || (shuffleInputBufferPercent > 1)) {
+				LOG.warn("UDA: mapred.job.shuffle.input.buffer.percent is out of range - set to default: " + DEFAULT_SHUFFLE_INPUT_PERCENT);
+				shuffleInputBufferPercent = DEFAULT_SHUFFLE_INPUT_PERCENT;
+			}
+			budget = (long)(maxHeapSize * shuffleInputBufferPercent);
+			LOG.info("Using JAVA Xmx with mapred.job.shuffle.input.buffer.percent to limit UDA shuffle memory (no container memory limit is known)");
+			LOG.debug("UDA: maxHeapSize=" + maxHeapSize + "B, shuffleInputBufferPercent=" + shuffleInputBufferPercent + " ==> shuffleMemorySize=" + budget + "B");
+		}
+		LOG.info("RDMA shuffle memory is limited to " + budget/1024/1024 + "MB");
+		return budget;
+	}
+
+	void register(String attemptId) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("com.mellanox.hadoop.mapred:type=UdaShuffleMemory,attempt=" + ObjectName.quote(attemptId));
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			LOG.warn("UDA: failed to register the shuffle memory MXBean: " + e);
+			name = null;
+		}
+	}
+
+	void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			LOG.warn("UDA: failed to unregister the shuffle memory MXBean: " + e);
+		}
+		name = null;
+	}
+
+	/** sets the budget granted to the native shuffle and the peak bytes of the native pools as task counters */
+	void updateCounters(Reporter reporter) {
+		long[] values = UdaBridge.getMemoryAccounting();
+		if (values == null || reporter == null) {
+			return;
+		}
+		reporter.incrCounter(COUNTER_GROUP, "NATIVE_MEMORY_BUDGET_BYTES", grantedBudget(values));
+		for (int i = 0; i < NUM_VALUES; ++i) {
+			reporter.incrCounter(COUNTER_GROUP, "NATIVE_" + POOL_COUNTERS[i] + "_PEAK_BYTES", values[NUM_VALUES + i]);
+		}
+	}
+
+	private long value(int index) {
+		long[] values = UdaBridge.getMemoryAccounting();
+		return (values == null) ? 0 : values[index];
+	}
+
+	// the budget of the native shuffle: the lease of the node memory arbiter, or the budget asked for before init
+	private long grantedBudget(long[] values) {
+		return (values == null || values[BUDGET] <= 0) ? budget : values[BUDGET];
+	}
+
+	public long getBudget() {return grantedBudget(UdaBridge.getMemoryAccounting());}
+	public long getRequestedBudget() {return budget;}
+	public long getContainerLimit() {return containerLimit;}
+
+	public long getFetchStagingBytes() {return value(FETCH);}
+	public long getKvRingBytes() {return value(KV);}
+	public long getDecompressBytes() {return value(DECOMPRESS);}
+	public long getLpqBytes() {return value(LPQ);}
+	public long getRangeOutputBytes() {return value(RANGE);}
+	public long getTotalBytes() {return value(TOTAL);}
+
+	public long getPeakFetchStagingBytes() {return value(NUM_VALUES + FETCH);}
+	public long getPeakKvRingBytes() {return value(NUM_VALUES + KV);}
+	public long getPeakDecompressBytes() {return value(NUM_VALUES + DECOMPRESS);}
+	public long getPeakLpqBytes() {return value(NUM_VALUES + LPQ);}
+	public long getPeakRangeOutputBytes() {return value(NUM_VALUES + RANGE);}
+	public long getPeakTotalBytes() {return value(NUM_VALUES + TOTAL);}
+}
@@ -0,0 +1,51 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+** 
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**  
+** http://www.apache.org/licenses/LICENSE-2.0
+** 
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+** either express or implied. See the License for the specific language 
+** governing permissions and  limitations under the License.
+**
+**
+*/
+package com.mellanox.hadoop.mapred;
+
+/**
+ * Real-time accounting of the native (off-heap) shuffle memory of a reduce task, in bytes.
+ * Registered as com.mellanox.hadoop.mapred:type=UdaShuffleMemory,attempt=&lt;reduce attempt id&gt;
+ */
+public interface UdaShuffleMemoryMXBean {
+	/** the off-heap budget granted to the native shuffle (less than the requested one when the node is short) */
+	long getBudget();
+	/** the off-heap budget the task asked for */
+	long getRequestedBudget();
+	/** the memory limit of the task's container, -1 if unknown */
+	long getContainerLimit();
+
+	/** registered RDMA buffers of the map outputs */
+	long getFetchStagingBytes();
+	/** KV buffers passed to Java */
+	long getKvRingBytes();
+	/** side buffers of the decompression workers */
+	long getDecompressBytes();
+	/** LPQ staging buffers, spill stream buffers and pre-merge runs */
+	long getLpqBytes();
+	/** output buffers of the key ranges of the final merge */
+	long getRangeOutputBytes();
+	long getTotalBytes();
+
+	long getPeakFetchStagingBytes();
+	long getPeakKvRingBytes();
+	long getPeakDecompressBytes();
+	long getPeakLpqBytes();
+	long getPeakRangeOutputBytes();
+	long getPeakTotalBytes();
+}
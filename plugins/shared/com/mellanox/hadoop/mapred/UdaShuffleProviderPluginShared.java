@@ -44,6 +44,16 @@ class UdaShuffleProviderPluginShared{
 	}
 
 
+	// lets the supplier drop scheduling state (and anything else it keeps) of a finished job
+	static void removeJob(String jobId, Log LOG) {
+		List<String> params = new ArrayList<String>();
+		params.add(jobId);
+		String msg = UdaCmd.formCmd(UdaCmd.JOB_OVER_COMMAND, params);
+		if (LOG.isDebugEnabled()) LOG.debug("UDA: sending JOB_OVER_COMMAND for " + jobId);
+		UdaBridge.doCommand(msg);
+	}
+
+
 	static void close(Log LOG) {
 		List<String> params = new ArrayList<String>();
 		String msg = UdaCmd.formCmd(UdaCmd.EXIT_COMMAND, params);
@@ -0,0 +1,73 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+** 
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**  
+** http://www.apache.org/licenses/LICENSE-2.0
+** 
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+** either express or implied. See the License for the specific language 
+** governing permissions and  limitations under the License.
+**
+**
+*/
+package com.mellanox.hadoop.mapred;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Statistics of the native shuffle of the reduce task, published as counters of the "UDA" group, so the job
+ * history shows them per task and per job. The native side keeps running totals; each update adds what grew
+ * since the previous one, at every fetch progress report and at close.
+ */
+class UdaShuffleStats {
+
+	// in the order of UdaBridge.getShuffleStats()
+	private final static String[] COUNTERS = {
+		"FETCHED_BYTES_RAW",		// uncompressed bytes of the fetched map outputs
+		"FETCHED_BYTES_RDMA",		// bytes read over RDMA - compressed with map output compression
+		"FETCHED_SEGMENTS",
+		"FETCH_REQUESTS",
+		"RESTORED_SEGMENTS",		// taken from the LPQ spills of a previous attempt
+		"LPQ_SPILLS",
+		"LPQ_SPILL_BYTES",
+		"LPQ_SPILL_RAW_BYTES",
+		"WAIT_MEM_MILLIS",
+		"FETCH_MILLIS",
+		"MERGE_MILLIS",
+		"UPLOAD_MILLIS"
+	};
+
+	private final long[] published = new long[COUNTERS.length];
+
+	/** adds to the counters what the native statistics grew since the previous update */
+	synchronized void updateCounters(Reporter reporter) {
+		long[] values = UdaBridge.getShuffleStats();
+		if (values == null || reporter == null) {
+			return;
+		}
+		for (int i = 0; i < COUNTERS.length && i < values.length; ++i) {
+			if (values[i] > published[i]) {
+				reporter.incrCounter(UdaShuffleMemory.COUNTER_GROUP, COUNTERS[i], values[i] - published[i]);
+				published[i] = values[i];
+			}
+		}
+	}
+
+	/** counts a fallback to the vanilla shuffle and its cause - the innermost exception */
+	static void countFallback(Reporter reporter, Throwable t) {
+		if (reporter == null) {
+			return;
+		}
+		while (t != null && t.getCause() != null && t.getCause() != t) {
+			t = t.getCause();
+		}
+		reporter.incrCounter(UdaShuffleMemory.COUNTER_GROUP, "FALLBACKS", 1);
+		reporter.incrCounter(UdaShuffleMemory.COUNTER_GROUP, "FALLBACK_CAUSE_" + (t == null ? "UNKNOWN" : t.getClass().getSimpleName()), 1);
+	}
+}
@@ -17,14 +17,24 @@
  **
  */
 
+#ifdef HAVE_CONFIG_H
+#include <config.h>
+#endif
+
 #include "IOUtility.h"
 #include "AIOHandler.h"
 #include <pthread.h>
 #include <errno.h>
+#include <string.h>
 #include <UdaUtil.h>
 #include "UdaBridge.h"
 
-AIOHandler::AIOHandler(AioCallback callback, int ctx_maxevents, long min_nr, long nr, const timespec* timeout) : MAX_EVENTS(ctx_maxevents), MIN_NR(min_nr), NR(nr), GETEVENTS_TIMEOUT(*timeout)
+#if defined(HAVE_LIBURING_H) && defined(HAVE_LIBURING)
+#define AIO_HAVE_IO_URING 1
+#include <liburing.h>
+#endif
+
+AIOHandler::AIOHandler(AioCallback callback, int ctx_maxevents, long min_nr, long nr, const timespec* timeout, AioBackend backend, bool sqpoll) : MAX_EVENTS(ctx_maxevents), MIN_NR(min_nr), NR(nr), GETEVENTS_TIMEOUT(*timeout)
 {
 	_context=0;
 	_callbackProcessorThread=0;
@@ -32,28 +42,85 @@ AIOHandler::AIOHandler(AioCallback callback, int ctx_maxevents, long min_nr, lon
 	_stopCallbackProcessor=false;
 	_cbRow = new iocb*[MAX_EVENTS];
 	_cbRowIndex=0;
+	_cbRowHeld=0;
 	_onAirCounter=0;
 	_onAirKernelCounter=0;
+	_requestedBackend=backend;
+	_backend=AIO_BACKEND_LIBAIO;
+	_sqpoll=sqpoll;
+	_fixedBufsRegistered=false;
+	_ring=NULL;
 	pthread_mutex_init(&_cbRowLock, NULL);
 }
 
+AioBackend AIOHandler::parseBackend(const char* name)
+{
+	if (!name || !*name || !strcmp(name, "auto"))
+		return AIO_BACKEND_AUTO;
+	if (!strcmp(name, "libaio"))
+		return AIO_BACKEND_LIBAIO;
+	if (!strcmp(name, "io_uring"))
+		return AIO_BACKEND_IO_URING;
+
+	log(lsWARN, "AIO: unknown backend '%s' - using auto", name);
+	return AIO_BACKEND_AUTO;
+}
+
+const char* AIOHandler::backendName(AioBackend backend)
+{
+	switch (backend) {
+	case AIO_BACKEND_LIBAIO:	return "libaio";
+	case AIO_BACKEND_IO_URING:	return "io_uring";
+	default:					return "auto";
+	}
+}
+
+void AIOHandler::registerBuffers(void* mem, size_t length)
+{
+	char* base = (char*)mem;
+
+	// a single registered buffer is limited by the kernel, so large pools are split
+	while (length > 0) {
+		iovec iov;
+		iov.iov_base = base;
+		iov.iov_len = length > (size_t)AIO_IO_URING_MAX_FIXED_BUF ? (size_t)AIO_IO_URING_MAX_FIXED_BUF : length;
+		_fixedBufs.push_back(iov);
+		base += iov.iov_len;
+		length -= iov.iov_len;
+	}
+}
+
 int AIOHandler::start()
 {
 	int rc=0;
 
-	if (_context == 0)
+	if (_context == 0 && _ring == NULL)
 	{
-
-		if ((rc=io_setup(MAX_EVENTS, &_context))) {
-			log(lsERROR, "io_setup failure: rc=%d (errno=%m)", rc);
-			throw new UdaException("io_setup failure");
-			return rc;
+		_backend = AIO_BACKEND_LIBAIO;
+		if (_requestedBackend != AIO_BACKEND_LIBAIO) {
+			if (startIoUring() == 0) {
+				_backend = AIO_BACKEND_IO_URING;
+			}
+			else if (_requestedBackend == AIO_BACKEND_IO_URING) {
+				log(lsWARN, "AIO: io_uring backend is not available - falling back to libaio");
+			}
+			else {
+				log(lsINFO, "AIO: io_uring backend is not available - using libaio");
+			}
 		}
 
-		log(lsINFO,"AIO: context was successfully setup");
+		if (_backend == AIO_BACKEND_LIBAIO) {
+			if ((rc=io_setup(MAX_EVENTS, &_context))) {
+				log(lsERROR, "io_setup failure: rc=%d (errno=%m)", rc);
+				throw new UdaException("io_setup failure");
+				return rc;
+			}
+
+			log(lsINFO,"AIO: context was successfully setup");
+		}
 
 
-		log(lsINFO, "AIO: Starting AIO events processor");
+		log(lsINFO, "AIO: Starting AIO events processor (backend=%s)", backendName(_backend));
 
 		pthread_attr_t attr;
 		pthread_attr_init(&attr);
@@ -71,8 +138,15 @@ AIOHandler::~AIOHandler()
 
 		pthread_join(_callbackProcessorThread, NULL); log(lsINFO, "THREAD JOINED");
 
-		io_destroy(_context);
+		if (_context)
+			io_destroy(_context);
 	}
+#if AIO_HAVE_IO_URING
+	if (_ring) {
+		io_uring_queue_exit((struct io_uring*)_ring);
+		delete (struct io_uring*)_ring;
+	}
+#endif
 	pthread_mutex_destroy(&_cbRowLock);
 	delete[] _cbRow;
 }
@@ -123,6 +197,9 @@ int AIOHandler::submit()
 {
 	int rc=0;
 
+	if (_backend == AIO_BACKEND_IO_URING)
+		return submitIoUring();
+
 	if (_cbRowIndex != 0) {
 		pthread_mutex_lock(&_cbRowLock);
 		if (_cbRowIndex != 0) {
@@ -149,16 +226,47 @@ int AIOHandler::submit()
 	return rc;
 }
 
+void AIOHandler::completeEvent(iocb* cb, long long res)
+{
+	int callback_rc;
+	int aio_status = 0;
+
+	if (res < 0) {
+		log(lsERROR,"aio event: completion with error, errno=%lld %m",res);
+		aio_status = 1;
+		throw new UdaException("aio event: completion with error");
+	}
+	else if ((uint64_t)res != cb->u.c.nbytes ) { // res is the actual read/writen bytes  , u.c.nbytes is the requested bytes to read/write
+		if ((cb->u.c.nbytes - res) > 2*AIO_ALIGNMENT) {
+			// if sub is less then 2*AIO_ALIGNMENT then it is probably as a reasult of alignment and EOF
+			// else , it is unexpected.
+			log(lsERROR, "aio event: unexpected number of bytes was read/written. requested=%lld actaul=%lld",cb->u.c.nbytes, res);
+			aio_status = 1;
+			throw new UdaException("aio event: unexpected number of bytes was read/written");
+		}
+	}
+
+	if ((callback_rc = _callback(cb->data, aio_status)) != 0 ){
+		log(lsERROR,"aio event: callback returned with rc=%d", callback_rc);
+	}
+
+	delete cb; // delete the submitted iocb
+	// TODO: make a pool of iocb instead of making new and deleteing for each operation
+
+	_onAirCounter--;
+}
+
 void AIOHandler::processEventsCallbacks()
 {
+	if (_backend == AIO_BACKEND_IO_URING) {
+		processEventsCallbacksIoUring();
+		return;
+	}
+
 	io_event eventArr[NR];
 	int rc=0;
-	int callback_rc;
 	timespec timeout;
-	iocb* cb;
-	long long res;
 	output_stdout("AIO: Events processor started");
-	int aio_status;
 
 	while (!_stopCallbackProcessor) {
 		timeout=GETEVENTS_TIMEOUT;
@@ -197,32 +305,7 @@ void AIOHandler::processEventsCallbacks()
 			log(lsTRACE,"AIO: got %d events. current ONAIR=%d ONAIRKERNEL=%d", rc, _onAirCounter, _onAirKernelCounter);
 
 			for (int i=0; i < rc ; i++ ) {
-				cb = (iocb*)eventArr[i].obj;
-				aio_status = 0;
-				res=(long long)eventArr[i].res;
-				if (res < 0) {
-					log(lsERROR,"aio event: completion with error, errno=%lld %m",res);
-					aio_status = 1;
-					throw new UdaException("aio event: completion with error");
-				}
-				else if ((uint64_t)res != cb->u.c.nbytes ) { // res is the actual read/writen bytes  , u.c.nbytes is the requested bytes to read/write
-					if ((cb->u.c.nbytes - eventArr[i].res) > 2*AIO_ALIGNMENT) {
-						// if sub is less then 2*AIO_ALIGNMENT then it is probably as a reasult of alignment and EOF
-						// else , it is unexpected.
-						log(lsERROR, "aio event: unexpected number of bytes was read/written. requested=%lld actaul=%lld",cb->u.c.nbytes, res);
-						aio_status = 1;
-						throw new UdaException("aio event: unexpected number of bytes was read/written");
-					}
-				}
-
-				if ((callback_rc = _callback(eventArr[i].data, aio_status)) != 0 ){
-					log(lsERROR,"aio event: callback returned with rc=%d", callback_rc);
-				}
-
-				delete cb; // delete the submitted iocb
-				// TODO: make a pool of iocb instead of making new and deleteing for each operation
-
-				_onAirCounter--;
+				completeEvent((iocb*)eventArr[i].obj, (long long)eventArr[i].res);
 				log(lsTRACE,"AIO: after %d events callbacks. current ONAIR=%d ONAIRKERNEL=%d", rc, _onAirCounter, _onAirKernelCounter);
 			}
 		}
@@ -234,6 +317,214 @@ void AIOHandler::processEventsCallbacks()
 	log(lsINFO, "AIO: Events processor stopped");
 }
 
+/*
+ * io_uring backend
+ * ----------------
+ * Requests are still prepared as iocb (so prepare_read/prepare_write are backend agnostic) and are
+ * translated to SQEs on submit(). All prepared requests are queued to the SQ ring and submitted with
+ * a single io_uring_submit() call (a no-op syscall wise in SQPOLL mode, unless the kernel thread is idle).
+ * Reads/writes that fall inside a region given to registerBuffers() use the fixed-buffer opcodes.
+ */
+#if AIO_HAVE_IO_URING
+
+int AIOHandler::startIoUring()
+{
+	struct io_uring* ring = new struct io_uring;
+	struct io_uring_params params;
+	int rc;
+
+	// a large chunks pool may ask for more entries than the kernel allows - the SQ is then shallower than
+	// _cbRow and submitIoUring() feeds it in parts
+	memset(&params, 0, sizeof(params));
+	params.flags = IORING_SETUP_CLAMP;
+	if (_sqpoll) {
+		params.flags |= IORING_SETUP_SQPOLL;
+		params.sq_thread_idle = AIO_IO_URING_SQPOLL_IDLE_MSEC;
+	}
+
+	rc = io_uring_queue_init_params(MAX_EVENTS, ring, &params);
+	if (rc < 0 && _sqpoll) {
+		log(lsWARN, "AIO: io_uring setup with SQPOLL failed: rc=%d (%s) - retrying without SQPOLL", rc, strerror(-rc));
+		memset(&params, 0, sizeof(params));
+		params.flags = IORING_SETUP_CLAMP;
+		rc = io_uring_queue_init_params(MAX_EVENTS, ring, &params);
+	}
+	if (rc < 0) {
+		log(lsWARN, "AIO: io_uring_queue_init failed: rc=%d (%s)", rc, strerror(-rc));
+		delete ring;
+		return rc;
+	}
+
+	// completions are reaped by a different thread than the submitter; without EXT_ARG liburing
+	// implements wait timeout by queuing an internal SQE, which would race with submit()
+	if (!(params.features & IORING_FEAT_EXT_ARG)) {
+		log(lsWARN, "AIO: kernel io_uring lacks IORING_FEAT_EXT_ARG");
+		io_uring_queue_exit(ring);
+		delete ring;
+		return -1;
+	}
+
+	if (!_fixedBufs.empty()) {
+		rc = io_uring_register_buffers(ring, &_fixedBufs[0], _fixedBufs.size());
+		if (rc < 0) {
+			log(lsWARN, "AIO: io_uring_register_buffers failed: rc=%d (%s) - reads will use non registered buffers", rc, strerror(-rc));
+		}
+		else {
+			_fixedBufsRegistered = true;
+		}
+	}
+
+	_ring = ring;
+	log(lsINFO, "AIO: io_uring was successfully setup: entries=%d (asked %d) sqpoll=%d registered_buffers=%d",
+			(int)params.sq_entries, MAX_EVENTS, (params.flags & IORING_SETUP_SQPOLL) ? 1 : 0, _fixedBufsRegistered ? (int)_fixedBufs.size() : 0);
+	return 0;
+}
+
+int AIOHandler::fixedBufIndex(char* buff, size_t size)
+{
+	if (!_fixedBufsRegistered)
+		return -1;
+
+	for (size_t i = 0; i < _fixedBufs.size(); i++) {
+		char* base = (char*)_fixedBufs[i].iov_base;
+		if (buff >= base && buff + size <= base + _fixedBufs[i].iov_len)
+			return (int)i;
+	}
+	return -1;
+}
+
+int AIOHandler::submitIoUring()
+{
+	struct io_uring* ring = (struct io_uring*)_ring;
+	int rc=0;
+
+	if (_cbRowIndex != 0) {
+		pthread_mutex_lock(&_cbRowLock);
+		_onAirCounter += _cbRowIndex - _cbRowHeld; // the held ones were counted when they were first submitted
+		int queued = 0;
+		for (int i = 0; i < _cbRowIndex; i++) {
+			iocb* cb = _cbRow[i];
+			struct io_uring_sqe* sqe = io_uring_get_sqe(ring);
+			if (!sqe) {
+				// SQ ring is full (the SQ may be shallower than _cbRow, or the SQPOLL thread lags) - flush, wait for room and retry
+				io_uring_submit(ring);
+				if (!(sqe = io_uring_get_sqe(ring)) && io_uring_sqring_wait(ring) >= 0)
+					sqe = io_uring_get_sqe(ring);
+				if (!sqe)
+					break;
+			}
+
+			char* buf = (char*)cb->u.c.buf;
+			int bufIndex = fixedBufIndex(buf, cb->u.c.nbytes);
+			if (cb->aio_lio_opcode == IO_CMD_PWRITE) {
+				if (bufIndex >= 0)
+					io_uring_prep_write_fixed(sqe, cb->aio_fildes, buf, cb->u.c.nbytes, cb->u.c.offset, bufIndex);
+				else
+					io_uring_prep_write(sqe, cb->aio_fildes, buf, cb->u.c.nbytes, cb->u.c.offset);
+			}
+			else {
+				if (bufIndex >= 0)
+					io_uring_prep_read_fixed(sqe, cb->aio_fildes, buf, cb->u.c.nbytes, cb->u.c.offset, bufIndex);
+				else
+					io_uring_prep_read(sqe, cb->aio_fildes, buf, cb->u.c.nbytes, cb->u.c.offset);
+			}
+			io_uring_sqe_set_data(sqe, cb);
+			queued++;
+		}
+
+		_onAirKernelCounter+=queued;
+		if ((rc = io_uring_submit(ring)) < 0) {
+			log(lsERROR,"io_uring_submit failure: rc=%d (%s)", rc, strerror(-rc));
+		}
+		else {
+			rc = queued;
+			log(lsTRACE,"AIO: %d operations submitted. current ONAIR=%d ONAIRKERNEL=%d", rc, _onAirCounter, _onAirKernelCounter);
+		}
+
+		// the requests that found no SQE are kept for the next submit() - the events processor retries them
+		// once completions free the ring, so their callbacks still run
+		_cbRowHeld = _cbRowIndex - queued;
+		if (_cbRowHeld) {
+			log(lsWARN, "io_uring: no free SQE - %d operations out of %d are held for retry", _cbRowHeld, _cbRowIndex);
+			memmove(_cbRow, _cbRow + queued, _cbRowHeld * sizeof(iocb*));
+		}
+		_cbRowIndex=_cbRowHeld;
+		pthread_mutex_unlock(&_cbRowLock);
+	}
+
+	return rc;
+}
+
+void AIOHandler::processEventsCallbacksIoUring()
+{
+	struct io_uring* ring = (struct io_uring*)_ring;
+	struct io_uring_cqe* cqes[NR];
+	iocb* cbs[NR];
+	long long results[NR];
+	struct io_uring_cqe* cqe;
+	struct __kernel_timespec timeout;
+	int rc;
+	output_stdout("AIO: io_uring events processor started");
+
+	while (!_stopCallbackProcessor) {
+		if (_cbRowHeld)
+			submitIoUring(); // requests that found the SQ full
+
+		timeout.tv_sec = GETEVENTS_TIMEOUT.tv_sec;
+		timeout.tv_nsec = GETEVENTS_TIMEOUT.tv_nsec;
+
+		rc = io_uring_wait_cqe_timeout(ring, &cqe, &timeout);
+		if (rc < 0) {
+			if (rc == -ETIME || rc == -EINTR || rc == -EAGAIN)
+				continue;
+
+			log(lsERROR, "io_uring_wait_cqe_timeout error: rc=%d (%s)", rc, strerror(-rc));
+			throw new UdaException("io_uring_wait_cqe_timeout error");
+		}
+
+		unsigned count = io_uring_peek_batch_cqe(ring, cqes, NR);
+		for (unsigned i = 0; i < count; i++) {
+			cbs[i] = (iocb*)io_uring_cqe_get_data(cqes[i]);
+			results[i] = cqes[i]->res;
+		}
+		io_uring_cq_advance(ring, count); // release CQ entries before running (possibly slow) callbacks
+
+		_onAirKernelCounter-=count;
+		log(lsTRACE,"AIO: got %d events. current ONAIR=%d ONAIRKERNEL=%d", count, _onAirCounter, _onAirKernelCounter);
+
+		for (unsigned i = 0; i < count; i++) {
+			completeEvent(cbs[i], results[i]);
+		}
+		log(lsTRACE,"AIO: after %d events callbacks. current ONAIR=%d ONAIRKERNEL=%d", count, _onAirCounter, _onAirKernelCounter);
+	}
+
+	log(lsINFO, "AIO: io_uring events processor stopped");
+}
+
+#else // !AIO_HAVE_IO_URING
+
+int AIOHandler::startIoUring()
+{
+	log(lsDEBUG, "AIO: libuda was built without liburing");
+	return -1;
+}
+
+int AIOHandler::submitIoUring()
+{
+	return -1;
+}
+
+void AIOHandler::processEventsCallbacksIoUring()
+{
+}
+
+int AIOHandler::fixedBufIndex(char* buff, size_t size)
+{
+	return -1;
+}
+
+#endif // AIO_HAVE_IO_URING
+
 #if LCOV_HYBRID_MERGE_DEAD_CODE
 void AIOHandler::setCompletionCallback(AioCallback callback)
 {
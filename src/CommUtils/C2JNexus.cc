@@ -72,7 +72,7 @@ int parse_options(int argc, char *argv[], netlev_option_t *op)
             }
             break;
         case 'a':
-            op->online = strtol(optarg, NULL, 10);
+            op->online = (strcmp(optarg, "auto") == 0) ? MERGE_APPROACH_AUTO : strtol(optarg, NULL, 10);
             if (errno) {
                 goto err_options;
             }
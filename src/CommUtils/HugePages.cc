@@ -0,0 +1,181 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+** 
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**  
+** http://www.apache.org/licenses/LICENSE-2.0
+** 
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+** either express or implied. See the License for the specific language 
+** governing permissions and  limitations under the License.
+**
+**
+*/
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/mman.h>
+#include <map>
+#include <string>
+#include <HugePages.h>
+#include <IOUtility.h>
+#include "UdaBridge.h"
+
+using namespace std;
+
+#ifndef MAP_HUGETLB
+#define MAP_HUGETLB 0x40000
+#endif
+#ifndef MADV_HUGEPAGE
+#define MADV_HUGEPAGE 14
+#endif
+
+typedef struct huge_alloc {
+	size_t              len;        /* mapped bytes - a multiple of HUGE_PAGE_SIZE */
+	huge_pages_mode_t   mode;       /* the actual backing after fallbacks */
+	string              pool;
+} huge_alloc_t;
+
+static pthread_mutex_t          huge_lock = PTHREAD_MUTEX_INITIALIZER;
+static map<void*, huge_alloc_t> huge_allocs;
+
+static const char *mode_names[] = {"none", "thp", "hugetlb"};
+
+static huge_pages_mode_t get_mode()
+{
+	string mode = UdaBridge_invoke_getConfData_callback("mapred.rdma.mem.huge.pages", "none");
+	if (mode == "thp")
+		return HUGE_PAGES_THP;
+	if (mode == "hugetlb")
+		return HUGE_PAGES_HUGETLB;
+	if (mode != "none") {
+		log(lsWARN, "unknown mapred.rdma.mem.huge.pages=%s - using regular pages", mode.c_str());
+	}
+	return HUGE_PAGES_NONE;
+}
+
+// -----------------------------------------------------------------------------
+void *huge_pages_alloc(size_t len, const char *pool)
+{
+	void *mem = NULL;
+	huge_pages_mode_t mode = get_mode();
+	if (mode == HUGE_PAGES_NONE) {
+		int rc = posix_memalign(&mem, getpagesize(), len);
+		return rc ? NULL : mem;
+	}
+
+	size_t huge_len = (len + HUGE_PAGE_SIZE - 1) & ~((size_t)HUGE_PAGE_SIZE - 1);
+	if (mode == HUGE_PAGES_HUGETLB) {
+		mem = mmap(NULL, huge_len, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_HUGETLB, -1, 0);
+		if (mem == MAP_FAILED) {
+			log(lsWARN, "no hugetlbfs pages for %zu bytes of %s (%m) - falling back to transparent huge pages", huge_len, pool);
+			mem = NULL;
+			mode = HUGE_PAGES_THP;
+		}
+	}
+	if (mode == HUGE_PAGES_THP) {
+		if (posix_memalign(&mem, HUGE_PAGE_SIZE, huge_len))
+			return NULL;
+		if (madvise(mem, huge_len, MADV_HUGEPAGE)) {
+			log(lsWARN, "madvise(MADV_HUGEPAGE) failed for %s (%m) - regular pages", pool);
+		}
+	}
+
+	huge_alloc_t alloc;
+	alloc.len = huge_len;
+	alloc.mode = mode;
+	alloc.pool = pool;
+	pthread_mutex_lock(&huge_lock);
+	huge_allocs[mem] = alloc;
+	pthread_mutex_unlock(&huge_lock);
+	log(lsDEBUG, "allocated %zu bytes of %s with %s", huge_len, pool, mode_names[mode]);
+	return mem;
+}
+
+// -----------------------------------------------------------------------------
+void huge_pages_free(void *mem)
+{
+	if (!mem)
+		return;
+
+	pthread_mutex_lock(&huge_lock);
+	map<void*, huge_alloc_t>::iterator it = huge_allocs.find(mem);
+	if (it == huge_allocs.end()) {
+		pthread_mutex_unlock(&huge_lock);
+		free(mem);
+		return;
+	}
+	huge_alloc_t alloc = it->second;
+	huge_allocs.erase(it);
+	pthread_mutex_unlock(&huge_lock);
+
+	if (alloc.mode == HUGE_PAGES_HUGETLB) {
+		if (munmap(mem, alloc.len)) {
+			log(lsERROR, "munmap of %zu bytes of %s failed (%m)", alloc.len, alloc.pool.c_str());
+		}
+	}
+	else {
+		free(mem);
+	}
+}
+
+// -----------------------------------------------------------------------------
+// sums AnonHugePages of the mappings in [start, end) - madvise splits the region into mappings of its own
+static size_t thp_backed_bytes(char *start, char *end)
+{
+	FILE *f = fopen("/proc/self/smaps", "r");
+	if (!f)
+		return 0;
+
+	size_t backed = 0;
+	bool in_range = false;
+	char line[512];
+	while (fgets(line, sizeof(line), f)) {
+		unsigned long vma_start, vma_end;
+		size_t kb;
+		if (sscanf(line, "%lx-%lx ", &vma_start, &vma_end) == 2) {
+			in_range = (char*)vma_start < end && (char*)vma_end > start;
+		}
+		else if (in_range && sscanf(line, "AnonHugePages: %zu kB", &kb) == 1) {
+			backed += kb << 10;
+		}
+	}
+	fclose(f);
+	return backed;
+}
+
+void huge_pages_log_backing(void *mem)
+{
+	pthread_mutex_lock(&huge_lock);
+	map<void*, huge_alloc_t>::iterator it = huge_allocs.find(mem);
+	if (it == huge_allocs.end()) {
+		pthread_mutex_unlock(&huge_lock);
+		return;
+	}
+	huge_alloc_t alloc = it->second;
+	pthread_mutex_unlock(&huge_lock);
+
+	size_t backed = alloc.len;
+	if (alloc.mode == HUGE_PAGES_THP)
+		backed = min(thp_backed_bytes((char*)mem, (char*)mem + alloc.len), alloc.len);
+
+	log(lsINFO, "%s: %zu of %zu bytes backed by %dMB huge pages (%s)",
+			alloc.pool.c_str(), backed, alloc.len, HUGE_PAGE_SIZE >> 20, mode_names[alloc.mode]);
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab 
+ */
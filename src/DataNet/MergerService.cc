@@ -0,0 +1,536 @@
+/*
+ ** Copyright (C) 2012 Auburn University
+ ** Copyright (C) 2012 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ **
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <errno.h>
+#include <sys/epoll.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/un.h>
+#include <algorithm>
+
+#include "MergerService.h"
+#include "RDMAClient.h"
+#include <IOUtility.h>
+#include <UdaUtil.h>
+#include "UdaBridge.h"
+
+using namespace std;
+
+typedef struct merger_session {
+	MergerService  *service;
+	int             fd;
+	uint16_t        tag;
+	int64_t         lease_off;   // -1 until MS_ATTACH
+	int64_t         lease_len;
+	int             in_flight;   // fetch requests posted for the session that did not complete
+	bool            closed;      // the task detached - the lease is freed when in_flight is 0
+	bool            dropped;     // the task does not read its completions
+} merger_session_t;
+
+/* the connections and the registered arena of the service - completions are handed to the service */
+class ServiceRdmaClient : public RdmaClient
+{
+public:
+	ServiceRdmaClient(int port, MergerService *service) : RdmaClient(port, NULL), service(service) {}
+
+	void comp_rts(netlev_msg_t *h)              { service->comp_rts(h); }
+	void conn_failed(netlev_conn_t *conn)       { service->conn_failed(conn); }
+
+private:
+	MergerService *service;
+};
+
+bool MergerService::is_enabled()
+{
+	return strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.merger.service", "false").c_str(), "true") == 0;
+}
+
+MergerService::MergerService(int data_port) :
+	data_port(data_port), listen_fd(-1), arena_fd(-1), arena(NULL), arena_len(0), next_tag(1), client(NULL), helper_started(false)
+{
+	pthread_mutex_init(&this->lock, NULL);
+	INIT_LIST_HEAD(&this->event_list);
+	memset(&this->helper, 0, sizeof(this->helper));
+	this->helper.pollfd = -1;
+
+	this->socket_path = UdaBridge_invoke_getConfData_callback("mapred.rdma.merger.service.socket", "/tmp/uda-merger.socket");
+	this->arena_len = ::atoll(UdaBridge_invoke_getConfData_callback("mapred.rdma.merger.service.memory.mb", "1024").c_str()) << 20;
+
+	try {
+		// the arena is a file of /dev/shm that is never linked: reduce tasks get its fd over the socket
+		char arena_path[] = "/dev/shm/uda-merger.XXXXXX";
+		this->arena_fd = mkstemp(arena_path);
+		if (this->arena_fd < 0) {
+			log(lsERROR, "cannot create the merger service arena (errno=%d %m)", errno);
+			throw new UdaException("cannot create the merger service arena");
+		}
+		unlink(arena_path);
+		if (this->arena_len <= 0 || ftruncate(this->arena_fd, this->arena_len)) {
+			log(lsERROR, "cannot size the merger service arena to %lld bytes (errno=%d %m)", (long long)this->arena_len, errno);
+			throw new UdaException("cannot size the merger service arena");
+		}
+		void *mem = mmap(NULL, this->arena_len, PROT_READ | PROT_WRITE, MAP_SHARED, this->arena_fd, 0);
+		if (mem == MAP_FAILED) {
+			log(lsERROR, "cannot map the merger service arena (errno=%d %m)", errno);
+			throw new UdaException("cannot map the merger service arena");
+		}
+		this->arena = (char*) mem;
+		this->free_ranges[0] = this->arena_len;
+
+		this->client = new ServiceRdmaClient(data_port, this);
+		this->client->register_given_mem(this->arena, this->arena_len);
+
+		struct sockaddr_un addr;
+		memset(&addr, 0, sizeof(addr));
+		addr.sun_family = AF_UNIX;
+		if (this->socket_path.length() >= sizeof(addr.sun_path)) {
+			log(lsERROR, "merger service socket path is too long: %s", this->socket_path.c_str());
+			throw new UdaException("merger service socket path is too long");
+		}
+		strcpy(addr.sun_path, this->socket_path.c_str());
+
+		this->listen_fd = socket(AF_UNIX, SOCK_SEQPACKET | SOCK_CLOEXEC, 0);
+		unlink(addr.sun_path); // left by a previous NodeManager
+		if (this->listen_fd < 0 || bind(this->listen_fd, (struct sockaddr*)&addr, sizeof(addr)) ||
+				chmod(addr.sun_path, 0600) || listen(this->listen_fd, 128)) {
+			log(lsERROR, "cannot listen on the merger service socket %s (errno=%d %m)", addr.sun_path, errno);
+			throw new UdaException("cannot listen on the merger service socket");
+		}
+
+		this->helper.pollfd = epoll_create(4096);
+		if (this->helper.pollfd < 0) {
+			log(lsERROR, "cannot create epoll fd, (errno=%d %m)", errno);
+			throw new UdaException("cannot create epoll fd");
+		}
+		if (netlev_event_add(this->helper.pollfd, this->listen_fd, EPOLLIN, listener_handler, this, &this->event_list)) {
+			throw new UdaException("cannot poll the merger service socket");
+		}
+
+		pthread_attr_init(&this->helper.attr);
+		pthread_attr_setdetachstate(&this->helper.attr, PTHREAD_CREATE_JOINABLE);
+		uda_thread_create(&this->helper.thread, &this->helper.attr, event_processor, &this->helper);
+		this->helper_started = true;
+	}
+	catch (UdaException *ex) {
+		release();
+		throw ex;
+	}
+
+	log(lsINFO, "merger service is listening on %s with %lld bytes of registered memory", this->socket_path.c_str(), (long long)this->arena_len);
+}
+
+MergerService::~MergerService()
+{
+	release();
+	log(lsINFO, "merger service stopped");
+}
+
+void MergerService::release()
+{
+	if (this->helper_started) {
+		this->helper.stop = 1;
+		pthread_join(this->helper.thread, NULL); log(lsDEBUG, "THREAD JOINED");
+		pthread_attr_destroy(&this->helper.attr);
+		this->helper_started = false;
+	}
+
+	// no completion is handed to the service after the client is gone
+	delete this->client;
+	this->client = NULL;
+
+	for (map<uint16_t, merger_session_t*>::iterator it = this->sessions.begin(); it != this->sessions.end(); ++it) {
+		if (!it->second->closed)
+			close(it->second->fd);
+		delete it->second;
+	}
+	this->sessions.clear();
+	this->records.clear();
+
+	while (!list_empty(&this->event_list)) {
+		progress_event_t *pevent = list_entry(this->event_list.next, typeof(*pevent), list);
+		list_del(&pevent->list);
+		free(pevent);
+	}
+	if (this->helper.pollfd >= 0)
+		close(this->helper.pollfd);
+	this->helper.pollfd = -1;
+
+	if (this->listen_fd >= 0) {
+		close(this->listen_fd);
+		unlink(this->socket_path.c_str());
+	}
+	this->listen_fd = -1;
+	if (this->arena)
+		munmap(this->arena, this->arena_len);
+	this->arena = NULL;
+	if (this->arena_fd >= 0)
+		close(this->arena_fd);
+	this->arena_fd = -1;
+}
+
+void MergerService::listener_handler(progress_event_t *pevent, void *data)
+{
+	((MergerService*) data)->accept_session();
+}
+
+void MergerService::session_handler(progress_event_t *pevent, void *data)
+{
+	merger_session_t *session = (merger_session_t*) data;
+	merger_service_msg_t msg;
+
+	int len = recv(session->fd, &msg, sizeof(msg), 0);
+	if (len < 0 && (errno == EINTR || errno == EAGAIN))
+		return;
+	if (len <= 0 || len < (int)MERGER_SERVICE_MSG_LEN(0)) {
+		session->service->close_session(session); // the task detached
+		return;
+	}
+	session->service->handle_msg(session, &msg, len);
+}
+
+void MergerService::accept_session()
+{
+	int fd = accept4(this->listen_fd, NULL, NULL, SOCK_CLOEXEC);
+	if (fd < 0) {
+		log(lsWARN, "merger service: accept failed (errno=%d %m)", errno);
+		return;
+	}
+
+	// the reduce tasks get the whole arena: only processes of the service's user
+	struct ucred cred;
+	socklen_t cred_len = sizeof(cred);
+	if (getsockopt(fd, SOL_SOCKET, SO_PEERCRED, &cred, &cred_len) || (cred.uid != geteuid() && cred.uid != 0)) {
+		log(lsWARN, "merger service: rejecting a process of uid %d", (int)cred.uid);
+		close(fd);
+		return;
+	}
+
+	// completions are sent without blocking the completion thread
+	int sndbuf = 4 << 20;
+	setsockopt(fd, SOL_SOCKET, SO_SNDBUF, &sndbuf, sizeof(sndbuf));
+
+	pthread_mutex_lock(&this->lock);
+	uint16_t tag = 0;
+	for (int i = 0; i < MERGER_SERVICE_MAX_TAG && !tag; ++i) {
+		if (this->sessions.find(this->next_tag) == this->sessions.end())
+			tag = this->next_tag;
+		this->next_tag = this->next_tag % MERGER_SERVICE_MAX_TAG + 1;
+	}
+	if (!tag) {
+		pthread_mutex_unlock(&this->lock);
+		log(lsWARN, "merger service: no free session tag for pid %d", (int)cred.pid);
+		close(fd);
+		return;
+	}
+	merger_session_t *session = new merger_session_t;
+	session->service = this;
+	session->fd = fd;
+	session->tag = tag;
+	session->lease_off = -1;
+	session->lease_len = 0;
+	session->in_flight = 0;
+	session->closed = false;
+	session->dropped = false;
+	this->sessions[tag] = session;
+	pthread_mutex_unlock(&this->lock);
+
+	netlev_event_add(this->helper.pollfd, fd, EPOLLIN, session_handler, session, &this->event_list);
+	log(lsINFO, "merger service: session %d of pid %d", (int)tag, (int)cred.pid);
+}
+
+void MergerService::close_session(merger_session_t *session)
+{
+	netlev_event_del(this->helper.pollfd, session->fd, &this->event_list);
+
+	pthread_mutex_lock(&this->lock);
+	log(lsINFO, "merger service: session %d detached with %d fetch requests in flight", (int)session->tag, session->in_flight);
+	close(session->fd);
+	session->closed = true;
+	if (!session->in_flight) { // else the last completion frees it
+		if (session->lease_off >= 0)
+			lease_free(session->lease_off, session->lease_len);
+		this->sessions.erase(session->tag);
+		delete session;
+	}
+	pthread_mutex_unlock(&this->lock);
+}
+
+void MergerService::handle_msg(merger_session_t *session, merger_service_msg_t *msg, int len)
+{
+	switch (msg->op) {
+	case MS_ATTACH:
+		handle_attach(session, msg);
+		break;
+	case MS_FETCH:
+		handle_fetch(session, msg, len);
+		break;
+	default:
+		log(lsWARN, "merger service: session %d sent unknown op %d", (int)session->tag, (int)msg->op);
+		close_session(session);
+		break;
+	}
+}
+
+void MergerService::handle_attach(merger_session_t *session, merger_service_msg_t *msg)
+{
+	int64_t pagesize = getpagesize();
+	int64_t len = ((int64_t)msg->arg + pagesize - 1) / pagesize * pagesize;
+	int64_t off = -1;
+
+	pthread_mutex_lock(&this->lock);
+	if (session->lease_off < 0 && len > 0) {
+		off = lease_alloc(len);
+		if (off >= 0) {
+			session->lease_off = off;
+			session->lease_len = len;
+		}
+	}
+	pthread_mutex_unlock(&this->lock);
+
+	merger_service_msg_t reply;
+	memset(&reply, 0, MERGER_SERVICE_MSG_LEN(0));
+	reply.op = MS_ATTACH;
+	reply.tag = session->tag;
+
+	struct iovec iov;
+	iov.iov_base = &reply;
+	iov.iov_len = MERGER_SERVICE_MSG_LEN(0);
+	struct msghdr mh;
+	memset(&mh, 0, sizeof(mh));
+	mh.msg_iov = &iov;
+	mh.msg_iovlen = 1;
+	char cbuf[CMSG_SPACE(sizeof(int))];
+
+	if (off < 0) {
+		reply.status = ENOMEM;
+		log(lsWARN, "merger service: no lease of %lld bytes for session %d", (long long)len, (int)session->tag);
+	} else {
+		reply.arg = (uint64_t)(uintptr_t)(this->arena + off);
+		reply.offset = off;
+		mh.msg_control = cbuf;
+		mh.msg_controllen = sizeof(cbuf);
+		struct cmsghdr *cmsg = CMSG_FIRSTHDR(&mh);
+		cmsg->cmsg_level = SOL_SOCKET;
+		cmsg->cmsg_type = SCM_RIGHTS;
+		cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+		memcpy(CMSG_DATA(cmsg), &this->arena_fd, sizeof(int));
+		log(lsINFO, "merger service: session %d leased %lld bytes at offset %lld", (int)session->tag, (long long)len, (long long)off);
+	}
+
+	if (sendmsg(session->fd, &mh, MSG_NOSIGNAL) < 0) {
+		log(lsWARN, "merger service: cannot answer session %d (errno=%d %m)", (int)session->tag, errno);
+	}
+}
+
+void MergerService::handle_fetch(merger_session_t *session, merger_service_msg_t *msg, int len)
+{
+	uint64_t token = msg->arg;
+	int status = EINVAL;
+	netlev_conn_t *conn = NULL;
+	netlev_msg_t h;
+	const char *host = msg->data;
+	size_t host_len = 0;
+	size_t req_len = 0;
+
+	// the request must name a buffer of the session's lease and carry a token of the session
+	if (session->lease_off >= 0 && msg->len <= sizeof(msg->data) && len >= (int)MERGER_SERVICE_MSG_LEN(msg->len)) {
+		host_len = strnlen(host, min((size_t)msg->len, (size_t)MERGER_SERVICE_HOST_MAX));
+		if (host_len < msg->len && host_len < MERGER_SERVICE_HOST_MAX)
+			req_len = msg->len - host_len - 1;
+	}
+	if (req_len > 0 && req_len < NETLEV_FETCH_REQSIZE) {
+		char fields[NETLEV_FETCH_REQSIZE];
+		memcpy(fields, host + host_len + 1, req_len);
+		fields[req_len] = '\0';
+
+		/* jobid:mapid:mop_offset:reduceid:mem_addr:req_prt:chunk_size:... */
+		char *field[7];
+		char *save = NULL;
+		int n = 0;
+		for (char *tok = strtok_r(fields, ":", &save); tok && n < 7; tok = strtok_r(NULL, ":", &save))
+			field[n++] = tok;
+
+		if (n == 7) {
+			uint64_t addr = strtoull(field[4], NULL, 10);
+			uint64_t req_token = strtoull(field[5], NULL, 10);
+			int64_t chunk = atoll(field[6]);
+			uint64_t lease = (uint64_t)(uintptr_t)(this->arena + session->lease_off);
+			if (req_token == token && (token >> MERGER_SERVICE_TAG_SHIFT) == session->tag && chunk > 0 &&
+					addr >= lease && addr + chunk <= lease + session->lease_len) {
+				status = 0;
+			}
+		}
+	}
+
+	if (!status) {
+		memcpy(h.msg, host + host_len + 1, req_len);
+		try {
+			conn = this->client->connect(host, msg->port);
+		}
+		catch (UdaException *ex) {
+			log(lsERROR, "merger service: connection to %s failed: %s", host, ex->getFullMessage().c_str());
+		}
+		if (!conn)
+			status = EHOSTUNREACH;
+	} else {
+		log(lsWARN, "merger service: session %d sent an invalid fetch request", (int)session->tag);
+	}
+
+	pthread_mutex_lock(&this->lock);
+	if (!status && this->records.find(token) != this->records.end())
+		status = EINVAL; // already in flight
+	if (status) {
+		session->in_flight++;
+		send_comp(session, token, status, NULL, 0);
+		release_request(session);
+		pthread_mutex_unlock(&this->lock);
+		return;
+	}
+	fetch_record_t record;
+	record.session = session;
+	record.conn = conn;
+	this->records[token] = record;
+	session->in_flight++;
+	pthread_mutex_unlock(&this->lock);
+
+	__sync_add_and_fetch(&this->client->fetches_in_flight, 1);
+	if (netlev_post_send(&h, req_len, 0, NULL, conn, MSG_RTS) == -1) {
+		__sync_sub_and_fetch(&this->client->fetches_in_flight, 1);
+		pthread_mutex_lock(&this->lock);
+		if (this->records.erase(token)) { // unless the connection's failure already failed it
+			send_comp(session, token, EIO, NULL, 0);
+			release_request(session);
+		}
+		pthread_mutex_unlock(&this->lock);
+	}
+}
+
+void MergerService::comp_rts(netlev_msg_t *h)
+{
+	pthread_mutex_lock(&this->lock);
+	map<uint64_t, fetch_record_t>::iterator it = this->records.find(h->src_req);
+	if (it == this->records.end()) {
+		pthread_mutex_unlock(&this->lock);
+		log(lsWARN, "merger service: completion of an unknown fetch request 0x%llx", (unsigned long long)h->src_req);
+		return;
+	}
+	merger_session_t *session = it->second.session;
+	this->records.erase(it);
+	send_comp(session, h->src_req, 0, h->msg, h->tot_len);
+	release_request(session);
+	pthread_mutex_unlock(&this->lock);
+}
+
+void MergerService::conn_failed(netlev_conn_t *conn)
+{
+	int failed = 0;
+
+	pthread_mutex_lock(&this->lock);
+	map<uint64_t, fetch_record_t>::iterator it = this->records.begin();
+	while (it != this->records.end()) {
+		if (it->second.conn != conn) {
+			++it;
+			continue;
+		}
+		merger_session_t *session = it->second.session;
+		send_comp(session, it->first, EIO, NULL, 0);
+		this->records.erase(it++);
+		release_request(session);
+		failed++;
+	}
+	pthread_mutex_unlock(&this->lock);
+
+	log(lsWARN, "merger service: connection (%p) to ip(%lx) failed with %d fetch requests in flight", conn, conn->peerIPAddr, failed);
+}
+
+void MergerService::send_comp(merger_session_t *session, uint64_t token, int status, const char *reply, uint32_t len)
+{
+	if (session->closed || session->dropped)
+		return;
+
+	merger_service_msg_t msg;
+	msg.op = MS_COMP;
+	msg.status = status;
+	msg.arg = token;
+	msg.offset = 0;
+	msg.tag = session->tag;
+	msg.port = 0;
+	msg.len = len;
+	if (len)
+		memcpy(msg.data, reply, len);
+
+	if (send(session->fd, &msg, MERGER_SERVICE_MSG_LEN(len), MSG_DONTWAIT | MSG_NOSIGNAL) < 0) {
+		// the task does not read its completions: it gets EOF and falls back, the service polls the close
+		log(lsERROR, "merger service: cannot send a completion to session %d (errno=%d %m) - dropping it", (int)session->tag, errno);
+		session->dropped = true;
+		shutdown(session->fd, SHUT_RDWR);
+	}
+}
+
+void MergerService::release_request(merger_session_t *session)
+{
+	if (--session->in_flight || !session->closed)
+		return;
+	// the last completion of a detached session
+
+	if (session->lease_off >= 0)
+		lease_free(session->lease_off, session->lease_len);
+	this->sessions.erase(session->tag);
+	delete session;
+}
+
+int64_t MergerService::lease_alloc(int64_t len)
+{
+	for (map<int64_t, int64_t>::iterator it = this->free_ranges.begin(); it != this->free_ranges.end(); ++it) {
+		if (it->second < len)
+			continue;
+		int64_t off = it->first;
+		int64_t left = it->second - len;
+		this->free_ranges.erase(it);
+		if (left)
+			this->free_ranges[off + len] = left;
+		return off;
+	}
+	return -1;
+}
+
+void MergerService::lease_free(int64_t offset, int64_t len)
+{
+	map<int64_t, int64_t>::iterator it = this->free_ranges.insert(make_pair(offset, len)).first;
+
+	map<int64_t, int64_t>::iterator next = it;
+	++next;
+	if (next != this->free_ranges.end() && it->first + it->second == next->first) {
+		it->second += next->second;
+		this->free_ranges.erase(next);
+	}
+	if (it != this->free_ranges.begin()) {
+		map<int64_t, int64_t>::iterator prev = it;
+		--prev;
+		if (prev->first + prev->second == it->first) {
+			prev->second += it->second;
+			this->free_ranges.erase(it);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ ** Copyright (C) 2012 Auburn University
+ ** Copyright (C) 2012 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ **
+ */
+
+#ifndef UDA_MERGER_SERVICE_H
+#define UDA_MERGER_SERVICE_H	1
+
+#include <map>
+#include <string>
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+#include "RDMAComm.h"
+
+/*
+ * Node-local merger service (mapred.rdma.merger.service): runs in the supplier's process, next to
+ * UdaShuffleHandler, and keeps for the reduce tasks of the node what each of them used to set up on its own:
+ * a registered RDMA arena (mapred.rdma.merger.service.memory.mb) and warm connections to the suppliers.
+ *
+ * A reduce task of any process attaches over a local socket (mapred.rdma.merger.service.socket):
+ *   MS_ATTACH  the task asks for arg bytes; the reply passes the arena's fd (SCM_RIGHTS) with the offset of
+ *              the task's lease in it, the lease's address in the service (arg) and the session's tag
+ *   MS_FETCH   a fetch request for the supplier on host 'data' (NUL terminated, the request follows it) and
+ *              port; the request names a buffer of the lease by its address in the service, and its request
+ *              token (arg) carries the session's tag in bits 48-62
+ *   MS_COMP    the supplier's answer for the request token arg, or a failed status
+ * The task maps its lease and the suppliers RDMA-write into it through the service's connections. Closing the
+ * socket detaches; a lease is reused only once no fetch request of its session is in flight.
+ */
+
+#define MERGER_SERVICE_HOST_MAX     (256)
+#define MERGER_SERVICE_TAG_SHIFT    (48)
+#define MERGER_SERVICE_MAX_TAG      (0x7fff)  /* suppliers parse the token as a signed number */
+
+enum merger_service_op {
+	MS_ATTACH = 1,
+	MS_FETCH,
+	MS_COMP
+};
+
+typedef struct merger_service_msg {
+	uint32_t    op;
+	int32_t     status;   /* replies: 0 or an errno value */
+	uint64_t    arg;      /* MS_ATTACH: bytes asked / address of the lease; MS_FETCH, MS_COMP: request token */
+	uint64_t    offset;   /* MS_ATTACH reply: offset of the lease in the arena */
+	uint32_t    tag;      /* MS_ATTACH reply: tag of the session */
+	uint32_t    port;     /* MS_FETCH: port of the supplier */
+	uint32_t    len;      /* bytes used in data */
+	char        data[MERGER_SERVICE_HOST_MAX + NETLEV_FETCH_REQSIZE];
+} merger_service_msg_t;
+
+/* bytes of a message that carries len bytes of data */
+#define MERGER_SERVICE_MSG_LEN(len) (offsetof(merger_service_msg_t, data) + (len))
+
+class RdmaClient;
+class ServiceRdmaClient;
+struct merger_session;
+
+class MergerService
+{
+public:
+	MergerService(int data_port);
+	~MergerService();
+
+	/* true when mapred.rdma.merger.service is set in the node's configuration */
+	static bool is_enabled();
+
+private:
+	friend class ServiceRdmaClient;
+
+	static void listener_handler(progress_event_t *pevent, void *data);
+	static void session_handler(progress_event_t *pevent, void *data);
+
+	void release();
+	void accept_session();
+	void handle_msg(struct merger_session *session, merger_service_msg_t *msg, int len);
+	void handle_attach(struct merger_session *session, merger_service_msg_t *msg);
+	void handle_fetch(struct merger_session *session, merger_service_msg_t *msg, int len);
+	void close_session(struct merger_session *session);
+
+	/* called by the connection's completion thread */
+	void comp_rts(netlev_msg_t *h);
+	void conn_failed(netlev_conn_t *conn);
+
+	/* with lock held */
+	void send_comp(struct merger_session *session, uint64_t token, int status, const char *reply, uint32_t len);
+	void release_request(struct merger_session *session);
+	int64_t lease_alloc(int64_t len);
+	void lease_free(int64_t offset, int64_t len);
+
+	typedef struct fetch_record {
+		struct merger_session  *session;
+		netlev_conn_t          *conn;
+	} fetch_record_t;
+
+	int                 data_port;
+	std::string         socket_path;
+	int                 listen_fd;
+	int                 arena_fd;
+	char               *arena;
+	int64_t             arena_len;
+	std::map<int64_t, int64_t> free_ranges;    // offset -> length of the free parts of the arena
+	uint16_t            next_tag;
+	std::map<uint16_t, struct merger_session*> sessions;
+	std::map<uint64_t, fetch_record_t> records; // request token -> request in flight
+
+	ServiceRdmaClient  *client;
+	netlev_thread_t     helper;       // accepts sessions and reads their messages
+	bool                helper_started;
+	struct list_head    event_list;
+	pthread_mutex_t     lock;         // sessions, records and the arena - completions come on the client's thread
+};
+
+#endif
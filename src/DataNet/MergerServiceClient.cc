@@ -0,0 +1,251 @@
+/*
+ ** Copyright (C) 2012 Auburn University
+ ** Copyright (C) 2012 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ **
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <errno.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <sys/un.h>
+
+#include "MergerServiceClient.h"
+#include "RDMAClient.h"
+#include "../Merger/MergeManager.h"
+#include "../Merger/ShuffleStats.h"
+#include <IOUtility.h>
+#include <UdaUtil.h>
+#include "UdaBridge.h"
+
+using namespace std;
+
+#define TOKEN_REQ_MASK ((1ULL << MERGER_SERVICE_TAG_SHIFT) - 1)
+
+MergerServiceClient* MergerServiceClient::attach(reduce_task_t *reduce_task, int64_t len)
+{
+	if (strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.merger.service", "false").c_str(), "true") != 0)
+		return NULL;
+
+	string path = UdaBridge_invoke_getConfData_callback("mapred.rdma.merger.service.socket", "/tmp/uda-merger.socket");
+	struct sockaddr_un addr;
+	memset(&addr, 0, sizeof(addr));
+	addr.sun_family = AF_UNIX;
+	strncpy(addr.sun_path, path.c_str(), sizeof(addr.sun_path) - 1);
+
+	int fd = socket(AF_UNIX, SOCK_SEQPACKET | SOCK_CLOEXEC, 0);
+	if (fd < 0 || ::connect(fd, (struct sockaddr*)&addr, sizeof(addr))) {
+		log(lsINFO, "merger service is not reachable at %s (errno=%d %m) - the task registers its own RDMA buffers", path.c_str(), errno);
+		if (fd >= 0)
+			close(fd);
+		return NULL;
+	}
+
+	// a service that does not answer does not hold the task
+	struct timeval tv = {10, 0};
+	setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv));
+
+	merger_service_msg_t msg;
+	memset(&msg, 0, MERGER_SERVICE_MSG_LEN(0));
+	msg.op = MS_ATTACH;
+	msg.arg = len;
+
+	int arena_fd = -1;
+	char cbuf[CMSG_SPACE(sizeof(int))];
+	struct iovec iov;
+	iov.iov_base = &msg;
+	iov.iov_len = sizeof(msg);
+	struct msghdr mh;
+	memset(&mh, 0, sizeof(mh));
+	mh.msg_iov = &iov;
+	mh.msg_iovlen = 1;
+	mh.msg_control = cbuf;
+	mh.msg_controllen = sizeof(cbuf);
+
+	if (send(fd, &msg, MERGER_SERVICE_MSG_LEN(0), MSG_NOSIGNAL) < 0 ||
+			recvmsg(fd, &mh, MSG_CMSG_CLOEXEC) < (ssize_t)MERGER_SERVICE_MSG_LEN(0)) {
+		log(lsWARN, "merger service did not answer the attach (errno=%d %m) - the task registers its own RDMA buffers", errno);
+		close(fd);
+		return NULL;
+	}
+	struct cmsghdr *cmsg = CMSG_FIRSTHDR(&mh);
+	if (cmsg && cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_RIGHTS)
+		memcpy(&arena_fd, CMSG_DATA(cmsg), sizeof(int));
+
+	if (msg.op != MS_ATTACH || msg.status || arena_fd < 0) {
+		log(lsWARN, "merger service has no lease of %lld bytes (status=%d) - the task registers its own RDMA buffers", (long long)len, msg.status);
+		if (arena_fd >= 0)
+			close(arena_fd);
+		close(fd);
+		return NULL;
+	}
+
+	void *mem = mmap(NULL, len, PROT_READ | PROT_WRITE, MAP_SHARED, arena_fd, msg.offset);
+	close(arena_fd);
+	if (mem == MAP_FAILED) {
+		log(lsWARN, "cannot map the merger service lease (errno=%d %m) - the task registers its own RDMA buffers", errno);
+		close(fd);
+		return NULL;
+	}
+
+	tv.tv_sec = 0; // the reader waits for completions
+	setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv));
+
+	log(lsINFO, "attached to the merger service: %lld bytes of registered RDMA buffers, session %d", (long long)len, (int)msg.tag);
+	return new MergerServiceClient(reduce_task, fd, (char*)mem, len, msg.arg, msg.tag);
+}
+
+MergerServiceClient::MergerServiceClient(reduce_task_t *reduce_task, int fd, char *mem, int64_t len, uint64_t remote_mem, uint16_t tag) :
+	reduce_task(reduce_task), parent(NULL), fd(fd), mem(mem), len(len), remote_mem(remote_mem), tag(tag), reader_started(false)
+{
+	this->shuffle_weight = get_shuffle_weight();
+	log(lsINFO, "shuffle weight of this job is %d", this->shuffle_weight);
+
+	memset(&this->reader, 0, sizeof(this->reader));
+	this->reader.context = this;
+	pthread_attr_init(&this->reader.attr);
+	pthread_attr_setdetachstate(&this->reader.attr, PTHREAD_CREATE_JOINABLE);
+}
+
+MergerServiceClient::~MergerServiceClient()
+{
+	stop_client();
+	pthread_attr_destroy(&this->reader.attr);
+	close(this->fd);
+	munmap(this->mem, this->len); // the service reuses the lease once no fetch request of it is in flight
+}
+
+void MergerServiceClient::start_client()
+{
+	this->parent = this->reduce_task->client;
+	uda_thread_create(&this->reader.thread, &this->reader.attr, MergerServiceClient::reader_main, this);
+	this->reader_started = true;
+}
+
+void MergerServiceClient::stop_client()
+{
+	if (!this->reader_started)
+		return;
+
+	this->reader.stop = 1;
+	shutdown(this->fd, SHUT_RDWR); // wakes the reader
+	pthread_join(this->reader.thread, NULL); log(lsDEBUG, "THREAD JOINED");
+	this->reader_started = false;
+}
+
+void *MergerServiceClient::reader_main(void *context)
+{
+	((MergerServiceClient*) context)->read_completions();
+	return NULL;
+}
+
+void MergerServiceClient::read_completions()
+{
+	merger_service_msg_t msg;
+
+	while (!this->reader.stop) {
+		int n = recv(this->fd, &msg, sizeof(msg), 0);
+		if (n < 0 && errno == EINTR)
+			continue;
+		if (this->reader.stop)
+			break;
+		if (n < (int)MERGER_SERVICE_MSG_LEN(0)) {
+			log(lsERROR, "lost the merger service (n=%d errno=%d %m)", n, errno);
+			throw new UdaException("lost the merger service");
+		}
+		if (msg.op != MS_COMP || (msg.arg >> MERGER_SERVICE_TAG_SHIFT) != this->tag || msg.len > NETLEV_FETCH_REQSIZE) {
+			log(lsWARN, "unexpected message from the merger service: op=%d token=0x%llx", (int)msg.op, (unsigned long long)msg.arg);
+			continue;
+		}
+
+		client_part_req_t *req = (client_part_req_t*) (long2ptr(msg.arg & TOKEN_REQ_MASK));
+		if (msg.status) {
+			log(lsERROR, "the merger service failed the fetch request of map %s (status=%d)", req->info->params[2], msg.status);
+			throw new UdaException("fetch request failed in the merger service");
+		}
+		memcpy(req->recvd_msg, msg.data, msg.len);
+
+		log(lsTRACE, "Client received completion for fetch request from the merger service: jobid=%s, mapid=%s, reducer_id=%s",
+				req->info->params[1], req->info->params[2], req->info->params[3]);
+		comp_fetch_req(req);
+	}
+}
+
+int MergerServiceClient::start_fetch_req(client_part_req_t *freq, char *buff, int32_t buf_len)
+{
+	if (buf_len <= 0) {
+		log(lsERROR, "illegal fetch request size of %d bytes", buf_len); //DO NOT CHANGE THIS LINE. THE REGRESSION IS PARSING IT
+		throw new UdaException("illegal fetch request size of 0 or less bytes");
+	}
+	if (buff < this->mem || buff + buf_len > this->mem + this->len) {
+		log(lsERROR, "fetch request buffer %p is out of the merger service lease", buff);
+		throw new UdaException("fetch request buffer is out of the merger service lease");
+	}
+	uint64_t req = (uint64_t)((uintptr_t)freq);
+	if (req & ~TOKEN_REQ_MASK) {
+		log(lsERROR, "fetch request %p does not fit the merger service token", freq);
+		throw new UdaException("fetch request does not fit the merger service token");
+	}
+
+	merger_service_msg_t msg;
+	memset(&msg, 0, MERGER_SERVICE_MSG_LEN(0));
+	msg.op = MS_FETCH;
+	msg.arg = ((uint64_t)this->tag << MERGER_SERVICE_TAG_SHIFT) | req;
+	msg.port = this->reduce_task->getMergingSm()->data_port;
+
+	const char *host = freq->info->params[0];
+	size_t host_len = strlen(host);
+	if (host_len >= MERGER_SERVICE_HOST_MAX) {
+		log(lsERROR, "host name is too long: %s", host);
+		throw new UdaException("host name is too long");
+	}
+	memcpy(msg.data, host, host_len + 1);
+
+	uint64_t addr = this->remote_mem + (buff - this->mem);
+	size_t msg_len = format_fetch_msg(msg.data + host_len + 1, NETLEV_FETCH_REQSIZE, freq, addr, msg.arg, buf_len, this->shuffle_weight);
+	if (msg_len >= NETLEV_FETCH_REQSIZE) {
+		log(lsERROR, "trying to fetch a message too big. msg_len=%d, max=%d", (int)msg_len, NETLEV_FETCH_REQSIZE);
+		throw new UdaException("trying to fetch a message too big");
+	}
+	msg.len = host_len + 1 + msg_len;
+
+	shuffle_stats_add(STAT_FETCH_REQUESTS, 1);
+	log(lsTRACE, "sending fetch request to the merger service: mapid=%s, reduceid=%s, hostname=%s, buf_len=%d", freq->info->params[2], freq->info->params[3], host, buf_len);
+	if (send(this->fd, &msg, MERGER_SERVICE_MSG_LEN(msg.len), MSG_NOSIGNAL) < 0) {
+		log(lsERROR, "cannot send a fetch request to the merger service (errno=%d %m)", errno);
+		return -1;
+	}
+	return 0;
+}
+
+void MergerServiceClient::comp_fetch_req(client_part_req_t *req)
+{
+	if (parent==this){//there is no decompression thread ->must notify MergeManager directly
+		MergeManager *merge_man = req->mop->task->merge_man;
+		merge_man->update_fetch_req(req);
+		merge_man->mark_req_as_ready(req);
+	} else {
+		parent->comp_fetch_req(req);
+	}
+}
+
+RdmaClient* MergerServiceClient::getRdmaClient()
+{
+	return NULL;
+}
@@ -0,0 +1,67 @@
+/*
+ ** Copyright (C) 2012 Auburn University
+ ** Copyright (C) 2012 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ **
+ */
+
+#ifndef UDA_MERGER_SERVICE_CLIENT_H
+#define UDA_MERGER_SERVICE_CLIENT_H	1
+
+#include "MergerService.h"
+#include "../Merger/reducer.h"
+#include "../Merger/InputClient.h"
+
+/*
+ * input client of a reduce task attached to the node's merger service (see MergerService.h): the task's RDMA
+ * buffers are its lease of the service's registered arena, and its fetch requests go through the service's
+ * connections. A failure of the service fails the task's shuffle, which falls back to the vanilla shuffle.
+ */
+class MergerServiceClient : public InputClient
+{
+public:
+	/* attaches to the service with a lease of len bytes - NULL when the service is off or unreachable */
+	static MergerServiceClient* attach(reduce_task_t *reduce_task, int64_t len);
+	virtual ~MergerServiceClient();
+
+	void start_client();
+	void stop_client();
+
+	int start_fetch_req(client_part_req_t *freq, char *buff, int32_t buf_len);
+	void comp_fetch_req(client_part_req_t *req);
+
+	RdmaClient* getRdmaClient(); // NULL - the RDMA client is the service's
+
+	char* get_mem() {return mem;}
+
+private:
+	MergerServiceClient(reduce_task_t *reduce_task, int fd, char *mem, int64_t len, uint64_t remote_mem, uint16_t tag);
+
+	static void *reader_main(void *context);
+	void read_completions();
+
+	reduce_task_t      *reduce_task;
+	InputClient        *parent;
+	int                 fd;
+	char               *mem;          // the lease, mapped in this process
+	int64_t             len;
+	uint64_t            remote_mem;   // the lease's address in the service, where suppliers write
+	uint16_t            tag;
+	int32_t             shuffle_weight;
+	netlev_thread_t     reader;       // reads the completions
+	bool                reader_started;
+};
+
+#endif
@@ -30,8 +30,11 @@
 
 #include "RDMAClient.h"
 #include "../Merger/InputClient.h"
+#include "../Merger/ShuffleMemory.h"
+#include "../Merger/ShuffleStats.h"
 #include <IOUtility.h>
 #include <UdaUtil.h>
+#include "UdaBridge.h"
 using namespace std;
 
 extern int netlev_dbg_flag;
@@ -92,12 +95,9 @@ static void client_comp_ibv_recv(netlev_wqe_t *wqe)
 	pthread_mutex_unlock(&conn->lock);
 
 	if ( h->type == MSG_RTS ) {
-		client_part_req_t *req = (client_part_req_t*) (long2ptr(h->src_req));
-		memcpy(req->recvd_msg, h->msg, h->tot_len);
-
-		log(lsTRACE, "Client received RDMA completion for fetch request: jobid=%s, mapid=%s, reducer_id=%s, total_fetched_compressed=%lld, total_read_uncompress=%lld (not updated for this comp)",
-				req->info->params[1], req->info->params[2], req->info->params[3], req->mop->fetched_len_rdma, req->mop->fetched_len_uncompress);
-		req->mop->task->client->comp_fetch_req(req);
+		RdmaClient *client = (RdmaClient*) conn->dev->ctx->owner;
+		__sync_sub_and_fetch(&client->fetches_in_flight, 1);
+		client->comp_rts(h);
 	}
 	else {
 		log(lsDEBUG, "received a noop");
@@ -150,6 +150,16 @@ static void client_cq_handler(progress_event_t *pevent, void *data)
 
 		if (ne) {
 			if (desc.status != IBV_WC_SUCCESS) {
+				RdmaClient *client = (RdmaClient*) dev->ctx->owner;
+				pthread_mutex_lock(&dev->ctx->lock);
+				netlev_conn_t *conn = netlev_conn_find_by_qp((uint32_t) desc.qp_num, &dev->ctx->hdr_conn_list);
+				bool first_error = conn && !conn->bad_conn;
+				if (first_error)
+					conn->bad_conn = true; // connect() replaces it
+				pthread_mutex_unlock(&dev->ctx->lock);
+				if (first_error)
+					client->conn_failed(conn);
+
 				if (desc.status == IBV_WC_WR_FLUSH_ERR) {
 					log(lsERROR,"Operation: %s (%d). Dev %p wr (0x%llx) flush err. quitting...",
 							netlev_stropcode(desc.opcode), desc.opcode, dev, (uint64_t)desc.wr_id);
@@ -349,12 +359,45 @@ err_rdma_connect:
 	netlev_conn_free(conn);
 err_conn_alloc:
 	//    rdma_destroy_id(cm_id); //unnecessary, since destroyed in netlev_conn_alloc and netlev_conn_free
-	rdma_destroy_event_channel(ctx->cm_channel);
+	// the event channel stays: it is the client's, for its other connections, and destroyed with it
 	log(lsERROR, "[%s,%d] connection failed", __FILE__,__LINE__);
 	throw new UdaException("connection failed");
 	return NULL;
 }
 
+/*
+ * weight of this job in suppliers' fair queuing of shuffle requests:
+ * mapred.rdma.shuffle.weight if set, otherwise the weight of the job's queue
+ * in mapred.rdma.shuffle.queue.weights (e.g. "default=1,interactive=4"), otherwise 1
+ */
+int32_t get_shuffle_weight()
+{
+	int32_t weight = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.shuffle.weight", "0").c_str());
+	if (weight > 0)
+		return weight;
+
+	string queue = UdaBridge_invoke_getConfData_callback("mapreduce.job.queuename", "");
+	if (queue.empty())
+		queue = UdaBridge_invoke_getConfData_callback("mapred.job.queue.name", "default");
+	string weights = UdaBridge_invoke_getConfData_callback("mapred.rdma.shuffle.queue.weights", "");
+
+	size_t start = 0;
+	while (start < weights.length()) {
+		size_t end = weights.find(',', start);
+		if (end == weights.npos)
+			end = weights.length();
+		string entry = weights.substr(start, end - start);
+		size_t eq = entry.find('=');
+		if (eq != entry.npos && entry.substr(0, eq) == queue) {
+			weight = ::atoi(entry.substr(eq + 1).c_str());
+			break;
+		}
+		start = end + 1;
+	}
+
+	return weight > 0 ? weight : 1;
+}
+
 RdmaClient::RdmaClient(int port, reduce_task_t* reduce_task) : parent(NULL)
 {
 	netlev_thread_t *th;
@@ -365,9 +408,14 @@ RdmaClient::RdmaClient(int port, reduce_task_t* reduce_task) : parent(NULL)
 	INIT_LIST_HEAD(&this->ctx.hdr_dev_list);
 	INIT_LIST_HEAD(&this->ctx.hdr_conn_list);
 	INIT_LIST_HEAD(&this->register_mems_head);
+	INIT_LIST_HEAD(&this->dead_conns);
+	this->ctx.owner = this;
 	errno = 0;
 
 	this->reduce_task = reduce_task;
+	this->shuffle_weight = get_shuffle_weight();
+	this->fetches_in_flight = 0;
+	log(lsINFO, "shuffle weight of this job is %d", this->shuffle_weight);
 
 	this->svc_port = port;
 	this->ctx.cm_channel = rdma_create_event_channel();
@@ -411,6 +459,11 @@ RdmaClient::~RdmaClient()
 		list_del(&conn->list);
 		netlev_conn_free(conn);
 	}
+	while(!list_empty(&this->dead_conns)) {
+		conn = list_entry(this->dead_conns.next, typeof(*conn), list);
+		list_del(&conn->list);
+		netlev_conn_free(conn);
+	}
 	//DBGPRINT(DBG_CLIENT, "all connections are released\n");
 
 	/* release all device */
@@ -437,6 +490,7 @@ RdmaClient::~RdmaClient()
 void RdmaClient::register_mem(struct memory_pool *mem_pool, double_buffer_t buffers)
 {
 	map_ib_devices(&ctx, client_cq_handler, (void**)&mem_pool->mem, mem_pool->total_size);
+	shuffle_mem_alloc(SHUFFLE_MEM_FETCH, mem_pool->total_size);
 
 	int rc = split_mem_pool_to_pairs(mem_pool, buffers);
 	if (rc) {
@@ -448,6 +502,15 @@ void RdmaClient::register_mem(struct memory_pool *mem_pool, double_buffer_t buff
 	log(lsINFO, " After RDMA buffers registration: buffer1 = %d bytes , buffer2 = %d bytes , buffers count = %d , total = %lld bytes)", buffers.buffer1, buffers.buffer2, mem_pool->num, mem_pool->total_size);
 }
 
+void RdmaClient::register_given_mem(void *mem, int64_t len)
+{
+	if (map_ib_devices(&ctx, client_cq_handler, &mem, len, true) <= 0 || list_empty(&ctx.hdr_dev_list)) {
+		log(lsERROR, "failed to register %lld bytes of given memory", (long long)len);
+		throw new UdaException("failed to register given memory");
+	}
+	log(lsINFO, "registered %lld bytes of given memory", (long long)len);
+}
+
 void init_mem_desc(mem_desc_t *desc, char *addr, int32_t buf_len){
 	desc->buff  = addr;
 	desc->buf_len = buf_len;
@@ -469,27 +532,9 @@ int RdmaClient::split_mem_pool_to_pairs(memory_pool_t *pool, double_buffer_t buf
 
     log (lsDEBUG, "buffer length1  is %d, buffer length2  is %d pool->total_size is %d\n", size1, size2, pool->total_size);
 
-    mem_desc_t *desc_arr =  new mem_desc_t[num*2];
-    mem_set_desc_t* pair_desc_arr = new mem_set_desc_t[num];
-
-    log(lsTRACE, "sizeof(mem_desc_t)=%lld", sizeof(mem_desc_t));
-
+    // one slab per pair of buffers.buffer1 + buffers.buffer2, carved into pairs of the size classes on demand
     pthread_mutex_lock(&pool->lock);
-    pool->desc_arr = desc_arr;
-    pool->pair_desc_arr = pair_desc_arr;
-
-    for (int i = 0; i < num; i++) {
-    	//init mem_desc of the pair
-		mem_desc_t *desc1 = &(desc_arr[2*i]);
-		mem_desc_t *desc2 = &(desc_arr[2*i+1]);
-		init_mem_desc(desc1, pool->mem + i * (size1 + size2), size1);
-		init_mem_desc(desc2, pool->mem + i * (size1 + size2) + size1, size2);
-
-		pair_desc_arr[i].buffer_unit[0] = desc1;
-		pair_desc_arr[i].buffer_unit[1] = desc2;
-
-        list_add_tail(&(pair_desc_arr[i].list), &pool->free_descs);
-    }
+    pool->slabs = new BufferSlabs(pool->mem, num, size1, size2, pool->num_classes, pool->class_size);
     pthread_mutex_unlock(&pool->lock);
 	log (lsTRACE, "After memory pool creation: %d X (buff1_size=%d buff2_size=%d)", num, size1, size2);
     return 0;
@@ -508,24 +553,49 @@ netlev_conn_t* RdmaClient::connect(const char *host, int port)
 		return NULL;
 	}
 	conn = netlev_conn_find_by_ip(ipaddr, &this->ctx.hdr_conn_list);
+	if (conn && conn->bad_conn) {
+		log(lsWARN, "replacing the failed connection (%p) to %s", conn, host);
+		list_del(&conn->list);
+		list_add_tail(&conn->list, &this->dead_conns);
+		conn = NULL;
+	}
 	if (conn) {
+		conn->last_used = time(NULL);
 		pthread_mutex_unlock(&this->ctx.lock);
 		return conn;
 	}
 
 	output_stdout("RDMA Client: connecting to %s:%d" , host, port);
 
-	conn = netlev_get_conn(ipaddr, port, &this->ctx, &this->register_mems_head);
+	try {
+		conn = netlev_get_conn(ipaddr, port, &this->ctx, &this->register_mems_head);
+	} catch (UdaException *ex) {
+		pthread_mutex_unlock(&this->ctx.lock);
+		throw ex;
+	}
 
 	if (!conn) {
 		log(lsERROR, "connection to %s failed", host);
 	}
+	else {
+		conn->last_used = time(NULL);
+	}
 
 	pthread_mutex_unlock(&this->ctx.lock);
 
 	return conn;
 }
 
+void RdmaClient::comp_rts(netlev_msg_t *h)
+{
+	client_part_req_t *req = (client_part_req_t*) (long2ptr(h->src_req));
+	memcpy(req->recvd_msg, h->msg, h->tot_len);
+
+	log(lsTRACE, "Client received RDMA completion for fetch request: jobid=%s, mapid=%s, reducer_id=%s, total_fetched_compressed=%lld, total_read_uncompress=%lld (not updated for this comp)",
+			req->info->params[1], req->info->params[2], req->info->params[3], req->mop->fetched_len_rdma, req->mop->fetched_len_uncompress);
+	req->mop->task->client->comp_fetch_req(req);
+}
+
 void RdmaClient::comp_fetch_req(client_part_req_t *req)
 {
 	if (parent==this){//there is no decompression thread ->must notify MergeManager directly
@@ -556,6 +626,44 @@ void RdmaClient::stop_client()
 {
 }
 
+void RdmaClient::attach_task(reduce_task_t* reduce_task)
+{
+	this->reduce_task = reduce_task;
+	this->shuffle_weight = get_shuffle_weight();
+
+	int idle_sec = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.conn.idle.timeout", "300").c_str());
+	int evicted = evict_idle_conns(idle_sec);
+
+	int num_conns = 0;
+	struct list_head *pos;
+	pthread_mutex_lock(&this->ctx.lock);
+	list_for_each(pos, &this->ctx.hdr_conn_list)
+		num_conns++;
+	pthread_mutex_unlock(&this->ctx.lock);
+
+	log(lsINFO, "attached parked RDMA client with %d open connections (%d idle ones closed) - shuffle weight of this job is %d", num_conns, evicted, this->shuffle_weight);
+}
+
+int RdmaClient::evict_idle_conns(int idle_sec)
+{
+	int evicted = 0;
+	time_t now = time(NULL);
+	struct netlev_conn *conn, *tmp;
+
+	// called between reduce tasks - park_client parks only a client with no fetch request in flight
+	pthread_mutex_lock(&this->ctx.lock);
+	list_for_each_entry_safe(conn, tmp, &this->ctx.hdr_conn_list, list) {
+		if (!conn->bad_conn && now - conn->last_used < idle_sec)
+			continue;
+		log(lsDEBUG, "closing connection (%p) ip(%lx) idle for %d seconds (bad_conn=%d)", conn, conn->peerIPAddr, (int)(now - conn->last_used), (int)conn->bad_conn);
+		list_del(&conn->list);
+		netlev_disconnect(conn);
+		evicted++;
+	}
+	pthread_mutex_unlock(&this->ctx.lock);
+	return evicted;
+}
+
 int RdmaClient::start_fetch_req(client_part_req_t *freq, char *buff, int32_t buf_len)
 {
 	size_t          msg_len;
@@ -571,19 +679,7 @@ int RdmaClient::start_fetch_req(client_part_req_t *freq, char *buff, int32_t buf
 
 	netlev_msg_t h;
 
-	/* jobid:mapid:mop_offset:reduceid:mem_addr:req_prt:chunk_size:offset_in_file:mof_path */
-	msg_len = snprintf(h.msg, sizeof(h.msg), "%s:%s:%lld:%s:%lu:%lu:%d:%lld:%s:%lld:%lld",
-			freq->info->params[1],
-			freq->info->params[2],
-			(long long)freq->mop->fetched_len_rdma,
-			freq->info->params[3],
-			addr,
-			(uint64_t) freq,
-			buf_len,
-			(long long)freq->mop->mofOffset,
-			freq->mop->mofPath.c_str(),
-			(long long)freq->mop->total_len_uncompress,
-			(long long)freq->mop->total_len_rdma);
+	msg_len = format_fetch_msg(h.msg, sizeof(h.msg), freq, addr, (uint64_t) freq, buf_len, shuffle_weight);
 
 	if (msg_len >= sizeof(h.msg)) {
 	    	log(lsERROR, "trying to fetch a message too big. msg_len=%d, max=%d",msg_len, sizeof(h.msg));
@@ -595,8 +691,31 @@ int RdmaClient::start_fetch_req(client_part_req_t *freq, char *buff, int32_t buf
 		log(lsERROR, "could not connect to host %s on port %d", freq->info->params[0], svc_port);
 		throw new UdaException("trying to fetch a message too big");
 	}
+	shuffle_stats_add(STAT_FETCH_REQUESTS, 1);
 	log(lsTRACE, "calling to netlev_post_send: mapid=%s, reduceid=%s, mapp_offset=%lld, qp=%d, hostname=%s, buf_len=%d, msg len=%d, offset=%lld", freq->info->params[2], freq->info->params[3], freq->mop->fetched_len_rdma, conn->qp_hndl->qp_num,freq->info->params[0],buf_len, msg_len, freq->mop->mofOffset);
-	return netlev_post_send(&h,  msg_len, 0, freq, conn, MSG_RTS);
+	__sync_add_and_fetch(&fetches_in_flight, 1);
+	int rc = netlev_post_send(&h,  msg_len, 0, freq, conn, MSG_RTS);
+	if (rc == -1)
+		__sync_sub_and_fetch(&fetches_in_flight, 1);
+	return rc;
+}
+
+size_t format_fetch_msg(char *msg, size_t size, client_part_req_t *freq, uint64_t addr, uint64_t req_token, int32_t buf_len, int32_t weight)
+{
+	/* jobid:mapid:mop_offset:reduceid:mem_addr:req_prt:chunk_size:offset_in_file:mof_path:raw_len:part_len:weight */
+	return snprintf(msg, size, "%s:%s:%lld:%s:%lu:%lu:%d:%lld:%s:%lld:%lld:%d",
+			freq->info->params[1],
+			freq->info->params[2],
+			(long long)freq->mop->fetched_len_rdma,
+			freq->info->params[3],
+			addr,
+			req_token,
+			buf_len,
+			(long long)freq->mop->mofOffset,
+			freq->mop->mofPath.c_str(),
+			(long long)freq->mop->total_len_uncompress,
+			(long long)freq->mop->total_len_rdma,
+			weight);
 }
 
 unsigned long RdmaClient::get_hostip(const char *host)
@@ -26,6 +26,9 @@
 #include "../Merger/InputClient.h"
 
 void init_mem_desc(mem_desc_t *desc, char *addr, int32_t buf_len);
+int32_t get_shuffle_weight();
+/* the fetch request sent to a supplier - addr is where the supplier writes the data, req_token comes back in src_req */
+size_t format_fetch_msg(char *msg, size_t size, client_part_req_t *freq, uint64_t addr, uint64_t req_token, int32_t buf_len, int32_t weight);
 
 class RdmaClient : public InputClient
 {
@@ -39,17 +42,28 @@ public:
 	netlev_conn_t* netlev_get_conn(unsigned long ipaddr, int port, netlev_ctx_t *ctx, list_head_t *registered_mem);
 
 	void register_mem(struct memory_pool *mem_pool, double_buffer_t buffers);
+	/* registers memory allocated by the caller as it is (the merger service's arena, shared with other processes) */
+	void register_given_mem(void *mem, int64_t len);
 
-	int split_mem_pool_to_pairs(memory_pool_t *pool, double_buffer_t buffers);
+	static int split_mem_pool_to_pairs(memory_pool_t *pool, double_buffer_t buffers);
 
 	unsigned long get_hostip(const char *host);
 
 	void start_client();
 	void stop_client();
+	/* hands a parked client - connected and with registered memory - to the next reduce task of the JVM */
+	void attach_task(reduce_task_t* reduce_task);
+	/* closes the connections that sent no fetch request for idle_sec seconds, returns their number */
+	int evict_idle_conns(int idle_sec);
 
 	int start_fetch_req (client_part_req_t *freq, char *buff, int32_t buf_len);
 	void comp_fetch_req(client_part_req_t *req);
 
+	/* a supplier answered a fetch request - h->src_req is the request token sent in the request */
+	virtual void comp_rts(netlev_msg_t *h);
+	/* a work request on the connection failed - the requests waiting on it will not complete */
+	virtual void conn_failed(netlev_conn_t *conn) {}
+
 	RdmaClient* getRdmaClient();
 
 	int                 svc_port;
@@ -58,7 +72,10 @@ public:
 	InputClient         *parent;
 	reduce_task_t*      reduce_task;
 	struct list_head    register_mems_head;
+	struct list_head    dead_conns; // connections that failed - freed with the client, their flushed wqes may still be polled
 	std::map<std::string, unsigned long> local_dns;
+	int32_t             shuffle_weight; // sent to suppliers for scheduling this job against other jobs
+	volatile int32_t    fetches_in_flight; // fetch requests posted whose completion has not arrived yet
 };
 
 #endif
@@ -29,6 +29,7 @@
 #include <rdma/rdma_cma.h>
 #include "RDMAComm.h"
 #include "IOUtility.h"
+#include <HugePages.h>
 
 #ifdef HAVE_INFINIBAND_VERBS_EXP_H
 #include <infiniband/verbs_exp.h>
@@ -109,12 +110,13 @@ int netlev_init_rdma_mem(void **mem, uint64_t total_size, netlev_dev_t *dev, uin
 	return 0;
 }
 
-int rdma_mem_manager(void **mem, uint64_t total_size, netlev_dev_t *dev)
+int rdma_mem_manager(void **mem, uint64_t total_size, netlev_dev_t *dev, bool given_mem)
 {
 	int rc;
 	uint64_t access = NETLEV_MEM_ACCESS_PERMISSION;
+	bool allocated = false;
 
-	int contigPagesEnabler =  ::atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.mem.use.contig.pages", "1").c_str());
+	int contigPagesEnabler =  given_mem ? 0 : ::atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.mem.use.contig.pages", "1").c_str());
 	if (contigPagesEnabler)
 	{
 #ifdef UDA_ACCESS_ALLOCATE_MR 
@@ -137,11 +139,12 @@ int rdma_mem_manager(void **mem, uint64_t total_size, netlev_dev_t *dev)
 		if (!(*mem))
 		{
 			log(lsDEBUG, "Going to allocate memory before registration");
-			int rc = posix_memalign(mem, pagesize, total_size);
-			if (rc) {
-				log(lsERROR, "Failed to memalign. aligment=%d size=%ll , rc=%d", pagesize ,total_size, rc);
+			*mem = huge_pages_alloc(total_size, "RDMA buffers");
+			if (!*mem) {
+				log(lsERROR, "Failed to allocate RDMA buffers. size=%llu", total_size);
 				throw new UdaException("memalign failed");
 			}
+			allocated = true;
 		}
 	}
 
@@ -150,10 +153,74 @@ int rdma_mem_manager(void **mem, uint64_t total_size, netlev_dev_t *dev)
 		log(lsERROR, "UDA critical error: failed on netlev_init_rdma_mem , rc=%d ==> exit process", rc);
 		throw new UdaException("failure in netlev_init_rdma_mem");
     }
+	if (allocated)
+		huge_pages_log_backing(*mem); // the registration populated the pages
 	return 0;
 }
 
-int map_ib_devices(netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len)
+netlev_rdma_slab_t* netlev_alloc_rdma_slab(struct list_head *dev_list, uint64_t total_size)
+{
+	netlev_rdma_slab_t *slab;
+	struct netlev_dev *dev;
+
+	slab = (netlev_rdma_slab_t *) malloc(sizeof(netlev_rdma_slab_t));
+	if (!slab) {
+		log(lsERROR, "malloc struct netlev_rdma_slab failed");
+		return NULL;
+	}
+	memset(slab, 0, sizeof(netlev_rdma_slab_t));
+	slab->total_size = total_size;
+
+	// contig-pages are reserved for the initial pool - slabs are plain page aligned memory
+	slab->mem = (char*)huge_pages_alloc(total_size, "RDMA chunk slab");
+	if (!slab->mem) {
+		log(lsERROR, "Failed to allocate rdma slab. size=%llu", total_size);
+		free(slab);
+		return NULL;
+	}
+
+	list_for_each_entry(dev, dev_list, list) {
+		if (slab->num_mrs == NETLEV_RDMA_SLAB_MAX_DEVS) {
+			log(lsERROR, "rdma slab can't be registered on more than %d devices", NETLEV_RDMA_SLAB_MAX_DEVS);
+			netlev_dealloc_rdma_slab(slab);
+			return NULL;
+		}
+		ibv_mr *mr = ibv_reg_mr(dev->pd, slab->mem, total_size, NETLEV_MEM_ACCESS_PERMISSION);
+		if (!mr) {
+			log(lsERROR, "ibv_reg_mr failed for rdma slab of size=%llu , MSG=%m (errno=%d)", total_size, errno);
+			netlev_dealloc_rdma_slab(slab);
+			return NULL;
+		}
+		slab->mrs[slab->num_mrs++] = mr;
+	}
+
+	log(lsDEBUG, "registered rdma slab. size=%llu devices=%d", total_size, slab->num_mrs);
+	huge_pages_log_backing(slab->mem);
+	return slab;
+}
+
+void netlev_dealloc_rdma_slab(netlev_rdma_slab_t *slab)
+{
+	for (int i = 0; i < slab->num_mrs; i++) {
+		if (ibv_dereg_mr(slab->mrs[i])) {
+			log(lsERROR, "ibv_dereg_mr of rdma slab failed (errno=%d)", errno);
+		}
+	}
+	huge_pages_free(slab->mem);
+	free(slab);
+}
+
+uint32_t netlev_rdma_slab_lkey(netlev_rdma_slab_t *slab, netlev_dev_t *dev)
+{
+	for (int i = 0; i < slab->num_mrs; i++) {
+		if (slab->mrs[i]->pd == dev->pd)
+			return slab->mrs[i]->lkey;
+	}
+	log(lsERROR, "rdma slab is not registered on device %p", dev);
+	throw new UdaException("rdma slab is not registered on device");
+}
+
+int map_ib_devices(netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len, bool given_mem)
 {
 	int n_num_devices = 0;
 	struct ibv_context** pp_ibv_context_list = rdma_get_devices(&n_num_devices);
@@ -168,14 +235,14 @@ int map_ib_devices(netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdm
 	}
 	log(lsDEBUG, "Mapping %d ibv devices", n_num_devices);
 	for (int i = 0; i < n_num_devices; i++) {
-		create_dev(pp_ibv_context_list[i], net_ctx, cq_handler,rdma_mem_ptr, rdma_total_len);
+		create_dev(pp_ibv_context_list[i], net_ctx, cq_handler,rdma_mem_ptr, rdma_total_len, given_mem);
 	}
 
 	rdma_free_devices(pp_ibv_context_list);
 	return n_num_devices;
 }
 
-netlev_dev_t* create_dev(struct ibv_context* ibv_ctx, netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len)
+netlev_dev_t* create_dev(struct ibv_context* ibv_ctx, netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len, bool given_mem)
 {
 	int ret = 0;
 	struct netlev_dev* dev = (struct netlev_dev *) malloc(sizeof(struct netlev_dev));
@@ -193,7 +260,7 @@ netlev_dev_t* create_dev(struct ibv_context* ibv_ctx, netlev_ctx_t* net_ctx, eve
 		return NULL;
 	}
 
-	ret = rdma_mem_manager(rdma_mem_ptr, rdma_total_len, dev);
+	ret = rdma_mem_manager(rdma_mem_ptr, rdma_total_len, dev, given_mem);
 	if (ret) {
 		log(lsWARN, "netlev_init_rdma_mem failed");
 		free(dev);
@@ -22,6 +22,7 @@
 
 #include <rdma/rdma_cma.h>
 #include <stdint.h>
+#include <time.h>
 
 #include "NetlevComm.h"
 
@@ -122,6 +123,17 @@ typedef struct netlev_dev {
 	struct netlev_ctx		  *ctx; 	/* RDMAServer */
 } netlev_dev_t;
 
+#define NETLEV_RDMA_SLAB_MAX_DEVS	(8)
+
+/* additional rdma memory registered on all devices after startup (grows the provider's chunk pool) */
+typedef struct netlev_rdma_slab {
+	struct list_head     list;
+	char                *mem;
+	uint64_t             total_size;
+	int                  num_mrs;
+	struct ibv_mr       *mrs[NETLEV_RDMA_SLAB_MAX_DEVS]; /* one registration per device */
+} netlev_rdma_slab_t;
+
 typedef enum {
 	NETLEV_CONN_INIT  = 0x0,
 	NETLEV_CONN_RTR   = 0x1,
@@ -149,6 +161,7 @@ typedef struct netlev_conn
 	uint32_t			sent_counter;
 	bool				bad_conn;
 	uint32_t			received_counter; //used by server to track requests received from this connection
+	time_t				last_used; //used by client to evict connections idle since a previous reduce task
 } netlev_conn_t;
 
 int netlev_dealloc_mem(struct netlev_dev *dev, netlev_mem_t *mem);
@@ -194,6 +207,7 @@ typedef struct netlev_ctx {
 
 	struct rdma_event_channel *cm_channel;
 	struct rdma_cm_id         *cm_id;
+	void                      *owner;   /* client side: the RdmaClient of this context */
 } netlev_ctx_t;
 
 /* return a completion channel, and a QP */
@@ -211,10 +225,16 @@ int netlev_post_send(netlev_msg_t *h, int bytes,
 		uint64_t srcreq, void* context,
 		netlev_conn_t *conn, uint8_t msg_type);
 
-int map_ib_devices(netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len);
+/* given_mem: registers the memory at *rdma_mem_ptr as it is, without contig pages (memory shared with other processes) */
+int map_ib_devices(netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len, bool given_mem = false);
 int netlev_init_rdma_mem(void **mem, uint64_t total_size, netlev_dev_t *dev, int access);
 
-netlev_dev_t* create_dev(struct ibv_context* ibv_ctx, netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len);
+/* allocates total_size bytes and registers them on every device in dev_list. returns NULL on failure */
+netlev_rdma_slab_t* netlev_alloc_rdma_slab(struct list_head *dev_list, uint64_t total_size);
+void netlev_dealloc_rdma_slab(netlev_rdma_slab_t *slab);
+uint32_t netlev_rdma_slab_lkey(netlev_rdma_slab_t *slab, netlev_dev_t *dev);
+
+netlev_dev_t* create_dev(struct ibv_context* ibv_ctx, netlev_ctx_t* net_ctx, event_handler_t cq_handler, void** rdma_mem_ptr, int64_t rdma_total_len, bool given_mem = false);
 
 const char* netlev_stropcode(int opcode);
 
@@ -34,6 +34,7 @@
 #include "../include/IOUtility.h"
 #include <IOUtility.h>
 #include <UdaUtil.h>
+#include <HugePages.h>
 
 using namespace std;
 
@@ -380,7 +381,14 @@ RdmaServer::RdmaServer(int port, int rdma_buf_size, void *state)
 	this->data_mac = smac->data_mac;
 	memset(&this->helper, 0, sizeof(this->helper));
 
-	this->rdma_total_len = NETLEV_RDMA_MEM_CHUNKS_NUM * ((unsigned long)rdma_buf_size + 2*AIO_ALIGNMENT);
+	// the pool starts with its minimum, the rest is registered in slabs on demand (see DataEngine::grow_pool)
+	this->rdma_base_chunks = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.chunks.min", STR(NETLEV_RDMA_MEM_CHUNKS_MIN)).c_str());
+	if (this->rdma_base_chunks <= 0) {
+		log(lsWARN, "illegal mapred.rdma.provider.chunks.min=%d - using %d", this->rdma_base_chunks, NETLEV_RDMA_MEM_CHUNKS_MIN);
+		this->rdma_base_chunks = NETLEV_RDMA_MEM_CHUNKS_MIN;
+	}
+	INIT_LIST_HEAD(&this->rdma_slabs);
+	this->rdma_total_len = this->rdma_base_chunks * ((unsigned long)rdma_buf_size + 2*AIO_ALIGNMENT);
 	this->rdma_chunk_len = rdma_buf_size + 2*AIO_ALIGNMENT;
 	log(lsDEBUG, "rdma_buf_size inside RdmaServer is %d", rdma_buf_size);
 	this->rdma_mem = NULL;
@@ -396,7 +404,7 @@ RdmaServer::~RdmaServer()
 	int contigPagesEnabler =  ::atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.mem.use.contig.pages", "1").c_str());
 	if (!contigPagesEnabler)
 	{
-		free(this->rdma_mem);
+		huge_pages_free(this->rdma_mem);
 	}
 }
 
@@ -444,6 +452,13 @@ void RdmaServer::stop_server()
 	}
 	log(lsDEBUG, "all connections are released");
 
+	// slabs must be deregistered before their devices' PDs are deallocated
+	while (!list_empty(&this->rdma_slabs)) {
+		netlev_rdma_slab_t *slab = list_entry(this->rdma_slabs.next, typeof(*slab), list);
+		list_del(&slab->list);
+		netlev_dealloc_rdma_slab(slab);
+	}
+
 	while (!list_empty(&this->ctx.hdr_dev_list)) {
 		dev = list_entry(this->ctx.hdr_dev_list.next, typeof(*dev), list);
 		list_del(&dev->list);
@@ -463,6 +478,24 @@ void RdmaServer::stop_server()
 	log(lsDEBUG,"RDMA server stopped");
 }
 
+netlev_rdma_slab_t* RdmaServer::alloc_rdma_slab(uint64_t total_size)
+{
+	pthread_mutex_lock(&this->ctx.lock);
+	netlev_rdma_slab_t *slab = netlev_alloc_rdma_slab(&this->ctx.hdr_dev_list, total_size);
+	if (slab)
+		list_add_tail(&slab->list, &this->rdma_slabs);
+	pthread_mutex_unlock(&this->ctx.lock);
+	return slab;
+}
+
+void RdmaServer::free_rdma_slab(netlev_rdma_slab_t *slab)
+{
+	pthread_mutex_lock(&this->ctx.lock);
+	list_del(&slab->list);
+	netlev_dealloc_rdma_slab(slab);
+	pthread_mutex_unlock(&this->ctx.lock);
+}
+
 /* Create a RDMA listener for incoming connection requests */
 int RdmaServer::create_listener()
 {
@@ -549,7 +582,8 @@ int RdmaServer::rdma_write_mof_send_ack(struct shuffle_req *req, uintptr_t laddr
 	netlev_conn_t *conn = req->conn;
 	dev = conn->dev;
 
-	lkey = dev->rdma_mem->mr->lkey;
+	chunk_t *ch = (chunk_t*)chunk;
+	lkey = ch->slab->rdma ? netlev_rdma_slab_lkey(ch->slab->rdma, dev) : dev->rdma_mem->mr->lkey;
 	rdma_send_size = this->rdma_chunk_len > req_size ? req_size : this->rdma_chunk_len;
 	ack_msg_len = snprintf(h.msg, sizeof(h.msg), "%lld:%lld:%d:%lld:%s:",
 			(long long)record->rawLength,
@@ -39,10 +39,17 @@ public:
 	int destroy_listener();
 	int rdma_write_mof_send_ack(struct shuffle_req *req, uintptr_t addr,
 			uint64_t req_size, void* chunk, struct index_record* record);
+
+	/* registers more chunk memory on all devices. returns NULL on failure */
+	netlev_rdma_slab_t* alloc_rdma_slab(uint64_t total_size);
+	void free_rdma_slab(netlev_rdma_slab_t *slab);
+
 	int                data_port;
 	void              *rdma_mem;
 	unsigned long      rdma_total_len;
 	uint32_t           rdma_chunk_len;
+	int                rdma_base_chunks; /* chunks in rdma_mem - the minimum of the chunk pool */
+	struct list_head   rdma_slabs;       /* memory the chunk pool grew into, protected by ctx.lock */
 	netlev_thread_t    helper;
 	netlev_ctx_t       ctx;
 	OutputServer      *parent;
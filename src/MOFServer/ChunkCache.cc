@@ -0,0 +1,229 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdio.h>
+#include <functional>
+#include "IOUtility.h"
+#include "ChunkCache.h"
+
+using namespace std;
+
+ChunkCache::ChunkCache(int capacity)
+{
+    _capacity = capacity;
+    INIT_LIST_HEAD(&_lru);
+
+    // ~16 counters per cached entry per row, rounded to power of 2
+    uint32_t width = 16;
+    while (width < (uint32_t)capacity * 16)
+        width <<= 1;
+    _sketch.assign(width * CHUNK_CACHE_SKETCH_DEPTH, 0);
+    _sketch_mask = width - 1;
+    _sketch_additions = 0;
+    _sketch_sample_size = width * 10;
+
+    _hits = _misses = _admitted = _rejected = _evicted = _invalidated = _hit_bytes = 0;
+
+    log(lsINFO, "chunk cache enabled: capacity=%d chunks, sketch width=%u", capacity, width);
+}
+
+ChunkCache::~ChunkCache()
+{
+    log_stats("shutdown");
+    while (!list_empty(&_lru)) {
+        chunk_cache_entry_t *entry = list_entry(_lru.next, typeof(*entry), lru);
+        remove_entry(entry); // chunks memory is owned by DataEngine
+    }
+}
+
+string ChunkCache::make_key(const string &jobid, const string &mapid, int32_t reduceID, int64_t map_offset)
+{
+    char suffix[64];
+    snprintf(suffix, sizeof(suffix), ":%d:%lld", reduceID, (long long)map_offset);
+    return jobid + ":" + mapid + suffix;
+}
+
+uint32_t ChunkCache::sketch_index(size_t hash, int row)
+{
+    // derive independent row hashes from one hash (Kirsch-Mitzenmacher)
+    uint32_t h1 = (uint32_t)hash;
+    uint32_t h2 = (uint32_t)((uint64_t)hash >> 32) | 1;
+    return row * (_sketch_mask + 1) + ((h1 + row * h2) & _sketch_mask);
+}
+
+void ChunkCache::sketch_increment(const string &key)
+{
+    size_t hash = std::hash<string>()(key);
+    for (int row = 0; row < CHUNK_CACHE_SKETCH_DEPTH; row++) {
+        uint8_t &counter = _sketch[sketch_index(hash, row)];
+        if (counter < CHUNK_CACHE_MAX_FREQ)
+            counter++;
+    }
+
+    // aging: keep the sketch representing recent history
+    if (++_sketch_additions >= _sketch_sample_size) {
+        for (size_t i = 0; i < _sketch.size(); i++)
+            _sketch[i] >>= 1;
+        _sketch_additions /= 2;
+    }
+}
+
+int ChunkCache::sketch_frequency(const string &key)
+{
+    size_t hash = std::hash<string>()(key);
+    int freq = CHUNK_CACHE_MAX_FREQ;
+    for (int row = 0; row < CHUNK_CACHE_SKETCH_DEPTH; row++) {
+        int counter = _sketch[sketch_index(hash, row)];
+        if (counter < freq)
+            freq = counter;
+    }
+    return freq;
+}
+
+chunk_cache_entry_t* ChunkCache::lookup(const string &key, int64_t map_offset, int32_t chunk_size, uint64_t &send_length)
+{
+    sketch_increment(key);
+
+    map<string, chunk_cache_entry_t*>::iterator iter = _entries.find(key);
+    if (iter == _entries.end()) {
+        _misses++;
+        return NULL;
+    }
+
+    chunk_cache_entry_t *entry = iter->second;
+    uint64_t needed = entry->record.partLength - map_offset;
+    if (needed > (uint64_t)chunk_size)
+        needed = chunk_size;
+    if (entry->length < needed) {
+        // cached chunk was read for a smaller buffer than this reducer's
+        _misses++;
+        return NULL;
+    }
+
+    list_del(&entry->lru);
+    list_add(&entry->lru, &_lru);
+    entry->chunk->refcount++;
+    send_length = needed;
+
+    _hits++;
+    _hit_bytes += needed;
+    return entry;
+}
+
+bool ChunkCache::insert(const string &key, const string &jobid, chunk_t *chunk, const index_record_t &record,
+                        int offsetAligment, uint64_t length, vector<chunk_t*> &freed)
+{
+    if (_entries.find(key) != _entries.end())
+        return false; // concurrent reads of the same data - keep the first
+
+    if ((int)_entries.size() >= _capacity) {
+        chunk_cache_entry_t *victim = NULL;
+        struct list_head *pos;
+        for (pos = _lru.prev; pos != &_lru; pos = pos->prev) {
+            chunk_cache_entry_t *entry = list_entry(pos, typeof(*entry), lru);
+            if (entry->chunk->refcount == 0) {
+                victim = entry;
+                break;
+            }
+        }
+
+        if (!victim || sketch_frequency(key) <= sketch_frequency(victim->key)) {
+            _rejected++;
+            return false;
+        }
+
+        chunk_t *victim_chunk = remove_entry(victim);
+        if (victim_chunk)
+            freed.push_back(victim_chunk);
+        _evicted++;
+    }
+
+    chunk_cache_entry_t *entry = new chunk_cache_entry_t();
+    entry->key = key;
+    entry->jobid = jobid;
+    entry->chunk = chunk;
+    entry->record = record;
+    entry->offsetAligment = offsetAligment;
+    entry->length = length;
+    chunk->cached = true;
+
+    _entries[key] = entry;
+    list_add(&entry->lru, &_lru);
+    _admitted++;
+    return true;
+}
+
+chunk_t* ChunkCache::evict_idle()
+{
+    struct list_head *pos;
+    for (pos = _lru.prev; pos != &_lru; pos = pos->prev) {
+        chunk_cache_entry_t *entry = list_entry(pos, typeof(*entry), lru);
+        if (entry->chunk->refcount == 0) {
+            _evicted++;
+            return remove_entry(entry);
+        }
+    }
+    return NULL;
+}
+
+void ChunkCache::invalidate_job(const string &jobid, vector<chunk_t*> &freed)
+{
+    struct list_head *pos = _lru.next;
+    while (pos != &_lru) {
+        chunk_cache_entry_t *entry = list_entry(pos, typeof(*entry), lru);
+        pos = pos->next;
+        if (entry->jobid == jobid) {
+            chunk_t *chunk = remove_entry(entry);
+            if (chunk)
+                freed.push_back(chunk);
+            _invalidated++;
+        }
+    }
+}
+
+chunk_t* ChunkCache::remove_entry(chunk_cache_entry_t *entry)
+{
+    chunk_t *chunk = entry->chunk;
+
+    list_del(&entry->lru);
+    _entries.erase(entry->key);
+    delete entry;
+
+    chunk->cached = false;
+    return chunk->refcount == 0 ? chunk : NULL; // in flight chunks are freed by their last release
+}
+
+void ChunkCache::log_stats(const char *reason)
+{
+    uint64_t lookups = _hits + _misses;
+    log(lsINFO, "chunk cache stats (%s): entries=%d/%d hits=%llu misses=%llu hit_ratio=%.2f hit_bytes=%llu admitted=%llu rejected=%llu evicted=%llu invalidated=%llu",
+        reason, (int)_entries.size(), _capacity,
+        (unsigned long long)_hits, (unsigned long long)_misses, lookups ? (double)_hits / lookups : 0.0,
+        (unsigned long long)_hit_bytes, (unsigned long long)_admitted, (unsigned long long)_rejected,
+        (unsigned long long)_evicted, (unsigned long long)_invalidated);
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,124 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef CHUNK_CACHE_H
+#define CHUNK_CACHE_H 1
+
+#include <string>
+#include <map>
+#include <vector>
+#include "LinkList.h"
+#include "IndexInfo.h"
+
+#define CHUNK_CACHE_SKETCH_DEPTH	(4)
+#define CHUNK_CACHE_MAX_FREQ		(15) // 4 bit counters, as in TinyLFU
+
+/*
+ * a served chunk kept for re-fetches of the same partition data
+ * (speculative reducers, re-executed reducers, retries after transport errors)
+ */
+typedef struct chunk_cache_entry
+{
+    struct list_head    lru;
+    string              key;
+    string              jobid;
+    chunk_t*            chunk;
+    index_record_t      record;         /* sent back in the ack of every hit */
+    int                 offsetAligment; /* data starts at chunk->buff + offsetAligment */
+    uint64_t            length;         /* valid bytes in the chunk */
+} chunk_cache_entry_t;
+
+/*
+ * Bounded cache of chunks that were already read from MOFs.
+ * Cached data stays in the registered chunk it was read into, so hits are sent with no copy.
+ *
+ * Eviction is LRU over the chunks, with TinyLFU admission: when the cache is full a new
+ * chunk replaces the LRU victim only if it was requested more often (estimated by a count-min sketch
+ * that is halved periodically). Every entry costs a whole registered chunk, regardless of the valid
+ * data in it, so capacity is accounted in chunks.
+ *
+ * NOT THREAD SAFE - all methods must be called with DataEngine's chunk lock held.
+ * Chunks in the cache are marked with chunk->cached; a chunk is returned to the free list only when
+ * it is both uncached and not in flight (chunk->refcount == 0).
+ */
+class ChunkCache
+{
+public:
+    ChunkCache(int capacity);
+    ~ChunkCache();
+
+    static string make_key(const string &jobid, const string &mapid, int32_t reduceID, int64_t map_offset);
+
+    /* returns the entry holding at least the bytes the request needs (and takes a reference on its chunk),
+     * or NULL on miss. send_length is set to the length to send for this request */
+    chunk_cache_entry_t* lookup(const string &key, int64_t map_offset, int32_t chunk_size, uint64_t &send_length);
+
+    /* offers a chunk that was just read. returns true if the chunk was admitted.
+     * idle chunks that were evicted to make room are appended to freed */
+    bool insert(const string &key, const string &jobid, chunk_t *chunk, const index_record_t &record,
+                int offsetAligment, uint64_t length, vector<chunk_t*> &freed);
+
+    /* evicts the least recently used chunk that is not in flight. returns NULL if there is none */
+    chunk_t* evict_idle();
+
+    /* drops all entries of jobid. idle chunks are appended to freed */
+    void invalidate_job(const string &jobid, vector<chunk_t*> &freed);
+
+    void log_stats(const char *reason);
+
+    int size() { return (int)_entries.size(); }
+
+private:
+    int                 _capacity;
+    map<string, chunk_cache_entry_t*> _entries;
+    struct list_head    _lru; /* most recently used first */
+
+    /* TinyLFU frequency sketch */
+    vector<uint8_t>     _sketch;
+    uint32_t            _sketch_mask;
+    uint32_t            _sketch_additions;
+    uint32_t            _sketch_sample_size;
+
+    /* statistics */
+    uint64_t            _hits;
+    uint64_t            _misses;
+    uint64_t            _admitted;
+    uint64_t            _rejected;
+    uint64_t            _evicted;
+    uint64_t            _invalidated;
+    uint64_t            _hit_bytes;
+
+    void sketch_increment(const string &key);
+    int sketch_frequency(const string &key);
+    uint32_t sketch_index(size_t hash, int row);
+
+    /* removes entry; returns its chunk if it can go back to the free list */
+    chunk_t* remove_entry(chunk_cache_entry_t *entry);
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
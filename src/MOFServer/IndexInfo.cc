@@ -20,12 +20,14 @@
 #include <fcntl.h>
 #include <unistd.h>
 #include <sys/time.h>
+#include <time.h>
 #include <errno.h>
 
 #include "MOFServlet.h"
 #include "IOUtility.h"
 #include "IndexInfo.h"
 #include "UdaBridge.h"
+#include "ChunkCache.h"
 
 using namespace std;
 
@@ -37,11 +39,26 @@ DataEngine::DataEngine(void *mem,
                        supplier_state_t *state,
                        const char *path, int mode, int rdma_buf_size, struct rlimit kernel_fd_rlim) : jniEnv(NULL)
 {
-
-	prepare_tables(mem, rdma_buf_size);
-
     /* fast mapping from path to partition_table_t */
     this->state_mac = state;
+
+    // the base slab was sized and registered by RdmaServer, grown slabs are registered on demand
+    _min_chunks = state->mover->rdma->rdma_base_chunks;
+    _max_chunks = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.chunks.max", STR(NETLEV_RDMA_MEM_CHUNKS_MAX)).c_str());
+    if (_max_chunks < _min_chunks) {
+        log(lsWARN, "mapred.rdma.provider.chunks.max=%d is smaller than the minimum - chunk pool will not grow beyond %d chunks", _max_chunks, _min_chunks);
+        _max_chunks = _min_chunks;
+    }
+    _slab_chunks = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.chunks.slab", STR(NETLEV_RDMA_MEM_CHUNKS_SLAB)).c_str());
+    if (_slab_chunks <= 0)
+        _slab_chunks = NETLEV_RDMA_MEM_CHUNKS_SLAB;
+    _grow_wait_ms = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.chunks.grow.wait.ms", "2").c_str());
+    _shrink_idle_sec = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.chunks.shrink.idle.sec", "60").c_str());
+    log(lsINFO, "chunk pool: min=%d max=%d slab=%d chunks of %d bytes, grow after %dms wait, shrink after %ds idle",
+        _min_chunks, _max_chunks, _slab_chunks, rdma_buf_size + 2*AIO_ALIGNMENT, _grow_wait_ms, _shrink_idle_sec);
+
+	prepare_tables(mem, _min_chunks, rdma_buf_size);
+
     this->stop = false;
     this->rdma_buf_size = rdma_buf_size;
     this->_kernel_fd_rlim=kernel_fd_rlim;
@@ -50,10 +67,29 @@ DataEngine::DataEngine(void *mem,
     timespec timeout;
     timeout.tv_nsec=AIOHANDLER_TIMEOUT_IN_NSEC;
     timeout.tv_sec=0;
-	log(lsDEBUG, "AIO: creating new AIOHandler with maxevents=%d , min_nr=%d, nr=%d timeout=%ds %lus",AIOHANDLER_CTX_MAXEVENTS, AIOHANDLER_MIN_NR, AIOHANDLER_NR , timeout.tv_sec, timeout.tv_nsec );
-	_aioHandler = new AIOHandler(aio_completion_handler, AIOHANDLER_CTX_MAXEVENTS, AIOHANDLER_MIN_NR , AIOHANDLER_NR, &timeout );
+	log(lsDEBUG, "AIO: creating new AIOHandler with maxevents=%d , min_nr=%d, nr=%d timeout=%ds %lus",_max_chunks, AIOHANDLER_MIN_NR, AIOHANDLER_NR , timeout.tv_sec, timeout.tv_nsec );
+	AioBackend aio_backend = AIOHandler::parseBackend(UdaBridge_invoke_getConfData_callback("mapred.rdma.aio.backend", "auto").c_str());
+	bool aio_sqpoll = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.aio.io_uring.sqpoll", "0").c_str());
+	log(lsINFO, "AIO: requested backend=%s sqpoll=%d", AIOHandler::backendName(aio_backend), aio_sqpoll);
+	_aioHandler = new AIOHandler(aio_completion_handler, _max_chunks, AIOHANDLER_MIN_NR , AIOHANDLER_NR, &timeout, aio_backend, aio_sqpoll);
+	// chunks are the only destination of provider's reads - let io_uring use them as fixed buffers.
+	// reads into grown slabs are submitted as regular reads
+	_aioHandler->registerBuffers(mem, (size_t)_min_chunks * (rdma_buf_size + 2*AIO_ALIGNMENT));
 	_thread_id=0;
 
+	_cache = NULL;
+	int cache_size_mb = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.cache.size.mb", "0").c_str());
+	if (cache_size_mb > 0) {
+		// every cached entry pins a whole chunk; leave at least half of the pool's minimum for reads
+		int cache_chunks = (int)(((int64_t)cache_size_mb << 20) / (rdma_buf_size + 2*AIO_ALIGNMENT));
+		if (cache_chunks > _min_chunks / 2) {
+			log(lsWARN, "mapred.rdma.provider.cache.size.mb=%d is too large - limiting chunk cache to %d chunks", cache_size_mb, _min_chunks / 2);
+			cache_chunks = _min_chunks / 2;
+		}
+		if (cache_chunks > 0)
+			_cache = new ChunkCache(cache_chunks);
+	}
+
 
 }
 
@@ -82,7 +118,17 @@ DataEngine::cleanup_tables()
 
 
     pthread_mutex_lock(&this->_chunk_mutex);
-    free(this->_chunks);
+    delete this->_cache;
+    this->_cache = NULL;
+    log_pool_stats("shutdown");
+    // slabs' rdma memory is deregistered by RdmaServer::stop_server
+    while (!list_empty(&this->_slabs)) {
+        chunk_slab_t *slab = list_entry(this->_slabs.next, typeof(*slab), list);
+        list_del(&slab->list);
+        free(slab->chunks);
+        delete slab;
+    }
+    free(this->_base_slab.chunks);
     pthread_mutex_unlock(&this->_chunk_mutex);
 
 
@@ -95,7 +141,7 @@ DataEngine::cleanup_tables()
 #endif
 
 void 
-DataEngine::prepare_tables(void *mem, 
+DataEngine::prepare_tables(void *mem, int num_chunks,
                            int rdma_buf_size)
 {
     char *data=(char*)mem;
@@ -104,18 +150,25 @@ DataEngine::prepare_tables(void *mem,
     pthread_mutex_init(&this->_chunk_mutex, NULL);
     pthread_cond_init(&this->_chunk_cond, NULL);
     INIT_LIST_HEAD(&this->_free_chunks_list);
+    INIT_LIST_HEAD(&this->_slabs);
+    _total_chunks = num_chunks;
+    _last_wait_time = time(NULL);
+    _waits = _wait_us = _grows = _shrinks = 0;
 
 
     pthread_mutex_lock(&this->_chunk_mutex);
-    this->_chunks = (chunk_t*)malloc(NETLEV_RDMA_MEM_CHUNKS_NUM * sizeof(chunk_t));
-    memset(this->_chunks , 0, NETLEV_RDMA_MEM_CHUNKS_NUM * sizeof(chunk_t));
+    memset(&this->_base_slab, 0, sizeof(chunk_slab_t));
+    this->_base_slab.chunks = (chunk_t*)malloc(num_chunks * sizeof(chunk_t));
+    memset(this->_base_slab.chunks , 0, num_chunks * sizeof(chunk_t));
+    this->_base_slab.num_chunks = num_chunks;
 
     log (lsDEBUG, "rdma_buf_size is %d\n", rdma_buf_size);
-    for (int i = 0; i < NETLEV_RDMA_MEM_CHUNKS_NUM; ++i) {
-        chunk_t *ptr = this->_chunks + i;
+    for (int i = 0; i < num_chunks; ++i) {
+        chunk_t *ptr = this->_base_slab.chunks + i;
         ptr->buff = data + i*(rdma_buf_size + 2*AIO_ALIGNMENT );
         ptr->type = PTR_CHUNK;
-        list_add_tail(&ptr->list, &this->_free_chunks_list);
+        ptr->slab = &this->_base_slab;
+        put_free_chunk(ptr);
     }
     pthread_mutex_unlock(&this->_chunk_mutex);
 
@@ -150,41 +203,43 @@ DataEngine::start()
     while (!this->stop) {
         shuffle_req_t *req  = NULL;
         // Process new shuffle requests
-        while (!list_empty(&state_mac->mover->incoming_req_list)) {
-			pthread_mutex_lock(&state_mac->mover->in_lock);
-			req = NULL;
-			if (!list_empty(&state_mac->mover->incoming_req_list)) {
-				req = list_entry(state_mac->mover->incoming_req_list.next, typeof(*req), list);
-				list_del(&req->list);
-			}
-			pthread_mutex_unlock(&this->state_mac->mover->in_lock);
-
-            if(req) {
-            	log(lsDEBUG, "DataEngine: received shuffle request - JOBID=%s REDUCEID=%d MAP=%s offset=%lld", req->m_jobid.c_str(), req->reduceID, req->m_map.c_str(), req->map_offset);
-            	if (req->chunk_size > this->rdma_buf_size) {
-            		log(lsERROR, "shuffle request chunk size is larger than rdma buffer(chunk_size=%d rdma_buf_size=%d)", req->chunk_size, this->rdma_buf_size);
-            		// TODO: report TT for task failure
-            		delete req;
-            	}
-            	else if (process_shuffle_request(req)) {
-            		log(lsERROR, "Fail to process shuffle request - JOBID=%s REDUCEID=%d offset=%lld", req->m_jobid.c_str(), req->reduceID, req->map_offset);
-            		// TODO: report TT for task failure & add request's retransmit mechanism.
-            		delete req;
-            	}
+        while ((req = state_mac->mover->get_next_incoming_req()) != NULL) {
+            log(lsDEBUG, "DataEngine: received shuffle request - JOBID=%s REDUCEID=%d MAP=%s offset=%lld", req->m_jobid.c_str(), req->reduceID, req->m_map.c_str(), req->map_offset);
+            if (req->chunk_size > this->rdma_buf_size) {
+            	log(lsERROR, "shuffle request chunk size is larger than rdma buffer(chunk_size=%d rdma_buf_size=%d)", req->chunk_size, this->rdma_buf_size);
+            	// TODO: report TT for task failure
+            	delete req;
+            }
+            else if (process_shuffle_request(req)) {
+            	log(lsERROR, "Fail to process shuffle request - JOBID=%s REDUCEID=%d offset=%lld", req->m_jobid.c_str(), req->reduceID, req->map_offset);
+            	// TODO: report TT for task failure & add request's retransmit mechanism.
+            	delete req;
             }
         }
 
         _aioHandler->submit();
 
 
+        shrink_pool();
+
         /* check if there is a new incoming shuffle req */
         pthread_mutex_lock(&state_mac->mover->in_lock);
-        if (!list_empty(&state_mac->mover->incoming_req_list)){
+        if (state_mac->mover->incoming_reqs_num){
             pthread_mutex_unlock(&state_mac->mover->in_lock);
             continue;
         }
-        pthread_cond_wait(&state_mac->mover->in_cond,
-                          &state_mac->mover->in_lock);
+        if (_total_chunks > _min_chunks) {
+            // wake up periodically while grown slabs may become releasable
+            struct timespec ts;
+            clock_gettime(CLOCK_REALTIME, &ts);
+            ts.tv_sec += CHUNK_POOL_SHRINK_CHECK_SEC;
+            pthread_cond_timedwait(&state_mac->mover->in_cond,
+                                   &state_mac->mover->in_lock, &ts);
+        }
+        else {
+            pthread_cond_wait(&state_mac->mover->in_cond,
+                              &state_mac->mover->in_lock);
+        }
 		pthread_mutex_unlock(&state_mac->mover->in_lock);
 	}
 
@@ -240,6 +295,9 @@ DataEngine::process_shuffle_request(shuffle_req_t* req) {
     int rc=0;
     index_record_t *index_rec;
 
+    if (_cache && send_from_cache(req))
+        return 0;
+
     //first time fetch - need to go to java and get mof path and other data
     if (req->record->path.empty()) {
 		index_rec =  UdaBridge_invoke_getPathUda_callback(this->jniEnv, req->m_jobid.c_str(), req->m_map.c_str(), req->reduceID);
@@ -279,12 +337,44 @@ DataEngine::occupy_chunk() {
 
     pthread_mutex_lock(&this->_chunk_mutex);
 
-	if (list_empty(&this->_free_chunks_list)) {
-		pthread_cond_wait(&this->_chunk_cond, &this->_chunk_mutex);
+	if (list_empty(&this->_free_chunks_list) && _cache) {
+		// reads have priority over cached data
+		retval = _cache->evict_idle();
 	}
 
-	retval= list_entry(this->_free_chunks_list.next, typeof(*retval), list);
-	list_del(&retval->list);
+	if (!retval) {
+		if (list_empty(&this->_free_chunks_list)) {
+			struct timeval start, end;
+			gettimeofday(&start, NULL);
+
+			if (_total_chunks < _max_chunks) {
+				// give in flight chunks a chance to return before paying for a registration
+				struct timespec ts;
+				clock_gettime(CLOCK_REALTIME, &ts);
+				ts.tv_nsec += (long)_grow_wait_ms * 1000000;
+				ts.tv_sec += ts.tv_nsec / 1000000000;
+				ts.tv_nsec %= 1000000000;
+				while (list_empty(&this->_free_chunks_list)) {
+					if (pthread_cond_timedwait(&this->_chunk_cond, &this->_chunk_mutex, &ts) == ETIMEDOUT)
+						break;
+				}
+				if (list_empty(&this->_free_chunks_list))
+					grow_pool();
+			}
+
+			while (list_empty(&this->_free_chunks_list)) {
+				pthread_cond_wait(&this->_chunk_cond, &this->_chunk_mutex);
+			}
+
+			gettimeofday(&end, NULL);
+			_waits++;
+			_wait_us += (end.tv_sec - start.tv_sec) * 1000000ULL + end.tv_usec - start.tv_usec;
+			_last_wait_time = end.tv_sec;
+		}
+
+		retval = get_free_chunk();
+	}
+	retval->refcount = 1;
 
 	pthread_mutex_unlock(&this->_chunk_mutex);
 
@@ -294,10 +384,190 @@ DataEngine::occupy_chunk() {
 void
 DataEngine::release_chunk(chunk_t* chunk) {
     pthread_mutex_lock(&this->_chunk_mutex);
-    list_add_tail(&chunk->list, &this->_free_chunks_list);
-    pthread_cond_signal(&this->_chunk_cond);
+    chunk->refcount--;
+    if (chunk->refcount <= 0 && !chunk->cached) {
+        chunk->refcount = 0;
+        put_free_chunk(chunk);
+        pthread_cond_signal(&this->_chunk_cond);
+    }
+    pthread_mutex_unlock(&this->_chunk_mutex);
+
+}
+
+void
+DataEngine::put_free_chunk(chunk_t* chunk) {
+    // reuse base chunks first, so grown slabs become idle as soon as the load drops
+    if (chunk->slab == &this->_base_slab)
+        list_add(&chunk->list, &this->_free_chunks_list);
+    else
+        list_add_tail(&chunk->list, &this->_free_chunks_list);
+    chunk->slab->free_chunks++;
+}
+
+chunk_t*
+DataEngine::get_free_chunk() {
+    chunk_t* chunk = list_entry(this->_free_chunks_list.next, typeof(*chunk), list);
+    list_del(&chunk->list);
+    chunk->slab->free_chunks--;
+    return chunk;
+}
+
+bool
+DataEngine::grow_pool() {
+    int num_chunks = _slab_chunks;
+    if (num_chunks > _max_chunks - _total_chunks)
+        num_chunks = _max_chunks - _total_chunks;
+    if (num_chunks <= 0)
+        return false;
+
+    uint32_t chunk_len = this->rdma_buf_size + 2*AIO_ALIGNMENT;
+
+    // registration is slow - let senders keep releasing chunks meanwhile.
+    // only the engine thread grows or shrinks the pool
+    pthread_mutex_unlock(&this->_chunk_mutex);
+    netlev_rdma_slab_t *rdma = state_mac->mover->rdma->alloc_rdma_slab((uint64_t)num_chunks * chunk_len);
+    chunk_t *chunks = NULL;
+    if (rdma) {
+        chunks = (chunk_t*)malloc(num_chunks * sizeof(chunk_t));
+        if (chunks)
+            memset(chunks, 0, num_chunks * sizeof(chunk_t));
+        else
+            state_mac->mover->rdma->free_rdma_slab(rdma);
+    }
+    pthread_mutex_lock(&this->_chunk_mutex);
+
+    if (!chunks) {
+        log(lsWARN, "failed to grow chunk pool beyond %d chunks - waiting for in flight chunks", _total_chunks);
+        return false;
+    }
+
+    chunk_slab_t *slab = new chunk_slab_t();
+    slab->rdma = rdma;
+    slab->chunks = chunks;
+    slab->num_chunks = num_chunks;
+    slab->free_chunks = 0;
+    for (int i = 0; i < num_chunks; ++i) {
+        chunk_t *ptr = chunks + i;
+        ptr->buff = rdma->mem + (uint64_t)i * chunk_len;
+        ptr->type = PTR_CHUNK;
+        ptr->slab = slab;
+        put_free_chunk(ptr);
+    }
+    list_add_tail(&slab->list, &this->_slabs);
+    _total_chunks += num_chunks;
+    _grows++;
+
+    log_pool_stats("grow");
+    return true;
+}
+
+void
+DataEngine::shrink_pool() {
+    pthread_mutex_lock(&this->_chunk_mutex);
+    if (_total_chunks <= _min_chunks || time(NULL) - _last_wait_time < _shrink_idle_sec) {
+        pthread_mutex_unlock(&this->_chunk_mutex);
+        return;
+    }
+
+    // newest first - it is the last to be drawn from the free list
+    chunk_slab_t *slab = NULL;
+    struct list_head *pos;
+    for (pos = this->_slabs.prev; pos != &this->_slabs; pos = pos->prev) {
+        chunk_slab_t *s = list_entry(pos, typeof(*s), list);
+        if (s->free_chunks == s->num_chunks) {
+            slab = s;
+            break;
+        }
+    }
+    if (!slab) {
+        pthread_mutex_unlock(&this->_chunk_mutex);
+        return;
+    }
+
+    for (int i = 0; i < slab->num_chunks; ++i)
+        list_del(&slab->chunks[i].list);
+    list_del(&slab->list);
+    _total_chunks -= slab->num_chunks;
+    _shrinks++;
+    log_pool_stats("shrink");
     pthread_mutex_unlock(&this->_chunk_mutex);
 
+    state_mac->mover->rdma->free_rdma_slab(slab->rdma);
+    free(slab->chunks);
+    delete slab;
+}
+
+void
+DataEngine::log_pool_stats(const char *reason) {
+    int slabs = 0;
+    struct list_head *pos;
+    list_for_each(pos, &this->_slabs)
+        slabs++;
+    log(lsINFO, "chunk pool stats (%s): chunks=%d (min=%d max=%d) grown_slabs=%d grows=%llu shrinks=%llu waits=%llu avg_wait_us=%llu",
+        reason, _total_chunks, _min_chunks, _max_chunks, slabs,
+        (unsigned long long)_grows, (unsigned long long)_shrinks, (unsigned long long)_waits,
+        (unsigned long long)(_waits ? _wait_us / _waits : 0));
+}
+
+bool
+DataEngine::send_from_cache(shuffle_req_t* req) {
+    uint64_t send_length = 0;
+    string key = ChunkCache::make_key(req->m_jobid, req->m_map, req->reduceID, req->map_offset);
+
+    pthread_mutex_lock(&this->_chunk_mutex);
+    chunk_cache_entry_t *entry = _cache->lookup(key, req->map_offset, req->chunk_size, send_length);
+    if (!entry) {
+        pthread_mutex_unlock(&this->_chunk_mutex);
+        return false;
+    }
+    // entry may be evicted once we unlock, but the chunk is held by the reference lookup took
+    chunk_t *chunk = entry->chunk;
+    int offsetAligment = entry->offsetAligment;
+    index_record_t *record = new index_record_t(entry->record);
+    pthread_mutex_unlock(&this->_chunk_mutex);
+
+    log(lsDEBUG, "chunk cache hit: JOBID=%s MAP=%s REDUCEID=%d offset=%lld length=%llu", req->m_jobid.c_str(), req->m_map.c_str(), req->reduceID, req->map_offset, (unsigned long long)send_length);
+    state_mac->mover->start_outgoing_req(req, record, chunk, send_length, offsetAligment);
+
+    delete record;
+    delete req->record;
+    delete req;
+    return true;
+}
+
+void
+DataEngine::cache_chunk(req_callback_arg *cb_arg) {
+    if (!_cache)
+        return;
+
+    shuffle_req_t *req = cb_arg->shreq;
+    string key = ChunkCache::make_key(req->m_jobid, req->m_map, req->reduceID, req->map_offset);
+    vector<chunk_t*> freed;
+
+    pthread_mutex_lock(&this->_chunk_mutex);
+    _cache->insert(key, req->m_jobid, cb_arg->chunk, *cb_arg->record, cb_arg->offsetAligment, cb_arg->readLength, freed);
+    for (size_t i = 0; i < freed.size(); i++) {
+        put_free_chunk(freed[i]);
+        pthread_cond_signal(&this->_chunk_cond);
+    }
+    pthread_mutex_unlock(&this->_chunk_mutex);
+}
+
+void
+DataEngine::invalidate_job(const string &jobid) {
+    if (!_cache)
+        return;
+
+    vector<chunk_t*> freed;
+
+    pthread_mutex_lock(&this->_chunk_mutex);
+    _cache->invalidate_job(jobid, freed);
+    for (size_t i = 0; i < freed.size(); i++) {
+        put_free_chunk(freed[i]);
+        pthread_cond_signal(&this->_chunk_cond);
+    }
+    _cache->log_stats(jobid.c_str());
+    pthread_mutex_unlock(&this->_chunk_mutex);
 }
 
 
@@ -340,6 +610,8 @@ int aio_completion_handler(void* data, int aio_status) {
 	log(lsTRACE, "on AIO callback: JOB=%s MAP=%s REDUCERID=%d REMOTE_HOST=%lld MAP_OFFSET=%lld ---> AIO_STATUS=%d", req_cb_arg->shreq->m_jobid.c_str(), req_cb_arg->shreq->m_map.c_str(), req_cb_arg->shreq->reduceID, req_cb_arg->shreq->remote_addr, req_cb_arg->shreq->map_offset, aio_status);
 	if (!aio_status){
 		//aio request ended successfully
+		// cache before sending - the send completion may release the chunk
+		req_cb_arg->state_mac->data_mac->cache_chunk(req_cb_arg);
 		req_cb_arg->state_mac->mover->start_outgoing_req(req_cb_arg->shreq, req_cb_arg->record, req_cb_arg->chunk, req_cb_arg->readLength, req_cb_arg->offsetAligment);
 	}//TODO: else: send NACK
 	else {
@@ -39,9 +39,12 @@ using namespace std;
 #define AIOHANDLER_MIN_NR			(1)
 #define AIOHANDLER_NR				(50)
 #define AIOHANDLER_TIMEOUT_IN_NSEC	(300000000)
-#define AIOHANDLER_CTX_MAXEVENTS	NETLEV_RDMA_MEM_CHUNKS_NUM
+// AIO context max events is the chunk pool's maximum - every read in flight holds a chunk
+
+#define CHUNK_POOL_SHRINK_CHECK_SEC	(1)
 
 class OutputServer;
+class ChunkCache;
 class ShuffleReq;
 class C2JNexus;
 class DataEngine;
@@ -60,7 +63,7 @@ typedef struct fd_counter
 //	pthread_mutex_t	lock;
 } fd_counter_t;
 
-/* Format: "jobid:mapid:mop_offset:reduceid:mem_addr:req_prt:chunk_size" */
+/* Format: "jobid:mapid:mop_offset:reduceid:mem_addr:req_prt:chunk_size:offset:path:rawLength:partLength[:weight]" */
 typedef struct shuffle_req
 {
     struct list_head    list;
@@ -74,6 +77,8 @@ typedef struct shuffle_req
     uint64_t 	  freq; //saving pointer to client's request
     int32_t		  chunk_size;
     index_record* record;
+    int32_t		  weight; //scheduling weight of the job, as sent by the reducer
+    uint64_t	  enqueue_time_us;
 } shuffle_req_t;
 
 typedef struct comp_mof_info
@@ -83,9 +88,12 @@ typedef struct comp_mof_info
     char *mapid;
 } comp_mof_info_t;
 
+class MergerService;
+
 typedef struct supplier_state {
     DataEngine      *data_mac; /* data machine    */
     OutputServer    *mover;    /* Transport */
+    MergerService   *merger_service; /* node-local merger service, NULL when off */
 } supplier_state_t;
 
 struct partition_record;
@@ -120,12 +128,30 @@ typedef struct partition_table
     index_record_t* records;
 } partition_table_t;
 
+struct chunk_slab;
+
 typedef struct chunk {
 	uint32_t			type; //!!!!!! type must be at offset 0!!!!!! DO NOT MOVE IT!!!!
     struct list_head 	list;
     char*				buff;
+    int32_t				refcount; // number of sends in flight from this chunk
+    bool				cached;   // owned by the chunk cache - don't return to free list on last release
+    struct chunk_slab*	slab;     // the registered memory the chunk was carved from
 } chunk_t;
 
+/*
+ * a contiguous group of chunks of the pool.
+ * the base slab is the memory registered at startup and is never released,
+ * the others are added when occupy_chunk waits too long, and released when all their chunks are idle
+ */
+typedef struct chunk_slab {
+    struct list_head	list;
+    netlev_rdma_slab_t*	rdma;        // NULL for the base slab (registered as the devices' rdma_mem)
+    chunk_t*			chunks;
+    int					num_chunks;
+    int					free_chunks; // chunks of this slab in the free list
+} chunk_slab_t;
+
 typedef struct shuffle_request_callback_arg {
 	chunk_t*			chunk;
 	uint64_t			readLength;
@@ -162,6 +188,12 @@ public:
     // send condition signal if pool was empty
     void release_chunk(chunk_t* chunk);
 
+    /* offers a chunk that was read successfully to the chunk cache (if enabled) */
+    void cache_chunk(req_callback_arg *cb_arg);
+
+    /* drops cached chunks of a finished job */
+    void invalidate_job(const string &jobid);
+
     /* XXX:Start the data engine thread for new requests and MOFs */
     void start();
 
@@ -177,11 +209,29 @@ public:
 private:
     pthread_t 			_thread_id;
     AIOHandler* 		_aioHandler;
-    struct list_head    _free_chunks_list;
-    chunk_t*			_chunks;
+    struct list_head    _free_chunks_list; // base slab chunks first, so grown slabs drain when load drops
+    chunk_slab_t		_base_slab;
+    struct list_head    _slabs; // grown slabs, newest last
     pthread_cond_t      _chunk_cond;
     pthread_mutex_t		_chunk_mutex;
     struct rlimit 		_kernel_fd_rlim;
+    ChunkCache*			_cache; // NULL if disabled, protected by _chunk_mutex
+
+    /* elastic chunk pool, protected by _chunk_mutex */
+    int					_total_chunks;
+    int					_min_chunks;
+    int					_max_chunks;
+    int					_slab_chunks;
+    int					_grow_wait_ms;   // occupy_chunk wait before growing the pool
+    int					_shrink_idle_sec; // no waits for this long before releasing a slab
+    time_t				_last_wait_time;
+    uint64_t			_waits;
+    uint64_t			_wait_us;
+    uint64_t			_grows;
+    uint64_t			_shrinks;
+
+    /* serves req from the chunk cache. returns true on hit */
+    bool send_from_cache(shuffle_req_t* req);
 
 
 
@@ -212,11 +262,28 @@ private:
     int aio_read_chunk_data(shuffle_req_t* req, chunk_t* chunk, uint64_t map_offset);
 
     // consumes chunk buffer from pool
-    // WAIT on condition if no chunks available
+    // WAIT on condition if no chunks available, growing the pool if waiting takes too long
     chunk_t* occupy_chunk();
 
-    /* Initialize the cache tables with provided memory */
-    void prepare_tables(void *mem, int rdma_buf_size);
+    /* free list operations - must be called with _chunk_mutex held */
+    void put_free_chunk(chunk_t* chunk);
+    chunk_t* get_free_chunk();
+
+    /*
+     * registers one more slab of chunks, unless the pool is at its maximum.
+     * called by the engine thread with _chunk_mutex held; the lock is released during registration.
+     * returns true if the pool grew
+     */
+    bool grow_pool();
+
+    /* releases the newest idle slab if there were no waits for _shrink_idle_sec */
+    void shrink_pool();
+
+    /* must be called with _chunk_mutex held */
+    void log_pool_stats(const char *reason);
+
+    /* Initialize the cache tables with provided memory of num_chunks chunks */
+    void prepare_tables(void *mem, int num_chunks, int rdma_buf_size);
 
     /*
      * 1) cleanJob for all jobs
@@ -19,11 +19,20 @@
 
 #include <dirent.h>
 #include <memory>
+#include <sys/time.h>
 #include "IOUtility.h"
 #include "MOFServlet.h"
+#include "UdaBridge.h"
 
 using namespace std;
 
+static uint64_t get_time_usec()
+{
+    timeval tv;
+    gettimeofday(&tv, NULL);
+    return (uint64_t)tv.tv_sec * 1000000 + tv.tv_usec;
+}
+
 /* Parse param into a shuffle_req_t */
 shuffle_req_t* get_shuffle_req(const string &param)
 {
@@ -88,8 +97,19 @@ shuffle_req_t* get_shuffle_req(const string &param)
 	sreq->record->rawLength = atoll(param.substr(start, end - start).c_str());
 
 	start = ++end;
-	int param_length = param.length(); /* if no ':' is found in shuffle request,  return NULL to calling request. */
-	sreq->record->partLength = atoll(param.substr(start, param_length - start).c_str());
+	end = param.find(':', start);
+	if(end == param.npos) { /* older reducers don't send weight */
+		int param_length = param.length();
+		sreq->record->partLength = atoll(param.substr(start, param_length - start).c_str());
+		sreq->weight = 1;
+	}
+	else {
+		sreq->record->partLength = atoll(param.substr(start, end - start).c_str());
+		start = ++end;
+		sreq->weight = atoi(param.substr(start).c_str());
+		if (sreq->weight < 1) sreq->weight = 1;
+		if (sreq->weight > SHUFFLE_MAX_WEIGHT) sreq->weight = SHUFFLE_MAX_WEIGHT;
+	}
 
     my_auto_ptr.release();
     return sreq;
@@ -104,7 +124,12 @@ OutputServer::OutputServer(int data_port, int mode, int rdma_buf_size,
     this->rdma_buf_size = rdma_buf_size;
     //this->tcp  = NULL;    AUBURN_DEAD_CODE
     this->state = state;
-    INIT_LIST_HEAD(&this->incoming_req_list);
+    this->incoming_reqs_num = 0;
+    INIT_LIST_HEAD(&this->active_jobs);
+    this->stats_interval_sec = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.queue.stats.interval.sec", STR(SHUFFLE_QUEUE_STATS_INTERVAL_SEC)).c_str());
+    this->last_stats_time = time(NULL);
+    this->queue_idle_sec = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.provider.queue.idle.sec", STR(SHUFFLE_QUEUE_IDLE_SEC)).c_str());
+    this->last_evict_time = time(NULL);
 
     pthread_mutex_init(&this->in_lock, NULL);
     pthread_mutex_init(&this->out_lock, NULL);
@@ -120,6 +145,10 @@ OutputServer::OutputServer(int data_port, int mode, int rdma_buf_size,
 OutputServer::~OutputServer()
 {
 	output_stdout("OutputServer: D'tor");
+    while (!this->job_queues.empty()) {
+        string jobid = this->job_queues.begin()->first;
+        remove_job(jobid);
+    }
     pthread_mutex_destroy(&this->in_lock);
     pthread_mutex_destroy(&this->out_lock);
     pthread_cond_destroy(&this->in_cond);
@@ -151,26 +180,194 @@ void OutputServer::stop_server()
 
 void OutputServer::insert_incoming_req(shuffle_req_t *req)
 {
+    shuffle_job_queue_t *job;
+    shuffle_reducer_queue_t *reducer;
+
+    req->enqueue_time_us = get_time_usec();
+
+    pthread_mutex_lock(&in_lock);
+
+    map<string, shuffle_job_queue_t*>::iterator job_iter = job_queues.find(req->m_jobid);
+    if (job_iter == job_queues.end()) {
+        job = new shuffle_job_queue_t();
+        job->jobid = req->m_jobid;
+        job->weight = req->weight;
+        job->deficit = 0;
+        INIT_LIST_HEAD(&job->list);
+        INIT_LIST_HEAD(&job->active_reducers);
+        job->depth = job->max_depth = 0;
+        job->total_reqs = job->total_bytes = job->total_wait_us = job->max_wait_us = 0;
+        job_queues[req->m_jobid] = job;
+        log(lsINFO, "new shuffle queue for job=%s weight=%d", job->jobid.c_str(), job->weight);
+    }
+    else {
+        job = job_iter->second;
+    }
+    job->last_active = time(NULL);
+
+    map<int32_t, shuffle_reducer_queue_t*>::iterator red_iter = job->reducers.find(req->reduceID);
+    if (red_iter == job->reducers.end()) {
+        reducer = new shuffle_reducer_queue_t();
+        reducer->reduceID = req->reduceID;
+        INIT_LIST_HEAD(&reducer->reqs);
+        job->reducers[req->reduceID] = reducer;
+    }
+    else {
+        reducer = red_iter->second;
+    }
+
+    if (list_empty(&reducer->reqs))
+        list_add_tail(&reducer->list, &job->active_reducers);
+    list_add_tail(&req->list, &reducer->reqs);
+
+    if (!job->depth)
+        list_add_tail(&job->list, &active_jobs);
+    job->depth++;
+    if (job->depth > job->max_depth)
+        job->max_depth = job->depth;
+    incoming_reqs_num++;
+
+    pthread_cond_broadcast(&in_cond);
+    pthread_mutex_unlock(&in_lock);
+}
+
+shuffle_req_t* OutputServer::get_next_incoming_req()
+{
+    shuffle_req_t *req = NULL;
+
     pthread_mutex_lock(&in_lock);
 
-    /* testing section */
-    /* if (req->map_offset == 0) {
-        int reduceid = req->reduceID;
-        map<int, int>::iterator iter =
-            recv_stat.find(reduceid);
-        if (iter != recv_stat.end()) {
-            recv_stat[reduceid] = (*iter).second + 1;
-        } else {
-            recv_stat[reduceid] = 1;
+    while (!list_empty(&active_jobs)) {
+        shuffle_job_queue_t *job = list_entry(active_jobs.next, typeof(*job), list);
+        shuffle_reducer_queue_t *reducer = list_entry(job->active_reducers.next, typeof(*reducer), list);
+        shuffle_req_t *head = list_entry(reducer->reqs.next, typeof(*head), list);
+
+        if (head->chunk_size > job->deficit) {
+            // job used its share for this round - give it a new quantum and move to the next job
+            job->deficit += (int64_t)job->weight * this->rdma_buf_size;
+            list_del(&job->list);
+            list_add_tail(&job->list, &active_jobs);
+            continue;
         }
-        output_stdout("reducer : %d, First mop recv: %d",
-                      reduceid, recv_stat[reduceid]);
-    } */
 
-    list_add_tail(&req->list, &incoming_req_list);
+        req = head;
+        list_del(&req->list);
+        job->deficit -= req->chunk_size;
+
+        // next request of this job will be taken from the next reducer
+        list_del(&reducer->list);
+        if (list_empty(&reducer->reqs)) {
+            job->reducers.erase(reducer->reduceID);
+            delete reducer;
+        }
+        else {
+            list_add_tail(&reducer->list, &job->active_reducers);
+        }
+
+        job->depth--;
+        if (!job->depth) {
+            list_del(&job->list);
+            job->deficit = 0; // idle jobs don't accumulate credit
+        }
+        incoming_reqs_num--;
+        job->last_active = time(NULL);
+
+        uint64_t wait = get_time_usec() - req->enqueue_time_us;
+        job->total_reqs++;
+        job->total_bytes += req->chunk_size;
+        job->total_wait_us += wait;
+        if (wait > job->max_wait_us)
+            job->max_wait_us = wait;
+        break;
+    }
+
+    time_t now = time(NULL);
+    if (stats_interval_sec > 0 && now - last_stats_time >= stats_interval_sec) {
+        last_stats_time = now;
+        log_all_queue_stats();
+    }
+    if (queue_idle_sec > 0 && now - last_evict_time >= queue_idle_sec / 2) {
+        last_evict_time = now;
+        evict_idle_jobs(now);
+    }
 
-    pthread_cond_broadcast(&in_cond);
     pthread_mutex_unlock(&in_lock);
+
+    return req;
+}
+
+void OutputServer::remove_job(const string &jobid)
+{
+    pthread_mutex_lock(&in_lock);
+
+    map<string, shuffle_job_queue_t*>::iterator job_iter = job_queues.find(jobid);
+    if (job_iter == job_queues.end()) {
+        pthread_mutex_unlock(&in_lock);
+        return;
+    }
+    drop_job(job_iter);
+
+    pthread_mutex_unlock(&in_lock);
+}
+
+/* in_lock must be held */
+void OutputServer::drop_job(map<string, shuffle_job_queue_t*>::iterator job_iter)
+{
+    shuffle_job_queue_t *job = job_iter->second;
+    log_queue_stats(job);
+
+    if (job->depth) {
+        log(lsWARN, "dropping %d pending shuffle requests of removed job=%s", job->depth, job->jobid.c_str());
+        list_del(&job->list);
+        incoming_reqs_num -= job->depth;
+    }
+
+    for (map<int32_t, shuffle_reducer_queue_t*>::iterator iter = job->reducers.begin(); iter != job->reducers.end(); ++iter) {
+        shuffle_reducer_queue_t *reducer = iter->second;
+        while (!list_empty(&reducer->reqs)) {
+            shuffle_req_t *req = list_entry(reducer->reqs.next, typeof(*req), list);
+            list_del(&req->list);
+            delete req->record;
+            delete req;
+        }
+        delete reducer;
+    }
+
+    job_queues.erase(job_iter);
+    delete job;
+}
+
+/*
+ * in_lock must be held.
+ * frees the queues of jobs with no pending requests that were idle for queue_idle_sec.
+ * a job that fetches again later simply gets a new queue
+ */
+void OutputServer::evict_idle_jobs(time_t now)
+{
+    map<string, shuffle_job_queue_t*>::iterator iter = job_queues.begin();
+    while (iter != job_queues.end()) {
+        map<string, shuffle_job_queue_t*>::iterator cur = iter++;
+        if (!cur->second->depth && now - cur->second->last_active >= queue_idle_sec) {
+            log(lsINFO, "evicting shuffle queue of idle job=%s", cur->first.c_str());
+            drop_job(cur);
+        }
+    }
+}
+
+void OutputServer::log_queue_stats(shuffle_job_queue_t *job)
+{
+    log(lsINFO, "shuffle queue stats: job=%s weight=%d depth=%d max_depth=%d reducers_waiting=%d served=%llu bytes=%llu avg_wait=%llums max_wait=%llums",
+        job->jobid.c_str(), job->weight, job->depth, job->max_depth, (int)job->reducers.size(),
+        (unsigned long long)job->total_reqs, (unsigned long long)job->total_bytes,
+        (unsigned long long)(job->total_reqs ? job->total_wait_us / job->total_reqs / 1000 : 0),
+        (unsigned long long)(job->max_wait_us / 1000));
+}
+
+void OutputServer::log_all_queue_stats()
+{
+    for (map<string, shuffle_job_queue_t*>::iterator iter = job_queues.begin(); iter != job_queues.end(); ++iter) {
+        log_queue_stats(iter->second);
+    }
 }
 
 void OutputServer::start_outgoing_req(shuffle_req_t *req, index_record_t* record,  chunk_t *chunk, uint64_t length, int offsetAligment)
@@ -49,6 +49,43 @@ private:
 
 shuffle_req_t * get_shuffle_req(const string &param);
 
+#define SHUFFLE_MAX_WEIGHT					(100)
+/* config defaults, passed through STR() - no parentheses */
+#define SHUFFLE_QUEUE_STATS_INTERVAL_SEC	60
+#define SHUFFLE_QUEUE_IDLE_SEC				600
+
+/* pending requests of a single reducer (of a single job), served FIFO */
+typedef struct shuffle_reducer_queue
+{
+    struct list_head    list;    /* link in job's active_reducers */
+    struct list_head    reqs;
+    int32_t             reduceID;
+} shuffle_reducer_queue_t;
+
+/*
+ * pending requests of a single job.
+ * jobs are served by deficit round robin (quantum = weight * rdma_buf_size bytes),
+ * reducers inside a job are served round robin - one request per turn.
+ */
+typedef struct shuffle_job_queue
+{
+    struct list_head    list;    /* link in active_jobs when the job has pending requests */
+    string              jobid;
+    int32_t             weight;
+    int64_t             deficit;
+    time_t              last_active;   /* last enqueue/dequeue */
+    struct list_head    active_reducers;
+    map<int32_t, shuffle_reducer_queue_t*> reducers;
+
+    /* statistics */
+    int32_t             depth;         /* current number of pending requests */
+    int32_t             max_depth;
+    uint64_t            total_reqs;    /* number of dequeued requests */
+    uint64_t            total_bytes;
+    uint64_t            total_wait_us;
+    uint64_t            max_wait_us;
+} shuffle_job_queue_t;
+
 class OutputServer 
 {
 public:
@@ -68,6 +105,13 @@ public:
      * 5. Complete the outgoing request
      */
     void insert_incoming_req(shuffle_req_t *req);
+
+    /* pops the next request to serve according to DRR across jobs.
+     * returns NULL if there are no pending requests */
+    shuffle_req_t* get_next_incoming_req();
+
+    /* drops pending requests and scheduling state of a finished job (JOB_OVER - sent by the YARN plugins) */
+    void remove_job(const string &jobid);
     void start_outgoing_req(shuffle_req_t *req, index_record_t* record,  chunk_t* chunk, uint64_t length, int offsetAligment);
 
     /* port for data movement between client and server.  */
@@ -80,7 +124,7 @@ public:
     pthread_mutex_t   in_lock;
     pthread_mutex_t   out_lock;
     pthread_cond_t    in_cond;
-    struct list_head  incoming_req_list;
+    int               incoming_reqs_num; /* total pending requests of all jobs, protected by in_lock */
 
     /**
      * Under standalone mode, list all the valid fetch request 
@@ -89,6 +133,18 @@ public:
      */
     void list_fet_req(const char *test_dir);
 
+private:
+    map<string, shuffle_job_queue_t*> job_queues;
+    struct list_head  active_jobs;
+    int               stats_interval_sec;
+    time_t            last_stats_time;
+    int               queue_idle_sec;   /* evict queues of jobs idle that long - MR1 sends no JOB_OVER */
+    time_t            last_evict_time;
+
+    void drop_job(map<string, shuffle_job_queue_t*>::iterator job_iter);
+    void evict_idle_jobs(time_t now);
+    void log_queue_stats(shuffle_job_queue_t *job);
+    void log_all_queue_stats();
 };
 
 /*
@@ -24,6 +24,7 @@
 
 #include "MOFServer/MOFServlet.h"
 #include "MOFServer/IndexInfo.h"
+#include "DataNet/MergerService.h"
 #include "include/IOUtility.h"
 
 using namespace std;
@@ -56,12 +57,22 @@ void mof_downcall_handler(const std::string & msg)
            the intermediate map output files
         state_mac.data_mac->base_path = strdup(hadoop_cmd.params[0]);*/
 
+    } else if (hadoop_cmd.header == JOB_OVER_MSG) {
+
+        log(lsINFO, "===>>> we got JOB_OVER COMMAND for job=%s", hadoop_cmd.params[0]);
+        state_mac.mover->remove_job(hadoop_cmd.params[0]);
+        state_mac.data_mac->invalidate_job(hadoop_cmd.params[0]);
+
     } else if (hadoop_cmd.header == EXIT_MSG) {
 
         log(lsINFO, "============>>> we got EXIT COMMAND");
 
     	/* Stop all threads */
 
+        /* the merger service's connections go before the server */
+        delete state_mac.merger_service;
+        state_mac.merger_service = NULL;
+
 		/* rdma listening thread*/
         state_mac.mover->stop_server();
         log(lsDEBUG, "after output server stop");
@@ -139,6 +150,17 @@ int MOFSupplier_main(int argc, char *argv[]) throw (UdaException*)
     state_mac.data_mac = new DataEngine(state_mac.mover->rdma->rdma_mem,
                                         &state_mac, /* op.base_path */ NULL, op.mode, op.buf_size, open_files_limit);
 
+    /* The node-local merger service - reduce tasks of the node attach to its
+     * registered memory and connections; without it they set up their own */
+    if (MergerService::is_enabled()) {
+        try {
+            state_mac.merger_service = new MergerService(op.data_port);
+        } catch (UdaException *ex) {
+            log(lsWARN, "merger service is not started: %s", ex->getFullMessage().c_str());
+            state_mac.merger_service = NULL;
+        }
+    }
+
     return 0;
 }
 
@@ -0,0 +1,235 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <string.h>
+#include "BufferSlabs.h"
+#include "UdaBridge.h"
+#include <UdaUtil.h>
+
+using namespace std;
+
+////////////////////////////////////////////////////////////////////////////////
+BufferSlabs::BufferSlabs(char *mem, int32_t num_slabs, int32_t buf_len1, int32_t buf_len2, int num_classes, const int32_t *class_size) :
+    _mem(mem), _num_slabs(num_slabs), _slab_len(buf_len1 + buf_len2), _buf_len1(buf_len1), _buf_len2(buf_len2),
+    _num_classes(max(1, min(num_classes, MAX_BUFFER_CLASSES))), _empty_num(num_slabs), _free_pairs_num(0), _free_pairs_bytes(0),
+    _peak_slabs(0), _allocs(0), _fragmentation_sum(0), _fragmentation_max(0)
+{
+    memset(_stats, 0, sizeof(_stats));
+    for (int k = 0; k < MAX_BUFFER_CLASSES; ++k) {
+        INIT_LIST_HEAD(&_free_pairs[k]);
+        _free_num[k] = 0;
+        _class_size[k] = (k < _num_classes && k > 0) ? class_size[k] : buf_len1;
+        _pairs_per_slab[k] = (k < _num_classes) ? _slab_len / pair_len(k) : 0;
+    }
+
+    INIT_LIST_HEAD(&_empty_slabs);
+    _slabs = new buffer_slab_t[num_slabs];
+    for (int i = 0; i < num_slabs; ++i) {
+        buffer_slab_t *slab = &_slabs[i];
+        slab->mem = mem + (int64_t)i * _slab_len;
+        slab->cls = -1;
+        slab->carved = -1;
+        slab->used = 0;
+        slab->pairs = NULL;
+        slab->descs = NULL;
+        list_add_tail(&slab->list, &_empty_slabs);
+    }
+
+    for (int k = 0; k < _num_classes; ++k)
+        log(lsINFO, "RDMA buffer class %d: %d pairs of %d bytes buffers per slab", k, _pairs_per_slab[k], k ? _class_size[k] : _buf_len1);
+    log(lsDEBUG, "%d slabs of %d bytes", num_slabs, _slab_len);
+}
+
+BufferSlabs::~BufferSlabs()
+{
+    for (int i = 0; i < _num_slabs; ++i) {
+        buffer_slab_t *slab = &_slabs[i];
+        if (slab->cls >= 0) {
+            log(lsWARN, "slab %d still has %d pairs in use", i, slab->used);
+        }
+        for (int j = 0; slab->descs && j < 2 * _pairs_per_slab[slab->carved]; ++j) {
+            pthread_mutex_destroy(&slab->descs[j].lock);
+            pthread_cond_destroy(&slab->descs[j].cond);
+        }
+        delete [] slab->descs;
+        delete [] slab->pairs;
+    }
+    delete [] _slabs;
+}
+
+// builds the pairs of class cls in an empty slab and adds them to the class's free list
+void BufferSlabs::carve(buffer_slab_t *slab, int cls)
+{
+    int n = _pairs_per_slab[cls];
+    if (slab->carved != cls) {
+        for (int j = 0; slab->descs && j < 2 * _pairs_per_slab[slab->carved]; ++j) {
+            pthread_mutex_destroy(&slab->descs[j].lock);
+            pthread_cond_destroy(&slab->descs[j].cond);
+        }
+        delete [] slab->descs;
+        delete [] slab->pairs;
+        slab->pairs = new mem_set_desc_t[n];
+        slab->descs = new mem_desc_t[2 * n];
+        for (int j = 0; j < n; ++j) {
+            char *addr = slab->mem + (int64_t)j * pair_len(cls);
+            int32_t len1 = cls ? _class_size[cls] : _buf_len1;
+            int32_t len2 = cls ? _class_size[cls] : _buf_len2;
+            slab->descs[2*j].init(addr, len1);
+            slab->descs[2*j+1].init(addr + len1, len2);
+            slab->pairs[j].buffer_unit[0] = &slab->descs[2*j];
+            slab->pairs[j].buffer_unit[1] = &slab->descs[2*j+1];
+        }
+        slab->carved = cls;
+    }
+    for (int j = 0; j < n; ++j)
+        list_add_tail(&slab->pairs[j].list, &_free_pairs[cls]);
+
+    slab->cls = cls;
+    _free_num[cls] += n;
+    _free_pairs_num += n;
+    _free_pairs_bytes += (int64_t)n * pair_len(cls);
+    _stats[cls].slabs++;
+    _peak_slabs = max(_peak_slabs, _num_slabs - _empty_num);
+}
+
+// takes the free pairs of a slab whose pairs were all returned out of its class's free list
+void BufferSlabs::release_slab(buffer_slab_t *slab)
+{
+    int cls = slab->cls;
+    int n = _pairs_per_slab[cls];
+    for (int j = 0; j < n; ++j)
+        list_del(&slab->pairs[j].list);
+
+    slab->cls = -1;
+    _free_num[cls] -= n;
+    _free_pairs_num -= n;
+    _free_pairs_bytes -= (int64_t)n * pair_len(cls);
+    _stats[cls].slabs--;
+    list_add(&slab->list, &_empty_slabs);
+    _empty_num++;
+}
+
+mem_set_desc_t *BufferSlabs::alloc(int cls)
+{
+    if (list_empty(&_free_pairs[cls])) {
+        if (list_empty(&_empty_slabs)) {
+            _stats[cls].failures++;
+            return NULL;
+        }
+        buffer_slab_t *slab = list_entry(_empty_slabs.next, buffer_slab_t, list);
+        list_del(&slab->list);
+        _empty_num--;
+        carve(slab, cls);
+    }
+
+    mem_set_desc_t *pair = list_entry(_free_pairs[cls].next, mem_set_desc_t, list);
+    list_del(&pair->list);
+    _slabs[(pair->buffer_unit[0]->buff - _mem) / _slab_len].used++;
+    _free_num[cls]--;
+    _free_pairs_num--;
+    _free_pairs_bytes -= pair_len(cls);
+
+    slab_class_stats_t *stats = &_stats[cls];
+    stats->allocs++;
+    stats->in_use++;
+    stats->peak_in_use = max(stats->peak_in_use, stats->in_use);
+    double frag = fragmentation();
+    _allocs++;
+    _fragmentation_sum += frag;
+    _fragmentation_max = max(_fragmentation_max, frag);
+    return pair;
+}
+
+mem_set_desc_t *BufferSlabs::alloc_fit(int cls, int limit)
+{
+    mem_set_desc_t *pair = NULL;
+    for (int k = cls; k >= 0 && !pair; --k)
+        pair = alloc(k);
+    for (int k = cls + 1; k < limit && !pair; ++k)
+        pair = alloc(k);
+    return pair;
+}
+
+void BufferSlabs::release(mem_desc_t **bufs)
+{
+    buffer_slab_t *slab = &_slabs[(bufs[0]->buff - _mem) / _slab_len];
+    int cls = slab->cls;
+    if (cls < 0) {
+        log(lsERROR, "returned buffers %p of an empty slab", bufs[0]->buff);
+        throw new UdaException("returned buffers of an empty slab");
+    }
+    mem_set_desc_t *pair = &slab->pairs[(bufs[0]->buff - slab->mem) / pair_len(cls)];
+    for (int i = 0; i < NUM_STAGE_MEM; i++) {
+        pair->buffer_unit[i]->init();
+        bufs[i] = NULL; // sanity
+    }
+
+    // the last returned pair is borrowed first, so the other slabs of the class get empty
+    list_add(&pair->list, &_free_pairs[cls]);
+    _free_num[cls]++;
+    _free_pairs_num++;
+    _free_pairs_bytes += pair_len(cls);
+    _stats[cls].in_use--;
+    if (--slab->used == 0)
+        release_slab(slab);
+}
+
+int BufferSlabs::class_of(int32_t wanted_len) const
+{
+    if (wanted_len < 0)
+        return 0;
+    int cls = 0;
+    while (cls + 1 < _num_classes && _class_size[cls + 1] >= wanted_len)
+        cls++;
+    return cls;
+}
+
+int BufferSlabs::class_of_buffer(const mem_desc_t *buf) const
+{
+    return _slabs[(buf->buff - _mem) / _slab_len].cls;
+}
+
+double BufferSlabs::fragmentation() const
+{
+    int64_t free_bytes = (int64_t)_empty_num * _slab_len + _free_pairs_bytes;
+    return free_bytes ? (double)_free_pairs_bytes / free_bytes : 0;
+}
+
+void BufferSlabs::log_stats() const
+{
+    for (int k = 0; k < _num_classes; ++k) {
+        const slab_class_stats_t *stats = &_stats[k];
+        int32_t carved = stats->slabs * _pairs_per_slab[k];
+        log(lsINFO, "RDMA buffer class %d: %lld allocs, %lld failures, %d/%d pairs in use (peak %d) in %d slabs, occupancy %.2f",
+            k, (long long)stats->allocs, (long long)stats->failures, stats->in_use, carved, stats->peak_in_use, stats->slabs,
+            carved ? (double)stats->in_use / carved : 0);
+    }
+    log(lsINFO, "RDMA buffer slabs: %d of %d carved (peak %d), fragmentation %.3f (mean %.3f, max %.3f over %lld allocs)",
+        _num_slabs - _empty_num, _num_slabs, _peak_slabs, fragmentation(),
+        _allocs ? _fragmentation_sum / _allocs : 0, _fragmentation_max, (long long)_allocs);
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
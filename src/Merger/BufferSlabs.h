@@ -0,0 +1,116 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef BUFFER_SLABS_H
+#define BUFFER_SLABS_H 1
+
+#include <pthread.h>
+#include <stdint.h>
+#include "MergeQueue.h"
+
+#define MAX_BUFFER_CLASSES 4 // size classes of the buffer pairs, each class has buffers of a quarter of the previous one
+
+typedef struct buffer_slab {
+    struct list_head    list;     /* in the list of empty slabs */
+    char               *mem;
+    int                 cls;      /* class of the pairs in use, -1 while empty */
+    int                 carved;   /* class the pairs/descs were built for, -1 before the first carve */
+    int32_t             used;     /* borrowed pairs */
+    mem_set_desc_t     *pairs;
+    mem_desc_t         *descs;
+} buffer_slab_t;
+
+typedef struct slab_class_stats {
+    int32_t             slabs;    /* slabs carved into pairs of the class */
+    int32_t             in_use;   /* borrowed pairs */
+    int32_t             peak_in_use;
+    int64_t             allocs;
+    int64_t             failures; /* no free pair of the class and no empty slab */
+} slab_class_stats_t;
+
+/*
+ * Slab allocator of the RDMA buffer pairs of the map outputs (mop_pool).
+ * The registered region is cut into slabs of one pair of the largest buffers (buffer1 + buffer2). A slab is carved
+ * into pairs of one size class when the class has no free pair, and is empty again - for any class - once all its
+ * pairs are returned. Each class has its own free list, so alloc and free take constant time (a carve/release
+ * touches the pairs of one slab). All methods are called with the pool's lock.
+ */
+class BufferSlabs
+{
+public:
+    /* class 0 has pairs of buf_len1 + buf_len2 bytes, class k>0 pairs of 2 * class_size[k] bytes */
+    BufferSlabs(char *mem, int32_t num_slabs, int32_t buf_len1, int32_t buf_len2, int num_classes, const int32_t *class_size);
+    ~BufferSlabs();
+
+    /* a free pair of class cls, NULL if there is none */
+    mem_set_desc_t *alloc(int cls);
+    /* a free pair of class cls, else of a larger class, else of the largest smaller class up to class limit (excluded) */
+    mem_set_desc_t *alloc_fit(int cls, int limit);
+    /* returns the pair whose buffers are bufs */
+    void release(mem_desc_t **bufs);
+
+    /* the class of the smallest buffers of at least wanted_len bytes (class 0 if none); -1 for class 0 */
+    int class_of(int32_t wanted_len) const;
+    int class_of_buffer(const mem_desc_t *buf) const;
+    int num_classes() const {return _num_classes;}
+    bool has_free() const {return _empty_num > 0 || _free_pairs_num > 0;}
+
+    /* share of the free bytes that are in free pairs of partly used slabs, i.e. not available for class 0 */
+    double fragmentation() const;
+    void log_stats() const;
+
+private:
+    void carve(buffer_slab_t *slab, int cls);
+    void release_slab(buffer_slab_t *slab);
+    int32_t pair_len(int cls) const {return cls ? 2 * _class_size[cls] : _slab_len;}
+
+    char               *_mem;
+    int32_t             _num_slabs;
+    int32_t             _slab_len;
+    int32_t             _buf_len1;
+    int32_t             _buf_len2;
+    int                 _num_classes;
+    int32_t             _class_size[MAX_BUFFER_CLASSES];
+    int32_t             _pairs_per_slab[MAX_BUFFER_CLASSES];
+
+    buffer_slab_t      *_slabs;
+    struct list_head    _empty_slabs;
+    int32_t             _empty_num;
+    struct list_head    _free_pairs[MAX_BUFFER_CLASSES];
+    int32_t             _free_num[MAX_BUFFER_CLASSES];
+    int32_t             _free_pairs_num;
+    int64_t             _free_pairs_bytes;  /* bytes of the free pairs in carved slabs */
+
+    slab_class_stats_t  _stats[MAX_BUFFER_CLASSES];
+    int32_t             _peak_slabs;        /* carved slabs */
+    int64_t             _allocs;
+    double              _fragmentation_sum; /* sampled at each alloc */
+    double              _fragmentation_max;
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
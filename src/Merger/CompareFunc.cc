@@ -17,7 +17,13 @@
 **
 */
 
+#include <stdlib.h>
+#include <pthread.h>
+#include <ctype.h>
+#include <string>
+#include <vector>
 #include "CompareFunc.h"
+#include "UdaBridge.h"
 
 // Matches BytesWritable's definition of LENGTH_BYTES in Java
 const int LENGTH_BYTES = 4;
@@ -31,10 +37,6 @@ const char * TEXT_COMPARABLE[] = {
 		NULL};
 const char * BYTE_COMPARABLE[] = {
 		"org.apache.hadoop.io.BooleanWritable",
-		"org.apache.hadoop.io.ByteWritable",
-		"org.apache.hadoop.io.ShortWritable",
-		"org.apache.hadoop.io.IntWritable",
-		"org.apache.hadoop.io.LongWritable",
 		NULL};
 const char * BYTES_COMPARABLE[] = {
 		"org.apache.hadoop.io.BytesWritable",
@@ -45,13 +47,9 @@ const char * BYTES_COMPARABLE[] = {
  // unsupported yet - all are derived of WritableComparable
  // see http://hadoop.apache.org/docs/current/api/org/apache/hadoop/io/WritableComparable.html
 
-org.apache.hadoop.io.DoubleWritable
-org.apache.hadoop.io.FloatWritable
-
-org.apache.hadoop.io.VIntWritable
-org.apache.hadoop.io.VLongWritable
 org.apache.hadoop.mapred.ID (based on int)
 
+ // other key types can be described with mapred.rdma.key.descriptor (see get_compare_func)
 //*/
 
 
@@ -90,9 +88,527 @@ static int bytes_compare(char* key1, int len1, char* key2, int len2) {
 	return byte_compare_inline(key1 + LENGTH_BYTES, len1 - LENGTH_BYTES, key2 + LENGTH_BYTES, len2 - LENGTH_BYTES);
 }
 
+
+////////////////////////////////////////////////////////////////////////////////
+// Readers of Java's DataOutput encoding (big endian, two's complement)
+//
+static inline int64_t read_be(const char* p, int bytes) {
+	uint64_t val = 0;
+	for (int i = 0; i < bytes; ++i)
+		val = (val << 8) | (uint8_t)p[i];
+	return (int64_t)val;
+}
+
+static inline int32_t read_int(const char* p)   { return (int32_t)read_be(p, 4); }
+static inline int64_t read_long(const char* p)  { return read_be(p, 8); }
+
+static inline float read_float(const char* p) {
+	union {int32_t i; float f;} u;
+	u.i = read_int(p);
+	return u.f;
+}
+
+static inline double read_double(const char* p) {
+	union {int64_t l; double d;} u;
+	u.l = read_long(p);
+	return u.d;
+}
+
+// Matches WritableUtils.readVLong; size is set to the number of encoded bytes
+static inline int64_t read_vlong(const char* p, int &size) {
+	int first = (signed char)p[0];
+	size = StreamUtility::decodeVIntSize(first);
+	if (size == 1)
+		return first;
+	int64_t val = read_be(p + 1, size - 1);
+	bool negative = (first < -120 || (first >= -112 && first < 0));
+	return negative ? ~val : val;
+}
+
+// same ordering as the Java comparators: (a < b ? -1 : (a == b ? 0 : 1))
+template <typename T>
+static inline int value_compare(T a, T b) {
+	return (a < b) ? -1 : ((a == b) ? 0 : 1);
+}
+
+
+////////////////////////////////////////////////////////////////////////////////
+static int signed_byte_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare((signed char)key1[0], (signed char)key2[0]);
+}
+
+static int short_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare((int16_t)read_be(key1, 2), (int16_t)read_be(key2, 2));
+}
+
+static int int_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare(read_int(key1), read_int(key2));
+}
+
+static int long_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare(read_long(key1), read_long(key2));
+}
+
+static int float_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare(read_float(key1), read_float(key2));
+}
+
+static int double_compare(char* key1, int len1, char* key2, int len2) {
+	return value_compare(read_double(key1), read_double(key2));
+}
+
+static int vlong_compare(char* key1, int len1, char* key2, int len2) {
+	int size1, size2;
+	return value_compare(read_vlong(key1, size1), read_vlong(key2, size2));
+}
+
+
+////////////////////////////////////////////////////////////////////////////////
+// Composite keys - a sequence of fields, each serialized by its Writable's write()
+//
+enum key_field_type_t {
+	KF_BOOLEAN,
+	KF_BYTE,
+	KF_SHORT,
+	KF_INT,
+	KF_LONG,
+	KF_FLOAT,
+	KF_DOUBLE,
+	KF_VINT, // VIntWritable and VLongWritable share the encoding
+	KF_VLONG,
+	KF_TEXT,
+	KF_BYTES,
+};
+
+typedef struct key_field {
+	key_field_type_t type;
+	bool             descending;
+} key_field_t;
+
+static const struct {
+	const char*      name;
+	key_field_type_t type;
+} KEY_FIELD_NAMES[] = {
+		{"boolean", KF_BOOLEAN},
+		{"byte",    KF_BYTE},
+		{"short",   KF_SHORT},
+		{"int",     KF_INT},
+		{"long",    KF_LONG},
+		{"float",   KF_FLOAT},
+		{"double",  KF_DOUBLE},
+		{"vint",    KF_VINT},
+		{"vlong",   KF_VLONG},
+		{"text",    KF_TEXT},
+		{"bytes",   KF_BYTES},
+		{NULL,      KF_BOOLEAN}};
+
+// the descriptor of the running reduce task (like g_cmp_func, set once on init)
+static std::vector<key_field_t> g_key_fields;
+
+// compares the field at key1/key2 and advances both pointers past it
+static inline int field_compare(const key_field_t &field, char* &key1, char* &key2) {
+	int res, size1, size2;
+
+	switch (field.type) {
+	case KF_BOOLEAN:
+	case KF_BYTE:
+		res = (field.type == KF_BYTE) ? signed_byte_compare(key1, 1, key2, 1) : value_compare((uint8_t)key1[0], (uint8_t)key2[0]);
+		size1 = size2 = 1;
+		break;
+	case KF_SHORT:
+		res = short_compare(key1, 2, key2, 2);
+		size1 = size2 = 2;
+		break;
+	case KF_INT:
+		res = int_compare(key1, 4, key2, 4);
+		size1 = size2 = 4;
+		break;
+	case KF_LONG:
+		res = long_compare(key1, 8, key2, 8);
+		size1 = size2 = 8;
+		break;
+	case KF_FLOAT:
+		res = float_compare(key1, 4, key2, 4);
+		size1 = size2 = 4;
+		break;
+	case KF_DOUBLE:
+		res = double_compare(key1, 8, key2, 8);
+		size1 = size2 = 8;
+		break;
+	case KF_VINT:
+	case KF_VLONG:
+		res = value_compare(read_vlong(key1, size1), read_vlong(key2, size2));
+		break;
+	case KF_TEXT: {
+		int vsize1, vsize2;
+		int len1 = (int)read_vlong(key1, vsize1);
+		int len2 = (int)read_vlong(key2, vsize2);
+		res = byte_compare_inline(key1 + vsize1, len1, key2 + vsize2, len2);
+		size1 = vsize1 + len1;
+		size2 = vsize2 + len2;
+		break;
+	}
+	case KF_BYTES: {
+		int len1 = read_int(key1);
+		int len2 = read_int(key2);
+		res = byte_compare_inline(key1 + LENGTH_BYTES, len1, key2 + LENGTH_BYTES, len2);
+		size1 = LENGTH_BYTES + len1;
+		size2 = LENGTH_BYTES + len2;
+		break;
+	}
+	default:
+		res = size1 = size2 = 0;
+		break;
+	}
+
+	key1 += size1;
+	key2 += size2;
+	return field.descending ? -res : res;
+}
+
+static int composite_compare(char* key1, int len1, char* key2, int len2) {
+	for (size_t i = 0; i < g_key_fields.size(); ++i) {
+		int res = field_compare(g_key_fields[i], key1, key2);
+		if (res)
+			return res;
+	}
+	return 0;
+}
+
+/*
+ * descriptor: comma separated fields, each is a type name optionally followed by "desc", e.g. "text,long desc,vint"
+ * returns false on a malformed descriptor
+ */
+static bool parse_key_descriptor(const char* descriptor, std::vector<key_field_t> &fields) {
+	fields.clear();
+	std::string desc(descriptor);
+	size_t pos = 0;
+	while (pos <= desc.size()) {
+		size_t end = desc.find(',', pos);
+		if (end == std::string::npos)
+			end = desc.size();
+
+		// tokenize "type [asc|desc]"
+		std::vector<std::string> tokens;
+		std::string token;
+		for (size_t i = pos; i <= end; ++i) {
+			if (i == end || isspace(desc[i])) {
+				if (!token.empty())
+					tokens.push_back(token);
+				token.clear();
+			}
+			else {
+				token += tolower(desc[i]);
+			}
+		}
+
+		if (tokens.empty() || tokens.size() > 2 ||
+				(tokens.size() == 2 && tokens[1] != "asc" && tokens[1] != "desc")) {
+			log(lsERROR, "malformed field '%s' in key descriptor '%s'", desc.substr(pos, end - pos).c_str(), descriptor);
+			return false;
+		}
+
+		int i;
+		for (i = 0; KEY_FIELD_NAMES[i].name; ++i) {
+			if (tokens[0] == KEY_FIELD_NAMES[i].name)
+				break;
+		}
+		if (!KEY_FIELD_NAMES[i].name) {
+			log(lsERROR, "unknown field type '%s' in key descriptor '%s'", tokens[0].c_str(), descriptor);
+			return false;
+		}
+
+		key_field_t field;
+		field.type = KEY_FIELD_NAMES[i].type;
+		field.descending = (tokens.size() == 2 && tokens[1] == "desc");
+		fields.push_back(field);
+
+		pos = end + 1;
+	}
+	return !fields.empty();
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Normalized key prefixes - the first 8 bytes of a key's sort order as an unsigned integer, so most heap
+// comparisons of the merge are resolved without reading the keys (see BaseSegment::operator<).
+// Each prefix function must agree with its compare function: prefix(a) < prefix(b) implies compare(a, b) < 0.
+//
+#define PREFIX_SIGN_BIT (1ULL << 63)
+
+// big endian bytes, zero padded - shorter keys sort first on equal bytes, and the padding only causes ties
+static inline uint64_t bytes_prefix(const char* p, int len) {
+	if (len >= 8)
+		return (uint64_t)read_long(p);
+	uint64_t prefix = 0;
+	for (int i = 0; i < len; ++i)
+		prefix |= (uint64_t)(uint8_t)p[i] << (56 - 8 * i);
+	return prefix;
+}
+
+static inline uint64_t signed_prefix(int64_t val) {
+	return (uint64_t)val ^ PREFIX_SIGN_BIT;
+}
+
+// -0.0 equals 0.0 in Java's float comparators. NaN is unordered there (compares greater than anything from
+// both sides), here it sorts last
+static inline uint64_t floating_prefix(double val) {
+	if (val != val)
+		return ~(uint64_t)0;
+	if (val == 0)
+		val = 0;
+	union {double d; uint64_t l;} u;
+	u.d = val;
+	return (u.l & PREFIX_SIGN_BIT) ? ~u.l : (u.l | PREFIX_SIGN_BIT);
+}
+
+static uint64_t byte_prefix(char* key, int len) {
+	return bytes_prefix(key, len);
+}
+
+static uint64_t text_prefix(char* key, int len) {
+	int skip_bytes = StreamUtility::decodeVIntSize((int)(key[0]));
+	return bytes_prefix(key + skip_bytes, len - skip_bytes);
+}
+
+static uint64_t bytes_writable_prefix(char* key, int len) {
+	return bytes_prefix(key + LENGTH_BYTES, len - LENGTH_BYTES);
+}
+
+static uint64_t signed_byte_prefix(char* key, int len) { return signed_prefix((signed char)key[0]); }
+static uint64_t short_prefix(char* key, int len)       { return signed_prefix((int16_t)read_be(key, 2)); }
+static uint64_t int_prefix(char* key, int len)         { return signed_prefix(read_int(key)); }
+static uint64_t long_prefix(char* key, int len)        { return signed_prefix(read_long(key)); }
+static uint64_t float_prefix(char* key, int len)       { return floating_prefix(read_float(key)); }
+static uint64_t double_prefix(char* key, int len)      { return floating_prefix(read_double(key)); }
+
+static uint64_t vlong_prefix(char* key, int len) {
+	int size;
+	return signed_prefix(read_vlong(key, size));
+}
+
+// prefix of the first field; descending fields invert it
+static uint64_t composite_prefix(char* key, int len) {
+	const key_field_t &field = g_key_fields[0];
+	uint64_t prefix;
+	int size;
+
+	switch (field.type) {
+	case KF_BOOLEAN:
+		prefix = (uint8_t)key[0];
+		break;
+	case KF_BYTE:
+		prefix = signed_byte_prefix(key, len);
+		break;
+	case KF_SHORT:
+		prefix = short_prefix(key, len);
+		break;
+	case KF_INT:
+		prefix = int_prefix(key, len);
+		break;
+	case KF_LONG:
+		prefix = long_prefix(key, len);
+		break;
+	case KF_FLOAT:
+		prefix = float_prefix(key, len);
+		break;
+	case KF_DOUBLE:
+		prefix = double_prefix(key, len);
+		break;
+	case KF_VINT:
+	case KF_VLONG:
+		prefix = vlong_prefix(key, len);
+		break;
+	case KF_TEXT: {
+		int text_len = (int)read_vlong(key, size);
+		prefix = bytes_prefix(key + size, text_len);
+		break;
+	}
+	case KF_BYTES:
+		prefix = bytes_prefix(key + LENGTH_BYTES, read_int(key));
+		break;
+	default:
+		prefix = 0;
+		break;
+	}
+	return field.descending ? ~prefix : prefix;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Keys without native comparator - compared by the job's RawComparator in Java (UdaKeyComparator.java).
+// Each call crosses JNI, hence callers compare a key against a batch of keys per call.
+// Keys are copied into a direct buffer (native byte order):
+//   int results[n] | int len | key | n * (int len | key)
+//
+#define JAVA_CMP_BUF_INITIAL_SIZE (64 * 1024)
+
+typedef struct java_cmp_buf {
+	JNIEnv*  env;
+	jobject  jbuf;
+	char*    buf;
+	int      capacity;
+} java_cmp_buf_t;
+
+// one per merging thread (all are attached to the JVM by uda_thread_create), kept for the thread's life
+static __thread java_cmp_buf_t* t_java_cmp_buf = NULL;
+
+// releases the thread's buffer on thread exit; uda_thread_create has already detached
+// the thread by then, hence the global ref is released through UdaBridge
+static pthread_key_t java_cmp_buf_key;
+static pthread_once_t java_cmp_buf_key_once = PTHREAD_ONCE_INIT;
+
+static void free_java_cmp_buf(void* arg) {
+	java_cmp_buf_t* b = (java_cmp_buf_t*) arg;
+	UdaBridge_deleteGlobalRef(b->jbuf);
+	free(b->buf);
+	delete b;
+	t_java_cmp_buf = NULL;
+}
+
+static void create_java_cmp_buf_key() {
+	pthread_key_create(&java_cmp_buf_key, free_java_cmp_buf);
+}
+
+static java_cmp_buf_t* get_java_cmp_buf(int needed) {
+	java_cmp_buf_t* b = t_java_cmp_buf;
+	if (!b) {
+		pthread_once(&java_cmp_buf_key_once, create_java_cmp_buf_key);
+		b = new java_cmp_buf_t();
+		b->env = UdaBridge_threadGetEnv();
+		b->jbuf = NULL;
+		b->buf = NULL;
+		b->capacity = 0;
+		pthread_setspecific(java_cmp_buf_key, b);
+		t_java_cmp_buf = b;
+	}
+
+	if (b->capacity < needed) {
+		int capacity = (needed < JAVA_CMP_BUF_INITIAL_SIZE) ? JAVA_CMP_BUF_INITIAL_SIZE : needed * 2;
+		char* buf = (char*) malloc(capacity);
+		if (!buf) {
+			log(lsERROR, "failed to allocate %d bytes for java compare buffer", capacity);
+			throw new UdaException("failed to allocate java compare buffer");
+		}
+		jobject jbuf = b->env->NewDirectByteBuffer(buf, capacity);
+		jobject jbuf_ref = jbuf ? b->env->NewGlobalRef(jbuf) : NULL;
+		if (!jbuf_ref) {
+			log(lsERROR, "failed to register java compare buffer of %d bytes", capacity);
+			free(buf);
+			throw new UdaException("failed to register java compare buffer");
+		}
+		b->env->DeleteLocalRef(jbuf);
+
+		if (b->jbuf) {
+			b->env->DeleteGlobalRef(b->jbuf);
+			free(b->buf);
+		}
+		b->jbuf = jbuf_ref;
+		b->buf = buf;
+		b->capacity = capacity;
+	}
+	return b;
+}
+
+static void java_batch_compare(char* key, int len, char** keys, int* lens, int n, int* results) {
+	int needed = n * sizeof(int) + sizeof(int) + len;
+	for (int i = 0; i < n; ++i)
+		needed += sizeof(int) + lens[i];
+
+	java_cmp_buf_t* b = get_java_cmp_buf(needed);
+	char* p = b->buf + n * sizeof(int);
+	memcpy(p, &len, sizeof(int));
+	p += sizeof(int);
+	memcpy(p, key, len);
+	p += len;
+	for (int i = 0; i < n; ++i) {
+		memcpy(p, &lens[i], sizeof(int));
+		p += sizeof(int);
+		memcpy(p, keys[i], lens[i]);
+		p += lens[i];
+	}
+
+	UdaBridge_invoke_compareBatch_callback(b->env, b->jbuf, n, needed);
+	memcpy(results, b->buf, n * sizeof(int));
+}
+
+static int java_compare(char* key1, int len1, char* key2, int len2) {
+	int res;
+	java_batch_compare(key1, len1, &key2, &len2, 1, &res);
+	return res;
+}
+
+static hadoop_cmp_func get_native_compare_func(const char* java_comparator_type_name);
+
 ////////////////////////////////////////////////////////////////////////////////
 
-hadoop_cmp_func get_compare_func(const char* java_comparator_type_name) {
+hadoop_batch_cmp_func get_batch_compare_func(hadoop_cmp_func cmp_func) {
+	return (cmp_func == java_compare) ? java_batch_compare : NULL;
+}
+
+hadoop_prefix_func get_key_prefix_func(hadoop_cmp_func cmp_func) {
+	if (cmp_func == text_compare)          return text_prefix;
+	if (cmp_func == byte_compare)          return byte_prefix;
+	if (cmp_func == bytes_compare)         return bytes_writable_prefix;
+	if (cmp_func == signed_byte_compare)   return signed_byte_prefix;
+	if (cmp_func == short_compare)         return short_prefix;
+	if (cmp_func == int_compare)           return int_prefix;
+	if (cmp_func == long_compare)          return long_prefix;
+	if (cmp_func == float_compare)         return float_prefix;
+	if (cmp_func == double_compare)        return double_prefix;
+	if (cmp_func == vlong_compare)         return vlong_prefix;
+	if (cmp_func == composite_compare)     return composite_prefix;
+	return NULL;
+}
+
+hadoop_cmp_func get_compare_func(const char* java_comparator_type_name, const char* key_descriptor,
+                                 const char* compare_mode, const char* custom_comparator) {
+
+	bool use_java;
+	if (strcmp(compare_mode, "java") == 0) {
+		use_java = true;
+	}
+	else if (strcmp(compare_mode, "native") == 0 || strcmp(compare_mode, "auto") == 0) {
+		use_java = false;
+	}
+	else {
+		log(lsERROR, "unknown compare mode: '%s'", compare_mode);
+		throw new UdaException("unknown compare mode");
+	}
+
+	bool has_descriptor = (key_descriptor && *key_descriptor);
+	if (!use_java && strcmp(compare_mode, "auto") == 0 && !has_descriptor) {
+		if (custom_comparator && *custom_comparator) {
+			log(lsINFO, "job has custom key comparator %s - comparing keys in Java", custom_comparator);
+			use_java = true;
+		}
+		else if (!get_native_compare_func(java_comparator_type_name)) {
+			log(lsINFO, "no native comparator for %s - comparing keys in Java", java_comparator_type_name);
+			use_java = true;
+		}
+	}
+
+	if (use_java) {
+		log(lsDEBUG, "using Java RawComparator compare function (batches of up to %d keys)", BATCH_CMP_MAX_KEYS);
+		return java_compare;
+	}
+
+	if (has_descriptor) {
+		if (!parse_key_descriptor(key_descriptor, g_key_fields)) {
+			throw new UdaException("malformed key descriptor");
+		}
+		log(lsDEBUG, "using composite compare function for key '%s': %s (%d fields)", java_comparator_type_name, key_descriptor, (int)g_key_fields.size());
+		return composite_compare;
+	}
+
+	hadoop_cmp_func cmp_func = get_native_compare_func(java_comparator_type_name);
+	if (!cmp_func) {
+		log(lsERROR, "using compare function for unsupported type: '%s'", java_comparator_type_name);
+		throw new UdaException("using compare function for unsupported type");
+	}
+	return cmp_func;
+}
+
+// returns NULL for types without native compare function
+static hadoop_cmp_func get_native_compare_func(const char* java_comparator_type_name) {
 
 	if (str_in_array(java_comparator_type_name, TEXT_COMPARABLE)) {
 		log(lsDEBUG, "using Text compare function");
@@ -106,9 +622,37 @@ hadoop_cmp_func get_compare_func(const char* java_comparator_type_name) {
 		log(lsDEBUG, "using BytesWritable compare function");
 		return bytes_compare;
 	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.ByteWritable") == 0) {
+		log(lsDEBUG, "using signed byte compare function");
+		return signed_byte_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.ShortWritable") == 0) {
+		log(lsDEBUG, "using short compare function");
+		return short_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.IntWritable") == 0) {
+		log(lsDEBUG, "using int compare function");
+		return int_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.LongWritable") == 0) {
+		log(lsDEBUG, "using long compare function");
+		return long_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.FloatWritable") == 0) {
+		log(lsDEBUG, "using float compare function");
+		return float_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.DoubleWritable") == 0) {
+		log(lsDEBUG, "using double compare function");
+		return double_compare;
+	}
+	else if (strcmp(java_comparator_type_name, "org.apache.hadoop.io.VIntWritable") == 0 ||
+			strcmp(java_comparator_type_name, "org.apache.hadoop.io.VLongWritable") == 0) {
+		log(lsDEBUG, "using vint/vlong compare function");
+		return vlong_compare;
+	}
 	else {
-		log(lsERROR, "using compare function for unsupported type: '%s'", java_comparator_type_name);
-		throw new UdaException("using compare function for unsupported type");
+		return NULL;
 	}
 }
 
@@ -24,10 +24,44 @@
 
 typedef int (*hadoop_cmp_func)(char* key1, int len1, char* key2, int len2);
 
+// results[i] = compare(key, keys[i]) for i < n
+typedef void (*hadoop_batch_cmp_func)(char* key, int len, char** keys, int* lens, int n, int* results);
+
+// returns a normalized 8 byte prefix of key: prefix(a) < prefix(b) implies compare(a, b) < 0 (and > likewise).
+// equal prefixes tell nothing, and are resolved with the compare function
+typedef uint64_t (*hadoop_prefix_func)(char* key, int len);
+
+// max keys compared against one key per batch
+#define BATCH_CMP_MAX_KEYS (16)
+
 // compare function to be used during reducer mergeSort
 // set once on init_reduce_task according to Java's reducer's comparator type name
 extern hadoop_cmp_func g_cmp_func;
 
-hadoop_cmp_func get_compare_func(const char* java_comparator_type_name);
+// set together with g_cmp_func when each compare is expensive (Java comparator through JNI), otherwise NULL.
+// when set, merge queues batch their comparisons of a key
+extern hadoop_batch_cmp_func g_batch_cmp_func;
+
+// set together with g_cmp_func when it has a normalized key prefix, otherwise NULL.
+// segments cache the prefix of their current key, and compare keys with g_cmp_func only when the prefixes are equal
+extern hadoop_prefix_func g_key_prefix_func;
+
+// key_descriptor (mapred.rdma.key.descriptor) describes a composite key as comma separated fields, serialized
+// one after the other, each optionally followed by "desc": boolean, byte, short, int, long, float, double,
+// vint, vlong, text, bytes. e.g. "text,long desc". when set it takes precedence over the key type name.
+//
+// compare_mode (mapred.rdma.compare.mode):
+//   native - fail for keys without native comparator (the consumer falls back to vanilla)
+//   java   - always compare with the job's RawComparator through JNI
+//   auto   - native if possible, and java for other keys or for jobs with custom_comparator
+//            (mapred.output.key.comparator.class) that has no key descriptor
+hadoop_cmp_func get_compare_func(const char* java_comparator_type_name, const char* key_descriptor = NULL,
+                                 const char* compare_mode = "native", const char* custom_comparator = NULL);
+
+// returns the batched version of cmp_func if it has one that is worth batching, or NULL
+hadoop_batch_cmp_func get_batch_compare_func(hadoop_cmp_func cmp_func);
+
+// returns the normalized key prefix function matching cmp_func, or NULL if it has none (Java comparator)
+hadoop_prefix_func get_key_prefix_func(hadoop_cmp_func cmp_func);
 
 #endif
@@ -19,21 +19,34 @@
 
 #include "DecompressorWrapper.h"
 #include "StreamRW.h"
+#include <errno.h>
+#include <unistd.h>
+#include "UdaBridge.h"
+#include "ShuffleMemory.h"
 
 using namespace std;
 
 
 
-DecompressorWrapper::DecompressorWrapper(int port, reduce_task_t* reduce_t) : reduce_task (reduce_t), buffer(NULL)
+DecompressorWrapper::DecompressorWrapper(int port, reduce_task_t* reduce_t) : reduce_task (reduce_t), num_active(1), max_active(1)
 {
-    //allocating side buffer
+    //allocating a side buffer per worker
     int block_size = this->reduce_task->comp_block_size;
-    this->buffer = (char *) malloc(block_size * sizeof(char));
+    this->workers.resize(getPoolSize());
+    for (size_t i = 0; i < this->workers.size(); ++i) {
+        this->workers[i].wrapper = this;
+        this->workers[i].index = i;
+        this->workers[i].buffer = (char *) malloc(block_size * sizeof(char));
+    }
+    shuffle_mem_alloc(SHUFFLE_MEM_DECOMPRESS, (int64_t)block_size * this->workers.size());
 
     pthread_cond_init(&this->cond, NULL);
     pthread_mutex_init(&this->lock, NULL);
 
-    this->rdmaClient=new RdmaClient(port, this->reduce_task);
+    if (this->reduce_task->service_client)
+        this->rdmaClient = this->reduce_task->service_client; // fetches through the node's merger service
+    else
+        this->rdmaClient=new RdmaClient(port, this->reduce_task);
 
     memset(&this->decompress_thread, 0, sizeof(netlev_thread_t));
 	this->decompress_thread.stop = 0;
@@ -47,8 +60,11 @@ DecompressorWrapper::DecompressorWrapper(int port, reduce_task_t* reduce_t) : re
 
 DecompressorWrapper::~DecompressorWrapper()
 {
-	free(this->buffer);
-	this->buffer = NULL;
+	for (size_t i = 0; i < this->workers.size(); ++i) {
+		free(this->workers[i].buffer);
+		this->workers[i].buffer = NULL;
+	}
+	shuffle_mem_free(SHUFFLE_MEM_DECOMPRESS, (int64_t)this->reduce_task->comp_block_size * this->workers.size());
 	delete (this->rdmaClient);
 	this->rdmaClient = NULL;
 	pthread_mutex_destroy(&this->lock);
@@ -56,59 +72,121 @@ DecompressorWrapper::~DecompressorWrapper()
     log(lsDEBUG, "dtor DecompressorWrapper");
 }
 
+// mapred.rdma.decompress.threads workers, or when it is 0 one per core that is left to the merge thread,
+// but no more than the map outputs that can be decompressed at the same time
+int DecompressorWrapper::getPoolSize()
+{
+	int threads = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.decompress.threads", "0").c_str());
+	if (threads <= 0) {
+		long cores = sysconf(_SC_NPROCESSORS_ONLN);
+		threads = cores > 1 ? cores - 1 : 1;
+		if (threads > DECOMPRESS_MAX_THREADS)
+			threads = DECOMPRESS_MAX_THREADS;
+		if (threads > this->reduce_task->num_maps)
+			threads = this->reduce_task->num_maps;
+	}
+	if (threads < 1)
+		threads = 1;
+	log(lsINFO, "pool of up to %d decompression threads", threads);
+	return threads;
+}
 
 
-
-void DecompressorWrapper::copy_from_side_buffer_to_actual_buffer(mem_desc_t * dest, uint32_t length)
+void DecompressorWrapper::copy_from_side_buffer_to_actual_buffer(mem_desc_t * dest, const char *side_buffer, uint32_t length)
 {
 	//write in a single step
 	if (dest->end + length <= dest->buf_len){
-		memcpy(dest->buff + dest->end, this->buffer, length);
+		memcpy(dest->buff + dest->end, side_buffer, length);
 		dest->end += length;
 	}
 	//write in two steps
 	else
 	{
 		int size_copy_first_round = dest->buf_len - dest->end;
-		memcpy(dest->buff + dest->end, this->buffer, size_copy_first_round);
+		memcpy(dest->buff + dest->end, side_buffer, size_copy_first_round);
 		int size_copy_second_round = length - size_copy_first_round;
-		memcpy(dest->buff, this->buffer + size_copy_first_round, size_copy_second_round);
+		memcpy(dest->buff, side_buffer + size_copy_first_round, size_copy_second_round);
 		dest->end = size_copy_second_round;
 	}
 }
 
-/*static method */void *DecompressorWrapper::decompressMainThread(void* wrapper)
+/*static method */void *DecompressorWrapper::decompressMainThread(void* arg)
+{
+	decompress_worker_t *worker = (decompress_worker_t*)arg;
+	return worker->wrapper->decompressMainThread(worker);
+}
+
+// takes the first request whose map output is not being decompressed by another worker. called with lock held
+client_part_req_t *DecompressorWrapper::takeNextReq()
+{
+	for (list<client_part_req_t *>::iterator it = this->req_to_decompress.begin(); it != this->req_to_decompress.end(); ++it) {
+		client_part_req_t *req = *it;
+		if (!req->in_decompress) {
+			this->req_to_decompress.erase(it);
+			req->in_decompress = true;
+			return req;
+		}
+	}
+	return NULL;
+}
+
+// queues the request and wakes up a worker - adding one to the active workers if requests are waiting. called with lock held
+void DecompressorWrapper::pushReq(client_part_req_t *req)
 {
-	return ((DecompressorWrapper*)wrapper) -> decompressMainThread();
+	req->request_in_queue = true;
+	this->req_to_decompress.push_back(req);
+	if ((int)this->req_to_decompress.size() > this->num_active && this->num_active < (int)this->workers.size()) {
+		this->num_active++;
+		if (this->num_active > this->max_active)
+			this->max_active = this->num_active;
+		log(lsTRACE, "decompression workers: %d active", this->num_active);
+	}
+	pthread_cond_broadcast(&this->cond); //wakes up decompress threads
 }
 
-void *DecompressorWrapper::decompressMainThread()
+void *DecompressorWrapper::decompressMainThread(decompress_worker_t *worker)
 {
+	pthread_mutex_lock(&this->lock);
 	while (!this->decompress_thread.stop){
-		if (!this->req_to_decompress.empty()){
+		client_part_req_t *req = NULL;
+		if (worker->index < this->num_active)
+			req = takeNextReq();
 
-			pthread_mutex_lock(&this->lock);
-			client_part_req_t *req = this->req_to_decompress.front();
-			this->req_to_decompress.pop_front();
+		if (req){
 			pthread_mutex_unlock(&this->lock);
 
-			if (req){
-				// Here we do all the work!
-				handle1Req(req);
+			// Here we do all the work!
+			handle1Req(req, worker->buffer);
 
-				//send new rdma fetch request if necessary
-				handleNextRdmaFetch(req);
-			}
-		}
-		else{  // queue is empty => sleep...
+			//send new rdma fetch request if necessary
+			handleNextRdmaFetch(req);
 
 			pthread_mutex_lock(&this->lock);
-			if (this->req_to_decompress.empty()){
-				pthread_cond_wait(&this->cond, &this->lock);
+			req->in_decompress = false;
+			if (!this->req_to_decompress.empty())
+				pthread_cond_broadcast(&this->cond); // the request may wait for this worker
+		}
+		else if (worker->index > 0 && worker->index == this->num_active - 1) {
+			// the last active worker leaves the active part of the pool when it stays idle
+			struct timespec ts;
+			clock_gettime(CLOCK_REALTIME, &ts);
+			ts.tv_sec += DECOMPRESS_IDLE_MSEC / 1000;
+			ts.tv_nsec += (DECOMPRESS_IDLE_MSEC % 1000) * 1000000L;
+			if (ts.tv_nsec >= 1000000000L) {
+				ts.tv_sec++;
+				ts.tv_nsec -= 1000000000L;
 			}
-			pthread_mutex_unlock(&this->lock);
+			if (pthread_cond_timedwait(&this->cond, &this->lock, &ts) == ETIMEDOUT &&
+					worker->index == this->num_active - 1 && this->req_to_decompress.empty()) {
+				this->num_active--;
+				log(lsTRACE, "decompression workers: %d active", this->num_active);
+			}
+		}
+		else{  // queue is empty => sleep...
+			pthread_cond_wait(&this->cond, &this->lock);
 		}
 	}
+	pthread_mutex_unlock(&this->lock);
 
 	return 0;
 }
@@ -153,7 +231,7 @@ bool DecompressorWrapper::perliminaryCheck1Req(client_part_req_t *req)
 		/* checking if in the meanwhile rdma buffer was emptied. it is possible that 2 requests were entered to the queue and the first one
 					read the last compressed block
 		 */
-		if (rdma_mem_desc->buf_len - rdma_mem_desc->start - this->getBlockSizeOffset() < this->getNumCompressedBytes(rdma_mem_desc->buff + rdma_mem_desc->start)){
+		if (!isRdmaBlockReadyToRead(rdma_mem_desc)){
 			break;
 		}
 
@@ -165,11 +243,16 @@ bool DecompressorWrapper::perliminaryCheck1Req(client_part_req_t *req)
 	return ret;
 }
 
-void DecompressorWrapper::doDecompress(client_part_req_t *req)
+void DecompressorWrapper::doDecompress(client_part_req_t *req, char *side_buffer)
 {
 	mem_desc_t * rdma_mem_desc = req->mop->mop_bufs[0];
 	mem_desc_t * read_mem_desc = req->mop->mop_bufs[1]; // cyclic buffer
 
+	if (isStreamCodec()) {
+		doDecompressStream(req, side_buffer);
+		return;
+	}
+
 	//note that we should skip the bytes indicating the length of the block
 	decompressRetData_t next_block_length;
 	this->get_next_block_length(rdma_mem_desc->buff + rdma_mem_desc->start,&next_block_length);
@@ -182,9 +265,9 @@ void DecompressorWrapper::doDecompress(client_part_req_t *req)
 		read_mem_desc->end += retData.num_uncompressed_bytes;
 		log(lsTRACE, "mopid=%d, just decompressed %d bytes to actual buffer, start=%d, end=%d", req->mop->mop_id, retData.num_uncompressed_bytes, read_mem_desc->start,read_mem_desc->end);
 	}else{
-		this->decompress(rdma_mem_desc->buff + rdma_mem_desc->start + this->getBlockSizeOffset(),this->buffer,
+		this->decompress(rdma_mem_desc->buff + rdma_mem_desc->start + this->getBlockSizeOffset(),side_buffer,
 				next_block_length.num_compressed_bytes, next_block_length.num_uncompressed_bytes, 0,&retData);
-		copy_from_side_buffer_to_actual_buffer(read_mem_desc, retData.num_uncompressed_bytes);
+		copy_from_side_buffer_to_actual_buffer(read_mem_desc, side_buffer, retData.num_uncompressed_bytes);
 		log(lsTRACE, "mopid=%d, just copied %d bytes from side buffer to actual buffer, start=%d, end=%d", req->mop->mop_id, retData.num_uncompressed_bytes, read_mem_desc->start,read_mem_desc->end);
 	}
 	log(lsTRACE, "changing rdma start. mof=%d, old=%d, new=%d",req->mop->mop_id, rdma_mem_desc->start , rdma_mem_desc->start + retData.num_compressed_bytes + this->getBlockSizeOffset());
@@ -196,6 +279,35 @@ void DecompressorWrapper::doDecompress(client_part_req_t *req)
 	req->mop->fetched_len_uncompress += retData.num_uncompressed_bytes;
 }
 
+// stream codecs: decompresses up to a block of the map output's stream from the compressed bytes in the rdma buffer
+void DecompressorWrapper::doDecompressStream(client_part_req_t *req, char *side_buffer)
+{
+	mem_desc_t * rdma_mem_desc = req->mop->mop_bufs[0];
+	mem_desc_t * read_mem_desc = req->mop->mop_bufs[1]; // cyclic buffer
+
+	uint32_t available = rdma_mem_desc->end - rdma_mem_desc->start;
+	uint32_t room = this->reduce_task->comp_block_size; // checked for free space before
+	decompressRetData_t retData;
+	if (read_mem_desc->end + room <= read_mem_desc->buf_len){
+		this->decompressStream(req, rdma_mem_desc->buff + rdma_mem_desc->start, available, read_mem_desc->buff + read_mem_desc->end, room, &retData);
+		read_mem_desc->end += retData.num_uncompressed_bytes;
+	}else{
+		this->decompressStream(req, rdma_mem_desc->buff + rdma_mem_desc->start, available, side_buffer, room, &retData);
+		copy_from_side_buffer_to_actual_buffer(read_mem_desc, side_buffer, retData.num_uncompressed_bytes);
+	}
+	log(lsTRACE, "mopid=%d, consumed %d of %d compressed bytes into %d bytes, start=%d, end=%d", req->mop->mop_id, retData.num_compressed_bytes, available, retData.num_uncompressed_bytes, read_mem_desc->start, read_mem_desc->end);
+	rdma_mem_desc->incStartWithLock(retData.num_compressed_bytes);
+
+	req->mop->fetched_len_uncompress += retData.num_uncompressed_bytes;
+}
+
+/*virtual*/ void DecompressorWrapper::decompressStream(client_part_req_t *req, const char* /*compressed_buff*/, size_t /*compressed_buff_len*/,
+		char* /*uncompressed_buff*/, size_t /*uncompressed_buff_len*/, decompressRetData_t* /*retObj*/)
+{
+	log(lsERROR, "block codec can't decompress the stream of mop#%d", req->mop->mop_id);
+	throw new UdaException("stream decompression is not supported by this codec");
+}
+
 void DecompressorWrapper::handleNextRdmaFetch(client_part_req_t *req)
 {
 
@@ -210,15 +322,13 @@ void DecompressorWrapper::handleNextRdmaFetch(client_part_req_t *req)
 	}
 
 	// do we already have enough compressed data?
-	if (rdma_mem_desc->buf_len  > rdma_mem_desc->start + this->getBlockSizeOffset()) {
-		if (rdma_mem_desc->buf_len - rdma_mem_desc->start - this->getBlockSizeOffset() >= getNumCompressedBytes(rdma_mem_desc->buff + rdma_mem_desc->start)) {
-			req-> request_in_queue = false;
-			return;
-		}
+	if (isRdmaBlockReadyToRead(rdma_mem_desc)) {
+		req-> request_in_queue = false;
+		return;
 	}
 
 	// we need additional compressed data
-	int leftover_prevoius_block = rdma_mem_desc->buf_len - rdma_mem_desc->start;
+	int leftover_prevoius_block = rdma_mem_desc->end - rdma_mem_desc->start;
 	log(lsTRACE, "sending rdma request for mof=%d, leftover_prevoius_block=%d", req->mop->mop_id, leftover_prevoius_block);
 
 	{
@@ -229,17 +339,18 @@ void DecompressorWrapper::handleNextRdmaFetch(client_part_req_t *req)
 
 		//Move the leftover to the beginning of the rdma buffer
 		memmove (rdma_mem_desc->buff, rdma_mem_desc->buff + rdma_mem_desc->start, leftover_prevoius_block);
+		rdma_mem_desc->end = leftover_prevoius_block; // comp_fetch_req adds the fetched bytes
 
-		this->getRdmaClient()->start_fetch_req(req, rdma_mem_desc->buff + leftover_prevoius_block, rdma_mem_desc->buf_len - leftover_prevoius_block);
+		this->rdmaClient->start_fetch_req(req, rdma_mem_desc->buff + leftover_prevoius_block, rdma_mem_desc->buf_len - leftover_prevoius_block);
 	}
 }
 
 
-void DecompressorWrapper::handle1Req(client_part_req_t *req)
+void DecompressorWrapper::handle1Req(client_part_req_t *req, char *side_buffer)
 {
 	if (!perliminaryCheck1Req(req)) return;
 
-	doDecompress(req);
+	doDecompress(req, side_buffer);
 
 	req->mop->task->merge_man->mark_req_as_ready(req);
 	req->mop->fetch_count++;
@@ -250,8 +361,9 @@ void DecompressorWrapper::start_client(){
 
 	this->rdmaClient->start_client();
 
-	//start decompress thread
-	uda_thread_create(&this->decompress_thread.thread,&this->decompress_thread.attr,DecompressorWrapper::decompressMainThread, this);
+	//start decompress threads
+	for (size_t i = 0; i < this->workers.size(); ++i)
+		uda_thread_create(&this->workers[i].thread,&this->decompress_thread.attr,DecompressorWrapper::decompressMainThread, &this->workers[i]);
 
 	log(lsDEBUG, "start_client DecompressorWrapper");
 }
@@ -265,7 +377,9 @@ void DecompressorWrapper::stop_client()
 	pthread_cond_broadcast(&this->cond);
 	pthread_mutex_unlock(&this->lock);
 
-	pthread_join(this->decompress_thread.thread, NULL); log(lsDEBUG, "THREAD JOINED");
+	for (size_t i = 0; i < this->workers.size(); ++i)
+		pthread_join(this->workers[i].thread, NULL);
+	log(lsDEBUG, "THREADS JOINED - up to %d of %d decompression threads were active", this->max_active, (int)this->workers.size());
 
 	this->rdmaClient->stop_client();
 
@@ -275,7 +389,7 @@ void DecompressorWrapper::stop_client()
 
 
 RdmaClient* DecompressorWrapper::getRdmaClient(){
-	return (RdmaClient*)this->rdmaClient;
+	return this->rdmaClient->getRdmaClient();
 }
 
 //CODEREVIEW: consider splitting into 2 functions:
@@ -291,6 +405,8 @@ int DecompressorWrapper::start_fetch_req(client_part_req_t *req, char * buff, in
 	// and later calls will be after reading KVs and decompressor ++ it before notifying the Merger
 	if (!req->mop->fetched_len_rdma){
 		log(lsDEBUG, "this is the first fetch for this mop-id %d", req->mop->mop_id);
+		req->mop->mop_bufs[0]->start = 0;
+		req->mop->mop_bufs[0]->end = 0;
 		return rdmaClient->start_fetch_req(req, req->mop->mop_bufs[0]->buff, req->mop->mop_bufs[0]->buf_len);
 	}
 
@@ -314,11 +430,8 @@ int DecompressorWrapper::start_fetch_req(client_part_req_t *req, char * buff, in
 
 	//pushing the request to queue and waking up decompressor thread
 	pthread_mutex_lock(&this->lock);
-	if(!req->request_in_queue) {
-		req->request_in_queue = true;
-		this->req_to_decompress.push_back(req);
-	}
-	pthread_cond_broadcast(&this->cond); //wakes up decompress thread
+	if(!req->request_in_queue)
+		pushReq(req);
 	pthread_mutex_unlock(&this->lock);
 
 	return 0;
@@ -330,10 +443,10 @@ bool DecompressorWrapper::isRdmaBlockReadyToRead(mem_desc_t *buffer){
 	if (buffer->status != MERGE_READY)
 		return false;
 	//not enough data to read size of compressed and uncompressed data nums
-	if (buffer->start + getBlockSizeOffset() > buffer->buf_len)
+	if (buffer->start + getBlockSizeOffset() > buffer->end)
 		return false;
-	// not enough data to read all block
-	if (buffer->buf_len < buffer->start  + getNumCompressedBytes(buffer->buff + buffer->start) + getBlockSizeOffset())
+	// not enough data to read all block (stream codecs need one byte)
+	if (buffer->end < buffer->start  + getNumCompressedBytes(buffer->buff + buffer->start) + getBlockSizeOffset())
 		return false;
 
 	return true;
@@ -348,16 +461,15 @@ void DecompressorWrapper::comp_fetch_req(client_part_req_t *req)
 	mem_desc_t *rdmaBuffer = req->mop->mop_bufs[0];
 	rdmaBuffer->start = 0;//CODEREVIEW: is this is the place or it should be in the RDMA fetching
 	req->mop->task->merge_man->update_fetch_req(req);
+	rdmaBuffer->end += req->mop->last_fetched; // compressed bytes in the rdma buffer
 
 	if(!req->request_in_queue){
 		if (req->mop->getFreeBytes() >= req->mop->task->comp_block_size ){
 			log(lsTRACE, "comp_fetch_req, mof=%d, req->mop->getFreeBytes()=%d", req->mop->mop_id, (int)req->mop->getFreeBytes());
 			pthread_mutex_lock(&this->lock);
-				req->request_in_queue = true;
 				rdmaBuffer->status=MERGE_READY;
 				log(lsTRACE, "pushing comp_fetch mof=%d",req->mop->mop_id);
-				this->req_to_decompress.push_back(req);
-			pthread_cond_broadcast(&this->cond); //wakes up decompress thread
+				pushReq(req);
 			pthread_mutex_unlock(&this->lock);
 
 		}else
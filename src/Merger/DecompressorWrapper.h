@@ -18,6 +18,7 @@
 */
 #include "../DataNet/RDMAClient.h"
 #include <dlfcn.h>
+#include <vector>
 #include <UdaUtil.h>
 
 #ifndef DC_H
@@ -28,6 +29,18 @@ typedef struct decompressRetData {
 	    uint32_t   num_compressed_bytes;
 } decompressRetData_t;
 
+#define DECOMPRESS_MAX_THREADS (16) // upper bound of the automatically sized worker pool
+#define DECOMPRESS_IDLE_MSEC (200) // an idle worker leaves the active part of the pool after this time
+
+class DecompressorWrapper;
+
+typedef struct decompress_worker {
+	DecompressorWrapper *wrapper;
+	int                  index;
+	pthread_t            thread;
+	char                *buffer; //this is the side buffer to where the data is temporarily decompressed
+} decompress_worker_t;
+
 class DecompressorWrapper : public InputClient
 {
 
@@ -46,34 +59,54 @@ public:
 
     pthread_cond_t		 cond;
     pthread_mutex_t      lock;
-    netlev_thread_t      decompress_thread;
+    netlev_thread_t      decompress_thread; // attributes and stop flag of the worker pool
 
 
 
 protected:
 
+	virtual uint32_t getBlockSizeOffset() = 0; //For LZO/snappy will return the number of bytes of the block length. for non block alg's will return 0
 	virtual void initDecompress() = 0;
 	void* loadSymbolWrapper(void *handle, const char* symbol);
 	InputClient *rdmaClient;
 
+	/*
+	 * stream codecs (zlib, zstd) have no block framing: a map output is one compressed stream.
+	 * decompresses from the compressed bytes available into uncompressed_buff and returns the bytes consumed and
+	 * produced. the state of the stream is kept in req->decompress_stream. only called when getBlockSizeOffset() is 0
+	 */
+	virtual void decompressStream(client_part_req_t *req, const char* compressed_buff, size_t compressed_buff_len, char* uncompressed_buff, size_t uncompressed_buff_len, decompressRetData_t* retObj);
+	bool isStreamCodec() {return getBlockSizeOffset() == 0;}
+
 private:
 
-	void *decompressMainThread();
-	void handle1Req(client_part_req_t *req);
+	void *decompressMainThread(decompress_worker_t *worker);
+	client_part_req_t *takeNextReq();
+	void pushReq(client_part_req_t *req);
+	void handle1Req(client_part_req_t *req, char *side_buffer);
 	bool perliminaryCheck1Req(client_part_req_t *req);
-	void doDecompress(client_part_req_t *req);
+	void doDecompress(client_part_req_t *req, char *side_buffer);
+	void doDecompressStream(client_part_req_t *req, char *side_buffer);
 	void handleNextRdmaFetch(client_part_req_t *req);
-	void copy_from_side_buffer_to_actual_buffer(mem_desc_t * dest, uint32_t length);
-	virtual uint32_t getBlockSizeOffset() = 0; //For LZO/snappy will return the number of bytes of the block length. for non block alg's will return 0
+	void copy_from_side_buffer_to_actual_buffer(mem_desc_t * dest, const char *side_buffer, uint32_t length);
+	int  getPoolSize();
 	virtual void get_next_block_length(char* buf, decompressRetData_t* retObj) = 0; //should be implemented in deriving class since different for block and non block
 	virtual  void decompress(const char* compressed_buff, char* uncompressed_buff, size_t compressed_buff_len, size_t uncompressed_buff_len, int offest, decompressRetData_t* retObj)=0;
 	bool isRdmaBlockReadyToRead(mem_desc_t *buffer);
 	virtual uint32_t getNumCompressedBytes(char* buf)=0;
 	virtual uint32_t getNumUncompressedBytes(char* buf)=0;
 
+	/*
+	 * pool of decompression workers. a request - one map output - is taken by one worker at a time,
+	 * so the blocks of a map output are decompressed in order. only the first num_active workers take
+	 * requests: a worker is added while requests wait for a worker, and the last one leaves after it
+	 * was idle for DECOMPRESS_IDLE_MSEC, so the pool follows the rate the merge consumes data.
+	 */
 	list<client_part_req_t *>    req_to_decompress;
 	reduce_task_t* 				reduce_task;
-	char* buffer; //this is the side buffer to where the data is temporarily decompressed
+	vector<decompress_worker_t>  workers;
+	int                          num_active;
+	int                          max_active; // highest num_active so far
 };
 
 #endif
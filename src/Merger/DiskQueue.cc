@@ -0,0 +1,481 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#include <sys/statvfs.h>
+#include "DiskQueue.h"
+#include "ShuffleMemory.h"
+#include <UdaUtil.h>
+
+using namespace std;
+
+////////////////////////////////////////////////////////////////////////////////
+DiskQueue::DiskQueue(const string &_name, int depth, int _stream_buffers) :
+    name(_name), stream_buffers(_stream_buffers), bytes_read(0), bytes_written(0), _stopped(false)
+{
+    pthread_mutex_init(&_lock, NULL);
+    pthread_cond_init(&_cond, NULL);
+    pthread_cond_init(&_done_cond, NULL);
+
+    _threads.resize(depth);
+    for (int i = 0; i < depth; ++i)
+        uda_thread_create(&_threads[i], NULL, io_thread_start, this);
+}
+
+DiskQueue::~DiskQueue()
+{
+    pthread_mutex_lock(&_lock);
+    _stopped = true;
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+    for (size_t i = 0; i < _threads.size(); ++i)
+        pthread_join(_threads[i], NULL);
+
+    pthread_cond_destroy(&_done_cond);
+    pthread_cond_destroy(&_cond);
+    pthread_mutex_destroy(&_lock);
+}
+
+void DiskQueue::submit(disk_request_t *req)
+{
+    req->done = false;
+    req->pending = true;
+    pthread_mutex_lock(&_lock);
+    _requests.push_back(req);
+    pthread_cond_signal(&_cond);
+    pthread_mutex_unlock(&_lock);
+}
+
+void DiskQueue::wait(disk_request_t *req)
+{
+    pthread_mutex_lock(&_lock);
+    while (!req->done)
+        pthread_cond_wait(&_done_cond, &_lock);
+    pthread_mutex_unlock(&_lock);
+    req->pending = false;
+}
+
+/*static*/ void *DiskQueue::io_thread_start(void *context)
+{
+    ((DiskQueue*)context)->io_loop();
+    return NULL;
+}
+
+void DiskQueue::io_loop()
+{
+    pthread_mutex_lock(&_lock);
+    while (true) {
+        while (_requests.empty() && !_stopped)
+            pthread_cond_wait(&_cond, &_lock);
+        if (_requests.empty()) // stopped
+            break;
+        disk_request_t *req = _requests.front();
+        _requests.pop_front();
+        pthread_mutex_unlock(&_lock);
+
+        int32_t done = 0;
+        int err = 0;
+        while (done < req->len) {
+            ssize_t rc = req->write ?
+                    pwrite(req->fd, req->buf + done, req->len - done, req->offset + done) :
+                    pread(req->fd, req->buf + done, req->len - done, req->offset + done);
+            if (rc < 0) {
+                if (errno == EINTR)
+                    continue;
+                err = errno;
+                break;
+            }
+            if (rc == 0) // EOF
+                break;
+            done += rc;
+        }
+        if (req->write)
+            __sync_fetch_and_add(&bytes_written, (int64_t)done);
+        else
+            __sync_fetch_and_add(&bytes_read, (int64_t)done);
+
+        pthread_mutex_lock(&_lock);
+        req->result = err ? -1 : done;
+        req->err = err;
+        req->done = true;
+        pthread_cond_broadcast(&_done_cond);
+    }
+    pthread_mutex_unlock(&_lock);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+DiskQueues::DiskQueues(const vector<string> &local_dirs, int depth, int stream_buffers, spill_placement_t placement) :
+    _dirs(local_dirs), _next_disk(0), _placement(placement)
+{
+    pthread_mutex_init(&_lock, NULL);
+    if (depth < 1)
+        depth = 1;
+    if (stream_buffers < 1)
+        stream_buffers = 1;
+
+    for (size_t i = 0; i < _dirs.size(); ++i) {
+        struct stat st;
+        dev_t dev = (stat(_dirs[i].c_str(), &st) == 0) ? st.st_dev : (dev_t)-1 - i; // unknown: a disk of its own
+        size_t disk;
+        for (disk = 0; disk < _devs.size() && _devs[disk] != dev; ++disk)
+            ;
+        if (disk == _devs.size()) {
+            _devs.push_back(dev);
+            _disks.push_back(new DiskQueue(_dirs[i], depth, stream_buffers));
+            _next_dir_of_disk.push_back(0);
+        }
+        _dir_disk.push_back(disk);
+    }
+    if (_disks.empty()) { // no local dirs - spills go to the working directory
+        _dirs.push_back(".");
+        _dir_disk.push_back(0);
+        _devs.push_back((dev_t)-1);
+        _disks.push_back(new DiskQueue(".", depth, stream_buffers));
+        _next_dir_of_disk.push_back(0);
+    }
+    _next_disk = rand() % _disks.size(); // reducers of the node start on different disks
+
+    log(lsINFO, "%d local dirs on %d disks: queue depth=%d, stream buffers=%d x %dKB, placement=%s",
+        (int)_dirs.size(), (int)_disks.size(), depth, stream_buffers, DISK_IO_CHUNK_SIZE / 1024,
+        placement == PLACE_FREE_SPACE ? "free_space" : "round_robin");
+}
+
+DiskQueues::~DiskQueues()
+{
+    for (size_t i = 0; i < _disks.size(); ++i)
+        delete _disks[i];
+    pthread_mutex_destroy(&_lock);
+}
+
+string DiskQueues::next_dir()
+{
+    pthread_mutex_lock(&_lock);
+    int dir = -1;
+    if (_placement == PLACE_FREE_SPACE) {
+        uint64_t max_free = 0;
+        for (size_t n = 0; n < _dirs.size(); ++n) {
+            size_t i = (_next_disk + n) % _dirs.size(); // ties go round robin
+            struct statvfs vfs;
+            if (statvfs(_dirs[i].c_str(), &vfs) != 0)
+                continue;
+            uint64_t free_bytes = (uint64_t)vfs.f_bavail * vfs.f_frsize;
+            if (dir < 0 || free_bytes > max_free) {
+                max_free = free_bytes;
+                dir = i;
+            }
+        }
+        _next_disk++;
+    }
+    if (dir < 0) { // round robin over the disks, and over the dirs of each disk
+        int disk = _next_disk++ % _disks.size();
+        int nth = _next_dir_of_disk[disk]++;
+        int count = 0;
+        for (size_t i = 0; i < _dirs.size(); ++i)
+            count += (_dir_disk[i] == disk);
+        nth %= count;
+        for (size_t i = 0; dir < 0; ++i) {
+            if (_dir_disk[i] == disk && nth-- == 0)
+                dir = i;
+        }
+    }
+    string ret = _dirs[dir];
+    pthread_mutex_unlock(&_lock);
+    return ret;
+}
+
+DiskQueue *DiskQueues::queue_of(const string &path)
+{
+    for (size_t i = 0; i < _dirs.size(); ++i) {
+        if (path.compare(0, _dirs[i].size(), _dirs[i]) == 0 && path.size() > _dirs[i].size() && path[_dirs[i].size()] == '/')
+            return _disks[_dir_disk[i]];
+    }
+    struct stat st;
+    if (stat(path.c_str(), &st) == 0) {
+        for (size_t disk = 0; disk < _devs.size(); ++disk) {
+            if (_devs[disk] == st.st_dev)
+                return _disks[disk];
+        }
+    }
+    return _disks[0];
+}
+
+void DiskQueues::log_stats()
+{
+    for (size_t i = 0; i < _disks.size(); ++i) {
+        log(lsINFO, "spill disk %s: written=%lld read=%lld", _disks[i]->name.c_str(),
+            (long long)_disks[i]->bytes_written, (long long)_disks[i]->bytes_read);
+    }
+}
+
+/*static*/ spill_placement_t DiskQueues::get_placement(const char *name)
+{
+    if (strcmp(name, "round_robin") == 0)
+        return PLACE_ROUND_ROBIN;
+    if (strcmp(name, "free_space") == 0)
+        return PLACE_FREE_SPACE;
+    log(lsERROR, "unknown LPQ spill placement: '%s' (expected round_robin or free_space)", name);
+    throw new UdaException("unknown LPQ spill placement");
+}
+
+////////////////////////////////////////////////////////////////////////////////
+DiskOutStream::DiskOutStream(DiskQueue *disk, int fd) :
+    _disk(disk), _fd(fd), _reqs(disk->stream_buffers), _cur(0), _offset(0)
+{
+    for (size_t i = 0; i < _reqs.size(); ++i) {
+        memset(&_reqs[i], 0, sizeof(disk_request_t));
+        _reqs[i].fd = fd;
+        _reqs[i].write = true;
+        _reqs[i].buf = (char*)malloc(DISK_IO_CHUNK_SIZE);
+        if (!_reqs[i].buf) {
+            log(lsERROR, "failed to allocate %d bytes for spill write buffer", DISK_IO_CHUNK_SIZE);
+            throw new UdaException("failed to allocate spill write buffer");
+        }
+        shuffle_mem_alloc(SHUFFLE_MEM_LPQ, DISK_IO_CHUNK_SIZE);
+    }
+}
+
+DiskOutStream::~DiskOutStream()
+{
+    for (size_t i = 0; i < _reqs.size(); ++i) {
+        if (_reqs[i].pending)
+            _disk->wait(&_reqs[i]);
+        free(_reqs[i].buf);
+    }
+    shuffle_mem_free(SHUFFLE_MEM_LPQ, (int64_t)DISK_IO_CHUNK_SIZE * _reqs.size());
+}
+
+void DiskOutStream::wait_request(disk_request_t *req)
+{
+    _disk->wait(req);
+    if (req->result != req->len) {
+        errno = req->err;
+        log(lsERROR, "failed to write spill file on disk %s: wrote %d of %d bytes at offset %lld (%m)",
+            _disk->name.c_str(), req->result, req->len, (long long)req->offset);
+        throw new UdaException("failed to write spill file");
+    }
+}
+
+void DiskOutStream::submit_current()
+{
+    disk_request_t *req = &_reqs[_cur];
+    req->offset = _offset;
+    _offset += req->len;
+    _disk->submit(req);
+
+    _cur = (_cur + 1) % _reqs.size();
+    if (_reqs[_cur].pending)
+        wait_request(&_reqs[_cur]);
+    _reqs[_cur].len = 0;
+}
+
+size_t DiskOutStream::write(const void *buf, size_t len)
+{
+    const char *src = (const char*)buf;
+    while (len > 0) {
+        disk_request_t *req = &_reqs[_cur];
+        size_t n = DISK_IO_CHUNK_SIZE - req->len;
+        if (n > len)
+            n = len;
+        memcpy(req->buf + req->len, src, n);
+        req->len += n;
+        src += n;
+        len -= n;
+        if (req->len == DISK_IO_CHUNK_SIZE)
+            submit_current();
+    }
+    return 1; // as fwrite of FileStream
+}
+
+void DiskOutStream::flush()
+{
+    if (_reqs[_cur].len > 0)
+        submit_current();
+    for (size_t i = 0; i < _reqs.size(); ++i) {
+        if (_reqs[i].pending)
+            wait_request(&_reqs[i]);
+    }
+}
+
+bool DiskOutStream::close()
+{
+    flush();
+    return true;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+DiskInStream::DiskInStream(DiskQueue *disk, int fd) :
+    _disk(disk), _fd(fd), _length(0), _cur(0), _cur_valid(false), _pos(0), _next_offset(0), _start_offset(0)
+{
+    struct stat st;
+    if (fstat(fd, &st) != 0) {
+        log(lsERROR, "failed to stat spill file on disk %s (%m)", disk->name.c_str());
+        throw new UdaException("failed to stat spill file");
+    }
+    _length = st.st_size;
+}
+
+DiskInStream::~DiskInStream()
+{
+    wait_all();
+    for (size_t i = 0; i < _reqs.size(); ++i)
+        free(_reqs[i].buf);
+    shuffle_mem_free(SHUFFLE_MEM_LPQ, (int64_t)DISK_IO_CHUNK_SIZE * _reqs.size());
+}
+
+void DiskInStream::wait_all()
+{
+    for (size_t i = 0; i < _reqs.size(); ++i) {
+        if (_reqs[i].pending)
+            _disk->wait(&_reqs[i]);
+    }
+}
+
+// requests the chunks from offset on, in ring order starting at the first buffer
+void DiskInStream::start(int64_t offset)
+{
+    if (_reqs.empty()) {
+        _reqs.resize(_disk->stream_buffers);
+        for (size_t i = 0; i < _reqs.size(); ++i) {
+            memset(&_reqs[i], 0, sizeof(disk_request_t));
+            _reqs[i].fd = _fd;
+            _reqs[i].write = false;
+            _reqs[i].buf = (char*)malloc(DISK_IO_CHUNK_SIZE);
+            if (!_reqs[i].buf) {
+                log(lsERROR, "failed to allocate %d bytes for spill read-ahead buffer", DISK_IO_CHUNK_SIZE);
+                throw new UdaException("failed to allocate spill read-ahead buffer");
+            }
+            shuffle_mem_alloc(SHUFFLE_MEM_LPQ, DISK_IO_CHUNK_SIZE);
+        }
+    }
+    wait_all();
+
+    _next_offset = offset;
+    for (size_t i = 0; i < _reqs.size() && _next_offset < _length; ++i) {
+        _reqs[i].offset = _next_offset;
+        _reqs[i].len = (_length - _next_offset < DISK_IO_CHUNK_SIZE) ? _length - _next_offset : DISK_IO_CHUNK_SIZE;
+        _disk->submit(&_reqs[i]);
+        _next_offset += _reqs[i].len;
+    }
+    _cur = 0;
+    _cur_valid = false;
+    _pos = 0;
+}
+
+void DiskInStream::next_chunk()
+{
+    if (_reqs.empty()) {
+        start(_start_offset);
+    }
+    else if (_cur_valid) {
+        // the consumed chunk's buffer requests the chunk after the last requested one
+        disk_request_t *req = &_reqs[_cur];
+        if (_next_offset < _length) {
+            req->offset = _next_offset;
+            req->len = (_length - _next_offset < DISK_IO_CHUNK_SIZE) ? _length - _next_offset : DISK_IO_CHUNK_SIZE;
+            _disk->submit(req);
+            _next_offset += req->len;
+        }
+        _cur = (_cur + 1) % _reqs.size();
+        _cur_valid = false;
+    }
+
+    disk_request_t *req = &_reqs[_cur];
+    if (!req->pending) {
+        throw new UdaException("DiskInStream: read EOF on file");
+    }
+    _disk->wait(req);
+    if (req->result != req->len) {
+        errno = req->err;
+        log(lsERROR, "failed to read spill file on disk %s: read %d of %d bytes at offset %lld (%m)",
+            _disk->name.c_str(), req->result, req->len, (long long)req->offset);
+        throw new UdaException("DiskInStream: read ERROR on file");
+    }
+    _cur_valid = true;
+    _pos = 0;
+}
+
+size_t DiskInStream::read(void *des, const size_t len, const char *extrasrc, size_t size, int &idx)
+{
+    throw new UdaException("DiskInStream: read from two srcs not supported");
+    return -1;
+}
+
+size_t DiskInStream::read(void *buf, size_t len)
+{
+    char *dest = (char*)buf;
+    while (len > 0) {
+        if (!_cur_valid || _pos == _reqs[_cur].len)
+            next_chunk();
+        size_t n = _reqs[_cur].len - _pos;
+        if (n > len)
+            n = len;
+        memcpy(dest, _reqs[_cur].buf + _pos, n);
+        _pos += n;
+        dest += n;
+        len -= n;
+    }
+    return 1; // as fread of FileStream
+}
+
+size_t DiskInStream::rewind(size_t nbytes)
+{
+    if (!_cur_valid || nbytes > (size_t)_pos)
+        throw new UdaException("DiskInStream: rewind beyond chunk not supported");
+    _pos -= nbytes;
+    return nbytes;
+}
+
+size_t DiskInStream::skip(size_t nbytes)
+{
+    int64_t position = _cur_valid ? _reqs[_cur].offset + _pos : _start_offset;
+    return seek(position + nbytes) ? nbytes : -1;
+}
+
+bool DiskInStream::hasMore(size_t nbytes)
+{
+    int64_t position = _cur_valid ? _reqs[_cur].offset + _pos : _start_offset;
+    return position + (int64_t)nbytes <= _length;
+}
+
+bool DiskInStream::seek(int64_t offset)
+{
+    if (offset < 0 || offset > _length)
+        return false;
+    if (_cur_valid && offset >= _reqs[_cur].offset && offset <= _reqs[_cur].offset + _reqs[_cur].len) {
+        _pos = offset - _reqs[_cur].offset;
+        return true;
+    }
+    _start_offset = offset;
+    if (!_reqs.empty())
+        start(offset);
+    return true;
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
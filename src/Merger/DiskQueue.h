@@ -0,0 +1,182 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef DISK_QUEUE_H
+#define DISK_QUEUE_H 1
+
+#include <pthread.h>
+#include <sys/types.h>
+#include <string>
+#include <vector>
+#include <list>
+#include "IOUtility.h"
+
+#define DISK_IO_CHUNK_SIZE (256 * 1024) // bytes of one read/write request of the spill streams
+
+enum spill_placement_t {
+    PLACE_ROUND_ROBIN, /* LPQ spills go to the disks in turn */
+    PLACE_FREE_SPACE   /* to the local dir with the most free space */
+};
+
+typedef struct disk_request {
+    int         fd;
+    bool        write;
+    int64_t     offset;
+    char       *buf;
+    int32_t     len;
+    int32_t     result;  /* bytes read/written, -1 on error (errno in err) */
+    int         err;
+    bool        done;
+    bool        pending; /* submitted and not waited for yet */
+} disk_request_t;
+
+/*
+ * I/O requests of the spill files of one disk, served in order by the disk's own threads.
+ * The number of threads is the disk's queue depth (mapred.rdma.spill.disk.queue.depth).
+ */
+class DiskQueue
+{
+public:
+    DiskQueue(const std::string &name, int depth, int stream_buffers);
+    ~DiskQueue();
+
+    void submit(disk_request_t *req);
+    /* returns once req is done */
+    void wait(disk_request_t *req);
+
+    const std::string   name;           /* first local dir of the disk */
+    const int           stream_buffers; /* write-behind/read-ahead chunks of each stream on this disk */
+    volatile int64_t    bytes_read;
+    volatile int64_t    bytes_written;
+
+private:
+    static void *io_thread_start(void *context);
+    void io_loop();
+
+    pthread_mutex_t             _lock;
+    pthread_cond_t              _cond;      /* new requests */
+    pthread_cond_t              _done_cond; /* completed requests */
+    std::list<disk_request_t*>  _requests;
+    std::vector<pthread_t>      _threads;
+    bool                        _stopped;
+};
+
+/*
+ * The local dirs of the reduce task grouped by disk (device), one DiskQueue per disk.
+ * Places the LPQ spill files across the disks.
+ */
+class DiskQueues
+{
+public:
+    DiskQueues(const std::vector<std::string> &local_dirs, int depth, int stream_buffers, spill_placement_t placement);
+    ~DiskQueues();
+
+    /* the local dir for the next spill file */
+    std::string next_dir();
+
+    /* the queue of the disk that holds path (a file in one of the local dirs) */
+    DiskQueue *queue_of(const std::string &path);
+
+    void log_stats();
+
+    static spill_placement_t get_placement(const char *name);
+
+private:
+    std::vector<std::string>    _dirs;
+    std::vector<int>            _dir_disk;  /* disk of each dir */
+    std::vector<dev_t>          _devs;      /* device of each disk */
+    std::vector<DiskQueue*>     _disks;
+    std::vector<int>            _next_dir_of_disk;
+    int                         _next_disk;
+    spill_placement_t           _placement;
+    pthread_mutex_t             _lock;
+};
+
+/*
+ * Writes a file in chunks on its disk's queue, while the caller produces the next chunks.
+ */
+class DiskOutStream : public OutStream
+{
+public:
+    /* fd is not owned */
+    DiskOutStream(DiskQueue *disk, int fd);
+    virtual ~DiskOutStream();
+
+    size_t write(const void *buf, size_t len);
+    void   flush(); /* writes the pending chunk and waits for all writes */
+    bool   close();
+
+private:
+    void submit_current();
+    void wait_request(disk_request_t *req);
+
+    DiskQueue                  *_disk;
+    int                         _fd;
+    std::vector<disk_request_t> _reqs;
+    int                         _cur;     /* chunk being filled */
+    int64_t                     _offset;  /* file offset of the chunk being filled */
+};
+
+/*
+ * Reads a file in chunks on its disk's queue, stream_buffers chunks ahead of the reader.
+ * Buffers are allocated on the first read, so opened but idle streams hold no memory.
+ */
+class DiskInStream : public InStream
+{
+public:
+    /* fd is not owned */
+    DiskInStream(DiskQueue *disk, int fd);
+    virtual ~DiskInStream();
+
+    size_t read(void *des, const size_t len, const char *extrasrc, size_t size, int &idx);
+    size_t read(void *buf, size_t len);
+    size_t rewind(size_t nbytes); /* within the current chunk */
+    size_t skip(size_t nbytes);
+    bool   hasMore(size_t nbytes);
+    bool   close() {return true;}
+
+    bool    seek(int64_t offset);
+    int64_t length() {return _length;}
+
+private:
+    void start(int64_t offset);
+    void next_chunk();
+    void wait_all();
+
+    DiskQueue                  *_disk;
+    int                         _fd;
+    int64_t                     _length;
+    std::vector<disk_request_t> _reqs;
+    int                         _cur;        /* chunk being read */
+    bool                        _cur_valid;
+    int32_t                     _pos;        /* position in the current chunk */
+    int64_t                     _next_offset;/* file offset of the next chunk to request */
+    int64_t                     _start_offset; /* position before the first read */
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
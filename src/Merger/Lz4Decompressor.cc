@@ -0,0 +1,72 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include "Lz4Decompressor.h"
+
+Lz4Decompressor::Lz4Decompressor(int port, reduce_task_t* reduce_task) :
+		DecompressorWrapper(port, reduce_task), liblz4(NULL), decompressor_func_ptr(NULL) {
+	log(lsTRACE, "Lz4Decompressor CONSTRACTOR");
+	initDecompress();
+}
+
+Lz4Decompressor::~Lz4Decompressor() {}
+
+/**
+ * loads lz4 library
+ */
+void Lz4Decompressor::initDecompress() {
+	liblz4 = dlopen(HADOOP_LZ4_LIBRARY, RTLD_LAZY | RTLD_GLOBAL);
+	if (!liblz4) {
+		log(lsERROR, "Error loading lz4 library ,%s", dlerror());
+		throw new UdaException("Error loading lz4 library");
+	}
+	decompressor_func_ptr = (int (*)(const char*, char*, int, int))loadSymbolWrapper(liblz4, "LZ4_decompress_safe");
+}
+
+void Lz4Decompressor::decompress(const char* compressed_buff,
+		char* uncompressed_buff, size_t compressed_buff_len,
+		size_t uncompressed_buff_len, int /* offest - not in use for lz4 */,
+		decompressRetData_t* retObj) {
+
+	int rc = decompressor_func_ptr(compressed_buff, uncompressed_buff, (int)compressed_buff_len, (int)uncompressed_buff_len);
+	if (rc < 0 || (size_t)rc != uncompressed_buff_len) {
+		log(lsERROR, "Error=%d in lz4 decompress function, expected %d bytes", rc, (int)uncompressed_buff_len);
+		throw new UdaException("Error in lz4 decompress function");
+	}
+	retObj->num_compressed_bytes = compressed_buff_len;
+	retObj->num_uncompressed_bytes = rc;
+}
+
+void Lz4Decompressor::get_next_block_length(char* buf, decompressRetData_t* retObj) {
+	uint32_t *tmp = (uint32_t*) buf;
+	retObj->num_uncompressed_bytes = ntohl(tmp[0]);
+	retObj->num_compressed_bytes = ntohl(tmp[1]);
+}
+
+uint32_t Lz4Decompressor::getNumCompressedBytes(char* buf) {
+	return ntohl(((uint32_t*) buf)[1]);
+}
+
+uint32_t Lz4Decompressor::getNumUncompressedBytes(char* buf) {
+	return ntohl(((uint32_t*) buf)[0]);
+}
+
+uint32_t Lz4Decompressor::getBlockSizeOffset() {
+	return 8;
+}
@@ -21,6 +21,7 @@
 #include <stdlib.h>
 #include <time.h>
 #include <sys/time.h>
+#include <math.h> //for sqrt
 #include "MergeQueue.h"
 #include "MergeManager.h"
 #include "StreamRW.h"
@@ -29,6 +30,10 @@
 #include "C2JNexus.h"
 #include "UdaBridge.h"
 #include "AIOHandler.h"
+#include "RangeMerge.h"
+#include "ShuffleMemory.h"
+#include "ShuffleCheckpoint.h"
+#include "ShuffleStats.h"
 #include "bullseye.h"
 
 
@@ -52,7 +57,8 @@ void *merge_do_fetching_phase (reduce_task_t *task, SegmentMergeQueue *merge_que
     memory_pool_t *mem_pool = &(task->getMergingSm()->mop_pool);
     log(lsDEBUG, ">> function started task->num_maps=%d target_maps_count=%d", task->num_maps, target_maps_count);
 
-    static JNIEnv *s_fetcherJniEnv = UdaBridge_threadGetEnv();
+    JNIEnv *s_fetcherJniEnv = UdaBridge_threadGetEnv(); // of this task's merge thread
+    int64_t start_ms = shuffle_stats_now_ms();
     static std::vector<client_part_req *> fetch_vector;
 
 	do {
@@ -63,12 +69,14 @@ void *merge_do_fetching_phase (reduce_task_t *task, SegmentMergeQueue *merge_que
 		size_t n = fetch_vector.size();
 		for (size_t i = 0; i < n && maps_sent_to_fetch < num_maps; ++i) {
 
-			if (mem_pool->free_descs.next != &mem_pool->free_descs) { // the list represents a pair of buffers && (mem_pool->free_descs.next->next != &mem_pool->free_descs)){
+			if (mem_pool->slabs->has_free()) {
 				log(lsTRACE, "there are free RDMA buffers");
 				client_part_req *fetch_req = fetch_vector.back();
 				 fetch_vector.pop_back();
 				if (fetch_req) {
 					log(lsDEBUG, "request as received from java jobid=%s, mapid=%s, reduceid=%s, hostname=%s", fetch_req->info->params[1], fetch_req->info->params[2], fetch_req->info->params[3], fetch_req->info->params[0]);
+					if (manager->checkpoint && merge_queue != manager->merge_queue)
+						manager->checkpoint->add_map(manager->fetching_lpq, fetch_req->info->params[2]);
 					manager->allocate_rdma_buffers(fetch_req);
 					manager->start_fetch_req(fetch_req);
 					maps_sent_to_fetch ++;
@@ -106,17 +114,27 @@ void *merge_do_fetching_phase (reduce_task_t *task, SegmentMergeQueue *merge_que
 				== manager->mops_in_queue.end()) {
 
 				manager->mops_in_queue.insert(mop->mop_id);
+				if (task->isCompressionOff())
+					manager->fit_rdma_buffers(mop); // the partition's size is known now
 				Segment *segment = new Segment(mop);
 
-				if (task->isCompressionOff()){
-					segment->send_request(); // send req for second buffer
-
+				if (manager->pre_merger && merge_queue == manager->merge_queue && manager->pre_merger->add(segment, mop)) {
+					// entirely fetched - merged with other small map outputs in the background
 				}
+				else {
+					if (task->isCompressionOff()){
+						segment->send_request(); // send req for second buffer
 
-				// the above send was called from the Segment's Ctor before, but now because it is a virtual method it canot be called from CTOR
-				merge_queue->insert(segment);
+					}
+
+					// the above send was called from the Segment's Ctor before, but now because it is a virtual method it canot be called from CTOR
+					merge_queue->insert(segment);
+				}
 
 				/* report */
+				shuffle_stats_add(STAT_FETCHED_SEGMENTS, 1);
+				shuffle_stats_add(STAT_FETCHED_BYTES_RAW, mop->total_len_uncompress);
+				shuffle_stats_add(STAT_FETCHED_BYTES_RDMA, mop->total_len_rdma);
 				manager->total_count++;
 				manager->progress_count++;
 				log(lsDEBUG, "   === F segment was inserted: manager->total_count=%d, task->num_maps=%d", manager->total_count, task->num_maps);
@@ -148,6 +166,7 @@ void *merge_do_fetching_phase (reduce_task_t *task, SegmentMergeQueue *merge_que
 
 	} while (!task->merge_thread.stop);
 
+    shuffle_stats_add(STAT_FETCH_MS, shuffle_stats_now_ms() - start_ms);
     log(lsDEBUG, "<< function finished");
     return NULL;
 }
@@ -162,7 +181,7 @@ void *merge_do_merging_phase (reduce_task_t *task, SegmentMergeQueue *merge_queu
 	jobject jbuf = UdaBridge_registerDirectByteBuffer(mergerJniEnv, desc->buff, desc->buf_len);
 	log(lsDEBUG, "GOT: desc=%p, jbuf=%p, address=%p, capacity=%d", desc, jbuf, desc->buff, desc->buf_len);
 
-
+	int64_t start_ms = shuffle_stats_now_ms();
 	bool b = false;
 	while (!task->merge_thread.stop && !b) {
 
@@ -176,15 +195,45 @@ void *merge_do_merging_phase (reduce_task_t *task, SegmentMergeQueue *merge_queu
 	log(lsDEBUG, "invoking DeleteWeakGlobalRef: desc=%p, jbuf=%p, address=%p, capacity=%d", desc, jbuf, desc->buff, desc->buf_len);
 	mergerJniEnv->DeleteWeakGlobalRef((jweak)jbuf);
 	log(lsDEBUG, "After DeleteWeakGlobalRef");
+	shuffle_stats_add(STAT_MERGE_MS, shuffle_stats_now_ms() - start_ms);
 
 	log(lsINFO, "----- merger thread completed ------");
     return NULL;
 }
 
+// final merge of hybrid merge split to key ranges, see RangeMerger
+void *merge_do_range_merging_phase (reduce_task_t *task, SegmentMergeQueue *merge_queue,
+                                    const vector<string> &lpq_files, vector<KeyIndex*> &lpq_indexes)
+{
+	JNIEnv *mergerJniEnv = UdaBridge_threadGetEnv();
+
+	mem_desc_t  *desc = merge_queue->staging_bufs[0];
+	jobject jbuf = UdaBridge_registerDirectByteBuffer(mergerJniEnv, desc->buff, desc->buf_len);
+
+	RangeMerger merger(task, lpq_files, lpq_indexes, task->merge_man->num_merge_ranges,
+			task->merge_man->range_merge_buffers, desc->buf_len);
+	int64_t start_ms = shuffle_stats_now_ms();
+	try {
+		merger.run(mergerJniEnv, jbuf, desc->buff);
+	}
+	catch (UdaException *ex) {
+		mergerJniEnv->DeleteWeakGlobalRef((jweak)jbuf);
+		throw ex;
+	}
+
+	mergerJniEnv->DeleteWeakGlobalRef((jweak)jbuf);
+	shuffle_stats_add(STAT_MERGE_MS, shuffle_stats_now_ms() - start_ms);
+	log(lsINFO, "----- range merge completed ------");
+	return NULL;
+}
+
 void *merge_online (reduce_task_t *task)
 {
 	log(lsINFO, "Merge online"); 
+	task->merge_man->pre_merger = PreMerger::create(task);
 	merge_do_fetching_phase(task, task->merge_man->merge_queue, task->num_maps);
+	if (task->merge_man->pre_merger)
+		task->merge_man->pre_merger->finish(task->merge_man->merge_queue);
 
 	log(lsDEBUG, "Enter into merging phase");
 	merge_do_merging_phase(task, task->merge_man->merge_queue);
@@ -201,27 +250,42 @@ void resetBaseSegment(void * _segment){
 
 void MergeManager::fetch_lpqs (){
 
-	// lpq_shared_counter is not really shared between reducers since - with JNI - UDA is instantiated per RT. Hence, we use random
-    timeval tv;
-    gettimeofday(&tv, NULL);
-    srand(tv.tv_usec);
-	static int lpq_shared_counter = rand() % task->local_dirs.size();
-
 	char temp_file[PATH_MAX];
-	for (int i = 0; task->merge_man->total_count < task->num_maps; ++i)
+	int num_restored = checkpoint ? checkpoint->num_restored_lpqs() : 0;
+	if (num_restored) {
+		// the map outputs of the restored LPQs count as fetched - Java gets the progress reports it expects
+		total_count = checkpoint->num_restored_maps();
+		shuffle_stats_add(STAT_RESTORED_SEGMENTS, total_count);
+		JNIEnv *env = UdaBridge_threadGetEnv();
+		for (int k = 0; k < total_count / PROGRESS_REPORT_LIMIT; ++k)
+			UdaBridge_invoke_fetchOverMessage_callback(env);
+		progress_count = total_count % PROGRESS_REPORT_LIMIT;
+		if (total_count == task->num_maps && progress_count)
+			UdaBridge_invoke_fetchOverMessage_callback(env);
+		log(lsINFO, "====== %d LPQs with %d map outputs restored from the shuffle checkpoint", num_restored, total_count);
+	}
+
+	for (int i = 0; i < num_restored; ++i) {
+		SegmentMergeQueue *lpq = new SegmentMergeQueue(0, NULL, checkpoint->restored_file(i).c_str(), resetBaseSegment, lpq_queue_type);
+		pendingMerge->wait_and_reserve();
+		pendingMerge->push_reserved(lpq);
+	}
+
+	for (int i = num_restored; task->merge_man->total_count < task->num_maps; ++i)
 	{
-		int num_to_fetch = (i < num_regular_lpqs) ? num_mofs_in_lpq : max_mofs_in_lpqs;
+		// num_mofs_in_lpq, then max_mofs_in_lpqs for the last ones - also after restored LPQs of another size
+		int lpqs_left = num_lpqs - i;
+		int num_to_fetch = (task->num_maps - total_count) / (lpqs_left > 0 ? lpqs_left : 1);
 		log(lsINFO, "====== [F %d/%d] Creating LPQ for %d segments (already fetched=%d; num_maps=%d)", i, task->merge_man->num_lpqs, num_to_fetch, task->merge_man->total_count, task->num_maps);
 
-		int local_counter = ++lpq_shared_counter; // not critical to sync between threads here
-		local_counter %= task->local_dirs.size();
-		const string & dir = task->local_dirs[local_counter]; //just ref - no copy
+		string dir = disk_queues->next_dir(); // spread across the disks (mapred.rdma.lpq.spill.placement)
 		sprintf(temp_file, "%s/uda.%s.lpq-%03d", dir.c_str(), task->reduce_task_id, i);
-		SegmentMergeQueue *lpq = new SegmentMergeQueue(num_to_fetch, NULL, temp_file, resetBaseSegment);
+		SegmentMergeQueue *lpq = new SegmentMergeQueue(num_to_fetch, NULL, temp_file, resetBaseSegment, lpq_queue_type);
 
 		log(lsINFO, "   === [F %d/%d] wait on reserve quota for LPQ with %d segments ", i, this->num_lpqs, num_to_fetch);
 		pendingMerge->wait_and_reserve();
 		log(lsINFO, "   === [F %d/%d] after wait", i, this->num_lpqs);
+		fetching_lpq = i;
 		merge_do_fetching_phase(task, lpq, num_to_fetch);
 		pendingMerge->push_reserved(lpq);
 		log(lsINFO, "   === [F %d/%d] after reserving and pushing LPQ", i, this->num_lpqs);
@@ -248,13 +312,35 @@ void *MergeManager::merge_hybrid ()
 	bool b = true;
 	int32_t total_write;
 
+	// the LPQs' key indexes split the final merge to key ranges
+	vector<KeyIndex*> lpq_indexes;
+	if (this->num_merge_ranges > 1) {
+		for (int i = 0; i < this->num_lpqs; ++i)
+			lpq_indexes.push_back(new KeyIndex());
+	}
+
 	for (int i = 0; i < this->num_lpqs; ++i) {
 		log(lsINFO, "[M %d] ====== waiting on pop for LPQ", i);
 		pendingMerge->wait_and_pop_without_dereserve(merge_lpq[i]);
 		log(lsINFO, "[M %d]    === after  pop - going to merge LPQ using file: %s", i, merge_lpq[i]->filename.c_str());
 
-		b = write_kv_to_file(merge_lpq[i], merge_lpq[i]->filename.c_str(), total_write);
-		log(lsINFO, "[M %d]   === after merge of LPQ b=%d, total_write=%d; clearing and de-reserving...", i, (int)b, total_write);
+		if (checkpoint && i < checkpoint->num_restored_lpqs()) {
+			log(lsINFO, "[M %d]   === LPQ was spilled by a previous attempt; de-reserving...", i);
+		}
+		else {
+			int64_t start_ms = shuffle_stats_now_ms();
+			int64_t written = lpq_spill_stats.written_bytes, uncompressed = lpq_spill_stats.uncompressed_bytes;
+			b = write_kv_to_file(merge_lpq[i], merge_lpq[i]->filename.c_str(), total_write,
+					lpq_indexes.empty() ? NULL : lpq_indexes[i], this->spill_codec, &this->lpq_spill_stats,
+					disk_queues->queue_of(merge_lpq[i]->filename));
+			shuffle_stats_add(STAT_MERGE_MS, shuffle_stats_now_ms() - start_ms);
+			shuffle_stats_add(STAT_LPQ_SPILLS, 1);
+			shuffle_stats_add(STAT_LPQ_SPILL_BYTES, lpq_spill_stats.written_bytes - written);
+			shuffle_stats_add(STAT_LPQ_SPILL_RAW_BYTES, lpq_spill_stats.uncompressed_bytes - uncompressed);
+			log(lsINFO, "[M %d]   === after merge of LPQ b=%d, total_write=%d; clearing and de-reserving...", i, (int)b, total_write);
+			if (checkpoint && b)
+				checkpoint->lpq_done(i, merge_lpq[i]->filename);
+		}
 		merge_lpq[i]->core_queue.clear(); // sanity return RDMA buffers to pool (actually the segments were already released)
 
 		pendingMerge->dereserve();
@@ -264,6 +350,24 @@ void *MergeManager::merge_hybrid ()
 	log(lsINFO, "=== MM ALL LPQs entirely completed.  Building RPQ...");
 	// turn compression off in case it was on, since currently RPQ is always without compression
 	compressionType _comp_alg = task->resetCompression();
+
+	if (!lpq_indexes.empty()) {
+		vector<string> lpq_files;
+		for (int i = 0; i < this->num_lpqs ; ++i) {
+			lpq_files.push_back(merge_lpq[i]->filename);
+			delete merge_lpq[i];
+		}
+		log(lsINFO, "MM RPQ phase: going to merge all LPQs in %d key ranges...", this->num_merge_ranges);
+		merge_do_range_merging_phase(task, this->merge_queue, lpq_files, lpq_indexes);
+		for (int i = 0; i < this->num_lpqs ; ++i)
+			delete lpq_indexes[i];
+		log(lsINFO, "MM after ALL merge");
+		log_spill_stats();
+
+		task->setCompressionType(_comp_alg);
+		return NULL;
+	}
+
 	for (int i = 0; i < this->num_lpqs ; ++i)
 	{
 		log(lsINFO, "[M %d] === inserting LPQ to RPQ using file: %s", i, merge_lpq[i]->filename.c_str());
@@ -280,6 +384,9 @@ void *MergeManager::merge_hybrid ()
 	log(lsINFO, "MM RPQ phase: going to merge all LPQs...");
 	merge_do_merging_phase(task, this->merge_queue);
 	log(lsINFO, "MM after ALL merge");
+	if (checkpoint && !task->merge_thread.stop)
+		checkpoint->set_complete();
+	log_spill_stats();
 	// merge_queue will be deleted in DTOR of MergeManager
 
 	task->setCompressionType(_comp_alg);
@@ -287,6 +394,58 @@ void *MergeManager::merge_hybrid ()
     return NULL;
 }
 
+/*static*/ int MergeManager::plan_merge_approach(int num_maps, long shuffle_memory, int max_buffer, int min_buffer, int &lpq_size)
+{
+	if (num_maps <= 1)
+		return 1;
+
+	// online merge holds a double buffer for every map output at once. it is chosen while these buffers
+	// stay large enough for fetching the map outputs in a few RDMA reads (mapred.netmerger.auto.min.buffer)
+	long online_buffer = shuffle_memory / ((long)num_maps * 2);
+	if (online_buffer > max_buffer)
+		online_buffer = max_buffer;
+	long min_online_buffer = atol(UdaBridge_invoke_getConfData_callback("mapred.netmerger.auto.min.buffer", "0").c_str());
+	if (min_online_buffer <= 0)
+		min_online_buffer = max_buffer / 4;
+	if (min_online_buffer < min_buffer)
+		min_online_buffer = min_buffer;
+
+	if (online_buffer >= min_online_buffer) {
+		log(lsINFO, "merge approach: online - %d map outputs with double buffers of %ldB in shuffleMemorySize=%ldB",
+				num_maps, online_buffer, shuffle_memory);
+		return 1;
+	}
+
+	// hybrid merge holds the buffers of the LPQs that are fetched in parallel - make them fit with buffers of max size
+	int num_parallel_lpqs = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.num.parallel.lpqs", "0").c_str());
+	if (num_parallel_lpqs < MIN_PARALLEL_LPQS)
+		num_parallel_lpqs = MIN_PARALLEL_LPQS;
+	long max_mofs_in_lpq = shuffle_memory / ((long)max_buffer * 2 * num_parallel_lpqs);
+	lpq_size = (int)(max_mofs_in_lpq - 1); // num_maps % num_lpqs may add one map output to an LPQ
+	int sqrt_lpq_size = (int)sqrt(num_maps);
+	if (lpq_size > sqrt_lpq_size)
+		lpq_size = sqrt_lpq_size; // as the default - bigger LPQs would only raise the fan-in of the LPQ merge
+	if (lpq_size < 2)
+		lpq_size = 2; // buffers shrink to fit (down to mapred.rdma.buf.size.min)
+	if (lpq_size > num_maps)
+		lpq_size = num_maps;
+
+	log(lsINFO, "merge approach: hybrid - online merge would use buffers of %ldB (< %ldB); %d map outputs in each LPQ, %d LPQs in parallel",
+			online_buffer, min_online_buffer, lpq_size, num_parallel_lpqs);
+	return 2;
+}
+
+void MergeManager::log_spill_stats()
+{
+	int64_t uncompressed = lpq_spill_stats.uncompressed_bytes;
+	int64_t written = lpq_spill_stats.written_bytes;
+	log(lsINFO, "LPQ spills: compression=%s uncompressed=%lld written=%lld read=%lld ratio=%.3f",
+			spill_codec ? spill_codec->name : "none", (long long)uncompressed, (long long)written,
+			(long long)lpq_spill_stats.read_bytes, uncompressed ? (double)written / uncompressed : 1.0);
+	if (disk_queues)
+		disk_queues->log_stats();
+}
+
 //COVERITY: UNCAUGHT_EXCEPT, RM#189300. false alarm
 void *MergeManager::merge_thread_main (void *context) throw (UdaException*)
 {
@@ -309,6 +468,8 @@ void *MergeManager::merge_thread_main (void *context) throw (UdaException*)
 		break;
 	}
 
+	if (!task->merge_thread.stop)
+		_this->merge_done = true;
 	log(lsDEBUG, "finished !!!");
     return NULL;
 }
@@ -328,12 +489,52 @@ MergeManager::MergeManager(int threads, int online, struct reduce_task *task, in
 
     this->total_count = 0;
     this->progress_count = 0;
+    this->merge_done = false;
     this->merge_queue = NULL;
 
     string value = UdaBridge_invoke_getConfData_callback("mapred.rdma.num.parallel.lpqs", "0");
     int num_parallel_lpqs = atoi(value.c_str());
     this->num_parallel_lpqs = (num_parallel_lpqs < MIN_PARALLEL_LPQS) ? MIN_PARALLEL_LPQS : num_parallel_lpqs;
 
+    lpq_queue_type = get_merge_queue_type(UdaBridge_invoke_getConfData_callback("mapred.rdma.merge.queue.lpq", "heap").c_str());
+    rpq_queue_type = get_merge_queue_type(UdaBridge_invoke_getConfData_callback("mapred.rdma.merge.queue.rpq", "heap").c_str());
+    num_merge_ranges = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.merge.ranges", "1").c_str());
+    range_merge_buffers = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.merge.range.buffers", "16").c_str());
+    if (num_merge_ranges > 1) {
+        if (range_merge_buffers < 1)
+            range_merge_buffers = 1;
+        if (online == 2)
+            log(lsINFO, "final merge in %d key ranges, up to %d buffers of each range wait in memory", num_merge_ranges, range_merge_buffers);
+        else
+            log(lsINFO, "mapred.rdma.merge.ranges=%d ignored - key range merge is supported only with hybrid merge", num_merge_ranges);
+    }
+
+    spill_codec = (online == 2) ?
+            SpillCodec::create(UdaBridge_invoke_getConfData_callback("mapred.rdma.lpq.spill.compression", "none").c_str()) : NULL;
+    memset(&lpq_spill_stats, 0, sizeof(lpq_spill_stats));
+    shuffle_memory = 0;
+    shuffle_bytes = 0;
+    sized_mofs = 0;
+    planned = false;
+    pre_merger = NULL;
+    memset(&buffer_split, 0, sizeof(buffer_split));
+    disk_queues = NULL;
+    if (online == 2) {
+        // reducers of a node are separate processes - a random start spreads their first LPQs
+        timeval tv;
+        gettimeofday(&tv, NULL);
+        srand(tv.tv_usec);
+        disk_queues = new DiskQueues(task->local_dirs,
+                atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.spill.disk.queue.depth", "1").c_str()),
+                atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.spill.stream.buffers", "2").c_str()),
+                DiskQueues::get_placement(UdaBridge_invoke_getConfData_callback("mapred.rdma.lpq.spill.placement", "round_robin").c_str()));
+    }
+    fetching_lpq = 0;
+    checkpoint = ShuffleCheckpoint::create(task, this); // after the spill codec and the key ranges
+
+    log(lsINFO, "merge queues: lpq=%s rpq=%s", lpq_queue_type == MQ_LOSER_TREE ? "loser_tree" : "heap",
+        rpq_queue_type == MQ_LOSER_TREE ? "loser_tree" : "heap");
+
     num_kv_bufs = this->online == 2 ? // 2 is hybrid_merge
 			this->max_mofs_in_lpqs * this->num_parallel_lpqs : this->task->num_maps;
 
@@ -343,11 +544,11 @@ MergeManager::MergeManager(int threads, int online, struct reduce_task *task, in
     if (online) {    
 
     	if (online == 1) {
-    		merge_queue = new SegmentMergeQueue(task->num_maps);
+    		merge_queue = new SegmentMergeQueue(task->num_maps, NULL, "", NULL, rpq_queue_type);
     	}
     	else { //online == 2
     		log(lsINFO, "hybrid merge will use %d lpqs", num_lpqs);
-    		merge_queue = new SegmentMergeQueue(num_lpqs);
+    		merge_queue = new SegmentMergeQueue(num_lpqs, NULL, "", NULL, rpq_queue_type);
     		log(lsINFO, "====== num_maps=%d; num_lpqs=%d; num_mofs_in_lpq=%d, max_mofs_in_lpqs=%d, num_regular_lpqs=%d, num_kv_bufs=%d, this->num_parallel_lpqs=%d",
     				task->num_maps, num_lpqs, num_mofs_in_lpq, max_mofs_in_lpqs, num_regular_lpqs, num_kv_bufs, this->num_parallel_lpqs);
     	}
@@ -396,8 +597,34 @@ int MergeManager::update_fetch_req(client_part_req_t *req)
     req->mop->mofOffset = recvd_data[3];
     req->mop->mofPath.assign((req->recvd_msg + (++i)), size);
 
+    bool first_fetch = (req->mop->fetched_len_rdma == (int64_t)recvd_data[2]);
     pthread_mutex_unlock(&req->mop->lock);
 
+    if (first_fetch && buffer_split.total) {
+        __sync_add_and_fetch(&buffer_split.compressed, (int64_t)recvd_data[1]);
+        __sync_add_and_fetch(&buffer_split.uncompressed, (int64_t)recvd_data[0]);
+    }
+
+    if (first_fetch) {
+        // the partition's size is known now - estimate the shuffle bytes of the task from the sizes known so far
+        int64_t bytes = __sync_add_and_fetch(&shuffle_bytes, (int64_t)recvd_data[1]);
+        int sized = __sync_add_and_fetch(&sized_mofs, 1);
+        int64_t estimate = bytes / sized * task->num_maps;
+        int64_t prev_estimate = (sized > 1) ? (bytes - (int64_t)recvd_data[1]) / (sized - 1) * task->num_maps : 0;
+        if (planned && online == 1 && estimate > shuffle_memory && prev_estimate <= shuffle_memory) {
+            log(lsWARN, "estimated shuffle bytes %lld (%d of %d map outputs known) exceed shuffleMemorySize=%ld - "
+                "online merge continues; map outputs are fetched in several RDMA buffers each",
+                (long long)estimate, sized, task->num_maps, shuffle_memory);
+        }
+        if (sized == task->num_maps) {
+            log(lsINFO, "shuffle bytes of the task: %lld (shuffleMemorySize=%ld, %s merge)", (long long)bytes,
+                shuffle_memory, online == 1 ? "online" : "hybrid");
+            if (buffer_split.total && buffer_split.compressed) {
+                log(lsINFO, "compression ratio of the map outputs: %.2f", (double)buffer_split.uncompressed / buffer_split.compressed);
+            }
+        }
+    }
+
     if (req->mop->mofPath.compare("MOF_PATH_SIZE_TOO_LONG") == 0) {
     	throw new UdaException("Mof path is too long, UDA supports path of max 600 chars");
     }
@@ -437,10 +664,64 @@ void MergeManager::allocate_rdma_buffers(client_part_req_t *req)
         req->mop->part_req = req;
         req->mop->fetch_count = 0;
         task->total_first_fetch += 1;
+        if (buffer_split.total)
+            split_buffers(req->mop, buffer_split.adaptive);
     }
     BULLSEYE_EXCLUDE_BLOCK_END
 }
 
+void MergeManager::fit_rdma_buffers(MapOutput *mop)
+{
+    memory_pool_t *pool = &task->getMergingSm()->mop_pool;
+    if (pool->num_classes <= 1 || mop->fetched_len_rdma >= mop->total_len_rdma)
+        return;
+
+    int64_t remaining = mop->total_len_rdma - mop->fetched_len_rdma;
+    int32_t wanted_len = (int32_t)min(remaining, (int64_t)pool->class_size[0]);
+    if ((int64_t)mop->mop_bufs[0]->buf_len >= wanted_len)
+        return;
+    uint32_t old_len = mop->mop_bufs[0]->buf_len;
+    if (mop->growBuffers(wanted_len)) {
+        log(lsTRACE, "mop#%d: %lld bytes left to fetch - moved from buffers of %u to %u bytes",
+            mop->mop_id, (long long)remaining, old_len, mop->mop_bufs[0]->buf_len);
+    }
+}
+
+void MergeManager::init_buffer_split(int32_t rdma_len, int32_t uncompress_len, int32_t min_rdma, int32_t max_rdma, int32_t min_uncompress)
+{
+    buffer_split.total = rdma_len + uncompress_len;
+    buffer_split.rdma_len = rdma_len;
+    buffer_split.min_rdma = min_rdma;
+    buffer_split.max_rdma = min(max_rdma, buffer_split.total - min_uncompress);
+    if (buffer_split.max_rdma < min_rdma)
+        buffer_split.max_rdma = min_rdma;
+    buffer_split.adaptive = strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.compression.buffer.adaptive", "true").c_str(), "false") != 0;
+    log(lsDEBUG, "buffer split: %d + %d bytes, compressed part between %d and %d bytes, adaptive=%d",
+        rdma_len, uncompress_len, buffer_split.min_rdma, buffer_split.max_rdma, (int)buffer_split.adaptive);
+}
+
+void MergeManager::split_buffers(KVOutput *kv_output, bool adaptive)
+{
+    int32_t rdma_len = buffer_split.rdma_len;
+    int64_t compressed = buffer_split.compressed;
+    int64_t uncompressed = buffer_split.uncompressed;
+    if (adaptive && compressed > 0 && uncompressed > 0) {
+        // a fetch of rdma_len compressed bytes decompresses into rdma_len * ratio bytes - size both parts for it
+        rdma_len = (int32_t)(buffer_split.total * compressed / (compressed + uncompressed));
+        rdma_len -= rdma_len % getpagesize();
+        rdma_len = max(buffer_split.min_rdma, min(buffer_split.max_rdma, rdma_len));
+    }
+
+    mem_desc_t *rdma_desc = kv_output->mop_bufs[0];
+    mem_desc_t *uncompress_desc = kv_output->mop_bufs[1];
+    if (rdma_desc->buf_len != (uint32_t)rdma_len) {
+        log(lsTRACE, "splitting buffers: %d compressed bytes, %d decompressed bytes", rdma_len, buffer_split.total - rdma_len);
+        rdma_desc->buf_len = rdma_len;
+        uncompress_desc->buff = rdma_desc->buff + rdma_len;
+        uncompress_desc->buf_len = buffer_split.total - rdma_len;
+    }
+}
+
 
 void MergeManager::start_fetch_req(client_part_req_t *req)
 {
@@ -482,6 +763,7 @@ MergeManager::~MergeManager()
     pthread_cond_destroy(&cond);
     
     BULLSEYE_EXCLUDE_BLOCK_START
+    delete pre_merger;
     if (merge_queue != NULL ) {
         pthread_mutex_lock(&task->kv_pool.lock);
         for (int i = 0; i < NUM_STAGE_MEM; ++i) {
@@ -497,6 +779,9 @@ MergeManager::~MergeManager()
         delete merge_queue; 
     }
     delete pendingMerge;
+    delete checkpoint;
+    delete spill_codec;
+    delete disk_queues;
     BULLSEYE_EXCLUDE_BLOCK_END
 }
 
@@ -600,6 +885,7 @@ void merge_hybrid_lpq_phase(AIOHandler* aio, SegmentMergeQueue* merge_lpqs[], re
     	log(lsERROR, "failed to allocate memory for LPQs stating buffer. posix_memalign failed: alignment=%d , total_size=%ll --> rc=%d %m", AIO_ALIGNMENT, total_stating_size, rc );
         throw new UdaException("failed to allocate memory for LPQs stating buffer. posix_memalign failed");
     }
+    shuffle_mem_alloc(SHUFFLE_MEM_LPQ, total_stating_size);
 
     // creating one set of staging mem for all LPQs - TODO: on future non-blocking LPQs, will need a set of stating mem for each LPQ
 	mem_desc_t* staging_descs = new mem_desc_t[NUM_STAGE_MEM];
@@ -627,7 +913,7 @@ void merge_hybrid_lpq_phase(AIOHandler* aio, SegmentMergeQueue* merge_lpqs[], re
 
 		const string & dir = task->local_dirs[local_dir_index]; //just ref - no copy
 		sprintf(temp_file, "%s/NetMerger.%s.lpq-%d", dir.c_str(), task->reduce_task_id, i);
-		merge_lpqs[i] = new SegmentMergeQueue(num_to_fetch, staging_descs, temp_file);
+		merge_lpqs[i] = new SegmentMergeQueue(num_to_fetch, staging_descs, temp_file, NULL, task->merge_man->lpq_queue_type);
 		merge_do_fetching_phase(task, merge_lpqs[i], num_to_fetch);
 		log(lsDEBUG, "[%d] === Enter merging LPQ using file: %s", i, merge_lpqs[i]->filename.c_str());
 		merge_lpq_to_aio_file(task, merge_lpqs[i], merge_lpqs[i]->filename.c_str(), aio , total_write, mem_desc_idx);
@@ -666,6 +952,7 @@ void merge_hybrid_lpq_phase(AIOHandler* aio, SegmentMergeQueue* merge_lpqs[], re
 	log(lsTRACE, "IDAN LPQ - deleting staging buffers");
 	delete[] staging_descs;
     free(staging_row_mem);
+    shuffle_mem_free(SHUFFLE_MEM_LPQ, total_stating_size);
 
 }
 
@@ -29,6 +29,9 @@
 #include "MergeQueue.h"
 #include "C2JNexus.h"
 #include "StreamRW.h"
+#include "SpillStream.h"
+#include "PreMerge.h"
+#include "BufferSlabs.h"
 #include <UdaUtil.h>
 #include <concurrent_queue.h>
 
@@ -39,6 +42,7 @@ class MapOutput;
 class KVOutput;
 class FetchRequest;
 class RawKeyValueIterator;
+class ShuffleCheckpoint;
 
 enum MERGE_FLAG    {INIT_FLAG, NEW_MOP, FINAL_MERGE}; 
 
@@ -79,7 +83,7 @@ typedef struct rpq_aio_arg
 } rpq_aio_arg_t ;
 
 
-/* XXX: in the future, we should attempt to enable a buddy system */
+/* mop_pool hands out its pairs through slabs, the other pools through free_descs */
 typedef struct memory_pool {
     pthread_mutex_t      lock;
 //    pthread_cond_t       cond; //this cond should be used in case the reducer is running several LPQs simultaneously
@@ -87,9 +91,10 @@ typedef struct memory_pool {
     char                *mem;        
     int32_t              num;
     int64_t              total_size;
-    mem_desc_t			*desc_arr;
-    mem_set_desc_t		*pair_desc_arr;
     struct list_head     register_mem_list;
+    int32_t              num_classes;                     /* 1 when all pairs have the same buffers */
+    int32_t              class_size[MAX_BUFFER_CLASSES];  /* bytes of each buffer of a pair of the class */
+    BufferSlabs         *slabs;
 } memory_pool_t;
 
 /*
@@ -110,6 +115,8 @@ typedef struct client_part_req
     char             recvd_msg[PATH_MAX+128];
 
     bool 				request_in_queue;
+    bool 				in_decompress; /* taken by a decompression worker, guarded by the decompressor's lock */
+    void 				*decompress_stream; /* state of a stream decompressor (zlib, zstd) for this map output */
 } client_part_req_t;
 
 
@@ -124,6 +131,21 @@ typedef struct host_list {
 ////////////////////////////////////////////////////////////////////////////////
 #define MIN_PARALLEL_LPQS 3 //TODO: tune
 
+/*
+ * Compression: the split of each pair of buffers between compressed RDMA data (buffer_unit[0]) and decompressed
+ * data (buffer_unit[1]). Both are parts of one region of the registered pool, so a pair can be split again
+ * whenever it is borrowed. New map outputs get a split that follows the compression ratio observed so far.
+ */
+typedef struct buffer_split {
+    int32_t              total;        /* bytes of a pair, 0 when compression is off */
+    int32_t              rdma_len;     /* the split of calculateMemPool, before any ratio is known */
+    int32_t              min_rdma;     /* mapred.rdma.buf.size.min */
+    int32_t              max_rdma;     /* mapred.rdma.buf.size, and leaves room for a decompressed block */
+    bool                 adaptive;     /* mapred.rdma.compression.buffer.adaptive */
+    volatile int64_t     compressed;   /* partition bytes of the map outputs whose size is known */
+    volatile int64_t     uncompressed; /* decompressed bytes of those map outputs */
+} buffer_split_t;
+
 ////////////////////////////////////////////////////////////////////////////////
 class MergeManager 
 {
@@ -139,6 +161,13 @@ public:
     int update_fetch_req(client_part_req_t *req);
     void mark_req_as_ready(client_part_req_t *req);
     void allocate_rdma_buffers(client_part_req_t *req);
+    /* size classes: after the first fetch, moves a map output that has more to fetch to larger buffers */
+    void fit_rdma_buffers(MapOutput *mop);
+
+    /* compression: sets the split of the buffer pairs, called once when the pool is created */
+    void init_buffer_split(int32_t rdma_len, int32_t uncompress_len, int32_t min_rdma, int32_t max_rdma, int32_t min_uncompress);
+    /* splits the buffer pair of kv_output - by the observed compression ratio if adaptive, else as calculated */
+    void split_buffers(KVOutput *kv_output, bool adaptive);
 
     pthread_mutex_t      lock; 
     pthread_cond_t       cond;
@@ -167,12 +196,33 @@ public:
     const int                    max_mofs_in_lpqs; // for the case num_mofs % num_lpq is not zero
     const int                    num_regular_lpqs; // lpqs of size = num_mofs / num_lpq
     int                          num_kv_bufs;      // num kv buffers that we need to hold in parallel
+    merge_queue_type_t           lpq_queue_type;   // mapred.rdma.merge.queue.lpq
+    merge_queue_type_t           rpq_queue_type;   // mapred.rdma.merge.queue.rpq (also the single queue of online merge)
+    int                          num_merge_ranges; // mapred.rdma.merge.ranges - key ranges of the final merge of hybrid merge, merged in parallel
+    int                          range_merge_buffers; // mapred.rdma.merge.range.buffers - output buffers of a range that wait in memory for their turn
+    SpillCodec                  *spill_codec;      // mapred.rdma.lpq.spill.compression - NULL for uncompressed LPQ spills
+    spill_stats_t                lpq_spill_stats;  // bytes of this task's LPQ spill files
+    DiskQueues                  *disk_queues;      // I/O queues of the local dirs' disks for LPQ spills (hybrid merge), else NULL
+    long                         shuffle_memory;   // shuffleMemorySize of the task - for comparing with the shuffle bytes
+    volatile int64_t             shuffle_bytes;    // partition bytes of the map outputs whose size is known (first fetch)
+    volatile int                 sized_mofs;       // number of those map outputs
+    bool                         planned;          // the merge approach was chosen by plan_merge_approach
+    PreMerger                   *pre_merger;       // online merge: background merge of small map outputs, NULL when off
+    buffer_split_t               buffer_split;     // compression: split of the buffer pairs
+    ShuffleCheckpoint           *checkpoint;       // mapred.rdma.shuffle.checkpoint - LPQ spills kept for a later attempt, else NULL
+    int                          fetching_lpq;     // hybrid merge: the LPQ being fetched
+    volatile bool                merge_done;       // the merge thread completed the merge without being stopped
+
+    /* mapred.netmerger.merge.approach=auto: chooses online (1) or hybrid (2) merge for the task's memory,
+     * and for hybrid merge the number of map outputs in each LPQ (lpq_size) */
+    static int plan_merge_approach(int num_maps, long shuffle_memory, int max_buffer, int min_buffer, int &lpq_size);
 
     static void *merge_thread_main (void *context) throw (UdaException*);
 private:
     void *merge_hybrid ();
     static void *lpq_fetcher_start (void *context) throw (UdaException*);
     void fetch_lpqs();
+    void log_spill_stats();
     int num_parallel_lpqs;
     concurrent_external_quota_queue <SegmentMergeQueue*> *pendingMerge;
 };
@@ -22,6 +22,17 @@
 
 using namespace std;
 
+merge_queue_type_t get_merge_queue_type(const char *name)
+{
+    if (strcmp(name, "heap") == 0)
+        return MQ_HEAP;
+    if (strcmp(name, "loser_tree") == 0)
+        return MQ_LOSER_TREE;
+
+    log(lsERROR, "unknown merge queue type: '%s' (expected heap or loser_tree)", name);
+    throw new UdaException("unknown merge queue type");
+}
+
 #if 0
 int MergeQueue::getPassFactor(int factor, int passNo, int numSegments) 
 {
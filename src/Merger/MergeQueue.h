@@ -31,6 +31,7 @@
 #include <NetlevComm.h>
 
 #include "IOUtility.h"
+#include "CompareFunc.h"
 
 class RawKeyValueIterator;
 
@@ -117,11 +118,38 @@ typedef struct mem_set_desc {
 
 typedef void (*ResetElemFunc)(void*);
 
+/* ordering structure of a PriorityQueue (mapred.rdma.merge.queue.lpq/rpq) */
+enum merge_queue_type_t {
+    MQ_HEAP,        /* binary heap: ~2*log(size) compares per adjustTop */
+    MQ_LOSER_TREE   /* tournament tree of losers: log(size) compares per adjustTop */
+};
+
+/* "heap" or "loser_tree"; throws UdaException on other names */
+merge_queue_type_t get_merge_queue_type(const char *name);
+
 
 /****************************************************************************
  * A PriorityQueue maintains a partial ordering of its elements such that the
  * least element can always be found in constant time.  Put()'s and pop()'s
  * require log(size) time. 
+ *
+ * When comparisons are expensive (g_batch_cmp_func is set - keys are compared
+ * in Java), the elements are kept fully sorted instead, which is a valid heap
+ * too. The position of an element is found by comparing it against up to
+ * BATCH_CMP_MAX_KEYS evenly spaced elements per call, so a put/adjustTop
+ * takes log(size)/log(BATCH_CMP_MAX_KEYS+1) calls instead of ~2*log(size)
+ * calls. Moving the pointers of the elements is cheap in comparison.
+ *
+ * With MQ_LOSER_TREE the elements are the leaves of a tournament tree whose
+ * inner nodes hold the loser of the match between their subtrees, and the
+ * winner is kept apart. adjustTop()/pop() replay only the matches on the
+ * winner's path, one compare per level against the stored losers, instead
+ * of the heap's two compares per level. Popped leaves stay in the tree as
+ * empty leaves that lose every match, and put() fills an empty leaf and
+ * replays the matches on its path. The inner nodes also keep their
+ * winners, since a put leaf is not the winner and its matches are played
+ * against the winners of the sibling subtrees. When there is no empty
+ * leaf, the tree doubles its leaves and plays all the matches.
  ****************************************************************************/
 template <class T>
 class PriorityQueue
@@ -133,10 +161,20 @@ private:
     int            m_size;
     int            m_maxSize;
     ResetElemFunc  m_resetElemFunc;
+    hadoop_batch_cmp_func m_batchCmp; /* NULL for heap ordering */
+
+    /* loser tree */
+    bool             m_loserTree;
+    std::vector<T>   m_leaves;   /* NULL for empty leaves */
+    std::vector<int> m_losers;   /* [0] is the winner's leaf, [1..leaves-1] the losers' leaves */
+    std::vector<int> m_winners;  /* [1..leaves-1] the winners' leaves */
+    std::vector<int> m_free;     /* the empty leaves */
 public:
 
-    PriorityQueue<T>(int maxSize, ResetElemFunc  resetElemFunc) {
+    PriorityQueue<T>(int maxSize, ResetElemFunc  resetElemFunc, merge_queue_type_t type = MQ_HEAP) {
     	m_resetElemFunc = resetElemFunc;
+    	m_batchCmp = g_batch_cmp_func;
+    	m_loserTree = (type == MQ_LOSER_TREE && !m_batchCmp); // sorted ordering is the cheapest with batches
         m_size = 0;
         int heapSize = maxSize + 1;
         m_maxSize = maxSize;
@@ -154,6 +192,24 @@ public:
      * so that the total number exceeds the maxSize
      */
     void put(T element) {
+        if (m_loserTree) {
+            if (m_free.empty())
+                growTree();
+            int leaf = m_free.back();
+            m_free.pop_back();
+            m_leaves[leaf] = element;
+            m_size++;
+            playPath(leaf);
+            return;
+        }
+        if (m_batchCmp) {
+            int pos = sortedPosition(element, 1, m_size + 1);
+            for (int i = m_size; i >= pos; --i)
+                m_heap[i + 1] = m_heap[i];
+            m_heap[pos] = element;
+            m_size++;
+            return;
+        }
         m_size++;
         m_heap[m_size] = element;
         upHeap();
@@ -186,7 +242,10 @@ public:
      * Returns the least element of the PriorityQueue in constant time. 
      */
     T top() {
-        if (m_size > 0)
+        if (m_size > 0 && m_loserTree) {
+            return m_leaves[m_losers[0]];
+        }
+        else if (m_size > 0)
             return m_heap[1];
         else
             return NULL;
@@ -200,7 +259,24 @@ public:
      *     position.
      */
     T pop() {
-        if (m_size > 0) {
+        if (m_size > 0 && m_loserTree) {
+            int leaf = m_losers[0];
+            T result = m_leaves[leaf];
+            m_leaves[leaf] = NULL;
+            m_free.push_back(leaf);
+            m_size--;
+            replay(leaf);
+            return result;
+        }
+        else if (m_size > 0 && m_batchCmp) {
+            T result = m_heap[1];
+            for (int i = 1; i < m_size; ++i)
+                m_heap[i] = m_heap[i + 1];
+            m_heap[m_size] = NULL;
+            m_size--;
+            return result;
+        }
+        else if (m_size > 0) {
             T result = m_heap[1];      /* save first value*/
             m_heap[1] = m_heap[m_size];/* move last to first*/
             m_heap[m_size] = NULL;	   /* permit GC of objects*/
@@ -214,6 +290,18 @@ public:
 
     /* Be called when the object at top changes values.*/
     void adjustTop() {
+        if (m_loserTree) {
+            replay(m_losers[0]);
+            return;
+        }
+        if (m_batchCmp) {
+            T node = m_heap[1];
+            int pos = sortedPosition(node, 2, m_size + 1) - 1;
+            for (int i = 1; i < pos; ++i)
+                m_heap[i] = m_heap[i + 1];
+            m_heap[pos] = node;
+            return;
+        }
         downHeap();
     }
 
@@ -224,6 +312,18 @@ public:
 
     /*reset the priority queue*/
     void clear() {
+        if (m_loserTree) {
+            for (size_t i = 0; i < m_leaves.size(); i++) {
+                if (m_leaves[i] != NULL)
+                    m_resetElemFunc(m_leaves[i]);
+            }
+            m_leaves.clear();
+            m_losers.clear();
+            m_winners.clear();
+            m_free.clear();
+            m_size = 0;
+            return;
+        }
         for (int i = 0; i <= m_size; i++) {
         	if (m_heap[i] != NULL) {
 				m_resetElemFunc(m_heap[i]);
@@ -234,6 +334,104 @@ public:
     }
 
 private:
+
+    /* loser tree: empty leaves lose every match */
+    bool leafLess(int a, int b) {
+        return m_leaves[a] != NULL && (m_leaves[b] == NULL || *(m_leaves[a]) < *(m_leaves[b]));
+    }
+
+    /*
+     * loser tree: replays the matches on the path of leaf, whose element
+     * changed (or was popped), up to the root. leaf must be the winner, so
+     * each match is against the stored loser
+     */
+    void replay(int leaf) {
+        int winner = leaf;
+        for (int node = (leaf + (int)m_leaves.size()) >> 1; node > 0; node >>= 1) {
+            if (leafLess(m_losers[node], winner)) {
+                int loser = winner;
+                winner = m_losers[node];
+                m_losers[node] = loser;
+            }
+            m_winners[node] = winner;
+        }
+        m_losers[0] = winner;
+    }
+
+    /* loser tree: the winner's leaf of node; leaf i is node leaves+i */
+    int winnerOf(int node) {
+        int leaves = (int)m_leaves.size();
+        return (node >= leaves) ? node - leaves : m_winners[node];
+    }
+
+    /* loser tree: plays the match of node between the winners of nodes 2n and 2n+1 */
+    void playMatch(int node) {
+        int a = winnerOf(2 * node);
+        int b = winnerOf(2 * node + 1);
+        if (leafLess(b, a)) {
+            m_winners[node] = b;
+            m_losers[node] = a;
+        }
+        else {
+            m_winners[node] = a;
+            m_losers[node] = b;
+        }
+    }
+
+    /* loser tree: replays the matches on the path of any leaf whose element changed */
+    void playPath(int leaf) {
+        for (int node = (leaf + (int)m_leaves.size()) >> 1; node > 0; node >>= 1)
+            playMatch(node);
+        m_losers[0] = (m_leaves.size() > 1) ? m_winners[1] : 0;
+    }
+
+    /*
+     * loser tree: doubles the leaves when all of them are taken, and plays
+     * all the matches. the new leaves are empty
+     */
+    void growTree() {
+        int n = (int)m_leaves.size();
+        int leaves = (n > 0) ? 2 * n : 1;
+        m_leaves.resize(leaves, NULL);
+        m_losers.assign(leaves, 0);
+        m_winners.assign(leaves, 0);
+        for (int leaf = leaves - 1; leaf >= n; leaf--)
+            m_free.push_back(leaf);
+        for (int node = leaves - 1; node > 0; node--)
+            playMatch(node);
+        m_losers[0] = (leaves > 1) ? m_winners[1] : 0;
+    }
+
+    /*
+     * sorted mode: returns the first position in [lo, hi) whose element is
+     * greater than node (hi if there is none), so equal keys keep their order
+     */
+    int sortedPosition(T node, int lo, int hi) {
+        char *keys[BATCH_CMP_MAX_KEYS];
+        int   lens[BATCH_CMP_MAX_KEYS];
+        int   results[BATCH_CMP_MAX_KEYS];
+        int   pivots[BATCH_CMP_MAX_KEYS];
+
+        while (lo < hi) {
+            int range = hi - lo;
+            int n = (range < BATCH_CMP_MAX_KEYS) ? range : BATCH_CMP_MAX_KEYS;
+            for (int p = 0; p < n; ++p) {
+                /* evenly spaced, the last pivot is hi-1. all of the range when it fits */
+                pivots[p] = lo + (int)((int64_t)(p + 1) * range / n) - 1;
+                keys[p] = m_heap[pivots[p]]->key.getData();
+                lens[p] = m_heap[pivots[p]]->key.getLength();
+            }
+            m_batchCmp(node->key.getData(), node->key.getLength(), keys, lens, n, results);
+
+            int p = 0;
+            while (p < n && results[p] >= 0)
+                p++;
+            if (p < n)
+                hi = pivots[p];
+            lo = p ? pivots[p - 1] + 1 : lo;
+        }
+        return lo;
+    }
     
     void upHeap() {
         int i = m_size;
@@ -281,6 +479,7 @@ private:
     DataStream *key;
     DataStream *val;
     int num_of_segments;
+    const std::string *upper_bound; /* range merge: keys from this one on belong to the next range */
 public:
     const std::string filename;
     mem_desc_t*  staging_bufs[NUM_STAGE_MEM];
@@ -314,6 +513,11 @@ public:
             }
         }
         this->min_segment = core_queue.top();
+        if (this->upper_bound && g_cmp_func(this->min_segment->key.getData(), this->min_segment->key.getLength(),
+                                            (char*)this->upper_bound->data(), this->upper_bound->size()) >= 0) {
+            this->min_segment = NULL; // stays in the queue, a repeated call ends here again
+            return false;
+        }
         this->key = &this->min_segment->key;
         this->val = &this->min_segment->val;
 
@@ -346,15 +550,26 @@ public:
         return true;
     }
 
+    /* puts a segment whose current record was already read (positioned by the caller) */
+    void insertCurrent(T segment) {
+        core_queue.put(segment);
+        num_of_segments++;
+    }
+
+    /* next() ends before the first key that is not less than bound; bound must outlive the merge */
+    void setUpperBound(const std::string *bound) { this->upper_bound = bound; }
+
     int32_t get_key_len() {return this->min_segment->cur_key_len;}
     int32_t get_val_len() {return this->min_segment->cur_val_len;}
     int32_t get_key_bytes(){return this->min_segment->kbytes;}
     int32_t get_val_bytes() {return this->min_segment->vbytes;}
 
-      MergeQueue(int numMaps, mem_desc_t* staging_descs = NULL ,const char*fname = "", ResetElemFunc  resetElemFunc = NULL)
-      	  	  	  : filename(fname), core_queue(numMaps, resetElemFunc)
+      MergeQueue(int numMaps, mem_desc_t* staging_descs = NULL ,const char*fname = "", ResetElemFunc  resetElemFunc = NULL,
+                 merge_queue_type_t queueType = MQ_HEAP)
+      	  	  	  : filename(fname), core_queue(numMaps, resetElemFunc, queueType)
 {
     	this->num_of_segments=0;
+        this->upper_bound = NULL;
         this->mSegments = NULL;
         this->min_segment = NULL;
         this->key = NULL;
@@ -377,6 +592,7 @@ public:
 		MergeQueue(std::list<T> *segments){
 			this->mSegments = segments;
 			this->min_segment = NULL;
+			this->upper_bound = NULL;
 		}
 
 #if _BullseyeCoverage
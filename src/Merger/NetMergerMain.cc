@@ -39,6 +39,8 @@ uint32_t wqes_perconn = 256;
 merging_state_t merging_sm;
 
 hadoop_cmp_func g_cmp_func;
+hadoop_batch_cmp_func g_batch_cmp_func = NULL;
+hadoop_prefix_func g_key_prefix_func = NULL;
 
 //COVERITY: UNCAUGHT_EXCEPT, RM#189300. false alarm
 int MergeManager_main(int argc, char* argv[])  throw (UdaException*)
@@ -0,0 +1,276 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <signal.h>
+#include <unistd.h>
+#include <limits.h> // for PATH_MAX
+#include <sys/file.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <string>
+#include "NodeMemory.h"
+#include "UdaBridge.h"
+#include <UdaUtil.h>
+
+using namespace std;
+
+#define NODE_LEDGER_MAGIC   0x5544414c // "UDAL"
+#define NODE_LEDGER_VERSION 1
+#define NODE_LEDGER_SLOTS   256
+#define NODE_LEDGER_TASK_ID 64
+#define NODE_LEDGER_MODE    0660 // shared by the group of the ledger dir
+
+typedef struct node_lease {
+    int32_t     pid;                        /* 0 for a free slot */
+    uint64_t    start_time;                 /* of the process, tells a reused pid */
+    int64_t     bytes;
+    char        task_id[NODE_LEDGER_TASK_ID];
+} node_lease_t;
+
+typedef struct node_ledger {
+    uint32_t        magic;
+    uint32_t        version;
+    node_lease_t    leases[NODE_LEDGER_SLOTS];
+} node_ledger_t;
+
+static int             lock_fd = -1;
+static node_ledger_t  *ledger = NULL;
+static node_lease_t   *my_lease = NULL;
+static bool            ledger_failed = false; // don't retry on every task
+
+// start time of the process in clock ticks since boot (field 22 of /proc/<pid>/stat), 0 if it is gone
+static uint64_t process_start_time(int pid)
+{
+    char path[64];
+    snprintf(path, sizeof(path), "/proc/%d/stat", pid);
+    FILE *f = fopen(path, "r");
+    if (!f)
+        return 0;
+    char line[1024];
+    uint64_t start = 0;
+    if (fgets(line, sizeof(line), f)) {
+        char *p = strrchr(line, ')'); // the command may hold spaces
+        if (p && sscanf(p + 2, "%*c %*d %*d %*d %*d %*d %*u %*u %*u %*u %*u %*u %*u %*d %*d %*d %*d %*d %*d %llu",
+                (unsigned long long*)&start) != 1)
+            start = 0;
+    }
+    fclose(f);
+    return start;
+}
+
+static bool lease_is_alive(const node_lease_t *lease)
+{
+    if (kill(lease->pid, 0) != 0 && errno == ESRCH)
+        return false;
+    uint64_t start = process_start_time(lease->pid);
+    return start == 0 || start == lease->start_time; // no /proc - trust kill()
+}
+
+static int64_t node_memory_size()
+{
+    int64_t size = atoll(UdaBridge_invoke_getConfData_callback("mapred.rdma.node.shuffle.memory", "0").c_str());
+    if (size > 0)
+        return size;
+    int percent = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.node.shuffle.memory.percent", "50").c_str());
+    return (int64_t)sysconf(_SC_PHYS_PAGES) * sysconf(_SC_PAGESIZE) / 100 * percent;
+}
+
+static bool open_ledger()
+{
+    if (ledger)
+        return true;
+    if (ledger_failed)
+        return false;
+
+    // the local dirs are per application on YARN - the ledger must be in a directory of the whole node
+    string dir = UdaBridge_invoke_getConfData_callback("mapred.rdma.node.ledger.dir", "");
+    if (dir.empty()) {
+        log(lsINFO, "node memory arbiter is off: mapred.rdma.node.ledger.dir is not set");
+        ledger_failed = true;
+        return false;
+    }
+
+    char path[PATH_MAX];
+    snprintf(path, sizeof(path), "%s/uda.node.memory.lock", dir.c_str());
+    lock_fd = open(path, O_RDWR | O_CREAT, NODE_LEDGER_MODE);
+    if (lock_fd < 0) {
+        log(lsWARN, "node memory arbiter is off: failed to open %s (errno=%d)", path, errno);
+        ledger_failed = true;
+        return false;
+    }
+    fchmod(lock_fd, NODE_LEDGER_MODE); // not masked by the umask - fails harmlessly when another user created it
+
+    snprintf(path, sizeof(path), "%s/uda.node.memory.ledger", dir.c_str());
+    flock(lock_fd, LOCK_EX);
+    int fd = open(path, O_RDWR | O_CREAT, NODE_LEDGER_MODE);
+    bool ok = (fd >= 0);
+    if (ok) {
+        fchmod(fd, NODE_LEDGER_MODE);
+        struct stat st;
+        ok = (fstat(fd, &st) == 0) && (st.st_size == sizeof(node_ledger_t) || ftruncate(fd, sizeof(node_ledger_t)) == 0);
+    }
+    if (ok) {
+        void *mem = mmap(NULL, sizeof(node_ledger_t), PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+        if (mem != MAP_FAILED) {
+            ledger = (node_ledger_t*)mem;
+            if (ledger->magic != NODE_LEDGER_MAGIC || ledger->version != NODE_LEDGER_VERSION) {
+                memset(ledger, 0, sizeof(node_ledger_t)); // new, or of another version
+                ledger->magic = NODE_LEDGER_MAGIC;
+                ledger->version = NODE_LEDGER_VERSION;
+            }
+        }
+    }
+    if (fd >= 0)
+        close(fd); // the mapping stays
+    flock(lock_fd, LOCK_UN);
+
+    if (!ledger) {
+        log(lsWARN, "node memory arbiter is off: failed to map %s (errno=%d)", path, errno);
+        close(lock_fd);
+        lock_fd = -1;
+        ledger_failed = true;
+        return false;
+    }
+    log(lsINFO, "node memory arbiter: ledger %s", path);
+    return true;
+}
+
+/*
+ * lock_fd must be locked. returns the dead leases to the node, points my_lease at the slot of this
+ * process (NULL if the ledger is full) and returns the bytes leased by the other reducers
+ */
+static int64_t scan_leases(int pid, int *reducers, int *returned)
+{
+    int64_t others = 0;
+    node_lease_t *free_slot = NULL;
+    *reducers = 0;
+    my_lease = NULL;
+    for (int i = 0; i < NODE_LEDGER_SLOTS; ++i) {
+        node_lease_t *lease = &ledger->leases[i];
+        if (lease->pid && lease->pid != pid && !lease_is_alive(lease)) {
+            log(lsINFO, "node memory arbiter: returning the lease of %lld bytes of dead reducer %s (pid %d)",
+                    (long long)lease->bytes, lease->task_id, lease->pid);
+            memset(lease, 0, sizeof(node_lease_t));
+            (*returned)++;
+        }
+        if (lease->pid == pid)
+            my_lease = lease; // of a previous task of this process
+        else if (lease->pid) {
+            others += lease->bytes;
+            (*reducers)++;
+        }
+        else if (!free_slot)
+            free_slot = lease;
+    }
+    if (!my_lease)
+        my_lease = free_slot;
+    return others;
+}
+
+int64_t node_memory_lease(const char *task_id, int64_t wanted)
+{
+    if (strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.node.arbiter", "true").c_str(), "true") != 0)
+        return wanted;
+    if (!open_ledger())
+        return wanted;
+
+    int64_t node_size = node_memory_size();
+    int min_percent = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.node.min.lease.percent", "25").c_str());
+    int wait_sec = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.node.lease.wait.sec", "60").c_str());
+    int64_t min_lease = wanted / 100 * min_percent;
+    int pid = getpid();
+
+    int64_t others = 0, granted = 0;
+    int reducers = 0, returned = 0;
+    for (int waited = 0; ; ++waited) {
+        flock(lock_fd, LOCK_EX);
+        others = scan_leases(pid, &reducers, &returned);
+        granted = node_size - others;
+        if (granted > wanted)
+            granted = wanted;
+        if (granted >= min_lease)
+            break; // still locked
+
+        flock(lock_fd, LOCK_UN);
+        if (waited >= wait_sec) {
+            log(lsERROR, "node memory arbiter: only %lld of the node's %lld bytes are free (%d other reducers hold %lld), "
+                    "below the minimum lease of %lld bytes after waiting %d seconds",
+                    (long long)(node_size - others), (long long)node_size, reducers, (long long)others, (long long)min_lease, waited);
+            my_lease = NULL;
+            throw new UdaException("node shuffle memory is exhausted");
+        }
+        if (!waited) {
+            log(lsWARN, "node memory arbiter: waiting for %lld bytes - %d other reducers hold %lld of the node's %lld bytes",
+                    (long long)min_lease, reducers, (long long)others, (long long)node_size);
+        }
+        sleep(1);
+    }
+
+    if (my_lease) {
+        my_lease->pid = pid;
+        my_lease->start_time = process_start_time(pid);
+        my_lease->bytes = granted;
+        snprintf(my_lease->task_id, sizeof(my_lease->task_id), "%s", task_id);
+    }
+    flock(lock_fd, LOCK_UN);
+
+    if (!my_lease) {
+        log(lsWARN, "node memory arbiter: ledger is full (%d reducers) - running without a lease", NODE_LEDGER_SLOTS);
+    }
+    if (granted < wanted)
+        log(lsWARN, "node memory arbiter: granted %lld of %lld bytes - %d other reducers hold %lld of the node's %lld bytes",
+                (long long)granted, (long long)wanted, reducers, (long long)others, (long long)node_size);
+    else
+        log(lsINFO, "node memory arbiter: granted %lld bytes - %d other reducers hold %lld of the node's %lld bytes (%d dead leases returned)",
+                (long long)granted, reducers, (long long)others, (long long)node_size, returned);
+    return granted;
+}
+
+void node_memory_resize(int64_t bytes)
+{
+    if (!my_lease)
+        return;
+    flock(lock_fd, LOCK_EX);
+    my_lease->bytes = bytes;
+    flock(lock_fd, LOCK_UN);
+}
+
+void node_memory_release()
+{
+    if (!my_lease)
+        return;
+    flock(lock_fd, LOCK_EX);
+    memset(my_lease, 0, sizeof(node_lease_t));
+    flock(lock_fd, LOCK_UN);
+    my_lease = NULL;
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
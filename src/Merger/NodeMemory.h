@@ -0,0 +1,56 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef NODE_MEMORY_H
+#define NODE_MEMORY_H 1
+
+#include <stdint.h>
+
+/*
+ * Node-wide arbiter of the native shuffle memory of the reducers of a node (mapred.rdma.node.arbiter).
+ * The reducers share a ledger of leases - a file mapped by every reducer, guarded by a lock file - in
+ * mapred.rdma.node.ledger.dir, a node-wide directory (not a per-job or per-application local dir) that must
+ * be set for the arbiter to run. The files are created 0660, so when reducers run as several users the
+ * directory should be setgid and owned by a group of all of them. A reducer takes a lease before it plans
+ * its merge, so with a smaller lease it fetches in smaller LPQs and spills more. The node's shuffle memory
+ * is mapred.rdma.node.shuffle.memory bytes, else mapred.rdma.node.shuffle.memory.percent of the RAM.
+ * One lease per process; the leases of processes that died are returned by the next reducer that takes
+ * the lock.
+ */
+
+/* returns the bytes granted to this process: wanted, less the leases of the other reducers of the node.
+ * when that is below mapred.rdma.node.min.lease.percent of wanted, waits up to mapred.rdma.node.lease.wait.sec
+ * for other reducers to return memory, then throws. wanted when the arbiter is off or fails */
+int64_t node_memory_lease(const char *task_id, int64_t wanted);
+
+/* the process keeps bytes between its tasks (a parked RDMA client) */
+void    node_memory_resize(int64_t bytes);
+
+void    node_memory_release();
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
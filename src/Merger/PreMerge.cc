@@ -0,0 +1,238 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdlib.h>
+#include <limits.h> // for PATH_MAX
+#include "reducer.h"
+#include "MergeManager.h"
+#include "PreMerge.h"
+#include "UdaBridge.h"
+#include "ShuffleMemory.h"
+#include <UdaUtil.h>
+
+using namespace std;
+
+////////////////////////////////////////////////////////////////////////////////
+/*static*/ PreMerger *PreMerger::create(reduce_task *task)
+{
+    int batch_size = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.premerge.segments", "64").c_str());
+    int64_t max_memory = atoll(UdaBridge_invoke_getConfData_callback("mapred.rdma.premerge.memory", "134217728").c_str());
+    if (batch_size < 2 || task->num_maps <= batch_size || task->isCompressionOn()) {
+        log(lsDEBUG, "pre-merge is off: segments=%d num_maps=%d compression=%d", batch_size, task->num_maps, (int)task->isCompressionOn());
+        return NULL;
+    }
+    log(lsINFO, "pre-merge of small map outputs in batches of %d, up to %lld bytes of runs in memory", batch_size, (long long)max_memory);
+    return new PreMerger(task, batch_size, max_memory);
+}
+
+PreMerger::PreMerger(reduce_task *task, int batch_size, int64_t max_memory) :
+    _task(task), _batch_size(batch_size), _max_memory(max_memory), _batch(NULL), _batch_bytes(0),
+    _merging(0), _stopped(false), _failed(false), _memory(0), _num_spills(0), _merged_segments(0)
+{
+    pthread_mutex_init(&_lock, NULL);
+    pthread_cond_init(&_cond, NULL);
+    uda_thread_create(&_thread, NULL, premerge_thread_start, this);
+}
+
+PreMerger::~PreMerger()
+{
+    pthread_mutex_lock(&_lock);
+    _stopped = true;
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+    pthread_join(_thread, NULL);
+
+    // left after a failure or a stopped merge
+    if (_batch) {
+        for (size_t i = 0; i < _batch->size(); ++i)
+            delete (*_batch)[i];
+        delete _batch;
+    }
+    for (list<pair<batch_t*, int64_t> >::iterator it = _batches.begin(); it != _batches.end(); ++it) {
+        for (size_t i = 0; i < it->first->size(); ++i)
+            delete (*it->first)[i];
+        delete it->first;
+    }
+    for (list<BaseSegment*>::iterator it = _runs.begin(); it != _runs.end(); ++it)
+        delete *it;
+
+    pthread_cond_destroy(&_cond);
+    pthread_mutex_destroy(&_lock);
+}
+
+bool PreMerger::add(Segment *segment, MapOutput *mop)
+{
+    // only map outputs that are entirely in their first RDMA buffer - others keep fetching while they are merged
+    if (mop->fetched_len_rdma != mop->total_len_rdma)
+        return false;
+
+    if (!_batch)
+        _batch = new batch_t();
+    _batch->push_back(segment);
+    _batch_bytes += mop->total_len_uncompress;
+
+    if ((int)_batch->size() == _batch_size || _batch_bytes >= PREMERGE_MAX_RUN) {
+        pthread_mutex_lock(&_lock);
+        _batches.push_back(make_pair(_batch, _batch_bytes));
+        pthread_cond_signal(&_cond);
+        pthread_mutex_unlock(&_lock);
+        _batch = NULL;
+        _batch_bytes = 0;
+    }
+    return true;
+}
+
+void PreMerger::interrupt()
+{
+    pthread_mutex_lock(&_lock);
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+}
+
+int PreMerger::finish(SegmentMergeQueue *queue)
+{
+    batch_t *partial = _batch;
+    _batch = NULL;
+    _batch_bytes = 0;
+
+    pthread_mutex_lock(&_lock);
+    while ((!_batches.empty() || _merging) && !_failed && !_task->merge_thread.stop)
+        pthread_cond_wait(&_cond, &_lock);
+    list<BaseSegment*> runs;
+    runs.swap(_runs);
+    bool failed = _failed;
+    pthread_mutex_unlock(&_lock);
+
+    if (partial) { // too few for a run of their own - merged by the final merge
+        for (size_t i = 0; i < partial->size(); ++i)
+            queue->insert((*partial)[i]);
+        delete partial;
+    }
+    int num_runs = runs.size();
+    for (list<BaseSegment*>::iterator it = runs.begin(); it != runs.end(); ++it)
+        queue->insert(*it);
+
+    if (failed) {
+        log(lsERROR, "pre-merge of map outputs failed");
+        throw new UdaException("pre-merge of map outputs failed");
+    }
+    log(lsINFO, "pre-merge: %d map outputs merged into %d runs (%d spilled)", _merged_segments, num_runs, _num_spills);
+    return num_runs;
+}
+
+/*static*/ void *PreMerger::premerge_thread_start(void *context)
+{
+    ((PreMerger*)context)->premerge_loop();
+    return NULL;
+}
+
+void PreMerger::premerge_loop()
+{
+    pthread_mutex_lock(&_lock);
+    while (true) {
+        while (_batches.empty() && !_stopped)
+            pthread_cond_wait(&_cond, &_lock);
+        if (_stopped)
+            break;
+        pair<batch_t*, int64_t> batch = _batches.front();
+        _batches.pop_front();
+        _merging++;
+        pthread_mutex_unlock(&_lock);
+
+        BaseSegment *run = NULL;
+        bool failed = false;
+        try {
+            run = merge_batch(batch.first, batch.second);
+        }
+        catch (UdaException *ex) {
+            log(lsERROR, "pre-merge of %d map outputs failed: %s", (int)batch.first->size(), ex->_info);
+            failed = true;
+        }
+        delete batch.first;
+
+        pthread_mutex_lock(&_lock);
+        _merging--;
+        if (run)
+            _runs.push_back(run);
+        _failed = _failed || failed;
+        pthread_cond_broadcast(&_cond);
+    }
+    pthread_mutex_unlock(&_lock);
+}
+
+// merges the batch's segments into one run. the segments are deleted - and return their RDMA buffers - as they end
+BaseSegment *PreMerger::merge_batch(batch_t *batch, int64_t bytes)
+{
+    SegmentMergeQueue queue(batch->size(), NULL, "", NULL, _task->merge_man->lpq_queue_type);
+    for (size_t i = 0; i < batch->size(); ++i) {
+        Segment *segment = (*batch)[i];
+        (*batch)[i] = NULL; // owned by the queue from now on, or deleted
+        queue.insert(segment);
+    }
+    _merged_segments += batch->size();
+
+    int32_t total_write = 0;
+    char *buf = NULL;
+    try {
+        if (_memory + bytes <= _max_memory || _task->local_dirs.empty()) {
+            // the run's bytes are at most the segments' bytes, every segment ends with its own EOF marker
+            buf = (char*)malloc(bytes);
+            if (!buf) {
+                log(lsERROR, "failed to allocate %lld bytes for pre-merge run", (long long)bytes);
+                throw new UdaException("failed to allocate pre-merge run");
+            }
+            shuffle_mem_alloc(SHUFFLE_MEM_LPQ, bytes);
+            write_kv_to_mem(&queue, buf, (int32_t)bytes, total_write);
+            // the segment accounts the run's bytes from now on
+            char *run = (char*)realloc(buf, total_write);
+            if (run)
+                buf = run;
+            shuffle_mem_free(SHUFFLE_MEM_LPQ, bytes);
+            _memory += total_write;
+            MemSegment *segment = new MemSegment(_task, buf, total_write);
+            buf = NULL;
+            return segment;
+        }
+
+        char path[PATH_MAX];
+        const string &dir = _task->local_dirs[_num_spills % _task->local_dirs.size()];
+        snprintf(path, sizeof(path), "%s/uda.%s.premerge-%03d", dir.c_str(), _task->reduce_task_id, _num_spills);
+        _num_spills++;
+        write_kv_to_file(&queue, path, total_write);
+        return new SuperSegment(_task, path);
+    }
+    catch (UdaException *ex) {
+        if (buf) {
+            free(buf);
+            shuffle_mem_free(SHUFFLE_MEM_LPQ, bytes);
+        }
+        while (queue.core_queue.size() > 0)
+            delete queue.core_queue.pop();
+        throw ex;
+    }
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
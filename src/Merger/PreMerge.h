@@ -0,0 +1,94 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef PRE_MERGE_H
+#define PRE_MERGE_H 1
+
+#include <pthread.h>
+#include <vector>
+#include <list>
+#include "StreamRW.h"
+
+struct reduce_task;
+
+#define PREMERGE_MAX_RUN (64 << 20) // bytes of map outputs merged into one run
+
+/*
+ * Online merge: merges small map outputs - fetched entirely into their first RDMA buffer - in the background
+ * while the other map outputs are still fetched. Each batch of mapred.rdma.premerge.segments map outputs
+ * becomes one run in memory, or in a local file once the runs in memory reach mapred.rdma.premerge.memory bytes.
+ * The merged map outputs return their RDMA buffers to the pool, and the final merge gets one segment per run.
+ */
+class PreMerger
+{
+public:
+    /* returns NULL when pre-merge is disabled (mapred.rdma.premerge.segments < 2) */
+    static PreMerger *create(reduce_task *task);
+    ~PreMerger();
+
+    /* fetching thread: takes the segment of mop into the next batch if mop is small, else returns false */
+    bool add(Segment *segment, MapOutput *mop);
+
+    /* fetching thread, when all map outputs were fetched: merges the partial batch,
+     * waits for all batches and inserts their runs into queue. returns the number of runs */
+    int finish(SegmentMergeQueue *queue);
+
+    /* after merge_thread.stop was set: wakes finish(), which returns without waiting for the batches */
+    void interrupt();
+
+private:
+    PreMerger(reduce_task *task, int batch_size, int64_t max_memory);
+
+    typedef std::vector<Segment*> batch_t;
+
+    static void *premerge_thread_start(void *context);
+    void premerge_loop();
+    BaseSegment *merge_batch(batch_t *batch, int64_t bytes);
+
+    reduce_task            *_task;
+    int                     _batch_size;
+    int64_t                 _max_memory;   /* bytes of runs in memory, later runs are spilled */
+
+    batch_t                *_batch;        /* being filled by the fetching thread */
+    int64_t                 _batch_bytes;
+
+    pthread_mutex_t         _lock;
+    pthread_cond_t          _cond;
+    std::list<std::pair<batch_t*, int64_t> > _batches; /* waiting for the merge thread */
+    std::list<BaseSegment*> _runs;
+    int                     _merging;      /* batches taken by the merge thread and not done */
+    bool                    _stopped;
+    bool                    _failed;
+    pthread_t               _thread;
+
+    int64_t                 _memory;       /* bytes of runs in memory */
+    int                     _num_spills;
+    int                     _merged_segments;
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,394 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <algorithm>
+#include "RangeMerge.h"
+#include "MergeManager.h"
+#include "StreamRW.h"
+#include "ShuffleMemory.h"
+#include "reducer.h"
+#include "UdaBridge.h"
+#include "UdaUtil.h"
+
+using namespace std;
+
+////////////////////////////////////////////////////////////////////////////////
+int64_t KeyIndex::seek_offset(const string &key)
+{
+    // keys are sorted - find the last one that is less than key
+    int lo = 0, hi = (int)keys.size();
+    while (lo < hi) {
+        int mid = (lo + hi) / 2;
+        if (g_cmp_func((char*)keys[mid].data(), keys[mid].size(), (char*)key.data(), key.size()) < 0)
+            lo = mid + 1;
+        else
+            hi = mid;
+    }
+    return lo > 0 ? offsets[lo - 1] : 0;
+}
+
+// output buffers of the ranges are charged to SHUFFLE_MEM_RANGE
+static char *alloc_output(int32_t size)
+{
+    char *buf = (char*)malloc(size);
+    if (buf)
+        shuffle_mem_alloc(SHUFFLE_MEM_RANGE, size);
+    return buf;
+}
+
+static void free_output(char *buf, int32_t size)
+{
+    free(buf);
+    shuffle_mem_free(SHUFFLE_MEM_RANGE, size);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+RangeOutput::RangeOutput(int max_mem_buffers, int32_t buf_size, const string &spill_path)
+{
+    pthread_mutex_init(&_lock, NULL);
+    pthread_cond_init(&_cond, NULL);
+    _max_mem_buffers = max_mem_buffers;
+    _buf_size = buf_size;
+    _consuming = _done = _failed = _stopped = false;
+    _bytes = 0;
+    _spill_path = spill_path;
+    _spill_out = _spill_in = NULL;
+    _spilled_buffers = _read_buffers = _spilled_bytes = 0;
+}
+
+RangeOutput::~RangeOutput()
+{
+    while (!_mem_buffers.empty()) {
+        free_output(_mem_buffers.front().first, _buf_size);
+        _mem_buffers.pop_front();
+    }
+    if (_spill_in)
+        fclose(_spill_in);
+    if (_spill_out) {
+        fclose(_spill_out);
+        remove(_spill_path.c_str());
+    }
+    pthread_cond_destroy(&_cond);
+    pthread_mutex_destroy(&_lock);
+}
+
+void RangeOutput::push(char *buf, int32_t len)
+{
+    pthread_mutex_lock(&_lock);
+    _bytes += len;
+
+    // the consumer is on this range - no point in spilling what it is about to read
+    while (!_stopped && !_spill_out && _consuming && (int)_mem_buffers.size() >= _max_mem_buffers)
+        pthread_cond_wait(&_cond, &_lock);
+
+    if (_stopped) {
+        pthread_mutex_unlock(&_lock);
+        free_output(buf, _buf_size);
+        return;
+    }
+
+    if (!_spill_out && (int)_mem_buffers.size() < _max_mem_buffers) {
+        _mem_buffers.push_back(make_pair(buf, len));
+        pthread_cond_broadcast(&_cond);
+        pthread_mutex_unlock(&_lock);
+        return;
+    }
+
+    if (!_spill_out) {
+        _spill_out = fopen(_spill_path.c_str(), "wb");
+        if (!_spill_out) {
+            pthread_mutex_unlock(&_lock);
+            free_output(buf, _buf_size);
+            log(lsERROR, "failed to open range merge spill file %s (%m)", _spill_path.c_str());
+            throw new UdaException("failed to open range merge spill file");
+        }
+        log(lsDEBUG, "range output spills to %s", _spill_path.c_str());
+    }
+    pthread_mutex_unlock(&_lock);
+
+    // only this thread writes the file, the consumer reads only buffers that were counted
+    bool written = (fwrite(&len, sizeof(len), 1, _spill_out) == 1 && fwrite(buf, len, 1, _spill_out) == 1 && fflush(_spill_out) == 0);
+    free_output(buf, _buf_size);
+    if (!written) {
+        log(lsERROR, "failed to write range merge spill file %s (%m)", _spill_path.c_str());
+        throw new UdaException("failed to write range merge spill file");
+    }
+
+    pthread_mutex_lock(&_lock);
+    _spilled_buffers++;
+    _spilled_bytes += len;
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+}
+
+void RangeOutput::done(bool failed)
+{
+    pthread_mutex_lock(&_lock);
+    _done = true;
+    _failed = failed;
+    log(lsINFO, "range merged: bytes=%lld spilled_bytes=%lld failed=%d", (long long)_bytes, (long long)_spilled_bytes, (int)failed);
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+}
+
+void RangeOutput::stop()
+{
+    pthread_mutex_lock(&_lock);
+    _stopped = true;
+    pthread_cond_broadcast(&_cond);
+    pthread_mutex_unlock(&_lock);
+}
+
+int32_t RangeOutput::pop(char *dest, int32_t dest_len)
+{
+    pthread_mutex_lock(&_lock);
+    _consuming = true;
+
+    while (true) {
+        if (_failed) {
+            pthread_mutex_unlock(&_lock);
+            log(lsERROR, "merge of key range failed");
+            throw new UdaException("merge of key range failed");
+        }
+
+        if (!_mem_buffers.empty()) {
+            char *buf = _mem_buffers.front().first;
+            int32_t len = _mem_buffers.front().second;
+            _mem_buffers.pop_front();
+            pthread_cond_broadcast(&_cond); // room for the producer
+            pthread_mutex_unlock(&_lock);
+
+            memcpy(dest, buf, len);
+            free_output(buf, _buf_size);
+            return len;
+        }
+
+        if (_read_buffers < _spilled_buffers) {
+            pthread_mutex_unlock(&_lock);
+
+            if (!_spill_in && !(_spill_in = fopen(_spill_path.c_str(), "rb"))) {
+                log(lsERROR, "failed to open range merge spill file %s for read (%m)", _spill_path.c_str());
+                throw new UdaException("failed to open range merge spill file");
+            }
+            int32_t len = 0;
+            if (fread(&len, sizeof(len), 1, _spill_in) != 1 || len > dest_len || fread(dest, len, 1, _spill_in) != 1) {
+                log(lsERROR, "failed to read range merge spill file %s (%m)", _spill_path.c_str());
+                throw new UdaException("failed to read range merge spill file");
+            }
+
+            pthread_mutex_lock(&_lock);
+            _read_buffers++;
+            pthread_mutex_unlock(&_lock);
+            return len;
+        }
+
+        if (_done || _stopped) {
+            pthread_mutex_unlock(&_lock);
+            return 0;
+        }
+
+        pthread_cond_wait(&_cond, &_lock);
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+static bool key_less(const string *a, const string *b)
+{
+    return g_cmp_func((char*)a->data(), a->size(), (char*)b->data(), b->size()) < 0;
+}
+
+RangeMerger::RangeMerger(reduce_task *task, const vector<string> &lpq_files,
+                         vector<KeyIndex*> &lpq_indexes, int num_ranges, int max_mem_buffers, int32_t buf_len)
+    : _task(task), _lpq_files(lpq_files), _lpq_indexes(lpq_indexes), _num_ranges(num_ranges), _buf_len(buf_len)
+{
+    choose_splitters(lpq_indexes);
+
+    // the waiting buffers of all ranges, and the one each range fills, must fit the budget left - the fetch buffers are still held
+    int64_t budget = shuffle_mem_budget();
+    if (budget > 0) {
+        int64_t per_buffer = (int64_t)num_ranges * buf_len;
+        int64_t fit = (budget - shuffle_mem_used(SHUFFLE_MEM_NUM)) / per_buffer - 1;
+        if (fit < max_mem_buffers) {
+            int buffers = (fit < 1) ? 1 : (int)fit;
+            log(lsWARN, "range merge: %d buffers of each of the %d ranges don't fit the %lld bytes left of the budget - %d buffers wait in memory, later ones are spilled",
+                    max_mem_buffers, num_ranges, (long long)(budget - shuffle_mem_used(SHUFFLE_MEM_NUM)), buffers);
+            max_mem_buffers = buffers;
+        }
+    }
+
+    char spill_path[PATH_MAX];
+    _segments.resize(_num_ranges);
+    for (int r = 0; r < _num_ranges; ++r) {
+        const string &dir = task->local_dirs[r % task->local_dirs.size()];
+        snprintf(spill_path, sizeof(spill_path), "%s/uda.%s.range-%03d", dir.c_str(), task->reduce_task_id, r);
+        _outputs.push_back(new RangeOutput(max_mem_buffers, buf_len, spill_path));
+
+        // a SuperSegment removes its file when deleted, so all ranges open the LPQ files before any range ends
+        for (size_t i = 0; i < _lpq_files.size(); ++i)
+            _segments[r].push_back(new SuperSegment(task, _lpq_files[i]));
+    }
+}
+
+RangeMerger::~RangeMerger()
+{
+    for (int r = 0; r < _num_ranges; ++r)
+        delete _outputs[r];
+}
+
+void RangeMerger::choose_splitters(vector<KeyIndex*> &lpq_indexes)
+{
+    // every indexed key stands for ~KEY_INDEX_INTERVAL bytes, so quantiles of the samples split the bytes evenly
+    vector<const string*> samples;
+    for (size_t i = 0; i < lpq_indexes.size(); ++i) {
+        for (size_t k = 0; k < lpq_indexes[i]->keys.size(); ++k)
+            samples.push_back(&lpq_indexes[i]->keys[k]);
+    }
+    sort(samples.begin(), samples.end(), key_less);
+
+    if ((int)samples.size() < _num_ranges) {
+        log(lsINFO, "only %d key samples - merging %d key ranges instead of %d", (int)samples.size(), (int)samples.size() + 1, _num_ranges);
+        _num_ranges = (int)samples.size() + 1;
+    }
+    for (int r = 1; r < _num_ranges; ++r)
+        _splitters.push_back(*samples[(size_t)r * samples.size() / _num_ranges]);
+
+    log(lsINFO, "range merge: %d ranges, %d key samples from %d LPQs", _num_ranges, (int)samples.size(), (int)lpq_indexes.size());
+}
+
+void *RangeMerger::range_merge_start(void *context)
+{
+    range_arg_t *arg = (range_arg_t*)context;
+    arg->merger->merge_range(arg->range);
+    return NULL;
+}
+
+void RangeMerger::merge_range(int range)
+{
+    RangeOutput *output = _outputs[range];
+    SegmentMergeQueue *queue = new SegmentMergeQueue(_lpq_files.size(), NULL, "", NULL, _task->merge_man->rpq_queue_type);
+    try {
+        const string *lower = (range > 0) ? &_splitters[range - 1] : NULL;
+        if (range < _num_ranges - 1)
+            queue->setUpperBound(&_splitters[range]);
+
+        for (size_t i = 0; i < _segments[range].size(); ++i) {
+            SuperSegment *segment = _segments[range][i];
+            _segments[range][i] = NULL; // owned by the queue from now on, or deleted
+            if (!lower) {
+                queue->insert(segment);
+                continue;
+            }
+
+            // skip to the indexed record before the range, then to the range's first record
+            bool in_range = segment->seek(_lpq_indexes[i]->seek_offset(*lower));
+            if (!in_range) {
+                log(lsERROR, "failed to seek in LPQ file %s (%m)", _lpq_files[i].c_str());
+                delete segment;
+                throw new UdaException("failed to seek in LPQ file");
+            }
+            while (in_range && segment->nextKV() == 1) {
+                if (g_cmp_func(segment->key.getData(), segment->key.getLength(), (char*)lower->data(), lower->size()) >= 0) {
+                    queue->insertCurrent(segment);
+                    segment = NULL;
+                    break;
+                }
+            }
+            if (segment)
+                delete segment; // all of its keys are before the range
+        }
+
+        bool finished = false;
+        while (!finished && !_task->merge_thread.stop) {
+            char *buf = alloc_output(_buf_len);
+            if (!buf) {
+                log(lsERROR, "failed to allocate %d bytes for range merge output", _buf_len);
+                throw new UdaException("failed to allocate range merge output");
+            }
+            int32_t act_len = 0;
+            try {
+                finished = write_kv_to_mem(queue, buf, _buf_len, act_len, range == _num_ranges - 1); // one EOF marker, at the end of the last range
+            }
+            catch (UdaException *ex) {
+                free_output(buf, _buf_len);
+                throw ex;
+            }
+            if (act_len > 0)
+                output->push(buf, act_len);
+            else
+                free_output(buf, _buf_len);
+        }
+        output->done(false);
+    }
+    catch (UdaException *ex) {
+        log(lsERROR, "merge of key range %d failed: %s", range, ex->_info);
+        for (size_t i = 0; i < _segments[range].size(); ++i) {
+            if (_segments[range][i])
+                delete _segments[range][i];
+        }
+        output->done(true); // reported by the consumer
+    }
+
+    // segments with keys beyond the range
+    while (queue->core_queue.size() > 0)
+        delete queue->core_queue.pop();
+    delete queue;
+    _segments[range].clear();
+}
+
+void RangeMerger::run(JNIEnv *jniEnv, jobject jbuf, char *java_buf)
+{
+    _args.resize(_num_ranges);
+    _threads.resize(_num_ranges);
+    for (int r = 0; r < _num_ranges; ++r) {
+        _args[r].merger = this;
+        _args[r].range = r;
+        uda_thread_create(&_threads[r], NULL, range_merge_start, &_args[r]);
+    }
+
+    UdaException *failure = NULL;
+    try {
+        for (int r = 0; r < _num_ranges && !_task->merge_thread.stop; ++r) {
+            int32_t len;
+            while ((len = _outputs[r]->pop(java_buf, _buf_len)) > 0 && !_task->merge_thread.stop)
+                UdaBridge_invoke_dataFromUda_callback(jniEnv, jbuf, len);
+        }
+    }
+    catch (UdaException *ex) {
+        failure = ex;
+    }
+
+    for (int r = 0; r < _num_ranges; ++r)
+        _outputs[r]->stop();
+    for (int r = 0; r < _num_ranges; ++r)
+        pthread_join(_threads[r], NULL);
+
+    if (failure)
+        throw failure;
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
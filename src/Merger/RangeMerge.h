@@ -0,0 +1,157 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef RANGE_MERGE_H
+#define RANGE_MERGE_H 1
+
+#include <stdio.h>
+#include <pthread.h>
+#include <string>
+#include <vector>
+#include <list>
+#include <jni.h>
+#include "IOUtility.h"
+
+struct reduce_task;
+class SuperSegment;
+
+#define KEY_INDEX_INTERVAL (1 << 20) // bytes of merged output between indexed records
+
+/*
+ * Sparse index of a merged (LPQ) output file: the key and the file offset of one record
+ * every KEY_INDEX_INTERVAL bytes. Built by write_kv_to_file while the LPQ is written.
+ */
+class KeyIndex
+{
+public:
+    KeyIndex() : _offset(0), _next_sample(0) {}
+
+    /* called for every written record, in order */
+    void add(const char *key, int32_t key_len, int32_t record_len) {
+        if (_offset >= _next_sample) {
+            keys.push_back(std::string(key, key_len));
+            offsets.push_back(_offset);
+            _next_sample = _offset + KEY_INDEX_INTERVAL;
+        }
+        _offset += record_len;
+    }
+
+    /* offset of the last indexed record whose key is less than key (0 if there is none) -
+     * all the records of the file that are not less than key are after it */
+    int64_t seek_offset(const std::string &key);
+
+    std::vector<std::string> keys;
+    std::vector<int64_t>     offsets;
+
+private:
+    int64_t _offset;
+    int64_t _next_sample;
+};
+
+/*
+ * The merged output of one key range. The range's merge thread produces buffers of whole records
+ * while the ranges before it are consumed. Up to max_mem_buffers wait in memory, later buffers are
+ * appended to a spill file. Once the range spilled, all its following buffers go to the file, so
+ * buffers are always consumed in the order they were produced.
+ * While the range is the one being consumed its merge thread waits for free memory instead of spilling.
+ */
+class RangeOutput
+{
+public:
+    RangeOutput(int max_mem_buffers, int32_t buf_size, const std::string &spill_path);
+    ~RangeOutput();
+
+    /* producer: buf of buf_size bytes was charged to SHUFFLE_MEM_RANGE and is owned by RangeOutput from now on */
+    void push(char *buf, int32_t len);
+    void done(bool failed);
+
+    /* the merge was stopped - buffers are dropped and nobody waits anymore */
+    void stop();
+
+    /* consumer: copies the next buffer to dest and returns its length, 0 when the range is done.
+     * marks the range as the one being consumed. throws if the range's merge failed */
+    int32_t pop(char *dest, int32_t dest_len);
+
+private:
+    pthread_mutex_t     _lock;
+    pthread_cond_t      _cond;
+    std::list<std::pair<char*, int32_t> > _mem_buffers;
+    int                 _max_mem_buffers;
+    int32_t             _buf_size;     /* allocated bytes of each buffer */
+    bool                _consuming;
+    bool                _done;
+    bool                _failed;
+    bool                _stopped;
+    int64_t             _bytes;
+
+    std::string         _spill_path;
+    FILE               *_spill_out;
+    FILE               *_spill_in;
+    int64_t             _spilled_buffers;
+    int64_t             _read_buffers;
+    int64_t             _spilled_bytes;
+};
+
+/*
+ * Final merge of the LPQ outputs split by key range, each range merged by its own thread.
+ * Splitters are quantiles of the keys of the LPQs' indexes, so ranges hold about the same bytes.
+ * The caller's (JNI attached) thread passes the ranges' buffers to Java in key order.
+ */
+class RangeMerger
+{
+public:
+    RangeMerger(reduce_task *task, const std::vector<std::string> &lpq_files,
+                std::vector<KeyIndex*> &lpq_indexes, int num_ranges, int max_mem_buffers, int32_t buf_len);
+    ~RangeMerger();
+
+    /* merges all ranges and passes them to Java through jbuf, which wraps java_buf (of buf_len bytes) */
+    void run(JNIEnv *jniEnv, jobject jbuf, char *java_buf);
+
+private:
+    typedef struct range_arg {
+        RangeMerger   *merger;
+        int            range;
+    } range_arg_t;
+
+    static void *range_merge_start(void *context);
+    void merge_range(int range);
+    void choose_splitters(std::vector<KeyIndex*> &lpq_indexes);
+
+    reduce_task                *_task;
+    std::vector<std::string>    _lpq_files;
+    std::vector<KeyIndex*>      _lpq_indexes;
+    std::vector<std::vector<SuperSegment*> > _segments; /* [range][lpq] - opened before any range is merged */
+    std::vector<std::string>    _splitters; /* range r holds keys in [splitters[r-1], splitters[r]) */
+    std::vector<RangeOutput*>   _outputs;
+    std::vector<range_arg_t>    _args;
+    std::vector<pthread_t>      _threads;
+    int                         _num_ranges;
+    int32_t                     _buf_len;
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
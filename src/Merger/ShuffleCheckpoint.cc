@@ -0,0 +1,301 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <dirent.h>
+#include <time.h>
+#include <sys/stat.h>
+#include <fstream>
+#include <sstream>
+#include "ShuffleCheckpoint.h"
+#include "MergeManager.h"
+#include "reducer.h"
+#include "UdaBridge.h"
+#include <UdaUtil.h>
+
+using namespace std;
+
+#define CHECKPOINT_VERSION 2
+#define CHECKPOINT_MAX_AGE_SEC "86400"
+
+////////////////////////////////////////////////////////////////////////////////
+/*static*/ ShuffleCheckpoint *ShuffleCheckpoint::create(reduce_task *task, MergeManager *manager)
+{
+    if (strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.shuffle.checkpoint", "false").c_str(), "true") != 0)
+        return NULL;
+    if (manager->online != 2 || manager->num_merge_ranges > 1 || task->local_dirs.empty()) {
+        log(lsINFO, "shuffle checkpoint is off: supported only with hybrid merge in one key range (approach=%d, ranges=%d, local dirs=%d)",
+                manager->online, manager->num_merge_ranges, (int)task->local_dirs.size());
+        return NULL;
+    }
+
+    // attempt_<job>_r_<task>_<attempt> - all attempts of the reduce task share the manifest
+    string manifest = task->local_dirs[0] + "/uda." + task_id_of(task->reduce_task_id) + ".checkpoint";
+    sweep(task->local_dirs, manifest);
+
+    // the LPQ layout is not part of it - it is planned for the memory of each attempt
+    ostringstream header;
+    header << "uda-checkpoint " << CHECKPOINT_VERSION << " maps=" << task->num_maps
+           << " codec=" << (manager->spill_codec ? manager->spill_codec->name : "none");
+
+    ShuffleCheckpoint *checkpoint = new ShuffleCheckpoint(manifest, header.str());
+    checkpoint->restore(manager);
+    return checkpoint;
+}
+
+ShuffleCheckpoint::ShuffleCheckpoint(const string &manifest, const string &header) :
+    _manifest(manifest), _header(header), _num_restored(0), _complete(false)
+{
+    pthread_mutex_init(&_lock, NULL);
+}
+
+ShuffleCheckpoint::~ShuffleCheckpoint()
+{
+    if (_complete) {
+        remove_files(0);
+        ::remove(_manifest.c_str());
+        log(lsDEBUG, "shuffle checkpoint %s deleted", _manifest.c_str());
+    }
+    pthread_mutex_destroy(&_lock);
+}
+
+/*static*/ string ShuffleCheckpoint::task_id_of(const char *attempt_id)
+{
+    const char *end = strrchr(attempt_id, '_');
+    return end ? string(attempt_id, end - attempt_id) : string(attempt_id);
+}
+
+// takes the entries of the manifest that are intact, in LPQ order. the spills of the others are deleted
+void ShuffleCheckpoint::restore(MergeManager *manager)
+{
+    ifstream in(_manifest.c_str());
+    if (!in) {
+        log(lsINFO, "shuffle checkpoint: %s (no previous attempt to resume)", _manifest.c_str());
+        return;
+    }
+
+    string line;
+    getline(in, line);
+    bool same_layout = (line == _header);
+    if (!same_layout) {
+        log(lsWARN, "shuffle checkpoint of a previous attempt has other maps or codec - not resumed: '%s' (now '%s')", line.c_str(), _header.c_str());
+    }
+
+    while (true) {
+        entry_t entry;
+        int num_maps = 0;
+        string maps;
+        if (!getline(in, line) || sscanf(line.c_str(), "lpq %d %lld %d", &entry.lpq, (long long*)&entry.size, &num_maps) != 3)
+            break;
+        if (!getline(in, entry.path) || !getline(in, maps))
+            break;
+        istringstream map_ids(maps);
+        string id;
+        while (map_ids >> id)
+            entry.maps.push_back(id);
+        _entries.push_back(entry);
+
+        struct stat st;
+        if (same_layout && _num_restored == entry.lpq && (int)entry.maps.size() == num_maps && num_maps > 0 &&
+                stat(entry.path.c_str(), &st) == 0 && st.st_size == entry.size)
+            _num_restored++;
+        else
+            same_layout = false; // later LPQs can't be taken without this one
+    }
+
+    _num_restored = resumable_lpqs(manager, _num_restored);
+    for (int i = 0; i < _num_restored; ++i)
+        _restored_maps.insert(_entries[i].maps.begin(), _entries[i].maps.end());
+    remove_files(_num_restored);
+    _entries.resize(_num_restored);
+    write_manifest();
+    log(lsINFO, "shuffle checkpoint: resuming with %d LPQ spills of a previous attempt holding %d map outputs",
+            _num_restored, (int)_restored_maps.size());
+}
+
+/*
+ * the number of intact spills that are taken: the map outputs left must fill the LPQs left of this attempt's
+ * layout, none of them empty and none over the max_mofs_in_lpqs its fetch memory is planned for
+ */
+int ShuffleCheckpoint::resumable_lpqs(MergeManager *manager, int num_intact)
+{
+    int num_maps = manager->task->num_maps;
+    int restored_maps = 0;
+    for (int i = 0; i < num_intact; ++i)
+        restored_maps += _entries[i].maps.size();
+
+    for (int taken = num_intact; taken > 0; --taken) {
+        int maps_left = num_maps - restored_maps;
+        int lpqs_left = manager->num_lpqs - taken;
+        if ((maps_left == 0 && lpqs_left == 0) ||
+                (lpqs_left > 0 && maps_left >= lpqs_left && (maps_left + lpqs_left - 1) / lpqs_left <= manager->max_mofs_in_lpqs))
+            return taken;
+        restored_maps -= _entries[taken - 1].maps.size();
+    }
+    if (num_intact) {
+        log(lsWARN, "shuffle checkpoint: the %d LPQ spills of a previous attempt don't fit the %d LPQs of this attempt - not resumed",
+                num_intact, manager->num_lpqs);
+    }
+    return 0;
+}
+
+bool ShuffleCheckpoint::is_restored_map(const char *map_attempt_id) const
+{
+    return !_restored_maps.empty() && _restored_maps.find(task_id_of(map_attempt_id)) != _restored_maps.end();
+}
+
+void ShuffleCheckpoint::add_map(int lpq, const char *map_attempt_id)
+{
+    pthread_mutex_lock(&_lock);
+    _fetching[lpq].push_back(task_id_of(map_attempt_id));
+    pthread_mutex_unlock(&_lock);
+}
+
+void ShuffleCheckpoint::lpq_done(int lpq, const string &path)
+{
+    // the spill must be on disk before the manifest points to it
+    struct stat st;
+    int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0 || fsync(fd) != 0 || fstat(fd, &st) != 0) {
+        log(lsWARN, "shuffle checkpoint: failed to sync LPQ spill %s (errno=%d) - not recorded", path.c_str(), errno);
+        if (fd >= 0)
+            close(fd);
+        return;
+    }
+    close(fd);
+
+    pthread_mutex_lock(&_lock);
+    entry_t entry;
+    entry.lpq = lpq;
+    entry.size = st.st_size;
+    entry.path = path;
+    entry.maps.swap(_fetching[lpq]);
+    _fetching.erase(lpq);
+    if ((int)_entries.size() == lpq) { // else an earlier LPQ was not recorded and this one can't be restored
+        _entries.push_back(entry);
+        write_manifest();
+    }
+    pthread_mutex_unlock(&_lock);
+}
+
+bool ShuffleCheckpoint::keeps(const string &path)
+{
+    pthread_mutex_lock(&_lock);
+    bool found = false;
+    for (size_t i = 0; i < _entries.size() && !found; ++i)
+        found = (_entries[i].path == path);
+    pthread_mutex_unlock(&_lock);
+    return found;
+}
+
+// writes a new manifest and renames it over the old one - a crash leaves either of them whole
+void ShuffleCheckpoint::write_manifest()
+{
+    string temp = _manifest + ".tmp";
+    FILE *f = fopen(temp.c_str(), "w");
+    if (!f) {
+        log(lsWARN, "shuffle checkpoint: failed to write %s (errno=%d)", temp.c_str(), errno);
+        return;
+    }
+    fprintf(f, "%s\n", _header.c_str());
+    for (size_t i = 0; i < _entries.size(); ++i) {
+        const entry_t &entry = _entries[i];
+        fprintf(f, "lpq %d %lld %d\n%s\n", entry.lpq, (long long)entry.size, (int)entry.maps.size(), entry.path.c_str());
+        for (size_t j = 0; j < entry.maps.size(); ++j)
+            fprintf(f, j ? " %s" : "%s", entry.maps[j].c_str());
+        fprintf(f, "\n");
+    }
+    bool ok = (fflush(f) == 0 && fsync(fileno(f)) == 0);
+    ok = (fclose(f) == 0) && ok;
+    if (!ok || rename(temp.c_str(), _manifest.c_str()) != 0) {
+        log(lsWARN, "shuffle checkpoint: failed to write %s (errno=%d)", _manifest.c_str(), errno);
+        ::remove(temp.c_str());
+    }
+}
+
+/*
+ * removes the checkpoints - manifests and the spills they list - and the LPQ spills older than
+ * mapred.rdma.shuffle.checkpoint.max.age.sec in the local dirs. the manifest is rewritten on every LPQ
+ * spill, so an old one belongs to an attempt that is gone. own_manifest is restored instead
+ */
+/*static*/ void ShuffleCheckpoint::sweep(const vector<string> &local_dirs, const string &own_manifest)
+{
+    int max_age = atoi(UdaBridge_invoke_getConfData_callback("mapred.rdma.shuffle.checkpoint.max.age.sec", CHECKPOINT_MAX_AGE_SEC).c_str());
+    if (max_age <= 0)
+        return;
+    time_t now = time(NULL);
+    int removed = 0;
+
+    for (size_t d = 0; d < local_dirs.size(); ++d) {
+        DIR *dir = opendir(local_dirs[d].c_str());
+        if (!dir)
+            continue;
+        struct dirent *ent;
+        while ((ent = readdir(dir)) != NULL) {
+            string name = ent->d_name;
+            bool manifest = name.size() > 11 && name.compare(name.size() - 11, 11, ".checkpoint") == 0;
+            bool temp = name.size() > 15 && name.compare(name.size() - 15, 15, ".checkpoint.tmp") == 0;
+            if (name.compare(0, 4, "uda.") != 0 || !(manifest || temp || name.find(".lpq-") != string::npos))
+                continue;
+            string path = local_dirs[d] + "/" + name;
+            struct stat st;
+            if (path == own_manifest || stat(path.c_str(), &st) != 0 || now - st.st_mtime < max_age)
+                continue;
+
+            if (manifest) {
+                ifstream in(path.c_str());
+                string line;
+                getline(in, line); // header
+                while (getline(in, line) && line.compare(0, 4, "lpq ") == 0) {
+                    string spill, maps;
+                    if (!getline(in, spill) || !getline(in, maps))
+                        break;
+                    if (::remove(spill.c_str()) == 0)
+                        removed++;
+                }
+            }
+            if (::remove(path.c_str()) == 0)
+                removed++;
+        }
+        closedir(dir);
+    }
+    if (removed) {
+        log(lsINFO, "shuffle checkpoint: removed %d stale checkpoint and LPQ spill files older than %d seconds", removed, max_age);
+    }
+}
+
+void ShuffleCheckpoint::remove_files(size_t from)
+{
+    for (size_t i = from; i < _entries.size(); ++i)
+        ::remove(_entries[i].path.c_str());
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,105 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef SHUFFLE_CHECKPOINT_H
+#define SHUFFLE_CHECKPOINT_H 1
+
+#include <pthread.h>
+#include <stdint.h>
+#include <string>
+#include <vector>
+#include <map>
+#include <set>
+
+struct reduce_task;
+class MergeManager;
+
+/*
+ * Checkpoint of the shuffle of a reduce task (mapred.rdma.shuffle.checkpoint), for hybrid merge.
+ * Every LPQ spill that is complete - written and synced - is recorded with the map tasks it holds in a
+ * manifest in the first local dir, named by the reduce task (not the attempt). A later attempt of the
+ * task on the same node takes the LPQ spills that are still intact in order, as the first LPQs of its own
+ * merge whatever their size, and spreads the map outputs that are not in them over the rest of its LPQs.
+ * Only the number of maps and the spill codec must match - the LPQ size may differ between attempts.
+ * The spills and the manifest are deleted once the final merge of an attempt is complete. Those of attempts
+ * that never completed - killed, or superseded on another node - are swept by the reducers of the node
+ * once they are older than mapred.rdma.shuffle.checkpoint.max.age.sec, since on MR1 the local dirs outlive
+ * the job.
+ */
+class ShuffleCheckpoint
+{
+public:
+    /* NULL when the checkpoint is off, or the merge is not hybrid with a single key range */
+    static ShuffleCheckpoint *create(reduce_task *task, MergeManager *manager);
+    ~ShuffleCheckpoint();
+
+    /* LPQs 0..num_restored_lpqs()-1 are the spills of a previous attempt */
+    int  num_restored_lpqs() const {return _num_restored;}
+    const std::string &restored_file(int lpq) const {return _entries[lpq].path;}
+    int  num_restored_maps() const {return _restored_maps.size();}
+    /* map_attempt_id of a FETCH command - true if the map task's output is in a restored spill */
+    bool is_restored_map(const char *map_attempt_id) const;
+
+    /* fetching thread: a map output was requested for LPQ lpq */
+    void add_map(int lpq, const char *map_attempt_id);
+    /* merge thread, in LPQ order: LPQ lpq was spilled to path - syncs it and records it in the manifest */
+    void lpq_done(int lpq, const std::string &path);
+    /* merge thread: the final merge passed all records - the checkpoint is deleted with this object */
+    void set_complete() {_complete = true;}
+
+    /* SuperSegment: the checkpoint deletes its spills itself */
+    bool keeps(const std::string &path);
+
+private:
+    typedef struct entry {
+        int                       lpq;
+        int64_t                   size;
+        std::string               path;
+        std::vector<std::string>  maps; /* map task ids */
+    } entry_t;
+
+    ShuffleCheckpoint(const std::string &manifest, const std::string &header);
+    void restore(MergeManager *manager);
+    int  resumable_lpqs(MergeManager *manager, int num_intact);
+    void write_manifest();
+    void remove_files(size_t from);
+
+    static std::string task_id_of(const char *attempt_id);
+    static void sweep(const std::vector<std::string> &local_dirs, const std::string &own_manifest);
+
+    const std::string                       _manifest;
+    const std::string                       _header;      /* maps and codec: must match to restore */
+    pthread_mutex_t                         _lock;
+    std::vector<entry_t>                    _entries;     /* of the manifest, in LPQ order */
+    int                                     _num_restored;
+    std::set<std::string>                   _restored_maps;
+    std::map<int, std::vector<std::string> > _fetching;   /* maps of the LPQs not spilled yet */
+    bool                                    _complete;
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
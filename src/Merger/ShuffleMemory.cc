@@ -0,0 +1,91 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include "ShuffleMemory.h"
+#include <UdaUtil.h>
+
+static const char *pool_names[SHUFFLE_MEM_NUM + 1] = {"fetch", "kv", "decompress", "lpq", "range", "total"};
+
+static volatile int64_t mem_used[SHUFFLE_MEM_NUM + 1];
+static volatile int64_t mem_peak[SHUFFLE_MEM_NUM + 1];
+static int64_t          mem_budget = 0;
+static volatile int     over_budget_logged = 0;
+
+static void update_peak(int pool, int64_t used)
+{
+    int64_t peak = mem_peak[pool];
+    while (used > peak && !__sync_bool_compare_and_swap(&mem_peak[pool], peak, used))
+        peak = mem_peak[pool];
+}
+
+void shuffle_mem_set_budget(int64_t budget)
+{
+    mem_budget = budget;
+}
+
+void shuffle_mem_alloc(shuffle_mem_t pool, int64_t bytes)
+{
+    update_peak(pool, __sync_add_and_fetch(&mem_used[pool], bytes));
+    int64_t total = __sync_add_and_fetch(&mem_used[SHUFFLE_MEM_NUM], bytes);
+    update_peak(SHUFFLE_MEM_NUM, total);
+
+    if (mem_budget > 0 && total > mem_budget && __sync_bool_compare_and_swap(&over_budget_logged, 0, 1)) {
+        log(lsWARN, "native shuffle memory %lld bytes is over the off-heap budget of %lld bytes (%s pool grew by %lld bytes)",
+            (long long)total, (long long)mem_budget, pool_names[pool], (long long)bytes);
+    }
+}
+
+void shuffle_mem_free(shuffle_mem_t pool, int64_t bytes)
+{
+    __sync_sub_and_fetch(&mem_used[pool], bytes);
+    __sync_sub_and_fetch(&mem_used[SHUFFLE_MEM_NUM], bytes);
+}
+
+int64_t shuffle_mem_used(shuffle_mem_t pool)
+{
+    return mem_used[pool];
+}
+
+int64_t shuffle_mem_peak(shuffle_mem_t pool)
+{
+    return mem_peak[pool];
+}
+
+int64_t shuffle_mem_budget()
+{
+    return mem_budget;
+}
+
+void shuffle_mem_log()
+{
+    for (int i = 0; i <= SHUFFLE_MEM_NUM; ++i) {
+        log(lsINFO, "native shuffle memory %s: %lld bytes in use, peak %lld bytes",
+            pool_names[i], (long long)mem_used[i], (long long)mem_peak[i]);
+    }
+    log(lsINFO, "native shuffle memory budget: %lld bytes", (long long)mem_budget);
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
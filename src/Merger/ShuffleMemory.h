@@ -0,0 +1,58 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef SHUFFLE_MEMORY_H
+#define SHUFFLE_MEMORY_H 1
+
+#include <stdint.h>
+
+/* the native memory pools of the reduce task, in the order of UdaBridge.getMemoryAccounting() */
+enum shuffle_mem_t {
+    SHUFFLE_MEM_FETCH,      /* registered RDMA buffers of the map outputs (mop_pool) */
+    SHUFFLE_MEM_KV,         /* KV ring of the buffers passed to Java (kv_pool) */
+    SHUFFLE_MEM_DECOMPRESS, /* side buffers of the decompression workers */
+    SHUFFLE_MEM_LPQ,        /* LPQ/RPQ staging buffers, spill stream buffers and pre-merge runs */
+    SHUFFLE_MEM_RANGE,      /* output buffers of the key ranges of the final merge */
+    SHUFFLE_MEM_NUM
+};
+
+/*
+ * Real-time accounting of the native shuffle memory against the off-heap budget passed by Java
+ * (the shuffle memory of the INIT command). Thread safe, lock free.
+ */
+void    shuffle_mem_set_budget(int64_t budget);
+void    shuffle_mem_alloc(shuffle_mem_t pool, int64_t bytes);
+void    shuffle_mem_free(shuffle_mem_t pool, int64_t bytes);
+
+/* SHUFFLE_MEM_NUM for the total of all pools */
+int64_t shuffle_mem_used(shuffle_mem_t pool);
+int64_t shuffle_mem_peak(shuffle_mem_t pool);
+int64_t shuffle_mem_budget();
+void    shuffle_mem_log();
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,56 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <string.h>
+#include <time.h>
+#include "ShuffleStats.h"
+
+static volatile int64_t stats[STAT_NUM];
+
+void shuffle_stats_reset()
+{
+    for (int i = 0; i < STAT_NUM; ++i)
+        stats[i] = 0;
+}
+
+void shuffle_stats_add(shuffle_stat_t stat, int64_t value)
+{
+    __sync_add_and_fetch(&stats[stat], value);
+}
+
+int64_t shuffle_stats_get(shuffle_stat_t stat)
+{
+    return stats[stat];
+}
+
+int64_t shuffle_stats_now_ms()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,59 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef SHUFFLE_STATS_H
+#define SHUFFLE_STATS_H 1
+
+#include <stdint.h>
+
+/* statistics of the shuffle of the reduce task, in the order of UdaBridge.getShuffleStats() */
+enum shuffle_stat_t {
+    STAT_FETCHED_BYTES_RAW,     /* uncompressed bytes of the fetched map outputs */
+    STAT_FETCHED_BYTES_RDMA,    /* bytes of the fetched map outputs read over RDMA - compressed with map output compression */
+    STAT_FETCHED_SEGMENTS,      /* map outputs fetched */
+    STAT_FETCH_REQUESTS,        /* RDMA fetch requests sent to the suppliers */
+    STAT_RESTORED_SEGMENTS,     /* map outputs taken from the LPQ spills of a previous attempt (shuffle checkpoint) */
+    STAT_LPQ_SPILLS,
+    STAT_LPQ_SPILL_BYTES,       /* file bytes of the LPQ spills */
+    STAT_LPQ_SPILL_RAW_BYTES,   /* KV bytes of the LPQ spills */
+    STAT_WAIT_MEM_MS,           /* merge waiting for map output data */
+    STAT_FETCH_MS,              /* fetching phases */
+    STAT_MERGE_MS,              /* LPQ spills and final merge, including the upload */
+    STAT_UPLOAD_MS,             /* Java taking the merged records */
+    STAT_NUM
+};
+
+/* thread safe, lock free. reset by each reduce task of the process */
+void    shuffle_stats_reset();
+void    shuffle_stats_add(shuffle_stat_t stat, int64_t value);
+int64_t shuffle_stats_get(shuffle_stat_t stat);
+
+/* monotonic milliseconds, for timing the phases */
+int64_t shuffle_stats_now_ms();
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
@@ -0,0 +1,371 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <dlfcn.h>
+#include "SpillStream.h"
+#include "ShuffleMemory.h"
+#include "../config.h"
+
+#ifndef HADOOP_SNAPPY_LIBRARY
+#define HADOOP_SNAPPY_LIBRARY "libsnappy.so.1"
+#endif
+#define LZ4_LIBRARY "liblz4.so.1"
+
+#define SPILL_TRAILER_SIZE (2 * sizeof(uint64_t) + 2 * sizeof(uint32_t))
+
+////////////////////////////////////////////////////////////////////////////////
+SpillCodec* SpillCodec::create(const char *name)
+{
+    spill_codec_t type;
+    const char *lib_name;
+    if (strcmp(name, "none") == 0 || !*name) {
+        return NULL;
+    }
+    else if (strcmp(name, "snappy") == 0) {
+        type = SPILL_CODEC_SNAPPY;
+        lib_name = HADOOP_SNAPPY_LIBRARY;
+    }
+    else if (strcmp(name, "lz4") == 0) {
+        type = SPILL_CODEC_LZ4;
+        lib_name = LZ4_LIBRARY;
+    }
+    else {
+        log(lsERROR, "unknown LPQ spill compression: '%s' (expected none, snappy or lz4)", name);
+        throw new UdaException("unknown LPQ spill compression");
+    }
+
+    void *lib = dlopen(lib_name, RTLD_LAZY | RTLD_GLOBAL);
+    if (!lib) {
+        log(lsWARN, "LPQ spills will not be compressed - failed to load %s: %s", lib_name, dlerror());
+        return NULL;
+    }
+
+    SpillCodec *codec = new SpillCodec(type, name, lib);
+    bool loaded = (type == SPILL_CODEC_SNAPPY) ?
+            (codec->_snappy_compress && codec->_snappy_uncompress && codec->_snappy_max_compressed_length) :
+            (codec->_lz4_compress && codec->_lz4_decompress && codec->_lz4_compress_bound);
+    if (!loaded) {
+        log(lsWARN, "LPQ spills will not be compressed - missing functions in %s", lib_name);
+        delete codec;
+        return NULL;
+    }
+    log(lsINFO, "LPQ spills are compressed with %s in blocks of %d bytes", name, SPILL_BLOCK_SIZE);
+    return codec;
+}
+
+SpillCodec::SpillCodec(spill_codec_t _type, const char *_name, void *lib)
+    : type(_type), name(_name), _lib(lib)
+{
+    _snappy_compress = (int (*)(const char*, size_t, char*, size_t*))dlsym(lib, "snappy_compress");
+    _snappy_uncompress = (int (*)(const char*, size_t, char*, size_t*))dlsym(lib, "snappy_uncompress");
+    _snappy_max_compressed_length = (size_t (*)(size_t))dlsym(lib, "snappy_max_compressed_length");
+    _lz4_compress = (int (*)(const char*, char*, int, int))dlsym(lib, "LZ4_compress_default");
+    _lz4_decompress = (int (*)(const char*, char*, int, int))dlsym(lib, "LZ4_decompress_safe");
+    _lz4_compress_bound = (int (*)(int))dlsym(lib, "LZ4_compressBound");
+}
+
+SpillCodec::~SpillCodec()
+{
+    dlclose(_lib);
+}
+
+size_t SpillCodec::max_compressed_length(size_t len)
+{
+    if (type == SPILL_CODEC_SNAPPY)
+        return _snappy_max_compressed_length(len);
+    return _lz4_compress_bound((int)len);
+}
+
+size_t SpillCodec::compress(const char *src, size_t len, char *dest, size_t dest_len)
+{
+    if (type == SPILL_CODEC_SNAPPY) {
+        size_t out_len = dest_len;
+        return (_snappy_compress(src, len, dest, &out_len) == 0 /* SNAPPY_OK */) ? out_len : 0;
+    }
+    int out_len = _lz4_compress(src, dest, (int)len, (int)dest_len);
+    return out_len > 0 ? out_len : 0;
+}
+
+void SpillCodec::uncompress(const char *src, size_t len, char *dest, size_t dest_len)
+{
+    bool ok;
+    if (type == SPILL_CODEC_SNAPPY) {
+        size_t out_len = dest_len;
+        ok = (_snappy_uncompress(src, len, dest, &out_len) == 0 && out_len == dest_len);
+    }
+    else {
+        ok = (_lz4_decompress(src, dest, (int)len, (int)dest_len) == (int)dest_len);
+    }
+    if (!ok) {
+        log(lsERROR, "failed to uncompress %s block of LPQ spill (stored=%zu uncompressed=%zu)", name, len, dest_len);
+        throw new UdaException("failed to uncompress LPQ spill block");
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+CompressedFileStream::CompressedFileStream(OutStream *out, SpillCodec *codec, spill_stats_t *stats)
+    : _out(out), _in(NULL), _codec(codec), _stats(stats), _for_read(false)
+{
+    init();
+}
+
+CompressedFileStream::CompressedFileStream(DiskInStream *in, SpillCodec *codec, spill_stats_t *stats)
+    : _out(NULL), _in(in), _codec(codec), _stats(stats), _for_read(true)
+{
+    init();
+
+    uint64_t num_blocks = 0, length = 0;
+    uint32_t codec_type = 0, magic = 0;
+    bool ok = (in->length() >= (int64_t)SPILL_TRAILER_SIZE && in->seek(in->length() - SPILL_TRAILER_SIZE));
+    if (ok) {
+        in->read(&num_blocks, sizeof(num_blocks));
+        in->read(&length, sizeof(length));
+        in->read(&codec_type, sizeof(codec_type));
+        in->read(&magic, sizeof(magic));
+        ok = (magic == SPILL_FILE_MAGIC && codec_type == (uint32_t)codec->type &&
+              num_blocks * 2 * sizeof(uint64_t) + SPILL_TRAILER_SIZE <= (uint64_t)in->length());
+    }
+    if (ok) {
+        _file_length = in->length() - SPILL_TRAILER_SIZE - num_blocks * 2 * sizeof(uint64_t);
+        ok = in->seek(_file_length);
+        _block_offsets.resize(num_blocks);
+        _file_offsets.resize(num_blocks);
+        for (uint64_t i = 0; ok && i < num_blocks; ++i) {
+            in->read(&_block_offsets[i], sizeof(int64_t));
+            in->read(&_file_offsets[i], sizeof(int64_t));
+        }
+        ok = ok && in->seek(0);
+        _length = length;
+    }
+    if (!ok) {
+        log(lsERROR, "LPQ spill file is not a valid %s compressed file", codec->name);
+        throw new UdaException("LPQ spill file is not a valid compressed file");
+    }
+}
+
+void CompressedFileStream::init()
+{
+    _closed = false;
+    _block = (char*)malloc(SPILL_BLOCK_SIZE);
+    _block_len = _block_pos = 0;
+    _stored_capacity = _codec->max_compressed_length(SPILL_BLOCK_SIZE);
+    _stored = (char*)malloc(_stored_capacity);
+    _length = _file_length = _offset = 0;
+    _next_block = 0;
+    if (!_block || !_stored) {
+        log(lsERROR, "failed to allocate LPQ spill block buffers");
+        throw new UdaException("failed to allocate LPQ spill block buffers");
+    }
+    shuffle_mem_alloc(SHUFFLE_MEM_LPQ, SPILL_BLOCK_SIZE + _stored_capacity);
+}
+
+CompressedFileStream::~CompressedFileStream()
+{
+    free(_block);
+    free(_stored);
+    shuffle_mem_free(SHUFFLE_MEM_LPQ, SPILL_BLOCK_SIZE + _stored_capacity);
+}
+
+size_t CompressedFileStream::read(void *des, const size_t len, const char *extrasrc, size_t size, int &idx)
+{
+    throw new UdaException("CompressedFileStream: read from two srcs not supported");
+    return -1;
+}
+
+void CompressedFileStream::read_block()
+{
+    uint32_t header[2];
+    if (_next_block >= (int)_file_offsets.size()) {
+        throw new UdaException("CompressedFileStream: read EOF on file");
+    }
+    _in->read(header, sizeof(header));
+    if (header[0] > SPILL_BLOCK_SIZE || header[1] > _stored_capacity) {
+        log(lsERROR, "corrupted LPQ spill block header: uncompressed=%u stored=%u", header[0], header[1]);
+        throw new UdaException("corrupted LPQ spill block header");
+    }
+
+    if (header[1] == header[0]) { // stored as is
+        _in->read(_block, header[0]);
+    }
+    else {
+        _in->read(_stored, header[1]);
+        _codec->uncompress(_stored, header[1], _block, header[0]);
+    }
+    __sync_fetch_and_add(&_stats->read_bytes, (int64_t)(sizeof(header) + header[1]));
+
+    _block_len = header[0];
+    _block_pos = 0;
+    _next_block++;
+}
+
+size_t CompressedFileStream::read(void *buf, size_t len)
+{
+    char *dest = (char*)buf;
+    size_t left = len;
+    while (left > 0) {
+        if (_block_pos == _block_len)
+            read_block();
+        size_t n = _block_len - _block_pos;
+        if (n > left)
+            n = left;
+        memcpy(dest, _block + _block_pos, n);
+        _block_pos += n;
+        dest += n;
+        left -= n;
+    }
+    _offset += len;
+    return 1; // as fread of FileStream
+}
+
+size_t CompressedFileStream::rewind(size_t nbytes)
+{
+    // only within the current block - enough for the deserialization of a vint
+    if (nbytes > (size_t)_block_pos)
+        throw new UdaException("CompressedFileStream: rewind beyond block not supported");
+    _block_pos -= nbytes;
+    _offset -= nbytes;
+    return nbytes;
+}
+
+size_t CompressedFileStream::skip(size_t nbytes)
+{
+    return seek(_offset + nbytes) ? nbytes : -1;
+}
+
+bool CompressedFileStream::hasMore(size_t nbytes)
+{
+    return _offset + (int64_t)nbytes <= _length;
+}
+
+bool CompressedFileStream::seek(int64_t offset)
+{
+    if (offset < 0 || offset > _length)
+        return false;
+
+    // the block that contains offset
+    int lo = 0, hi = (int)_block_offsets.size();
+    while (hi - lo > 1) {
+        int mid = (lo + hi) / 2;
+        if (_block_offsets[mid] <= offset)
+            lo = mid;
+        else
+            hi = mid;
+    }
+    if (_block_offsets.empty())
+        return offset == 0;
+
+    bool current = (_next_block == lo + 1 && _block_len > 0);
+    if (!current) {
+        if (!_in->seek(_file_offsets[lo]))
+            return false;
+        _next_block = lo;
+        read_block();
+    }
+    _block_pos = offset - _block_offsets[lo];
+    _offset = offset;
+    return _block_pos <= _block_len;
+}
+
+size_t CompressedFileStream::write(const void *buf, size_t len)
+{
+    const char *src = (const char*)buf;
+    size_t left = len;
+    while (left > 0) {
+        size_t n = SPILL_BLOCK_SIZE - _block_len;
+        if (n > left)
+            n = left;
+        memcpy(_block + _block_len, src, n);
+        _block_len += n;
+        src += n;
+        left -= n;
+        if (_block_len == SPILL_BLOCK_SIZE)
+            write_block();
+    }
+    return 1;
+}
+
+void CompressedFileStream::write_block()
+{
+    if (_block_len == 0)
+        return;
+
+    uint32_t header[2];
+    header[0] = _block_len;
+    size_t stored_len = _codec->compress(_block, _block_len, _stored, _stored_capacity);
+    const char *stored = _stored;
+    if (stored_len == 0 || stored_len >= (size_t)_block_len) { // does not compress
+        stored_len = _block_len;
+        stored = _block;
+    }
+    header[1] = stored_len;
+
+    _out->write(header, sizeof(header));
+    _out->write(stored, stored_len);
+
+    _block_offsets.push_back(_length);
+    _file_offsets.push_back(_file_length);
+    _length += _block_len;
+    _file_length += sizeof(header) + stored_len;
+    __sync_fetch_and_add(&_stats->uncompressed_bytes, (int64_t)_block_len);
+    __sync_fetch_and_add(&_stats->written_bytes, (int64_t)(sizeof(header) + stored_len));
+    _block_len = 0;
+}
+
+void CompressedFileStream::flush()
+{
+    if (_for_read)
+        return;
+    write_block();
+    _out->flush();
+}
+
+bool CompressedFileStream::close()
+{
+    if (_for_read || _closed)
+        return true;
+    _closed = true;
+    write_block();
+
+    uint64_t num_blocks = _block_offsets.size();
+    uint64_t length = _length;
+    uint32_t codec_type = _codec->type;
+    uint32_t magic = SPILL_FILE_MAGIC;
+    for (uint64_t i = 0; i < num_blocks; ++i) {
+        _out->write(&_block_offsets[i], sizeof(int64_t));
+        _out->write(&_file_offsets[i], sizeof(int64_t));
+    }
+    _out->write(&num_blocks, sizeof(num_blocks));
+    _out->write(&length, sizeof(length));
+    _out->write(&codec_type, sizeof(codec_type));
+    _out->write(&magic, sizeof(magic));
+    __sync_fetch_and_add(&_stats->written_bytes, (int64_t)(num_blocks * 2 * sizeof(int64_t) + SPILL_TRAILER_SIZE));
+    _out->flush();
+    return true;
+}
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
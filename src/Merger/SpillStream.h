@@ -0,0 +1,149 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef SPILL_STREAM_H
+#define SPILL_STREAM_H 1
+
+#include <stdio.h>
+#include <vector>
+#include "IOUtility.h"
+#include "DiskQueue.h"
+
+#define SPILL_BLOCK_SIZE   (256 * 1024) // uncompressed bytes per block
+#define SPILL_FILE_MAGIC   (0x55444143) // "UDAC"
+
+enum spill_codec_t {
+    SPILL_CODEC_NONE,
+    SPILL_CODEC_SNAPPY,
+    SPILL_CODEC_LZ4
+};
+
+/*
+ * Block compression of LPQ spill files (mapred.rdma.lpq.spill.compression).
+ * The codec's library is loaded with dlopen, like the decompressors of map outputs.
+ */
+class SpillCodec
+{
+public:
+    /* name is "none", "snappy" or "lz4". returns NULL for none, and when the codec's library
+     * can't be loaded (the spills are written uncompressed then) */
+    static SpillCodec* create(const char *name);
+    ~SpillCodec();
+
+    size_t max_compressed_length(size_t len);
+
+    /* returns the compressed length, or 0 when the data does not fit in dest_len */
+    size_t compress(const char *src, size_t len, char *dest, size_t dest_len);
+
+    /* dest_len must be the exact uncompressed length; throws UdaException on corrupted data */
+    void uncompress(const char *src, size_t len, char *dest, size_t dest_len);
+
+    spill_codec_t   type;
+    const char     *name;
+
+private:
+    SpillCodec(spill_codec_t type, const char *name, void *lib);
+
+    void           *_lib;
+    /* snappy-c */
+    int    (*_snappy_compress)(const char*, size_t, char*, size_t*);
+    int    (*_snappy_uncompress)(const char*, size_t, char*, size_t*);
+    size_t (*_snappy_max_compressed_length)(size_t);
+    /* lz4 */
+    int    (*_lz4_compress)(const char*, char*, int, int);
+    int    (*_lz4_decompress)(const char*, char*, int, int);
+    int    (*_lz4_compress_bound)(int);
+};
+
+/* byte counters of the LPQ spill files of a reduce task (updated by parallel merge threads) */
+typedef struct spill_stats {
+    volatile int64_t    uncompressed_bytes; /* KV bytes written */
+    volatile int64_t    written_bytes;      /* file bytes written */
+    volatile int64_t    read_bytes;         /* file bytes read */
+} spill_stats_t;
+
+/*
+ * Stream over a block compressed spill file. Layout:
+ *   blocks:  [uint32 uncompressed len | uint32 stored len | stored bytes]   (stored len == uncompressed len: not compressed)
+ *   index:   n * [uint64 uncompressed offset | uint64 file offset]          (one per block)
+ *   trailer: [uint64 n | uint64 uncompressed length | uint32 codec | uint32 SPILL_FILE_MAGIC]
+ * The index lets readers seek to an offset of the uncompressed data (see KeyIndex).
+ * Local files of this task only, so integers are in host order.
+ * Written through any OutStream, read through the read-ahead of a DiskInStream.
+ */
+class CompressedFileStream : public InStream,
+                             public OutStream
+{
+public:
+    /* writer - out is not owned */
+    CompressedFileStream(OutStream *out, SpillCodec *codec, spill_stats_t *stats);
+    /* reader - in is not owned. reads the index first (throws UdaException if the file is not valid) */
+    CompressedFileStream(DiskInStream *in, SpillCodec *codec, spill_stats_t *stats);
+    virtual ~CompressedFileStream();
+
+    //InStream
+    size_t read(void *des, const size_t len, const char *extrasrc, size_t size, int &idx);
+    size_t read(void *buf, size_t len);
+    size_t rewind(size_t nbytes);
+    size_t skip(size_t nbytes);
+    bool   hasMore(size_t nbytes);
+    //OutStream
+    size_t write(const void *buf, size_t len);
+    void   flush(); /* writes the pending block */
+    bool   close(); /* writer: writes the pending block, the index and the trailer */
+
+    /* reader: positions at offset of the uncompressed data */
+    bool   seek(int64_t offset);
+
+private:
+    void init();
+    void write_block();
+    void read_block();
+
+    OutStream          *_out;
+    DiskInStream       *_in;
+    SpillCodec         *_codec;
+    spill_stats_t      *_stats;
+    bool                _for_read;
+    bool                _closed;
+
+    char               *_block;      /* uncompressed data of the current block */
+    int32_t             _block_len;  /* valid bytes in _block */
+    int32_t             _block_pos;  /* reader's position in _block */
+    char               *_stored;     /* compressed data */
+    size_t              _stored_capacity;
+
+    std::vector<int64_t> _block_offsets; /* uncompressed offset of each block */
+    std::vector<int64_t> _file_offsets;  /* file offset of each block */
+    int64_t             _length;       /* uncompressed bytes */
+    int64_t             _file_length;  /* file bytes of the blocks */
+    int                 _next_block;   /* reader: block after the current one */
+    int64_t             _offset;       /* reader: uncompressed offset of the position */
+};
+
+#endif
+
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab
+ */
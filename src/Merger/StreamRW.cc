@@ -33,10 +33,14 @@
 
 
 #include "MergeManager.h"
+#include "ShuffleCheckpoint.h"
+#include "ShuffleStats.h"
 #include "MergeQueue.h"
 #include "StreamRW.h"
+#include "RangeMerge.h"
 #include "IOUtility.h"
 #include "reducer.h"
+#include "ShuffleMemory.h"
 #include "bullseye.h"
 
 using namespace std;
@@ -44,7 +48,8 @@ using namespace std;
 
 ////////////////////////////////////////////////////////////////////////////////
 /* in-memory map output */
-MapOutput::MapOutput(struct reduce_task *task) : KVOutput(task)
+/* starts in the smallest buffers - the partition's size is known after the first fetch, see growBuffers */
+MapOutput::MapOutput(struct reduce_task *task) : KVOutput(task, 0)
 {
     this->part_req = NULL;
     this->fetch_count = 0;
@@ -55,7 +60,7 @@ MapOutput::MapOutput(struct reduce_task *task) : KVOutput(task)
 }
 
 ////////////////////////////////////////////////////////////////////////////////
-KVOutput::KVOutput(struct reduce_task *task)
+KVOutput::KVOutput(struct reduce_task *task, int32_t wanted_len)
 {
     this->task = task;
     if (task->isCompressionOff()) {
@@ -73,51 +78,68 @@ KVOutput::KVOutput(struct reduce_task *task)
     pthread_mutex_init(&this->lock, NULL);
     pthread_cond_init(&this->cond, NULL);
 
-    borrowFromPool();
+    borrowFromPool(wanted_len);
 }
 
 //----------------------
-// static member initialization
-HouseKeepingPool<mem_set_desc_t> * KVOutput::hkp = NULL;
-
-//----------------------
-void KVOutput::borrowFromPool(){
-	if (!hkp) {
-		// lazy initialization after other globals are initialized
-		static HouseKeepingPool<mem_set_desc_t> static_hkp(
-				&g_task->getMergingSm()->mop_pool.free_descs,
-				KVOutput::desc_pair_builder,
-				g_task->merge_man->num_kv_bufs);
-		hkp = &static_hkp;
-	}
-
+void KVOutput::borrowFromPool(int32_t wanted_len){
 	static int i = 0;
 	log(lsDEBUG, "borrowFromPool - started %d", ++i);
-    mem_set_desc_t *desc_pair = hkp->borrowFromPool();
+	// map outputs are returned from merge threads (LPQs, pre-merge) while others are fetched
+	memory_pool_t *pool = &g_task->getMergingSm()->mop_pool;
+	pthread_mutex_lock(&pool->lock);
+	mem_set_desc_t *desc_pair = pool->slabs->alloc_fit(pool->slabs->class_of(wanted_len), pool->slabs->num_classes());
+	pthread_mutex_unlock(&pool->lock);
+	if (!desc_pair) {
+		log(lsERROR, "no free RDMA buffers in the pool");
+		throw new UdaException("no free RDMA buffers in the pool");
+	}
     for (int i=0; i<NUM_STAGE_MEM; i++){
     	mop_bufs[i] = desc_pair->buffer_unit[i];
     	mop_bufs[i]->status = FETCH_READY;
     }
+    // the previous map output may have left another split
+    if (task->merge_man->buffer_split.total)
+    	task->merge_man->split_buffers(this, false);
 	log(lsDEBUG, "borrowFromPool - finished");
 }
 
 //----------------------
-/*static*/void KVOutput::desc_pair_builder (void *_desc_pair, void* data) {
-	mem_set_desc_t *desc_pair = (mem_set_desc_t *)_desc_pair;
-	KVOutput *_this = (KVOutput*)data;
+bool KVOutput::growBuffers(int32_t wanted_len) {
+	memory_pool_t *pool = &g_task->getMergingSm()->mop_pool;
+	pthread_mutex_lock(&pool->lock);
+	// only classes of larger buffers than the current ones
+	int cls = pool->slabs->class_of(wanted_len);
+	int cur = pool->slabs->class_of_buffer(mop_bufs[0]);
+	mem_set_desc_t *desc_pair = (cls < cur) ? pool->slabs->alloc_fit(cls, cur) : NULL;
+	if (!desc_pair) {
+		pthread_mutex_unlock(&pool->lock);
+		return false;
+	}
 
+	mem_desc_t *new_bufs[NUM_STAGE_MEM];
 	for (int i=0; i<NUM_STAGE_MEM; i++){
-		desc_pair->buffer_unit[i] = _this->mop_bufs[i];
-		desc_pair->buffer_unit[i]->init();
-		_this->mop_bufs[i] = NULL; // sanity
+		new_bufs[i] = desc_pair->buffer_unit[i];
+		new_bufs[i]->status = mop_bufs[i]->status;
 	}
+	// the fetched data is in the staging buffer, nothing was fetched into the other one yet
+	memcpy(new_bufs[staging_mem_idx]->buff, mop_bufs[staging_mem_idx]->buff, last_fetched);
+
+	pool->slabs->release(mop_bufs); // the smaller buffers
+	for (int i=0; i<NUM_STAGE_MEM; i++)
+		mop_bufs[i] = new_bufs[i];
+	pthread_mutex_unlock(&pool->lock);
+	return true;
 }
 
 //----------------------
 void KVOutput::returnToPool(){
 	static int i = 0;
 	log(lsDEBUG, "returnToPool - started %d", ++i);
-	hkp->returnToPool(this);
+	memory_pool_t *pool = &g_task->getMergingSm()->mop_pool;
+	pthread_mutex_lock(&pool->lock);
+	pool->slabs->release(mop_bufs);
+	pthread_mutex_unlock(&pool->lock);
 	log(lsDEBUG, "returnToPool - finished");
 }
 
@@ -149,7 +171,7 @@ KVOutput::~KVOutput()
 
 ////////////////////////////////////////////////////////////////////////////////
 bool write_kv_to_stream(SegmentMergeQueue *records, int32_t len,
-		OutStream *stream, int32_t &total_write) {
+		OutStream *stream, int32_t &total_write, KeyIndex *index = NULL, bool write_eof = true) {
     int32_t key_len, val_len, bytes_write;
     int32_t kbytes, vbytes;
     int32_t record_len;
@@ -197,11 +219,19 @@ bool write_kv_to_stream(SegmentMergeQueue *records, int32_t len,
         StreamUtility::serializeInt(val_len, *stream);
         stream->write(k->getData(), key_len);
         stream->write(v->getData(), val_len);
+        if (index)
+            index->add(k->getData(), key_len, record_len);
         bytes_write += record_len;
         records->mergeq_flag   = 0;
         // output_stdout(" << %s: in loop tail <-", __func__);
     }
 
+	if (!write_eof) {
+		records->mergeq_flag = 0;
+		total_write = bytes_write;
+		return true;
+	}
+
 	/* test for last -1, -1 */
 	kbytes = StreamUtility::getVIntSize(EOF_MARKER);
     vbytes = StreamUtility::getVIntSize(EOF_MARKER);
@@ -228,10 +258,10 @@ bool write_kv_to_stream(SegmentMergeQueue *records, int32_t len,
 
 
 bool write_kv_to_mem(SegmentMergeQueue *records, char *src, int32_t len,
-		int32_t &total_write) {
+		int32_t &total_write, bool write_eof) {
     DataStream *stream = new DataStream(src, len);
 
-    bool ret = write_kv_to_stream(records, len, stream, total_write);
+    bool ret = write_kv_to_stream(records, len, stream, total_write, NULL, write_eof);
 
     delete stream;
     return ret;
@@ -265,6 +295,7 @@ BaseSegment::BaseSegment(KVOutput *kvOutput) {
     this->kbytes = 0;
     this->vbytes = 0;
     this->byte_read = 0;
+    this->key_prefix = 0;
 
 	this->kv_output = kvOutput;
 	mem_desc_t *mem;
@@ -388,7 +419,7 @@ int BaseSegment::nextKVInternal(InStream *stream) {
     /* key */
     pos = ((DataStream*)stream)->getPosition();
     mem = ((DataStream*)stream)->getData();
-    this->key.reset(mem + pos, cur_key_len);
+    set_key(mem + pos, cur_key_len);
     stream->skip(cur_key_len);
 
     /* val */
@@ -440,7 +471,7 @@ int BaseSegment::nextKV() {
             }
         }
         file_stream->read(temp_kv, total);
-        key.reset(temp_kv, cur_key_len);
+        set_key(temp_kv, cur_key_len);
         val.reset(temp_kv + cur_key_len, cur_val_len);
         return 1;
 #endif
@@ -552,8 +583,7 @@ bool BaseSegment::switch_mem() {
 			return false;
 		}
 
-		time_t st, ed;
-		time(&st);
+		int64_t start_ms = shuffle_stats_now_ms();
 		pthread_mutex_lock(&kv_output->lock);
 		//pthread_mutex_lock(&merger->lock);
 		//if (staging_mem->status != MERGE_READY) {
@@ -564,9 +594,8 @@ bool BaseSegment::switch_mem() {
 		}
 		//pthread_mutex_unlock(&merger->lock);
 		pthread_mutex_unlock(&kv_output->lock);
-		time(&ed);
 
-		kv_output->task->total_wait_mem_time += ((int) (ed - st));
+		shuffle_stats_add(STAT_WAIT_MEM_MS, shuffle_stats_now_ms() - start_ms);
 
 
 		if (this->get_task()->isCompressionOn()) {
@@ -621,7 +650,7 @@ bool BaseSegment::join(char *src, const int32_t src_len) {
         char *mem = NULL;
         pos = in_mem_data->getPosition();
         mem = in_mem_data->getData();
-        key.reset(mem + pos,  cur_key_len);
+        set_key(mem + pos, cur_key_len);
         val.reset(mem + pos + cur_key_len, cur_val_len);
         in_mem_data->skip(cur_key_len + cur_val_len);
         byte_read += (kbytes + vbytes + cur_key_len + cur_val_len);
@@ -653,7 +682,7 @@ bool BaseSegment::join(char *src, const int32_t src_len) {
         /* Copying from the new partition */
         memcpy(temp_kv + part_len, src, shift_len);
         in_mem_data->reset(src + shift_len, src_len - shift_len);
-        key.reset(temp_kv, cur_key_len);
+        set_key(temp_kv, cur_key_len);
         val.reset(temp_kv + cur_key_len, cur_val_len);
         byte_read += (kbytes + vbytes + cur_key_len + cur_val_len);
         return true;
@@ -811,7 +840,27 @@ AioSegment::~AioSegment() {
 #endif
 
 SuperSegment::SuperSegment(reduce_task *_task, const std::string &_path) :
-	Segment(NULL), task(_task), path(_path) {
+	Segment(NULL), task(_task), file(NULL), fd(-1), file_stream(NULL), disk_stream(NULL),
+	compressed_stream(NULL), spill_stats(NULL), path(_path) {
+    MergeManager *merge_man = task ? task->merge_man : NULL;
+    if (merge_man && merge_man->disk_queues) {
+        this->spill_stats = &merge_man->lpq_spill_stats;
+        this->fd = open(path.c_str(), O_RDONLY);
+        if (this->fd < 0) {
+            output_stderr("Reader:cannot open file: %s", path.c_str());
+            return;
+        }
+        this->disk_stream = new DiskInStream(merge_man->disk_queues->queue_of(path), this->fd);
+        if (merge_man->spill_codec) {
+            this->compressed_stream = new CompressedFileStream(this->disk_stream, merge_man->spill_codec, this->spill_stats);
+            this->file_stream = this->compressed_stream;
+        }
+        else {
+            this->file_stream = this->disk_stream;
+        }
+        return;
+    }
+
     this->file = fopen(path.c_str(), "rb");
     if (this->file == NULL) {
 		output_stderr("Reader:cannot open file: %s", path.c_str())
@@ -821,11 +870,32 @@ SuperSegment::SuperSegment(reduce_task *_task, const std::string &_path) :
     this->file_stream = new FileStream(this->file);
 }
 
+bool SuperSegment::seek(int64_t offset) {
+    eof = false;
+    if (this->compressed_stream)
+        return this->compressed_stream->seek(offset);
+    if (this->disk_stream)
+        return this->disk_stream->seek(offset);
+    if (!this->file)
+        return false;
+    return fseeko(this->file, offset, SEEK_SET) == 0;
+}
+
 SuperSegment::~SuperSegment() {
     if (this->file_stream != NULL) {
         delete this->file_stream;
-        fclose(this->file);
-        remove(this->path.c_str());
+        if (this->compressed_stream)
+            delete this->disk_stream;
+        if (this->file)
+            fclose(this->file);
+        else
+            ::close(this->fd);
+        MergeManager *merge_man = task ? task->merge_man : NULL;
+        if (!(merge_man && merge_man->checkpoint && merge_man->checkpoint->keeps(this->path)))
+            remove(this->path.c_str());
+    }
+    else if (this->fd >= 0) {
+        ::close(this->fd);
     }
 }
 
@@ -855,32 +925,98 @@ int SuperSegment::nextKV() {
         }
     }
     file_stream->read(temp_kv, total);
-    key.reset(temp_kv, cur_key_len);
+    if (spill_stats && !compressed_stream) // compressed streams count the blocks they read
+        __sync_fetch_and_add(&spill_stats->read_bytes, (int64_t)(kbytes + vbytes + total));
+    set_key(temp_kv, cur_key_len);
     val.reset(temp_kv + cur_key_len, cur_val_len);
     return 1;
 }
 
-bool write_kv_to_file(SegmentMergeQueue *records, FILE *f,
-		int32_t &total_write) {
-    FileStream *stream = new FileStream(f);
+MemSegment::MemSegment(reduce_task *_task, char *_data, int32_t len) :
+	BaseSegment(NULL), task(_task), data(_data), len(len) {
+    this->in_mem_data = new DataStream();
+    this->in_mem_data->reset(data, len);
+    shuffle_mem_alloc(SHUFFLE_MEM_LPQ, len);
+}
+
+MemSegment::~MemSegment() {
+    close();
+    free(this->data);
+    shuffle_mem_free(SHUFFLE_MEM_LPQ, this->len);
+}
+
+int MemSegment::nextKV() {
+    if (eof)
+        return 0;
+    StreamUtility::deserializeInt(*in_mem_data, cur_key_len, &kbytes);
+    StreamUtility::deserializeInt(*in_mem_data, cur_val_len, &vbytes);
+    if (cur_key_len == EOF_MARKER && cur_val_len == EOF_MARKER) {
+        eof = true;
+        return 0;
+    }
+
+    int pos = in_mem_data->getPosition();
+    set_key(data + pos, cur_key_len);
+    val.reset(data + pos + cur_key_len, cur_val_len);
+    in_mem_data->skip(cur_key_len + cur_val_len);
+    return 1;
+}
+
+bool write_kv_to_file(SegmentMergeQueue *records, OutStream *stream,
+		int32_t &total_write, KeyIndex *index, SpillCodec *codec, spill_stats_t *stats) {
     int32_t len = INT32_MAX; //1<<30; //TODO: consider 64 bit - AVNER
+    bool ret;
+
+    if (codec) {
+        CompressedFileStream *compressed = new CompressedFileStream(stream, codec, stats);
+        ret = write_kv_to_stream(records, len, compressed, total_write, index);
+        compressed->close();
+        delete compressed;
+        return ret;
+    }
 
-    bool ret = write_kv_to_stream(records, len, stream, total_write);
+    ret = write_kv_to_stream(records, len, stream, total_write, index);
 
     stream->flush();
-    delete stream;
+    if (stats) {
+        __sync_fetch_and_add(&stats->uncompressed_bytes, (int64_t)total_write);
+        __sync_fetch_and_add(&stats->written_bytes, (int64_t)total_write);
+    }
     return ret;
 }
 
 bool write_kv_to_file(SegmentMergeQueue *records, const char *file_name,
-		int32_t &total_write) {
+		int32_t &total_write, KeyIndex *index, SpillCodec *codec, spill_stats_t *stats, DiskQueue *disk) {
+    bool ret;
+    if (disk) {
+        int fd = open(file_name, O_WRONLY | O_CREAT | O_TRUNC, 0666);
+        if (fd < 0) {
+            log(lsERROR, "[pid=%d] fail to open file(errno=%d: %m)\n", getpid(), errno);
+            throw new UdaException("Fail to open file");
+        }
+        DiskOutStream *stream = new DiskOutStream(disk, fd);
+        try {
+            ret = write_kv_to_file(records, stream, total_write, index, codec, stats);
+        }
+        catch (UdaException *ex) {
+            delete stream;
+            ::close(fd);
+            throw ex;
+        }
+        delete stream;
+        ::close(fd);
+        return ret;
+    }
+
     FILE *file = fopen(file_name, "wb");
     if (!file) {
     	log(lsERROR, "[pid=%d] fail to open file(errno=%d: %m)\n", getpid(), errno);
 		throw new UdaException("Fail to open file");
     }
 
-    bool ret = write_kv_to_file(records, file, total_write);
+    FileStream *stream = new FileStream(file);
+    ret = write_kv_to_file(records, stream, total_write, index, codec, stats);
+    delete stream;
 
     fclose(file);
     return ret;
@@ -27,66 +27,12 @@
 
 class MapOutput;
 class RawKeyValueIterator;
+class KeyIndex;
 #include "MergeQueue.h"
+#include "SpillStream.h"
 #include "AIOHandler.h"
 #include "CompareFunc.h"
 
-////////////////////////////////////////////////////////////////////////////////
-/**
- * this class takes care for housekeeping for object that were taken out from a
- * pool that is based on the kernel list that we use in UDA.
- *
- * NOTE: at this moment we are not implementing locks around the pools we use.
- * this should be changed if we use multiple LPQs in parallel
- *
- * NOTE: it is your responsibility to return only items that you were previously borrowed from this pool
- */
-template <class T>
-class HouseKeepingPool {
-public:
-
-	//----------------------
-	// since the user doesn't maintain the original items they took from the base pool then we need
-	// the user help for building them again from userData as part of returnToPool
-	typedef void (*ItemBuildFunc) (void *item, void* userData);
-
-	//----------------------
-	HouseKeepingPool(struct list_head * basePool, ItemBuildFunc buildFunc, size_t initialCapacity = 10)
-	: m_basePool(basePool), m_buildFunc(buildFunc) {
-		m_houseKeepingPool.reserve(initialCapacity);
-	}
-
-	//----------------------
-	T * borrowFromPool(){
-	    T *item = list_entry(m_basePool->next, typeof(*item), list);
-	    list_del(&item->list);
-	    m_houseKeepingPool.push_back(item); // for house keeping
-	    return item;
-	}
-
-	//----------------------
-	void returnToPool(void* userData){
-		T *item = prepareReturnToPool();
-		m_buildFunc(item, userData);
-		completeReturnToPool(item);
-	}
-
-private:
-	T * prepareReturnToPool(){
-		T * item = m_houseKeepingPool.back();
-		m_houseKeepingPool.pop_back();
-		return item;
-	}
-
-	void completeReturnToPool(T * item){
-		list_add_tail(&item->list, m_basePool);
-	}
-
-	struct list_head * m_basePool;
-	std::vector<T *>   m_houseKeepingPool;
-	ItemBuildFunc      m_buildFunc;
-};
-
 ////////////////////////////////////////////////////////////////////////////////
 class KVOutput  {
 public:
@@ -111,14 +57,14 @@ public:
     int64_t					mofOffset; //offset of this reducer data in the mof
     string			 		mofPath;
 
-    KVOutput(struct reduce_task *task);
+    /* wanted_len: -1 for the largest buffers of the pool, else the smallest buffers of at least wanted_len bytes */
+    KVOutput(struct reduce_task *task, int32_t wanted_len = -1);
 	virtual ~KVOutput();
 	int32_t getFreeBytes();
-	void borrowFromPool();
+	void borrowFromPool(int32_t wanted_len = -1);
 	void returnToPool();
-private:
-    static void desc_pair_builder (void *desc_pair, void* data);
-    static HouseKeepingPool<mem_set_desc_t> *hkp;
+	/* moves the fetched data to larger free buffers that fit wanted_len bytes, if any. no fetch may be in flight */
+	bool growBuffers(int32_t wanted_len);
 };
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -160,7 +106,11 @@ public:
     virtual void        close();
     virtual void        send_request() = 0;
     virtual reduce_task *get_task() {return kv_output->task;}
-    bool operator<(BaseSegment &seg) {  return ( (g_cmp_func(key.getData(), key.getLength(), seg.key.getData(), seg.key.getLength())) < 0 ); }
+    bool operator<(BaseSegment &seg) {
+        if (key_prefix != seg.key_prefix) // all prefixes are 0 when the compare function has none
+            return key_prefix < seg.key_prefix;
+        return ( (g_cmp_func(key.getData(), key.getLength(), seg.key.getData(), seg.key.getLength())) < 0 );
+    }
 
 	virtual KVOutput * getKVOUutput() {return kv_output;}
 
@@ -168,6 +118,12 @@ public:
     DataStream  key;
     DataStream  val;
 protected:
+    /* sets the current key together with its normalized prefix */
+    void set_key(char *data, int32_t len) {
+        key.reset(data, len);
+        key_prefix = g_key_prefix_func ? g_key_prefix_func(data, len) : 0;
+    }
+
     virtual int         nextKVInternal(InStream *stream);
     virtual bool        join (char *src, int32_t src_len);
 
@@ -184,6 +140,7 @@ public:
     int32_t      temp_buf_len;
     int64_t      byte_read;
     DataStream  *in_mem_data;
+    uint64_t     key_prefix; /* of the current key, see g_key_prefix_func */
 };
 
 typedef MergeQueue<BaseSegment*> SegmentMergeQueue;
@@ -213,10 +170,15 @@ protected:
 
 
 
+/* write_eof=false leaves the stream open for records that are written after these (range merge) */
 bool write_kv_to_mem (SegmentMergeQueue *records, char *src,
-                      int32_t len, int32_t &total_write);
+                      int32_t len, int32_t &total_write, bool write_eof = true);
 
-bool write_kv_to_file(SegmentMergeQueue *records, const char *file_name, int32_t &total_write);
+/* index (optional) samples the written keys for seeking in the file.
+ * codec (optional) compresses the file in blocks (see CompressedFileStream); stats counts the file's bytes.
+ * disk (optional) writes the file in chunks on the queue of its disk */
+bool write_kv_to_file(SegmentMergeQueue *records, const char *file_name, int32_t &total_write, KeyIndex *index = NULL,
+                      SpillCodec *codec = NULL, spill_stats_t *stats = NULL, DiskQueue *disk = NULL);
 
 void write_kv_to_disk(RawKeyValueIterator *records, const char *file_name);
 
@@ -256,13 +218,40 @@ public:
     virtual void send_request() {log(lsERROR, "shouldn't reach here"); throw new UdaException("shouldn't reach here");}
     virtual reduce_task *get_task() {return task;}
 
+    /* positions the segment at a record's offset in the file (see KeyIndex) -
+     * an offset of the uncompressed data when the file is compressed */
+    bool seek(int64_t offset);
+
     reduce_task *task;
 
     FILE        *file;
-    FileStream  *file_stream;
+    int          fd;          /* instead of file when the task has disk queues */
+    InStream    *file_stream;
+    DiskInStream *disk_stream; /* read-ahead of fd on its disk's queue */
+    CompressedFileStream *compressed_stream; /* over disk_stream, same as file_stream when the LPQ spill is compressed */
+    spill_stats_t *spill_stats;
     std::string  path;
 };
 
+/* a run of records in memory, as written by write_kv_to_mem (see PreMerger) */
+class MemSegment : public BaseSegment
+{
+public:
+    /* data was allocated with malloc and is owned by the segment from now on, accounted as LPQ memory */
+    MemSegment (reduce_task *_task, char *data, int32_t len);
+    ~MemSegment();
+
+    virtual int  nextKV();
+    virtual bool join (char *src, int32_t src_len){log(lsERROR, "shouldn't reach here"); throw new UdaException("shouldn't reach here"); return true;}
+    virtual bool switch_mem() {log(lsERROR, "shouldn't reach here"); throw new UdaException("shouldn't reach here"); return true;}
+    virtual void send_request() {log(lsERROR, "shouldn't reach here"); throw new UdaException("shouldn't reach here");}
+    virtual reduce_task *get_task() {return task;}
+
+    reduce_task *task;
+    char        *data;
+    int32_t      len;
+};
+
 #if LCOV_HYBRID_MERGE_DEAD_CODE
 class AioSegment : public BaseSegment {
 protected:
@@ -0,0 +1,126 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include "ZlibDecompressor.h"
+
+using namespace std;
+
+ZlibDecompressor::ZlibDecompressor(int port, reduce_task_t* reduce_task) :
+		DecompressorWrapper(port, reduce_task), libz(NULL), inflate_init_func(NULL), inflate_func(NULL), inflate_end_func(NULL) {
+	log(lsTRACE, "ZlibDecompressor CONSTRACTOR");
+	pthread_mutex_init(&streams_lock, NULL);
+	initDecompress();
+}
+
+ZlibDecompressor::~ZlibDecompressor() {
+	// streams of map outputs that were not fetched to their end
+	for (set<z_stream*>::iterator it = streams.begin(); it != streams.end(); ++it) {
+		inflate_end_func(*it);
+		free(*it);
+	}
+	pthread_mutex_destroy(&streams_lock);
+}
+
+/**
+ * loads zlib library
+ */
+void ZlibDecompressor::initDecompress() {
+	libz = dlopen(HADOOP_ZLIB_LIBRARY, RTLD_LAZY | RTLD_GLOBAL);
+	if (!libz) {
+		log(lsERROR, "Error loading zlib library ,%s", dlerror());
+		throw new UdaException("Error loading zlib library");
+	}
+	inflate_init_func = (int (*)(z_stream*, int, const char*, int))loadSymbolWrapper(libz, "inflateInit2_");
+	inflate_func = (int (*)(z_stream*, int))loadSymbolWrapper(libz, "inflate");
+	inflate_end_func = (int (*)(z_stream*))loadSymbolWrapper(libz, "inflateEnd");
+}
+
+void ZlibDecompressor::decompressStream(client_part_req_t *req, const char* compressed_buff, size_t compressed_buff_len,
+		char* uncompressed_buff, size_t uncompressed_buff_len, decompressRetData_t* retObj) {
+
+	z_stream *strm = (z_stream*)req->decompress_stream;
+	if (!strm) {
+		strm = (z_stream*)calloc(1, sizeof(z_stream));
+		// 15 + 32: the largest window, zlib (DefaultCodec, DeflateCodec) or gzip (GzipCodec) header
+		int rc = strm ? inflate_init_func(strm, 15 + 32, ZLIB_VERSION, (int)sizeof(z_stream)) : Z_MEM_ERROR;
+		if (rc != Z_OK) {
+			free(strm);
+			log(lsERROR, "Error=%d in zlib inflateInit for mop#%d", rc, req->mop->mop_id);
+			throw new UdaException("Error in zlib inflateInit");
+		}
+		pthread_mutex_lock(&streams_lock);
+		streams.insert(strm);
+		pthread_mutex_unlock(&streams_lock);
+		req->decompress_stream = strm;
+	}
+
+	strm->next_in = (Bytef*)compressed_buff;
+	strm->avail_in = compressed_buff_len;
+	strm->next_out = (Bytef*)uncompressed_buff;
+	strm->avail_out = uncompressed_buff_len;
+	int rc = inflate_func(strm, Z_NO_FLUSH);
+	retObj->num_compressed_bytes = compressed_buff_len - strm->avail_in;
+	retObj->num_uncompressed_bytes = uncompressed_buff_len - strm->avail_out;
+
+	switch (rc) {
+	case Z_OK:
+	case Z_BUF_ERROR: // no progress - the rest of the block is in the next rdma fetch
+		return;
+	case Z_STREAM_END:
+		endStream(req);
+		return;
+	default:
+		log(lsERROR, "Error=%d in zlib inflate function for mop#%d: %s", rc, req->mop->mop_id, strm->msg ? strm->msg : "");
+		throw new UdaException("Error in zlib inflate function");
+	}
+}
+
+void ZlibDecompressor::endStream(client_part_req_t *req) {
+	z_stream *strm = (z_stream*)req->decompress_stream;
+	pthread_mutex_lock(&streams_lock);
+	streams.erase(strm);
+	pthread_mutex_unlock(&streams_lock);
+	inflate_end_func(strm);
+	free(strm);
+	req->decompress_stream = NULL;
+}
+
+void ZlibDecompressor::decompress(const char* /*compressed_buff*/, char* /*uncompressed_buff*/, size_t /*compressed_buff_len*/,
+		size_t /*uncompressed_buff_len*/, int /*offest*/, decompressRetData_t* /*retObj*/) {
+	log(lsERROR, "zlib has no blocks - decompressed as a stream");
+	throw new UdaException("zlib has no blocks");
+}
+
+void ZlibDecompressor::get_next_block_length(char* /*buf*/, decompressRetData_t* retObj) {
+	retObj->num_uncompressed_bytes = 0;
+	retObj->num_compressed_bytes = 0;
+}
+
+// any byte of the stream can be inflated
+uint32_t ZlibDecompressor::getNumCompressedBytes(char* /*buf*/) {
+	return 1;
+}
+
+uint32_t ZlibDecompressor::getNumUncompressedBytes(char* /*buf*/) {
+	return 0;
+}
+
+uint32_t ZlibDecompressor::getBlockSizeOffset() {
+	return 0;
+}
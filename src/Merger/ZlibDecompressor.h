@@ -0,0 +1,65 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef ZLIBDECOMPRESSOR_H_
+#define ZLIBDECOMPRESSOR_H_
+
+#include "UdaBridge.h"
+#include <string>
+#include <set>
+#include "../DataNet/RDMAClient.h"
+#include <dlfcn.h>
+#include "../DataNet/RDMAComm.h"
+#include "DecompressorWrapper.h"
+#include <zlib.h>
+
+#define HADOOP_ZLIB_LIBRARY "libz.so.1"
+
+/*
+ * org.apache.hadoop.io.compress.DefaultCodec, DeflateCodec and GzipCodec: Hadoop writes a map output as one
+ * zlib (or gzip) stream without block framing, so it is inflated as a stream
+ */
+class ZlibDecompressor : public DecompressorWrapper
+{
+	public:
+
+		ZlibDecompressor(int port, reduce_task_t* reduce_task);
+		virtual ~ZlibDecompressor();
+
+	private:
+
+		void initDecompress();
+		void get_next_block_length(char* buf, decompressRetData_t* retObj);
+		uint32_t getBlockSizeOffset ();
+		void decompress(const char* compressed_buff, char* uncompressed_buff, size_t compressed_buff_len, size_t uncompressed_buff_len, int /*offest*/, decompressRetData_t* retObj);
+		void decompressStream(client_part_req_t *req, const char* compressed_buff, size_t compressed_buff_len, char* uncompressed_buff, size_t uncompressed_buff_len, decompressRetData_t* retObj);
+		uint32_t getNumCompressedBytes(char* buf);
+		uint32_t getNumUncompressedBytes(char* buf);
+		void endStream(client_part_req_t *req);
+
+		void *libz;
+		int (*inflate_init_func)(z_stream*, int, const char*, int);
+		int (*inflate_func)(z_stream*, int);
+		int (*inflate_end_func)(z_stream*);
+
+		pthread_mutex_t      streams_lock;
+		std::set<z_stream*>  streams; // streams of map outputs that didn't end yet
+};
+
+#endif /* ZLIBDECOMPRESSOR_H_ */
@@ -0,0 +1,121 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#include "ZstdDecompressor.h"
+
+using namespace std;
+
+ZstdDecompressor::ZstdDecompressor(int port, reduce_task_t* reduce_task) :
+		DecompressorWrapper(port, reduce_task), libzstd(NULL), create_stream_func(NULL), init_stream_func(NULL),
+		decompress_stream_func(NULL), free_stream_func(NULL), is_error_func(NULL), error_name_func(NULL) {
+	log(lsTRACE, "ZstdDecompressor CONSTRACTOR");
+	pthread_mutex_init(&streams_lock, NULL);
+	initDecompress();
+}
+
+ZstdDecompressor::~ZstdDecompressor() {
+	// streams of map outputs that were not fetched to their end
+	for (set<void*>::iterator it = streams.begin(); it != streams.end(); ++it)
+		free_stream_func(*it);
+	pthread_mutex_destroy(&streams_lock);
+}
+
+/**
+ * loads zstd library
+ */
+void ZstdDecompressor::initDecompress() {
+	libzstd = dlopen(HADOOP_ZSTD_LIBRARY, RTLD_LAZY | RTLD_GLOBAL);
+	if (!libzstd) {
+		log(lsERROR, "Error loading zstd library ,%s", dlerror());
+		throw new UdaException("Error loading zstd library");
+	}
+	create_stream_func = (void* (*)())loadSymbolWrapper(libzstd, "ZSTD_createDStream");
+	init_stream_func = (size_t (*)(void*))loadSymbolWrapper(libzstd, "ZSTD_initDStream");
+	decompress_stream_func = (size_t (*)(void*, zstd_out_buffer_t*, zstd_in_buffer_t*))loadSymbolWrapper(libzstd, "ZSTD_decompressStream");
+	free_stream_func = (size_t (*)(void*))loadSymbolWrapper(libzstd, "ZSTD_freeDStream");
+	is_error_func = (unsigned (*)(size_t))loadSymbolWrapper(libzstd, "ZSTD_isError");
+	error_name_func = (const char* (*)(size_t))loadSymbolWrapper(libzstd, "ZSTD_getErrorName");
+}
+
+void ZstdDecompressor::decompressStream(client_part_req_t *req, const char* compressed_buff, size_t compressed_buff_len,
+		char* uncompressed_buff, size_t uncompressed_buff_len, decompressRetData_t* retObj) {
+
+	void *stream = req->decompress_stream;
+	if (!stream) {
+		stream = create_stream_func();
+		size_t rc = stream ? init_stream_func(stream) : 0;
+		if (!stream || is_error_func(rc)) {
+			if (stream)
+				free_stream_func(stream);
+			log(lsERROR, "Error in zstd stream init for mop#%d: %s", req->mop->mop_id, stream ? error_name_func(rc) : "out of memory");
+			throw new UdaException("Error in zstd stream init");
+		}
+		pthread_mutex_lock(&streams_lock);
+		streams.insert(stream);
+		pthread_mutex_unlock(&streams_lock);
+		req->decompress_stream = stream;
+	}
+
+	zstd_in_buffer_t in = {compressed_buff, compressed_buff_len, 0};
+	zstd_out_buffer_t out = {uncompressed_buff, uncompressed_buff_len, 0};
+	size_t rc = decompress_stream_func(stream, &out, &in);
+	if (is_error_func(rc)) {
+		log(lsERROR, "Error in zstd decompress function for mop#%d: %s", req->mop->mop_id, error_name_func(rc));
+		throw new UdaException("Error in zstd decompress function");
+	}
+	retObj->num_compressed_bytes = in.pos;
+	retObj->num_uncompressed_bytes = out.pos;
+
+	// 0: the frame is decoded and flushed. a next frame - if any - starts a new stream
+	if (rc == 0)
+		endStream(req);
+}
+
+void ZstdDecompressor::endStream(client_part_req_t *req) {
+	void *stream = req->decompress_stream;
+	pthread_mutex_lock(&streams_lock);
+	streams.erase(stream);
+	pthread_mutex_unlock(&streams_lock);
+	free_stream_func(stream);
+	req->decompress_stream = NULL;
+}
+
+void ZstdDecompressor::decompress(const char* /*compressed_buff*/, char* /*uncompressed_buff*/, size_t /*compressed_buff_len*/,
+		size_t /*uncompressed_buff_len*/, int /*offest*/, decompressRetData_t* /*retObj*/) {
+	log(lsERROR, "zstd has no blocks - decompressed as a stream");
+	throw new UdaException("zstd has no blocks");
+}
+
+void ZstdDecompressor::get_next_block_length(char* /*buf*/, decompressRetData_t* retObj) {
+	retObj->num_uncompressed_bytes = 0;
+	retObj->num_compressed_bytes = 0;
+}
+
+// any byte of the stream can be decompressed
+uint32_t ZstdDecompressor::getNumCompressedBytes(char* /*buf*/) {
+	return 1;
+}
+
+uint32_t ZstdDecompressor::getNumUncompressedBytes(char* /*buf*/) {
+	return 0;
+}
+
+uint32_t ZstdDecompressor::getBlockSizeOffset() {
+	return 0;
+}
@@ -0,0 +1,80 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+#ifndef ZSTDDECOMPRESSOR_H_
+#define ZSTDDECOMPRESSOR_H_
+
+#include "UdaBridge.h"
+#include <string>
+#include <set>
+#include "../DataNet/RDMAClient.h"
+#include <dlfcn.h>
+#include "../DataNet/RDMAComm.h"
+#include "DecompressorWrapper.h"
+
+#define HADOOP_ZSTD_LIBRARY "libzstd.so.1"
+
+// ZSTD_inBuffer/ZSTD_outBuffer of zstd.h - the library is loaded at runtime
+typedef struct zstd_in_buffer {
+	const void *src;
+	size_t      size;
+	size_t      pos;
+} zstd_in_buffer_t;
+
+typedef struct zstd_out_buffer {
+	void       *dst;
+	size_t      size;
+	size_t      pos;
+} zstd_out_buffer_t;
+
+/*
+ * org.apache.hadoop.io.compress.ZStandardCodec: Hadoop writes a map output as zstd frames without block framing,
+ * so it is decompressed as a stream
+ */
+class ZstdDecompressor : public DecompressorWrapper
+{
+	public:
+
+		ZstdDecompressor(int port, reduce_task_t* reduce_task);
+		virtual ~ZstdDecompressor();
+
+	private:
+
+		void initDecompress();
+		void get_next_block_length(char* buf, decompressRetData_t* retObj);
+		uint32_t getBlockSizeOffset ();
+		void decompress(const char* compressed_buff, char* uncompressed_buff, size_t compressed_buff_len, size_t uncompressed_buff_len, int /*offest*/, decompressRetData_t* retObj);
+		void decompressStream(client_part_req_t *req, const char* compressed_buff, size_t compressed_buff_len, char* uncompressed_buff, size_t uncompressed_buff_len, decompressRetData_t* retObj);
+		uint32_t getNumCompressedBytes(char* buf);
+		uint32_t getNumUncompressedBytes(char* buf);
+		void endStream(client_part_req_t *req);
+
+		void *libzstd;
+		void* (*create_stream_func)();
+		size_t (*init_stream_func)(void*);
+		size_t (*decompress_stream_func)(void*, zstd_out_buffer_t*, zstd_in_buffer_t*);
+		size_t (*free_stream_func)(void*);
+		unsigned (*is_error_func)(size_t);
+		const char* (*error_name_func)(size_t);
+
+		pthread_mutex_t      streams_lock;
+		std::set<void*>      streams; // streams of map outputs that didn't end yet
+};
+
+#endif /* ZSTDDECOMPRESSOR_H_ */
@@ -39,9 +39,18 @@
 #include "IOUtility.h"
 #include "C2JNexus.h"
 #include "../DataNet/RDMAClient.h"
+#include "../DataNet/MergerServiceClient.h"
 #include "CompareFunc.h"
+#include "ShuffleMemory.h"
+#include "NodeMemory.h"
+#include "ShuffleCheckpoint.h"
+#include "ShuffleStats.h"
+#include <HugePages.h>
 #include "LzoDecompressor.h"
 #include "SnappyDecompressor.h"
+#include "Lz4Decompressor.h"
+#include "ZstdDecompressor.h"
+#include "ZlibDecompressor.h"
 #include <UdaUtil.h>
 
 using namespace std;
@@ -52,10 +61,12 @@ using namespace std;
 extern merging_state_t merging_sm;
 
 reduce_task_t * g_task;
+static double_buffer_t task_buffers; // of the running task, for park_client
 
 void handle_init_msg(hadoop_cmd_t *hadoop_cmd)
 {
 	static const int DIRS_START = 10;
+	shuffle_stats_reset(); // of this task
 
 	log(lsINFO, "got params from java: hadoop_cmd->count=%d,  num_maps=%s, job_id=%s, reduce_task_id=%s, lpq_size=%s, "
 			"rdma.buf.size=%sB, minBuffer=%sB, cmp_func=%s, comp_alg=%s, comp_block_size=%s, shuffleMemorySize=%sB",
@@ -92,12 +103,36 @@ void handle_init_msg(hadoop_cmd_t *hadoop_cmd)
 	int maxRdmaBufferSize = atoi(hadoop_cmd->params[4]);  // raw value as came from XML file with only conversion to bytes
 	int minRdmaBuffer = atoi(hadoop_cmd->params[5]); // java passes it in Bytes
 	long shuffleMemorySize = atol(hadoop_cmd->params[9]);
-
-	g_cmp_func = get_compare_func(hadoop_cmd->params[6]); // set compare func using Java's key type name
+	// the merge is planned for the share of the node's memory left by the other reducers
+	shuffleMemorySize = node_memory_lease(g_task->reduce_task_id, shuffleMemorySize);
+	shuffle_mem_set_budget(shuffleMemorySize);
+
+	// set compare func using Java's key type name, or the job's description of a composite key,
+	// or the job's Java comparator for other keys
+	string custom_comparator = UdaBridge_invoke_getConfData_callback("mapred.output.key.comparator.class",
+			UdaBridge_invoke_getConfData_callback("mapreduce.job.output.key.comparator.class", "").c_str());
+	g_cmp_func = get_compare_func(hadoop_cmd->params[6],
+			UdaBridge_invoke_getConfData_callback("mapred.rdma.key.descriptor", "").c_str(),
+			UdaBridge_invoke_getConfData_callback("mapred.rdma.compare.mode", "auto").c_str(),
+			custom_comparator.c_str());
+	g_batch_cmp_func = get_batch_compare_func(g_cmp_func);
+	g_key_prefix_func = get_key_prefix_func(g_cmp_func);
 	g_task->comp_alg = getCompAlg(hadoop_cmd->params[7]);
 	g_task->comp_block_size = atoi(hadoop_cmd->params[8]);
 
+	bool planned = (merging_sm.online == MERGE_APPROACH_AUTO);
+	if (planned) {
+		// with the configured lpq size when hybrid merge is chosen, unless it is 0 (default)
+		int lpq_size = g_task->lpq_size;
+		merging_sm.online = MergeManager::plan_merge_approach(g_task->num_maps, shuffleMemorySize,
+				maxRdmaBufferSize, minRdmaBuffer, lpq_size);
+		if (g_task->lpq_size <= 0)
+			g_task->lpq_size = lpq_size;
+	}
+
 	g_task->init(); // just initialization and calculation without starting a thread
+	g_task->merge_man->planned = planned;
+	g_task->merge_man->shuffle_memory = shuffleMemorySize;
 
 	if (shuffleMemorySize <  (long)g_task->merge_man->num_kv_bufs * maxRdmaBufferSize * 2) { // 2 for double buffer
 		int maxRdmaBufferSizeOrig = maxRdmaBufferSize;
@@ -119,15 +154,26 @@ void handle_init_msg(hadoop_cmd_t *hadoop_cmd)
 		throw new UdaException("RDMA Buffer is too small");
 	}
 
-	createInputClient();
-	g_task->client->start_client();
-	log(lsDEBUG, " AFTER INPUT CLIENT CREATION");
-	log(lsDEBUG, "1 minRdmaBuffer %d,  g_task->buffer_size*2=%d, g_task->comp_block_size=%d",minRdmaBuffer,g_task->buffer_size*2,g_task->comp_block_size );
-
-
 	double_buffer_t buffers = calculateMemPool(minRdmaBuffer);
-	// Allocating memory and register RDMA buffers
-	g_task->client->getRdmaClient()->register_mem(&merging_sm.mop_pool, buffers);
+	if (!attach_parked_client(buffers)) {
+		MergerServiceClient *service_client = MergerServiceClient::attach(g_task, merging_sm.mop_pool.total_size);
+		g_task->service_client = service_client;
+		createInputClient();
+		g_task->client->start_client();
+		log(lsDEBUG, " AFTER INPUT CLIENT CREATION");
+		log(lsDEBUG, "1 minRdmaBuffer %d,  g_task->buffer_size*2=%d, g_task->comp_block_size=%d",minRdmaBuffer,g_task->buffer_size*2,g_task->comp_block_size );
+
+		if (service_client) {
+			// the RDMA buffers are the task's lease of the merger service's registered arena
+			merging_sm.mop_pool.mem = service_client->get_mem();
+			shuffle_mem_alloc(SHUFFLE_MEM_FETCH, merging_sm.mop_pool.total_size);
+			RdmaClient::split_mem_pool_to_pairs(&merging_sm.mop_pool, buffers);
+		} else {
+			// Allocating memory and register RDMA buffers
+			g_task->client->getRdmaClient()->register_mem(&merging_sm.mop_pool, buffers);
+		}
+	}
+	task_buffers = buffers;
 
 	g_task->start(); // start a thread for fetch/merge
 }
@@ -177,6 +223,12 @@ void reduce_downcall_handler(const string & msg)
 		 * 2. map from the hostid to its request list
 		 * 3. lock the list and insert the new request
 		 */
+		if (g_task->merge_man->checkpoint && g_task->merge_man->checkpoint->is_restored_map(hadoop_cmd->params[2])) {
+			log(lsDEBUG, "map output of %s is in an LPQ spill of a previous attempt - not fetched", hadoop_cmd->params[2]);
+			free_hadoop_cmd(*hadoop_cmd);
+			free(hadoop_cmd);
+			break;
+		}
 
 		/* Insert a segment request into the list */
 		req = (client_part_req_t *) malloc(sizeof(client_part_req_t));
@@ -231,16 +283,18 @@ int create_mem_pool(int size, int num, memory_pool_t *pool) //similar to the old
 
     log (lsDEBUG, "buffer length is %d, pool->total_size is %d\n", buf_len, pool->total_size);
     
-    int rc = posix_memalign((void**)&pool->mem,  pagesize, pool->total_size);
+    pool->mem = (char*)huge_pages_alloc(pool->total_size, "KV ring");
     BULLSEYE_EXCLUDE_BLOCK_START
-	if (rc) {
-    	log(lsERROR, "Failed to memalign. aligment=%d size=%ll , rc=%d", pagesize ,pool->total_size, rc );
+	if (!pool->mem) {
+    	log(lsERROR, "Failed to memalign. aligment=%d size=%lld", pagesize ,pool->total_size);
         throw new UdaException("memalign failed");
     }
     BULLSEYE_EXCLUDE_BLOCK_END
 
     log(lsDEBUG,"memalign successed - %lld bytes", pool->total_size);
+    shuffle_mem_alloc(SHUFFLE_MEM_KV, pool->total_size);
     memset(pool->mem, 0, pool->total_size);
+    huge_pages_log_backing(pool->mem);
 
     for (int i = 0; i < num; ++i) {
         mem_desc_t *desc = (mem_desc_t *) malloc(sizeof(mem_desc_t));
@@ -326,20 +380,32 @@ void spawn_reduce_task()
 
 
 //------------------------------------------------------------------------------
-void final_cleanup()
+void final_cleanup(bool merge_done)
 {
 
 	log(lsINFO, "-------------- STOPING PROCESS ---------");
     /* free map output pool */
-	delete [] merging_sm.mop_pool.desc_arr;
-	delete [] merging_sm.mop_pool.pair_desc_arr;
+	if (merging_sm.mop_pool.slabs) {
+		merging_sm.mop_pool.slabs->log_stats();
+		delete merging_sm.mop_pool.slabs;
+		merging_sm.mop_pool.slabs = NULL;
+	}
     pthread_mutex_destroy(&merging_sm.mop_pool.lock);
 
+	if (park_client(merge_done)) {
+		node_memory_resize(merging_sm.mop_pool.total_size);
+		shuffle_mem_log();
+		return; // the client, the registered memory and the JNI references stay for the next reduce task
+	}
+
 	int contigPagesEnabler =  ::atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.mem.use.contig.pages", "1").c_str());
-	if (!contigPagesEnabler)
+	if (!contigPagesEnabler && !g_task->service_client) // a lease of the merger service is unmapped by its client
 	{
-		free(merging_sm.mop_pool.mem);
+		huge_pages_free(merging_sm.mop_pool.mem);
 	}
+	shuffle_mem_free(SHUFFLE_MEM_FETCH, merging_sm.mop_pool.total_size);
+	shuffle_mem_log();
+	node_memory_release();
     g_task->client->stop_client();
     log (lsDEBUG, "INPUT client is stopped");
 
@@ -357,18 +423,25 @@ void finalize_reduce_task(reduce_task_t *task)
 	log(lsINFO, "-------------- STOPING REDUCER ---------");
 
     write_log(task->reduce_log, DBG_CLIENT,
-              "Total wait  time: %d", 
-              task->total_wait_mem_time);
+              "Total wait  time: %lld ms",
+              (long long)shuffle_stats_get(STAT_WAIT_MEM_MS));
+    log(lsINFO, "shuffle times: fetch=%lldms merge=%lldms upload=%lldms wait_mem=%lldms",
+        (long long)shuffle_stats_get(STAT_FETCH_MS), (long long)shuffle_stats_get(STAT_MERGE_MS),
+        (long long)shuffle_stats_get(STAT_UPLOAD_MS), (long long)shuffle_stats_get(STAT_WAIT_MEM_MS));
 
     /* stop merge thread and upload thread - This will only happen after joining fetch_thread*/
     task->merge_thread.stop = 1;
     pthread_mutex_lock(&task->merge_man->lock);
     pthread_cond_broadcast(&task->merge_man->cond);
     pthread_mutex_unlock(&task->merge_man->lock);
+    if (task->merge_man->pre_merger) {
+        task->merge_man->pre_merger->interrupt();
+    }
 	log(lsDEBUG, "<< before joining merge_thread");
     pthread_join(task->merge_thread.thread, NULL); log(lsDEBUG, "THREAD JOINED");
 	log(lsDEBUG, "-------------->>> merge_thread has joined <<<<------------");
 
+    bool merge_done = task->merge_man->merge_done;
     delete task->merge_man;
    
     // free large pool of ~ 2 * 1MB
@@ -389,7 +462,8 @@ void finalize_reduce_task(reduce_task_t *task)
     }
 	log(lsTRACE, "<< after  free pool loop");
     pthread_mutex_destroy(&task->kv_pool.lock);
-    free(task->kv_pool.mem);
+    huge_pages_free(task->kv_pool.mem);
+    shuffle_mem_free(SHUFFLE_MEM_KV, task->kv_pool.total_size);
 	log(lsTRACE, "-- after free kv pool of 2 staging buffers (at task level)");
 
     if ((rc=pthread_cond_destroy(&task->cond))) {
@@ -399,7 +473,7 @@ void finalize_reduce_task(reduce_task_t *task)
     	log(lsERROR, "Failed to destroy pthread_mutex - rc=%d", rc);
     }
 
-    final_cleanup();
+    final_cleanup(merge_done);
     
     free(task->reduce_task_id);
     free(task->job_id);
@@ -409,10 +483,118 @@ void finalize_reduce_task(reduce_task_t *task)
     closeLog();
 }
 
+//------------------------------------------------------------------------------
+/*
+ * In-JVM client reuse (mapred.rdma.jvm.client.reuse): reduce tasks that run one after the other in the same JVM
+ * (JVM reuse) share the RDMA client - with its connections to the suppliers - and the registered RDMA buffers.
+ * The task that ends parks them, and the next task attaches to them when its buffer layout is the same (same
+ * job settings), else they are released. Connections idle for mapred.rdma.conn.idle.timeout seconds are closed
+ * on attach. The per-task state (buffer slabs, KV ring, merge manager) is built anew by each task.
+ * Only within the JVM - across processes the node's merger service does it (DataNet/MergerService.h), and a
+ * task attached to the service does not park. Only without compression, since the decompressing clients run
+ * threads of their task.
+ * Only a task that completed its merge with no fetch request in flight parks its client: a late completion
+ * would RDMA-write into buffers of the next task. A client still parked is released by the JVM's shutdown
+ * hook (UdaBridge) or on JNI unload.
+ */
+typedef struct parked_client {
+	InputClient        *client;     /* NULL when nothing is parked */
+	memory_pool_t       mop_pool;
+	double_buffer_t     buffers;
+	int                 data_port;
+} parked_client_t;
+
+static parked_client_t   parked_client;
+static pthread_mutex_t   parked_lock = PTHREAD_MUTEX_INITIALIZER; // the shutdown hook may release it from another thread
+
+// on by default when the JVM runs more than one task (mapred.job.reuse.jvm.num.tasks is -1 or above 1)
+static bool is_jvm_client_reuse() {
+	int reuse = ::atoi(UdaBridge_invoke_getConfData_callback("mapred.job.reuse.jvm.num.tasks", "1").c_str());
+	const char *def = (reuse == 1) ? "false" : "true";
+	return strcmp(UdaBridge_invoke_getConfData_callback("mapred.rdma.jvm.client.reuse", def).c_str(), "true") == 0;
+}
+
+static void drop_parked_client() {
+	log(lsINFO, "releasing the RDMA client parked by the previous reduce task");
+	parked_client.client->stop_client();
+	delete parked_client.client;
+	parked_client.client = NULL;
+
+	int contigPagesEnabler =  ::atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.mem.use.contig.pages", "1").c_str());
+	if (!contigPagesEnabler)
+		huge_pages_free(parked_client.mop_pool.mem);
+	shuffle_mem_free(SHUFFLE_MEM_FETCH, parked_client.mop_pool.total_size);
+}
+
+void release_parked_client() {
+	pthread_mutex_lock(&parked_lock);
+	if (parked_client.client) {
+		drop_parked_client();
+		node_memory_release();
+	}
+	pthread_mutex_unlock(&parked_lock);
+}
+
+bool attach_parked_client(double_buffer_t buffers) {
+	pthread_mutex_lock(&parked_lock);
+	if (!parked_client.client) {
+		pthread_mutex_unlock(&parked_lock);
+		return false;
+	}
+
+	memory_pool_t *pool = &merging_sm.mop_pool;
+	bool same_layout = g_task->isCompressionOff() && is_jvm_client_reuse() &&
+			parked_client.data_port == merging_sm.data_port &&
+			parked_client.mop_pool.total_size == pool->total_size && parked_client.mop_pool.num == pool->num &&
+			parked_client.buffers.buffer1 == buffers.buffer1 && parked_client.buffers.buffer2 == buffers.buffer2;
+	if (!same_layout) {
+		drop_parked_client();
+		pthread_mutex_unlock(&parked_lock);
+		return false;
+	}
+
+	g_task->client = parked_client.client;
+	parked_client.client = NULL;
+	pool->mem = parked_client.mop_pool.mem;
+	pthread_mutex_unlock(&parked_lock);
+	g_task->client->getRdmaClient()->attach_task(g_task);
+	g_task->client->start_client();
+	g_task->client->getRdmaClient()->split_mem_pool_to_pairs(pool, buffers);
+	log(lsINFO, "attached to the parked RDMA client: %lld bytes of registered RDMA buffers", (long long)pool->total_size);
+	return true;
+}
+
+bool park_client(bool merge_done) {
+	if (!is_jvm_client_reuse() || !g_task->isCompressionOff() || !g_task->client || g_task->service_client)
+		return false; // the merger service keeps the connections and the memory of its tasks
+
+	int in_flight = g_task->client->getRdmaClient()->fetches_in_flight;
+	if (!merge_done || in_flight) {
+		log(lsINFO, "not parking the RDMA client: the merge %s, %d fetch requests are in flight",
+				merge_done ? "completed" : "was stopped", in_flight);
+		return false;
+	}
+
+	pthread_mutex_lock(&parked_lock);
+	parked_client.client = g_task->client;
+	parked_client.mop_pool = merging_sm.mop_pool;
+	parked_client.buffers = task_buffers;
+	parked_client.data_port = merging_sm.data_port;
+	pthread_mutex_unlock(&parked_lock);
+	g_task->client = NULL;
+	log(lsINFO, "parked the RDMA client for the next reduce task of this JVM: %lld bytes of registered RDMA buffers", (long long)merging_sm.mop_pool.total_size);
+	return true;
+}
+
 void createInputClient(){
 	compressionType comp = g_task->getCompressionType();
 	switch(comp){
 		case compOff:
+			if (g_task->service_client) {
+				log (lsDEBUG, "using the merger service client");
+				g_task->client = g_task->service_client;
+				break;
+			}
 			log (lsDEBUG, "creating rdma client");
 			g_task->client = new RdmaClient(merging_sm.data_port, g_task);
 		break;
@@ -424,6 +606,18 @@ void createInputClient(){
 			log (lsDEBUG, "creating snappy client");
 			g_task->client = new SnappyDecompressor(merging_sm.data_port, g_task);
 		break;
+		case compLz4:
+			log (lsDEBUG, "creating lz4 client");
+			g_task->client = new Lz4Decompressor(merging_sm.data_port, g_task);
+		break;
+		case compZstd:
+			log (lsDEBUG, "creating zstd client");
+			g_task->client = new ZstdDecompressor(merging_sm.data_port, g_task);
+		break;
+		case compZlib:
+			log (lsDEBUG, "creating zlib client");
+			g_task->client = new ZlibDecompressor(merging_sm.data_port, g_task);
+		break;
 		default:
 			log(lsERROR, "compression not supported: %d", comp);
 			throw new UdaException("compression not supported");
@@ -441,6 +635,14 @@ compressionType getCompAlg(char* comp){
 		return compLzo;
 	}else if(strcmp(comp,"org.apache.hadoop.io.compress.SnappyCodec")==0){
 		return compSnappy;
+	}else if(strcmp(comp,"org.apache.hadoop.io.compress.Lz4Codec")==0){
+		return compLz4;
+	}else if(strcmp(comp,"org.apache.hadoop.io.compress.ZStandardCodec")==0){
+		return compZstd;
+	}else if(strcmp(comp,"org.apache.hadoop.io.compress.DefaultCodec")==0 ||
+			strcmp(comp,"org.apache.hadoop.io.compress.DeflateCodec")==0 ||
+			strcmp(comp,"org.apache.hadoop.io.compress.GzipCodec")==0){
+		return compZlib;
 	}else if(strcmp(comp,"null")==0){
 		return compOff;
 	}else{
@@ -450,6 +652,29 @@ compressionType getCompAlg(char* comp){
 }
 
 
+/*
+ * size classes of the buffer pairs (compression off): mapred.rdma.buf.classes classes, each with buffers of a quarter
+ * of the previous class, class 0 of buffer_size. the pool's slabs are carved into pairs of a class on demand. map
+ * outputs are fetched first into the smallest buffers and move to buffers of their partition's size after the first
+ * fetch, so small partitions share slabs and leave whole slabs to the large ones.
+ */
+void calculateBufferClasses(memory_pool_t *pool, int minRdmaBuffer){
+	int classes = atoi(UdaBridge_invoke_getConfData_callback ("mapred.rdma.buf.classes", "3").c_str());
+	classes = max(1, min(classes, MAX_BUFFER_CLASSES));
+	int min_len = max(minRdmaBuffer, getpagesize());
+
+	pool->num_classes = 1;
+	pool->class_size[0] = g_task->buffer_size;
+	for (int k = 1; k < classes; ++k) {
+		int32_t len = g_task->buffer_size >> (2 * k);
+		len -= len % getpagesize();
+		if (len < min_len)
+			break;
+		pool->class_size[k] = len;
+		pool->num_classes++;
+	}
+}
+
 double_buffer_t calculateMemPool(int minRdmaBuffer){
 	memset(&merging_sm.mop_pool, 0, sizeof(memory_pool_t));
 
@@ -465,6 +690,7 @@ double_buffer_t calculateMemPool(int minRdmaBuffer){
 		log(lsDEBUG, "compression isn't configured: allocating 2 buffers of same size = %d",g_task->buffer_size);
 		buffers.buffer1 = g_task->buffer_size;
 		buffers.buffer2 = g_task->buffer_size;
+		calculateBufferClasses(&merging_sm.mop_pool, minRdmaBuffer);
 	} else{
 		log(lsDEBUG, "compression is configured");
 		float splitPercentRdmaComp =  ::atof(UdaBridge_invoke_getConfData_callback ("mapred.rdma.compression.buffer.ratio", "0.20").c_str());
@@ -489,6 +715,7 @@ double_buffer_t calculateMemPool(int minRdmaBuffer){
 
 		buffers.buffer1 = rdmaBufferUsed;
 		buffers.buffer2 = uncompBufferUsed;
+		g_task->merge_man->init_buffer_split(rdmaBufferUsed, uncompBufferUsed, minRdmaBuffer, maxRdmaSize, uncompBufferHardMin);
 	}
 	log(lsDEBUG, "Calculated RDMA buffers: buffer1 = %dB buffer2 = %dB . Total RDMA memory =  %dMB", buffers.buffer1, buffers.buffer2, merging_sm.mop_pool.total_size / (1024 * 1024));
 
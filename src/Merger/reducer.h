@@ -39,7 +39,7 @@ class C2JNexus;
 class MergeManager;
 struct reduce_task;
 
-enum compressionType{compOff, compSnappy, compLzo};
+enum compressionType{compOff, compSnappy, compLzo, compLz4, compZstd, compZlib};
 
 typedef struct reduce_directory {
     char         *path;
@@ -60,6 +60,7 @@ typedef struct merging_state {
 typedef struct reduce_task {
 
 	InputClient       *client;
+	InputClient       *service_client; // the task's input through the node's merger service - owned by client
 
     struct list_head   list;
     int                reduce_id;
@@ -77,11 +78,7 @@ typedef struct reduce_task {
 
     memory_pool_t      kv_pool; // size will be: NUM_STAGE_MEM * netlev_kv_pool_size (currently, 2 * 1MB)
 
-    /* for measurement */
-    int           total_wait_mem_time;
-    int           total_fetch_time;
-    int           total_merge_time;
-    int           total_upload_time;
+    /* for measurement: see ShuffleStats.h */
 
     /* debug info */
     int           total_java_reqs;
@@ -139,8 +136,12 @@ void spawn_reduce_task();
 void finalize_reduce_task(reduce_task_t *task);
 int  create_mem_pool(int logsize, int num, memory_pool_t *pool);
 void createInputClient();
+bool attach_parked_client(double_buffer_t buffers); /* in-JVM reuse: take the previous task's client and buffers */
+bool park_client(bool merge_done);                  /* in-JVM reuse: keep them for the next task */
+void release_parked_client();                       /* in-JVM reuse: on JVM shutdown or JNI unload */
 compressionType getCompAlg(char* comp);
 double_buffer_t calculateMemPool(int minRdmaBuffer);
+void calculateBufferClasses(memory_pool_t *pool, int minRdmaBuffer);
 
 #endif
 
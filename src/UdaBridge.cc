@@ -28,6 +28,8 @@
 #include <pthread.h>
 #include <UdaUtil.h>
 #include "Merger/reducer.h"
+#include "Merger/ShuffleMemory.h"
+#include "Merger/ShuffleStats.h"
 
 //
 // We cache all needed Java handles, for best performance of C++ -> Java calls.
@@ -44,6 +46,7 @@ static jmethodID jmethodID_dataFromUda; // handle to java cb method
 static jmethodID jmethodID_getPathUda; // handle to java cb method
 static jmethodID jmethodID_getConfData; // handle to java cb method
 static jmethodID jmethodID_logToJava; // handle to java cb method
+static jmethodID jmethodID_compareBatch; // handle to java cb method
 static jfieldID fidOffset;
 static jfieldID fidRawLength;
 static jfieldID fidPartLength;
@@ -169,6 +172,13 @@ extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *jvm, void *reserved)
 		return JNI_ERR;
 	}
 
+	//compareBatch callback
+	jmethodID_compareBatch = env->GetStaticMethodID(jclassUdaBridge, "compareBatch", "(Ljava/lang/Object;II)V");
+	if (jmethodID_compareBatch == NULL) {
+		printf("-->> In C++ java UdaBridge.compareBatch() callback method was NOT found\n");
+		return JNI_ERR;
+	}
+
 	printf("-->> In C++ java callback methods were found and cached\n");
 	return JNI_VERSION_1_4;  //direct buffer requires java 1.4
 }
@@ -179,6 +189,12 @@ extern "C" JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *jvm, void *reserved)
 	// NOTE: We never reached this place
 	printf("-->> In C++ JNI_OnUnload\n");
 
+	try {
+		release_parked_client();
+	}
+	catch (UdaException *ex) {
+		printf("failure in release_parked_client: %s\n", ex->getFullMessage().c_str());
+	}
 	UdaBridge_onUnloadCleanup();
 }
 
@@ -314,6 +330,20 @@ extern "C" JNIEXPORT void JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_redu
 }
 
 
+// This is the implementation of the native method - called by the JVM's shutdown hook
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_releaseParkedClientNative (JNIEnv *env, jclass cls) {
+	try {
+		release_parked_client();
+	}
+    catch (UdaException *ex) {
+    	log(lsWARN, "failure in release_parked_client: info=%s, full-message=%s ", ex->_info, ex->getFullMessage().c_str());
+    }
+    catch (...) {
+    	log(lsWARN, "failure in release_parked_client: unexpected error");
+    }
+}
+
+
 // This is the implementation of the native method
 extern "C" JNIEXPORT void JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_setLogLevelNative  (jclass cls, jint log_level) {
 	try {
@@ -333,6 +363,41 @@ extern "C" JNIEXPORT void JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_setL
 }
 
 
+// This is the implementation of the native method
+// returns the bytes in use of each native pool and their total, then the peaks in the same order, then the budget
+extern "C" JNIEXPORT jlongArray JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_getMemoryAccountingNative  (JNIEnv *env, jclass cls) {
+	jlong values[2 * (SHUFFLE_MEM_NUM + 1) + 1];
+	for (int i = 0; i <= SHUFFLE_MEM_NUM; ++i) {
+		values[i] = shuffle_mem_used((shuffle_mem_t)i);
+		values[SHUFFLE_MEM_NUM + 1 + i] = shuffle_mem_peak((shuffle_mem_t)i);
+	}
+	values[2 * (SHUFFLE_MEM_NUM + 1)] = shuffle_mem_budget();
+
+	jsize len = sizeof(values) / sizeof(values[0]);
+	jlongArray array = env->NewLongArray(len);
+	if (array == NULL) {
+		log(lsWARN, "out of memory in JNI call to NewLongArray");
+		return NULL;
+	}
+	env->SetLongArrayRegion(array, 0, len, values);
+	return array;
+}
+
+extern "C" JNIEXPORT jlongArray JNICALL Java_com_mellanox_hadoop_mapred_UdaBridge_getShuffleStatsNative  (JNIEnv *env, jclass cls) {
+	jlong values[STAT_NUM];
+	for (int i = 0; i < STAT_NUM; ++i)
+		values[i] = shuffle_stats_get((shuffle_stat_t)i);
+
+	jlongArray array = env->NewLongArray(STAT_NUM);
+	if (array == NULL) {
+		log(lsWARN, "out of memory in JNI call to NewLongArray");
+		return NULL;
+	}
+	env->SetLongArrayRegion(array, 0, STAT_NUM, values);
+	return array;
+}
+
+
 // must be called with JNIEnv that matched the caller's thread - see attachNativeThread() above
 // - otherwise TOO BAD unexpected results are expected!
 void UdaBridge_invoke_fetchOverMessage_callback(JNIEnv * jniEnv) {
@@ -345,7 +410,9 @@ void UdaBridge_invoke_fetchOverMessage_callback(JNIEnv * jniEnv) {
 // - otherwise TOO BAD unexpected results are expected!
 void UdaBridge_invoke_dataFromUda_callback(JNIEnv * jniEnv, jobject jbuf, int len) {
 	log(lsTRACE, "before jniEnv->CallStaticVoidMethod jniEnv=%p, jbuf=%p, len=%d", jniEnv, jbuf, len);
+	int64_t start_ms = shuffle_stats_now_ms();
 	jniEnv->CallStaticVoidMethod(jclassUdaBridge, jmethodID_dataFromUda, jbuf, len);
+	shuffle_stats_add(STAT_UPLOAD_MS, shuffle_stats_now_ms() - start_ms);
 	log(lsTRACE, "after  jniEnv->CallStaticVoidMethod...");
 }
 
@@ -452,6 +519,17 @@ void UdaBridge_invoke_logToJava_callback(const char* log_message, int severity)
 }
 
 
+void UdaBridge_invoke_compareBatch_callback(JNIEnv * jniEnv, jobject jbuf, int n, int len) {
+	jniEnv->CallStaticVoidMethod(jclassUdaBridge, jmethodID_compareBatch, jbuf, n, len);
+	if (jniEnv->ExceptionCheck()) {
+		jniEnv->ExceptionDescribe();
+		jniEnv->ExceptionClear();
+		log(lsERROR, "java UdaBridge.compareBatch failed (n=%d len=%d)", n, len);
+		throw new UdaException("java key comparator failed");
+	}
+}
+
+
 // a utility function that attaches the **current [native] thread** to the JVM and
 // return the JNIEnv interface pointer for this thread
 // BE CAREFUL:
@@ -502,6 +580,26 @@ JNIEnv *UdaBridge_threadGetEnv()
 }
 
 
+////////////////////////////////////////////////////////////////////////////////
+// releases a global ref from any native thread, including one that was already detached
+// from the JVM (e.g. from a pthread key destructor); attaches it for the call if needed
+// DO NOT log here - this may run after the thread was detached
+void UdaBridge_deleteGlobalRef(jobject ref)
+{
+	if (!ref || !cached_jvm) return;
+
+	JNIEnv *jniEnv;
+	jint ret = cached_jvm->GetEnv((void **)&jniEnv, JNI_VERSION_1_4);
+	if (ret == JNI_OK) {
+		jniEnv->DeleteGlobalRef(ref);
+	}
+	else if (ret == JNI_EDETACHED && cached_jvm->AttachCurrentThread((void **)&jniEnv, NULL) == JNI_OK) {
+		jniEnv->DeleteGlobalRef(ref);
+		cached_jvm->DetachCurrentThread();
+	}
+}
+
+
 ////////////////////////////////////////////////////////////////////////////////
 void UdaBridge_exceptionInNativeThread(JNIEnv *env, UdaException *ex) {
 
@@ -34,12 +34,14 @@ void          UdaBridge_invoke_dataFromUda_callback(JNIEnv * jniEnv, jobject jbu
 void          UdaBridge_invoke_logToJava_callback(const char* log_message, int severity);
 index_record* UdaBridge_invoke_getPathUda_callback (JNIEnv * jniEnv, const char* job_id, const char* map_id, int reduceId);
 std::string   UdaBridge_invoke_getConfData_callback(const char* paramName, const char* defaultValue);
+void          UdaBridge_invoke_compareBatch_callback(JNIEnv * jniEnv, jobject jbuf, int n, int len);
 
 
 // UdaBridge utility functions
 JNIEnv *UdaBridge_attachNativeThread();
 void    UdaBridge_detachNativeThread();
 JNIEnv *UdaBridge_threadGetEnv();
+void    UdaBridge_deleteGlobalRef(jobject ref);
 void    UdaBridge_exceptionInNativeThread(JNIEnv *env, UdaException *ex);
 jobject UdaBridge_registerDirectByteBuffer(JNIEnv * jniEnv,  void* address, long capacity);
 void    UdaBridge_onUnloadCleanup();
@@ -22,12 +22,23 @@
 #include <libaio.h>
 #include <fcntl.h>
 #include <stdio.h>
+#include <vector>
+#include <sys/uio.h>
 
 #define AIO_ALIGNMENT_EXPO	(12) // alignment to 4k
 #define AIO_ALIGNMENT 		(1<<AIO_ALIGNMENT_EXPO)
 
+#define AIO_IO_URING_SQPOLL_IDLE_MSEC	(2000)
+#define AIO_IO_URING_MAX_FIXED_BUF		(1L<<30) // kernel limit for a single registered buffer
+
 typedef int (*AioCallback)(void*, int);
 
+enum AioBackend {
+	AIO_BACKEND_AUTO,	  // io_uring when available, otherwise libaio
+	AIO_BACKEND_LIBAIO,
+	AIO_BACKEND_IO_URING
+};
+
 template<class T, void(T::*mem_fn)()>
 void* thunk(void* p)
 {
@@ -44,14 +55,33 @@ private:
 	bool			_stopCallbackProcessor;
 	iocb**			_cbRow;
 	int				_cbRowIndex;
+	int				_cbRowHeld; // io_uring: requests at the start of _cbRow that found the SQ full - already counted on air
 	pthread_mutex_t	_cbRowLock;
 	int	_onAirKernelCounter;
 	int _onAirCounter;
 
+	AioBackend		_requestedBackend;
+	AioBackend		_backend; // the backend actually in use after start()
+	bool			_sqpoll;
+	std::vector<iovec> _fixedBufs; // regions to register with io_uring (split to AIO_IO_URING_MAX_FIXED_BUF)
+	bool			_fixedBufsRegistered;
+	void*			_ring; // struct io_uring* - kept opaque so users of this header don't depend on liburing
+
+	// tries to setup io_uring ring (with SQPOLL if requested) and register the fixed buffers
+	// returns 0 on success
+	int startIoUring();
+	int submitIoUring();
+	void processEventsCallbacksIoUring();
+
+	// returns the index of the registered buffer containing [buff, buff+size) or -1
+	int fixedBufIndex(char* buff, size_t size);
 
 	// thread function for processing aio events callbacks .
 	void processEventsCallbacks();
 
+	// verifies completion result of a single submitted operation and invokes the callback
+	void completeEvent(iocb* cb, long long res);
+
 	// returns TRUE is fileOffset, size AND buff are aligned to SECTOR_SIZE
 	bool validateAligment(long fileOffset, size_t size, char* buff);
 
@@ -69,7 +99,7 @@ public:
 	 * @param int nr read up to nr events from the completion queue of the AIO context on each 'getevents' call
 	 * @param timespec timeout timeout for blocking wait on getevents from context
 	 */
-	AIOHandler(AioCallback callback, int ctx_maxevents, long min_nr, long nr, const timespec* timeout);
+	AIOHandler(AioCallback callback, int ctx_maxevents, long min_nr, long nr, const timespec* timeout, AioBackend backend = AIO_BACKEND_LIBAIO, bool sqpoll = false);
 
 	~AIOHandler();
 
@@ -102,6 +132,21 @@ public:
 	 * Set the function method which will be called for each aio completion event
 	 */
 	void setCompletionCallback(AioCallback callback);
+
+	/*
+	 * Registers a memory region that will be used as destination of reads (i.e. the chunks pool).
+	 * With io_uring backend the region is registered as fixed buffers on start() and reads into it
+	 * are issued with IORING_OP_READ_FIXED. Ignored by libaio backend.
+	 * Must be called before start()
+	 */
+	void registerBuffers(void* mem, size_t length);
+
+	// returns the backend in use (valid after start())
+	AioBackend getBackend() { return _backend; }
+
+	// parses "auto" / "libaio" / "io_uring" (as given in mapred.rdma.aio.backend)
+	static AioBackend parseBackend(const char* name);
+	static const char* backendName(AioBackend backend);
 };
 
 #endif
@@ -56,6 +56,8 @@ typedef struct hadoop_cmd {
 } hadoop_cmd_t;
 
 
+#define MERGE_APPROACH_AUTO (3) /* -a auto: online or hybrid merge chosen per reduce task (see MergeManager::plan_merge_approach) */
+
 typedef struct netlev_option {
     int data_port;   /* port to do rdma connection */ 
     int mode;        /* standalone or integrated*/
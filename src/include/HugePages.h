@@ -0,0 +1,55 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+** 
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**  
+** http://www.apache.org/licenses/LICENSE-2.0
+** 
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+** either express or implied. See the License for the specific language 
+** governing permissions and  limitations under the License.
+**
+**
+*/
+#ifndef __HUGE_PAGES_H__
+#define __HUGE_PAGES_H__
+
+#include <stddef.h>
+
+#define HUGE_PAGE_SIZE (2 << 20)
+
+enum huge_pages_mode_t {
+	HUGE_PAGES_NONE,    /* regular pages */
+	HUGE_PAGES_THP,     /* 2MB aligned, madvise(MADV_HUGEPAGE) - transparent huge pages when the kernel has them */
+	HUGE_PAGES_HUGETLB  /* mmap(MAP_HUGETLB) from the hugetlbfs pool, falls back to THP when the pool is short */
+};
+
+// -----------------------------------------------------------------------------
+/**
+ * allocates len page aligned bytes for the named native pool (RDMA buffers, provider chunks, KV ring).
+ * the backing is configured by mapred.rdma.mem.huge.pages: "none" (default), "thp" or "hugetlb".
+ * returns NULL on failure. the memory must be released with huge_pages_free
+ */
+void *huge_pages_alloc(size_t len, const char *pool);
+
+/* releases memory of huge_pages_alloc; plain free for other memory */
+void  huge_pages_free(void *mem);
+
+/* logs how many bytes of mem (of huge_pages_alloc) are actually backed by huge pages.
+ * THP is populated lazily - call it once the memory was touched (e.g. after RDMA registration) */
+void  huge_pages_log_backing(void *mem);
+
+#endif /// ! __HUGE_PAGES_H__
+/*
+ * Local variables:
+ *  c-indent-level: 4
+ *  c-basic-offset: 4
+ * End:
+ *
+ * vim: ts=4 sw=4 hlsearch cindent expandtab 
+ */
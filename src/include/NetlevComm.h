@@ -34,6 +34,11 @@
 
 #define NETLEV_RDMA_MEM_CHUNKS_NUM	(1000)
 
+/* provider chunk pool bounds & growth defaults (mapred.rdma.provider.chunks.*) */
+#define NETLEV_RDMA_MEM_CHUNKS_MIN	250
+#define NETLEV_RDMA_MEM_CHUNKS_MAX	1000
+#define NETLEV_RDMA_MEM_CHUNKS_SLAB	50
+
 #define ARRAY_SIZE(array) (sizeof array / sizeof array[0])
 #define RDMA_TIMEOUT 2
 
@@ -26,10 +26,19 @@
 #include <iostream>
 #include <unistd.h>
 #include <stdio.h>
+#include <errno.h>
+#include <stddef.h>
 #include <list>
+#include <sys/prctl.h>
+#include <sys/syscall.h>
+#include <linux/filter.h>
+#include <linux/seccomp.h>
 
 #define MAX_FDS (512)
 #define SKIP_CACHE_STEP_SIZE (1<<20)
+#define CHECK_CHUNKS (4)
+#define CHECK_TIMEOUT_SEC (60)
+#define IO_URING_MAX_ENTRIES (32768) // kernel limit of SQ entries
 typedef struct fd_s {
 	int fd;
 	long size;
@@ -43,8 +52,19 @@ typedef struct submit_req {
 	void*	aio_arg;
 } submit_req_t;
 
+typedef struct check_req {
+	int		fd;
+	long	file_offset;
+	long	size;
+	char*	buff;
+	bool	verify;
+	int		completions;
+} check_req_t;
+
 int openMOFs(int numOfDirs, char* dirs[], fd_s_t fd_s_arr[], long& maxfsize, bool open_with_O_DIRECT);
-int callback(void* data);
+int callback(void* data, int status);
+int checkCallback(void* data, int status);
+int ioUringChecks(fd_s_t file, long chunk_size, long min_nr, long nr, const timespec* timeout, bool sqpoll);
 void Usage(const char* appName);
 
 pthread_mutex_t readSizeLock;
@@ -52,6 +72,12 @@ pthread_cond_t testFinishCond;
 long totalSize=0;
 long readSize=0;
 
+pthread_mutex_t checkLock;
+pthread_cond_t checkCond;
+int checkDone=0;
+int checkFailed=0;
+char* checkVerifyBuff;
+
 
 int main(int argc, char *argv[])
 {
@@ -70,6 +96,9 @@ int main(int argc, char *argv[])
 	bool sequentialTest = false;
 	int numOfPathes;
 	int	ios_per_submit;
+	AioBackend backend = AIO_BACKEND_LIBAIO;
+	bool sqpoll = false;
+	int argEnd = argc;
 
 	if (argc < 7){
 		Usage(argv[0]);
@@ -83,25 +112,38 @@ int main(int argc, char *argv[])
 		nsecTimeout=atol(argv[4]);
 		chunk_size=atol(argv[5]);
 		ios_per_submit=atoi(argv[6]);
-		numOfPathes= argc - 7;
-		if (strcmp(argv[argc-1],"-sq") == 0) {
-			sequentialTest=true;
-			numOfPathes--;
+		while (argEnd > 7) {
+			if (strcmp(argv[argEnd-1],"-sq") == 0) {
+				sequentialTest=true;
+				argEnd--;
+			}
+			else if (strcmp(argv[argEnd-1],"-sqpoll") == 0) {
+				sqpoll=true;
+				argEnd--;
+			}
+			else if (argEnd > 8 && strcmp(argv[argEnd-2],"-backend") == 0) {
+				backend=AIOHandler::parseBackend(argv[argEnd-1]);
+				argEnd-=2;
+			}
+			else {
+				break;
+			}
 		}
+		numOfPathes= argEnd - 7;
 	}
 	catch(...) {
 		Usage(argv[0]);
 		return -1;
 	}
 
-	printf("DEBUG: min_nr=%ld, nr=%ld, maxevents=%ld, nsec=%ld, chunk_size=%ld, ios_per_submit=%d\n", min_nr, nr, maxevents, nsecTimeout, chunk_size, ios_per_submit);
+	printf("DEBUG: min_nr=%ld, nr=%ld, maxevents=%ld, nsec=%ld, chunk_size=%ld, ios_per_submit=%d, backend=%s, sqpoll=%d\n", min_nr, nr, maxevents, nsecTimeout, chunk_size, ios_per_submit, AIOHandler::backendName(backend), sqpoll);
 
 	pthread_mutex_init(&readSizeLock, NULL);
 	pthread_cond_init(&testFinishCond, NULL);
 
 	timeout.tv_nsec=nsecTimeout;
 	timeout.tv_sec=0;
-	aio = new AIOHandler(callback,maxevents,min_nr, nr, &timeout);
+	aio = new AIOHandler(callback,maxevents,min_nr, nr, &timeout, backend, sqpoll);
 
 
 	fdCount=openMOFs(numOfPathes, argv + 7, fdsArr, maxfsize, !sequentialTest);
@@ -110,7 +152,8 @@ int main(int argc, char *argv[])
 	if (fdCount <= 0)
 		return -1;
 
-	posix_memalign((void**)&tmpBuff, 512, chunk_size);
+	posix_memalign((void**)&tmpBuff, AIO_ALIGNMENT, chunk_size);
+	aio->registerBuffers(tmpBuff, chunk_size); // io_uring: the test reads with READ_FIXED
 
 	printf("%d file descriptors opened\n", fdCount);
 	printf("Total size= %ld MB\n", totalSize/(1024*1024));
@@ -193,7 +236,7 @@ int main(int argc, char *argv[])
 				exit(-1);
 			}
 
-			if ((rc = callback(aio_requests[reqIndex].aio_arg))) {
+			if ((rc = callback(aio_requests[reqIndex].aio_arg, 0))) {
 				output_stderr("[%s,%d] failed to run sequentially callback after read operation. failure: rc=%d - fd=%d , fileOffset=%ld, sizeToRead=%ld",__FILE__,__LINE__, rc, aio_requests[reqIndex].fd, aio_requests[reqIndex].file_offset, aio_requests[reqIndex].size);
 				exit(-1);
 
@@ -206,6 +249,7 @@ int main(int argc, char *argv[])
 			output_stderr("Failed to start AIO Handler\n");
 			return -1;
 		}
+		printf("AIO backend in use: %s\n", AIOHandler::backendName(aio->getBackend()));
 
 
 		for (reqIndex=0; reqIndex<reqCount; reqIndex++) {
@@ -232,16 +276,11 @@ int main(int argc, char *argv[])
 
 	gettimeofday(&end_time,NULL);
 
-	for(int i=0; i<fdCount; i++) {
-		close(fdsArr[i].fd);
-	}
-
-
 	double start = start_time.tv_sec + (end_time.tv_usec /1000/1000);
 	double end = end_time.tv_sec + (end_time.tv_usec /1000/1000);
 	double diff = end - start;
 
-	printf("***MODE: %s\n", (sequentialTest) ? "SEQUENTIAL" : "AIO with O_DIRECT");
+	printf("***MODE: %s\n", (sequentialTest) ? "SEQUENTIAL" : (aio->getBackend() == AIO_BACKEND_IO_URING) ? "IO_URING with O_DIRECT" : "AIO with O_DIRECT");
 	printf("START TIME: %f\n", start);
 	printf("END TIME: %f\n", end);
 	printf("TOTAL seconds: %f\n", diff);
@@ -252,13 +291,28 @@ int main(int argc, char *argv[])
 	delete aio;
 	free(tmpBuff);
 
-	return 0;
+	rc = 0;
+	if (!sequentialTest && backend != AIO_BACKEND_LIBAIO) {
+		// checks run on the biggest file
+		int biggest = 0;
+		for(int i=1; i<fdCount; i++) {
+			if (fdsArr[i].size > fdsArr[biggest].size)
+				biggest = i;
+		}
+		rc = ioUringChecks(fdsArr[biggest], chunk_size, min_nr, nr, &timeout, sqpoll);
+	}
+
+	for(int i=0; i<fdCount; i++) {
+		close(fdsArr[i].fd);
+	}
+
+	return rc;
 }
 
 
 
 
-int callback(void* data) {
+int callback(void* data, int status) {
 	long currSize=(long)data;
 
 	pthread_mutex_lock(&readSizeLock);
@@ -274,13 +328,204 @@ int callback(void* data) {
 
 }
 
+/*
+ * io_uring checks - run after the benchmark when '-backend' (the values of mapred.rdma.aio.backend) is not libaio:
+ *   1. reads into a buffer given to registerBuffers() (READ_FIXED) and into a buffer that was not registered
+ *   2. a single submit() of a queue deeper than the SQ - the requests that find the SQ full are flushed or held
+ *      for the events processor (_cbRowHeld), and each one must still complete once
+ *   3. the fallback to libaio when the kernel refuses io_uring (io_uring_setup is blocked with seccomp)
+ * Reads of checks 1 and 3 are verified against a pread of the same range.
+ */
+void setCheckReq(check_req_t* req, int fd, long file_offset, long size, char* buff, bool verify) {
+	req->fd=fd;
+	req->file_offset=file_offset;
+	req->size=size;
+	req->buff=buff;
+	req->verify=verify;
+	req->completions=0;
+}
+
+int checkCallback(void* data, int status) {
+	check_req_t* req=(check_req_t*)data;
+	bool ok = (status == 0);
+
+	// called by the single events processor thread, so one verify buffer is enough
+	if (ok && req->verify) {
+		ok = (pread(req->fd, checkVerifyBuff, req->size, req->file_offset) == req->size) && !memcmp(req->buff, checkVerifyBuff, req->size);
+	}
+
+	pthread_mutex_lock(&checkLock);
+	req->completions++;
+	if (!ok)
+		checkFailed++;
+	checkDone++;
+	pthread_cond_signal(&checkCond);
+	pthread_mutex_unlock(&checkLock);
+
+	return 0;
+}
+
+// submits the requests with a single submit() call and verifies each one completed once without error
+int runCheck(AIOHandler* aio, check_req_t* reqs, int count, const char* name) {
+	timespec deadline;
+	int rc=0;
+
+	checkDone=0;
+	checkFailed=0;
+	for (int i=0; i<count; i++) {
+		reqs[i].completions=0;
+		if (aio->prepare_read(reqs[i].fd, reqs[i].file_offset, reqs[i].size, reqs[i].buff, &reqs[i])) {
+			output_stderr("[%s,%d] CHECK %s: prepare_read failed for request %d",__FILE__,__LINE__, name, i);
+			exit(-1);
+		}
+	}
+	aio->submit();
+
+	clock_gettime(CLOCK_REALTIME, &deadline);
+	deadline.tv_sec+=CHECK_TIMEOUT_SEC;
+	pthread_mutex_lock(&checkLock);
+	while (checkDone < count) {
+		if (pthread_cond_timedwait(&checkCond, &checkLock, &deadline) == ETIMEDOUT) {
+			// requests are still on air - the handler cannot be deleted under them
+			output_stderr("[%s,%d] CHECK %s: FAILED - only %d of %d requests completed after %d seconds",__FILE__,__LINE__, name, checkDone, count, CHECK_TIMEOUT_SEC);
+			exit(-1);
+		}
+	}
+	pthread_mutex_unlock(&checkLock);
+
+	for (int i=0; i<count; i++) {
+		if (reqs[i].completions != 1)
+			rc=-1;
+	}
+	if (checkFailed)
+		rc=-1;
+
+	printf("CHECK %s (backend=%s): %s - %d requests, %d failed\n", name, AIOHandler::backendName(aio->getBackend()), rc ? "FAILED" : "OK", count, checkFailed);
+	return rc;
+}
+
+// makes io_uring_setup fail with ENOSYS for this thread and the threads it creates, as on a kernel without io_uring
+int blockIoUringSetup() {
+#ifdef __NR_io_uring_setup
+	struct sock_filter filter[] = {
+		BPF_STMT(BPF_LD | BPF_W | BPF_ABS, offsetof(struct seccomp_data, nr)),
+		BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, __NR_io_uring_setup, 0, 1),
+		BPF_STMT(BPF_RET | BPF_K, SECCOMP_RET_ERRNO | ENOSYS),
+		BPF_STMT(BPF_RET | BPF_K, SECCOMP_RET_ALLOW),
+	};
+	struct sock_fprog prog;
+	prog.len=(unsigned short)(sizeof(filter)/sizeof(filter[0]));
+	prog.filter=filter;
+
+	if (prctl(PR_SET_NO_NEW_PRIVS, 1, 0, 0, 0) || prctl(PR_SET_SECCOMP, SECCOMP_MODE_FILTER, &prog))
+		return -1;
+	return 0;
+#else
+	return -1;
+#endif
+}
+
+int ioUringChecks(fd_s_t file, long chunk_size, long min_nr, long nr, const timespec* timeout, bool sqpoll) {
+	check_req_t reqs[2*CHECK_CHUNKS];
+	char* pool;
+	char* buff;
+	AIOHandler* aio;
+	AioBackend inUse;
+	int rc=0;
+
+	int chunks = file.size / chunk_size;
+	if (chunks > CHECK_CHUNKS)
+		chunks=CHECK_CHUNKS;
+	if (chunks == 0) {
+		output_stderr("io_uring checks need a file of at least %ld bytes", chunk_size);
+		return -1;
+	}
+
+	pthread_mutex_init(&checkLock, NULL);
+	pthread_cond_init(&checkCond, NULL);
+	posix_memalign((void**)&pool, AIO_ALIGNMENT, chunks*chunk_size);
+	posix_memalign((void**)&buff, AIO_ALIGNMENT, chunks*chunk_size);
+	posix_memalign((void**)&checkVerifyBuff, AIO_ALIGNMENT, chunk_size);
+
+	for (int i=0; i<chunks; i++) {
+		setCheckReq(&reqs[i], file.fd, i*chunk_size, chunk_size, pool + i*chunk_size, true);
+		setCheckReq(&reqs[chunks+i], file.fd, i*chunk_size, chunk_size, buff + i*chunk_size, true);
+	}
+
+	// 1. only pool is registered
+	aio = new AIOHandler(checkCallback, 2*CHECK_CHUNKS, min_nr, nr, timeout, AIO_BACKEND_IO_URING, sqpoll);
+	aio->registerBuffers(pool, chunks*chunk_size);
+	aio->start();
+	inUse=aio->getBackend();
+	rc |= runCheck(aio, reqs, chunks, "read into a registered buffer");
+	rc |= runCheck(aio, reqs + chunks, chunks, "read into an unregistered buffer");
+	delete aio;
+
+	// 2. the ring is clamped to IO_URING_MAX_ENTRIES while the handler prepares twice as many requests
+	if (inUse == AIO_BACKEND_IO_URING) {
+		int depth = 2*IO_URING_MAX_ENTRIES;
+		long blocks = file.size / AIO_ALIGNMENT;
+		check_req_t* deep = new check_req_t[depth];
+
+		// the reads share the registered pool, so their data is not verified
+		for (int i=0; i<depth; i++) {
+			setCheckReq(&deep[i], file.fd, (i % blocks)*AIO_ALIGNMENT, AIO_ALIGNMENT, pool + (i % chunks)*chunk_size, false);
+		}
+
+		aio = new AIOHandler(checkCallback, depth, min_nr, nr, timeout, AIO_BACKEND_IO_URING, sqpoll);
+		aio->registerBuffers(pool, chunks*chunk_size);
+		aio->start();
+		if (aio->getBackend() != AIO_BACKEND_IO_URING) {
+			printf("CHECK queue deeper than the SQ: FAILED - io_uring was not setup for %d entries\n", depth);
+			rc=-1;
+		}
+		else {
+			rc |= runCheck(aio, deep, depth, "queue deeper than the SQ");
+		}
+		delete aio;
+		delete[] deep;
+	}
+	else {
+		printf("CHECK queue deeper than the SQ: SKIPPED - io_uring is not available, the reads above used the libaio fallback\n");
+	}
+
+	// 3. last - the seccomp filter cannot be removed
+	if (blockIoUringSetup()) {
+		printf("CHECK libaio fallback: SKIPPED - cannot block io_uring_setup (errno=%d)\n", errno);
+	}
+	else {
+		aio = new AIOHandler(checkCallback, 2*CHECK_CHUNKS, min_nr, nr, timeout, AIO_BACKEND_IO_URING, sqpoll);
+		aio->registerBuffers(pool, chunks*chunk_size);
+		aio->start();
+		if (aio->getBackend() != AIO_BACKEND_LIBAIO) {
+			printf("CHECK libaio fallback: FAILED - backend is %s\n", AIOHandler::backendName(aio->getBackend()));
+			rc=-1;
+		}
+		else {
+			rc |= runCheck(aio, reqs, chunks, "libaio fallback");
+		}
+		delete aio;
+	}
+
+	free(checkVerifyBuff);
+	free(buff);
+	free(pool);
+	pthread_cond_destroy(&checkCond);
+	pthread_mutex_destroy(&checkLock);
+
+	printf("***IO_URING CHECKS: %s\n", rc ? "FAILED" : "PASSED");
+	return rc;
+}
+
 void Usage(const char* appName) {
-	printf("Usage: %s <min_nr> <nr> <maxevents> <timeout> <chunk_size> <ios_per_submit> <mofs_path1> [<mofs_path2> ... <mofs_pathK>] -sq\n", appName);
+	printf("Usage: %s <min_nr> <nr> <maxevents> <timeout> <chunk_size> <ios_per_submit> <mofs_path1> [<mofs_path2> ... <mofs_pathK>] [-sq | -backend <auto|libaio|io_uring> [-sqpoll]]\n", appName);
 	printf("\tThe test prepare AIO read requests for all files in <mofs_path1>..<mofs_pathK> using chunks of <chunk_size> and measures how long it takes\n");
 	printf("\tEvery <ios_per_submit> requests are submitted together in one submit call\n");
 	printf("\tFor testing multi HD , chose mofs_pathes smoothly from different spindles\n");
 	printf("\tAIO context will be initialize with <maxevents>, io_getevents will be blocked for atleast <min_nr> and max <nr> or timeout of <timeout> nSec\n");
 	printf("\tAdd '-sq' at the end for performing this test sequentially using blocking read operations and ignoring O_DIRECT flag when open file for reading\n");
+	printf("\tAdd '-backend <name>' to use the AIO backend selected by mapred.rdma.aio.backend=<name> (default libaio), and '-sqpoll' for io_uring SQPOLL mode\n");
+	printf("\tWith a backend other than libaio the test then checks io_uring reads into registered and unregistered buffers, a queue deeper than the SQ and the libaio fallback, on the biggest file\n");
 }
 
 
@@ -0,0 +1,258 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+/*
+ * Benchmark of the merge's key comparison modes.
+ * Merges sorted runs of random Text keys with the merger's PriorityQueue, comparing keys with:
+ *   native  - the native Text compare function
+ *   java    - the job's RawComparator through JNI, one call per comparison (heap ordering)
+ *   batched - the job's RawComparator through JNI, up to BATCH_CMP_MAX_KEYS keys per call (sorted ordering)
+ *
+ * The Java modes run in an embedded JVM; its classpath must contain hadoop's jars and the uda plugin's jar.
+ * See compile_compare_bench.sh
+ */
+#include <pthread.h>
+#include "IOUtility.h"
+#include "UdaBridge.h"
+#include "CompareFunc.h"
+#include "MergeQueue.h"
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+#include <vector>
+#include <string>
+#include <algorithm>
+
+hadoop_cmp_func g_cmp_func;
+hadoop_batch_cmp_func g_batch_cmp_func = NULL;
+
+static JavaVM *jvm;
+static JNIEnv *env;
+static jclass jclassKeyComparator;
+static jmethodID jmethodID_compareBatch;
+static uint64_t jni_calls = 0;
+
+////////////////////////////////////////////////////////////////////////////////
+// the parts of UdaBridge that the compare functions use
+JNIEnv *UdaBridge_threadGetEnv()
+{
+	return env;
+}
+
+void UdaBridge_deleteGlobalRef(jobject ref)
+{
+	if (ref) env->DeleteGlobalRef(ref);
+}
+
+void UdaBridge_invoke_compareBatch_callback(JNIEnv * jniEnv, jobject jbuf, int n, int len)
+{
+	jni_calls++;
+	jniEnv->CallStaticVoidMethod(jclassKeyComparator, jmethodID_compareBatch, jbuf, n, len);
+	if (jniEnv->ExceptionCheck()) {
+		jniEnv->ExceptionDescribe();
+		jniEnv->ExceptionClear();
+		throw new UdaException("java key comparator failed");
+	}
+}
+
+void UdaBridge_invoke_logToJava_callback(const char* log_message, int severity)
+{
+	printf("%s\n", log_message);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+class BenchSegment
+{
+public:
+	DataStream key;
+	std::vector<std::string> *run;
+	size_t idx;
+
+	bool next() {
+		if (++idx >= run->size())
+			return false;
+		key.reset((char*)(*run)[idx].data(), (*run)[idx].size());
+		return true;
+	}
+
+	bool operator<(BenchSegment &seg) {  return ( (g_cmp_func(key.getData(), key.getLength(), seg.key.getData(), seg.key.getLength())) < 0 ); }
+};
+
+static hadoop_cmp_func text_cmp;
+
+static bool text_less(const std::string &a, const std::string &b)
+{
+	return text_cmp((char*)a.data(), a.size(), (char*)b.data(), b.size()) < 0;
+}
+
+static std::string random_text_key(int length)
+{
+	std::string key;
+	key += (char)length; // Text's vint length - one byte up to 127
+	for (int i = 0; i < length; ++i)
+		key += (char)('a' + rand() % 26);
+	return key;
+}
+
+static double now_sec()
+{
+	struct timeval tv;
+	gettimeofday(&tv, NULL);
+	return tv.tv_sec + tv.tv_usec / 1e6;
+}
+
+// returns the number of merged records, or -1 if the merged order is wrong
+static long merge_runs(std::vector<std::vector<std::string> > &runs)
+{
+	PriorityQueue<BenchSegment*> queue(runs.size(), NULL);
+	std::vector<BenchSegment> segments(runs.size());
+	for (size_t i = 0; i < runs.size(); ++i) {
+		segments[i].run = &runs[i];
+		segments[i].idx = (size_t)-1;
+		if (segments[i].next())
+			queue.put(&segments[i]);
+	}
+
+	long records = 0;
+	std::string prev;
+	while (queue.size() > 0) {
+		BenchSegment *seg = queue.top();
+		std::string cur(seg->key.getData(), seg->key.getLength());
+		if (records && text_less(cur, prev))
+			return -1;
+		prev = cur;
+		records++;
+
+		if (seg->next())
+			queue.adjustTop();
+		else
+			queue.pop();
+	}
+	return records;
+}
+
+static void run_mode(const char *mode, std::vector<std::vector<std::string> > &runs)
+{
+	if (strcmp(mode, "native") == 0) {
+		g_cmp_func = text_cmp;
+		g_batch_cmp_func = NULL;
+	}
+	else {
+		g_cmp_func = get_compare_func("org.apache.hadoop.io.Text", NULL, "java");
+		g_batch_cmp_func = (strcmp(mode, "batched") == 0) ? get_batch_compare_func(g_cmp_func) : NULL;
+	}
+
+	jni_calls = 0;
+	double start = now_sec();
+	long records = merge_runs(runs);
+	double elapsed = now_sec() - start;
+
+	if (records < 0) {
+		printf("%-8s: WRONG ORDER\n", mode);
+		return;
+	}
+	printf("%-8s: fan-in=%zu records=%ld time=%.3fs records/sec=%.0f jni_calls/record=%.2f\n",
+			mode, runs.size(), records, elapsed, records / elapsed, (double)jni_calls / records);
+}
+
+static int start_jvm(const char *classpath, const char *key_class)
+{
+	std::string cp_option = std::string("-Djava.class.path=") + classpath;
+	JavaVMOption options[1];
+	options[0].optionString = (char*)cp_option.c_str();
+
+	JavaVMInitArgs vm_args;
+	vm_args.version = JNI_VERSION_1_6;
+	vm_args.nOptions = 1;
+	vm_args.options = options;
+	vm_args.ignoreUnrecognized = JNI_FALSE;
+	if (JNI_CreateJavaVM(&jvm, (void**)&env, &vm_args) != JNI_OK) {
+		printf("failed to create JVM\n");
+		return -1;
+	}
+
+	jclass jclassJobConf = env->FindClass("org/apache/hadoop/mapred/JobConf");
+	jclassKeyComparator = env->FindClass("com/mellanox/hadoop/mapred/UdaKeyComparator");
+	if (!jclassJobConf || !jclassKeyComparator) {
+		env->ExceptionDescribe();
+		printf("hadoop's JobConf or uda's UdaKeyComparator was not found in classpath: %s\n", classpath);
+		return -1;
+	}
+	jmethodID_compareBatch = env->GetStaticMethodID(jclassKeyComparator, "compareBatch", "(Ljava/lang/Object;II)V");
+	jmethodID jmethodID_init = env->GetStaticMethodID(jclassKeyComparator, "init", "(Lorg/apache/hadoop/mapred/JobConf;)V");
+
+	jobject conf = env->NewObject(jclassJobConf, env->GetMethodID(jclassJobConf, "<init>", "()V"));
+	jmethodID jmethodID_set = env->GetMethodID(jclassJobConf, "set", "(Ljava/lang/String;Ljava/lang/String;)V");
+	env->CallVoidMethod(conf, jmethodID_set, env->NewStringUTF("mapred.output.key.class"), env->NewStringUTF(key_class));
+	env->CallStaticVoidMethod(jclassKeyComparator, jmethodID_init, conf);
+	if (env->ExceptionCheck()) {
+		env->ExceptionDescribe();
+		return -1;
+	}
+	return 0;
+}
+
+void Usage(const char* appName)
+{
+	printf("usage: %s <classpath> [fan-in=100] [keys per run=10000] [key length=20]\n", appName);
+	printf("  classpath - hadoop's jars and the uda plugin's jar, for the java modes\n");
+}
+
+int main(int argc, char *argv[])
+{
+	if (argc < 2) {
+		Usage(argv[0]);
+		return 1;
+	}
+	int fan_in = (argc > 2) ? atoi(argv[2]) : 100;
+	int keys_per_run = (argc > 3) ? atoi(argv[3]) : 10000;
+	int key_length = (argc > 4) ? atoi(argv[4]) : 20;
+	if (fan_in <= 0 || keys_per_run <= 0 || key_length <= 0 || key_length > 127) {
+		Usage(argv[0]);
+		return 1;
+	}
+
+	log_set_threshold(lsWARN);
+	text_cmp = get_compare_func("org.apache.hadoop.io.Text");
+
+	srand(1);
+	std::vector<std::vector<std::string> > runs(fan_in);
+	for (int i = 0; i < fan_in; ++i) {
+		for (int k = 0; k < keys_per_run; ++k)
+			runs[i].push_back(random_text_key(key_length));
+		std::sort(runs[i].begin(), runs[i].end(), text_less);
+	}
+
+	run_mode("native", runs);
+
+	if (start_jvm(argv[1], "org.apache.hadoop.io.Text"))
+		return 1;
+	try {
+		run_mode("java", runs);
+		run_mode("batched", runs);
+	}
+	catch (UdaException *ex) {
+		printf("failed: %s\n", ex->_info);
+		return 1;
+	}
+
+	jvm->DestroyJavaVM();
+	return 0;
+}
@@ -0,0 +1,197 @@
+/*
+** Copyright (C) 2012 Auburn University
+** Copyright (C) 2012 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+**
+*/
+
+/*
+ * Benchmark of the merge's PriorityQueue orderings (MQ_HEAP vs. MQ_LOSER_TREE) across fan-in values.
+ * Merges sorted runs of random Text keys - the same total number of records for every fan-in - with segments
+ * that compare like BaseSegment (cached key prefix first, then the compare function), and checks the merged order.
+ * See compile_merge_queue_bench.sh
+ */
+#include <pthread.h>
+#include "IOUtility.h"
+#include "UdaBridge.h"
+#include "CompareFunc.h"
+#include "MergeQueue.h"
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+#include <vector>
+#include <string>
+#include <algorithm>
+
+hadoop_cmp_func g_cmp_func;
+hadoop_batch_cmp_func g_batch_cmp_func = NULL;
+hadoop_prefix_func g_key_prefix_func = NULL;
+
+static hadoop_cmp_func text_cmp;
+static uint64_t num_compares = 0;     // element compares (operator<)
+static uint64_t num_key_compares = 0; // of them, resolved by the compare function
+
+////////////////////////////////////////////////////////////////////////////////
+// the parts of UdaBridge that the compare functions link with - unused, there are no Java compares here
+JNIEnv *UdaBridge_threadGetEnv()
+{
+	return NULL;
+}
+
+void UdaBridge_deleteGlobalRef(jobject ref)
+{
+}
+
+void UdaBridge_invoke_compareBatch_callback(JNIEnv * jniEnv, jobject jbuf, int n, int len)
+{
+	throw new UdaException("no Java compares in this benchmark");
+}
+
+void UdaBridge_invoke_logToJava_callback(const char* log_message, int severity)
+{
+	printf("%s\n", log_message);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+class BenchSegment
+{
+public:
+	DataStream key;
+	uint64_t key_prefix;
+	std::vector<std::string> *run;
+	size_t idx;
+
+	bool next() {
+		if (++idx >= run->size())
+			return false;
+		key.reset((char*)(*run)[idx].data(), (*run)[idx].size());
+		key_prefix = g_key_prefix_func ? g_key_prefix_func(key.getData(), key.getLength()) : 0;
+		return true;
+	}
+
+	bool operator<(BenchSegment &seg) {
+		num_compares++;
+		if (key_prefix != seg.key_prefix)
+			return key_prefix < seg.key_prefix;
+		num_key_compares++;
+		return ( (g_cmp_func(key.getData(), key.getLength(), seg.key.getData(), seg.key.getLength())) < 0 );
+	}
+};
+
+static bool text_less(const std::string &a, const std::string &b)
+{
+	return text_cmp((char*)a.data(), a.size(), (char*)b.data(), b.size()) < 0;
+}
+
+// common_prefix characters shared by all keys make the cached key prefixes tie, as with long composite keys
+static std::string random_text_key(int length, int common_prefix)
+{
+	std::string key;
+	key += (char)length; // Text's vint length - one byte up to 127
+	for (int i = 0; i < length; ++i)
+		key += (i < common_prefix) ? 'k' : (char)('a' + rand() % 26);
+	return key;
+}
+
+static double now_sec()
+{
+	struct timeval tv;
+	gettimeofday(&tv, NULL);
+	return tv.tv_sec + tv.tv_usec / 1e6;
+}
+
+// returns the number of merged records, or -1 if the merged order is wrong
+static long merge_runs(std::vector<std::vector<std::string> > &runs, merge_queue_type_t type)
+{
+	PriorityQueue<BenchSegment*> queue(runs.size(), NULL, type);
+	std::vector<BenchSegment> segments(runs.size());
+	for (size_t i = 0; i < runs.size(); ++i) {
+		segments[i].run = &runs[i];
+		segments[i].idx = (size_t)-1;
+		if (segments[i].next())
+			queue.put(&segments[i]);
+	}
+
+	long records = 0;
+	DataStream prev;
+	while (queue.size() > 0) {
+		BenchSegment *seg = queue.top();
+		if (records && text_cmp(seg->key.getData(), seg->key.getLength(), prev.getData(), prev.getLength()) < 0)
+			return -1;
+		prev.reset(seg->key.getData(), seg->key.getLength());
+		records++;
+
+		if (seg->next())
+			queue.adjustTop();
+		else
+			queue.pop();
+	}
+	return records;
+}
+
+static void run_mode(const char *mode, merge_queue_type_t type, std::vector<std::vector<std::string> > &runs)
+{
+	num_compares = num_key_compares = 0;
+	double start = now_sec();
+	long records = merge_runs(runs, type);
+	double elapsed = now_sec() - start;
+
+	if (records < 0) {
+		printf("%-10s: fan-in=%zu WRONG ORDER\n", mode, runs.size());
+		return;
+	}
+	printf("%-10s: fan-in=%-6zu records=%ld time=%.3fs records/sec=%.0f compares/record=%.2f key_compares/record=%.2f\n",
+			mode, runs.size(), records, elapsed, records / elapsed,
+			(double)num_compares / records, (double)num_key_compares / records);
+}
+
+void Usage(const char* appName)
+{
+	printf("usage: %s [total records=2000000] [key length=20] [common key prefix=0] [use key prefix=1]\n", appName);
+	printf("  runs fan-in 10, 100, 1000 and 10000 with the same total records\n");
+}
+
+int main(int argc, char *argv[])
+{
+	long total_records = (argc > 1) ? atol(argv[1]) : 2000000;
+	int key_length = (argc > 2) ? atoi(argv[2]) : 20;
+	int common_prefix = (argc > 3) ? atoi(argv[3]) : 0;
+	bool use_prefix = (argc > 4) ? atoi(argv[4]) != 0 : true;
+	if (total_records <= 0 || key_length <= 0 || key_length > 127 || common_prefix < 0 || common_prefix > key_length) {
+		Usage(argv[0]);
+		return 1;
+	}
+
+	log_set_threshold(lsWARN);
+	text_cmp = get_compare_func("org.apache.hadoop.io.Text");
+	g_cmp_func = text_cmp;
+	g_key_prefix_func = use_prefix ? get_key_prefix_func(text_cmp) : NULL;
+
+	const int fan_ins[] = {10, 100, 1000, 10000};
+	for (size_t f = 0; f < sizeof(fan_ins) / sizeof(fan_ins[0]); ++f) {
+		int fan_in = fan_ins[f];
+		srand(1);
+		std::vector<std::vector<std::string> > runs(fan_in);
+		for (long r = 0; r < total_records; ++r)
+			runs[r % fan_in].push_back(random_text_key(key_length, common_prefix));
+		for (int i = 0; i < fan_in; ++i)
+			std::sort(runs[i].begin(), runs[i].end(), text_less);
+
+		run_mode("heap", MQ_HEAP, runs);
+		run_mode("loser_tree", MQ_LOSER_TREE, runs);
+	}
+	return 0;
+}
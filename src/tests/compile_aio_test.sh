@@ -18,3 +18,6 @@
 #
 g++ AIOHandler_test.cc ../CommUtils/AIOHandler.cc ../CommUtils/IOUtility.cc  -o test -I../include/  -laio -lpthread -lrt
 
+
+# with liburing installed, the same test also runs the io_uring backend (run it with '-backend io_uring')
+g++ AIOHandler_test.cc ../CommUtils/AIOHandler.cc ../CommUtils/IOUtility.cc  -o test_io_uring -I../include/ -DHAVE_LIBURING_H -DHAVE_LIBURING -laio -luring -lpthread -lrt
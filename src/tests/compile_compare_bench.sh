@@ -0,0 +1,21 @@
+#!/bin/bash
+#
+# Copyright (C) 2012 Auburn University
+# Copyright (C) 2012 Mellanox Technologies
+# 
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at:
+#  
+# http://www.apache.org/licenses/LICENSE-2.0
+# 
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+# either express or implied. See the License for the specific language 
+# governing permissions and  limitations under the License.
+#
+#
+# run with: LD_LIBRARY_PATH=$JAVA_HOME/jre/lib/amd64/server ./compare_bench <hadoop jars>:<uda jar> [fan-in] [keys per run] [key length]
+JVM_LIB_DIR=$(dirname $(find $JAVA_HOME/ -name libjvm.so | head -1))
+g++ -O2 CompareFunc_bench.cc ../Merger/CompareFunc.cc ../CommUtils/IOUtility.cc -include pthread.h -o compare_bench -I../include/ -I../Merger/ -I../ -I$JAVA_HOME/include -I$JAVA_HOME/include/linux -L$JVM_LIB_DIR -ljvm -lpthread